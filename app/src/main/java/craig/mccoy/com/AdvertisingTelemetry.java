@@ -0,0 +1,193 @@
+package craig.mccoy.com;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+import craig.mccoy.com.core.LatencyHistogram;
+import craig.mccoy.com.core.MetricsRegistry;
+
+/**
+ * Process-wide telemetry for advertising requests: how long the stack takes to confirm a start,
+ * a stop or a payload swap, and how often and why starts fail.  Every method is lock-free so it
+ * can be called from the binder threads delivering the callbacks.
+ * The values live in a MetricsRegistry that other components register their own metrics in, so
+ * one dump shows them all.
+ * The request timestamp is taken by the caller (System.nanoTime()) and handed back with the result.
+ */
+final class AdvertisingTelemetry {
+    private static final String TAG = "BLE:AdvertisingTelemetry";
+
+    // AdvertiseCallback and AdvertisingSetCallback share the error codes 1..5; anything else lands in 0
+    private static final String[] ERROR_NAMES = {
+            "OTHER",
+            "DATA_TOO_LARGE",
+            "TOO_MANY_ADVERTISERS",
+            "ALREADY_STARTED",
+            "INTERNAL_ERROR",
+            "FEATURE_UNSUPPORTED"
+    };
+
+    private static final AdvertisingTelemetry instance = new AdvertisingTelemetry();
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final LatencyHistogram startLatency = metrics.histogram("advertising.start_latency");
+    private final LatencyHistogram stopLatency = metrics.histogram("advertising.stop_latency");
+    private final LatencyHistogram dataSetLatency = metrics.histogram("advertising.data_set_latency");
+    private final MetricsRegistry.Counter startRequests = metrics.counter("advertising.start_requests");
+    private final MetricsRegistry.Counter stopRequests = metrics.counter("advertising.stop_requests");
+    private final MetricsRegistry.Counter starts = metrics.counter("advertising.starts");
+    private final MetricsRegistry.Counter stops = metrics.counter("advertising.stops");
+    private final MetricsRegistry.Counter dataSetFailures = metrics.counter("advertising.data_set_failures");
+    private final MetricsRegistry.Counter losses = metrics.counter("advertising.lost");
+    private final MetricsRegistry.Counter[] failures = new MetricsRegistry.Counter[ERROR_NAMES.length];
+    private final long createdNanos = System.nanoTime();
+
+    // The legacy AdvertiseCallback is shared, so only the latest start request can be matched
+    private volatile long legacyStartRequestedNanos = 0;
+
+    @NonNull
+    static AdvertisingTelemetry getInstance() {
+        return instance;
+    }
+
+    private AdvertisingTelemetry() {
+        for (int i = 0; i < ERROR_NAMES.length; i++) {
+            failures[i] = metrics.counter("advertising.start_failures." + ERROR_NAMES[i]);
+        }
+        metrics.gauge("advertising.sets_on_air", () -> starts.get() - stops.get() - losses.get());
+        metrics.gauge("process.uptime_s", () -> (System.nanoTime() - createdNanos) / 1_000_000_000L);
+    }
+
+    /**
+     * @return the registry holding these metrics, for other components to add theirs.
+     */
+    @NonNull
+    MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the request timestamp to hand back to {@link #onStartSucceeded(long)} or {@link #onStartFailed(long, int)}.
+     */
+    long onStartRequested() {
+        startRequests.increment();
+        return System.nanoTime();
+    }
+
+    void onStartSucceeded(long requestedNanos) {
+        starts.increment();
+        if (requestedNanos != 0) {
+            startLatency.record(System.nanoTime() - requestedNanos);
+        }
+    }
+
+    void onStartFailed(long requestedNanos, int errorCode) {
+        if (requestedNanos != 0) {
+            startLatency.record(System.nanoTime() - requestedNanos);
+        }
+        failures[errorCode > 0 && errorCode < ERROR_NAMES.length ? errorCode : 0].increment();
+    }
+
+    long onStopRequested() {
+        stopRequests.increment();
+        return System.nanoTime();
+    }
+
+    void onStopped(long requestedNanos) {
+        stops.increment();
+        if (requestedNanos != 0) {
+            stopLatency.record(System.nanoTime() - requestedNanos);
+        }
+    }
+
+    void onDataSet(long requestedNanos) {
+        dataSetLatency.record(System.nanoTime() - requestedNanos);
+    }
+
+    void onDataSetFailed() {
+        dataSetFailures.increment();
+    }
+
+    /**
+     * A started set the stack stopped on its own.
+     */
+    void onLost() {
+        losses.increment();
+    }
+
+    void onLegacyStartRequested() {
+        legacyStartRequestedNanos = onStartRequested();
+    }
+
+    /**
+     * Called from the legacy AdvertiseCallback; errorCode is 0 on success.
+     */
+    void onLegacyStartResult(int errorCode) {
+        long requestedNanos = legacyStartRequestedNanos;
+        legacyStartRequestedNanos = 0;
+        if (errorCode == 0) {
+            onStartSucceeded(requestedNanos);
+        } else {
+            onStartFailed(requestedNanos, errorCode);
+        }
+    }
+
+    @NonNull
+    LatencyHistogram getStartLatency() {
+        return startLatency;
+    }
+
+    @NonNull
+    LatencyHistogram getStopLatency() {
+        return stopLatency;
+    }
+
+    @NonNull
+    LatencyHistogram getDataSetLatency() {
+        return dataSetLatency;
+    }
+
+    long getStartRequests() {
+        return startRequests.get();
+    }
+
+    long getStopRequests() {
+        return stopRequests.get();
+    }
+
+    /**
+     * @return the number of failed starts with the given AdvertiseCallback error code.
+     */
+    long getFailureCount(int errorCode) {
+        return failures[errorCode > 0 && errorCode < ERROR_NAMES.length ? errorCode : 0].get();
+    }
+
+    long getTotalFailures() {
+        long total = 0;
+        for (MetricsRegistry.Counter failure : failures) {
+            total += failure.get();
+        }
+        return total;
+    }
+
+    /**
+     * Writes every metric of the registry as "key: value" lines, one histogram, counter or gauge
+     * per line.  The writers are not paused while this runs.
+     */
+    void dump(@NonNull PrintWriter writer) {
+        metrics.dump(writer);
+    }
+
+    void dump(@NonNull File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            dump(writer);
+        }
+        MyLog.i(TAG, "dump(): Written to " + file);
+    }
+}
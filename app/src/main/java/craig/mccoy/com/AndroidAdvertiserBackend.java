@@ -0,0 +1,92 @@
+package craig.mccoy.com;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+
+import androidx.annotation.NonNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import craig.mccoy.com.core.AdvertiserBackend;
+import craig.mccoy.com.core.BeaconType;
+
+/**
+ * The AdvertiserBackend on top of BluetoothLeAdvertiser: one AdvertisingSet per engine callback.
+ * The AdvertisingSetCallback keeps the AdvertisingSet handle once started, so the payload can be
+ * swapped in place.  The AdvertisingSetParameters follow the advertising mode of the beacon type,
+ * falling back to what the controller supports (see BeaconPayloadCache).
+ * It is assumed the caller has already verified and/or obtained the Manifest.permission.BLUETOOTH_ADVERTISE
+ * permission.  Otherwise, the methods of this class will throw a permission denied exceptions.
+ */
+final class AndroidAdvertiserBackend implements AdvertiserBackend<AdvertiseData> {
+    private final BluetoothLeAdvertiser bluetoothLeAdvertiser;
+    private final Map<Callback, SetCallback> setCallbacks = new ConcurrentHashMap<>();
+
+    private final class SetCallback extends AdvertisingSetCallback {
+        final Callback callback;
+        volatile AdvertisingSet advertisingSet = null;
+
+        SetCallback(Callback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower, int status) {
+            if (status == ADVERTISE_SUCCESS) {
+                this.advertisingSet = advertisingSet;
+            } else {
+                setCallbacks.remove(callback, this);
+            }
+            callback.onStarted(status);
+        }
+
+        @Override
+        public void onAdvertisingDataSet(AdvertisingSet advertisingSet, int status) {
+            callback.onDataSet(status);
+        }
+
+        @Override
+        public void onAdvertisingSetStopped(AdvertisingSet advertisingSet) {
+            callback.onStopped();
+        }
+    }
+
+    AndroidAdvertiserBackend(@NonNull BluetoothLeAdvertiser bluetoothLeAdvertiser) {
+        this.bluetoothLeAdvertiser = bluetoothLeAdvertiser;
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public void startSet(BeaconType beaconType, AdvertiseData data, Callback callback) {
+        AdvertisingSetParameters parameters = BeaconPayloadCache.getInstance().getAdvertisingSetParameters(beaconType);
+        SetCallback setCallback = new SetCallback(callback);
+        setCallbacks.put(callback, setCallback);
+        bluetoothLeAdvertiser.startAdvertisingSet(parameters, data, null, null, null, setCallback);
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public boolean setData(Callback callback, AdvertiseData data) {
+        SetCallback setCallback = setCallbacks.get(callback);
+        AdvertisingSet advertisingSet = setCallback != null ? setCallback.advertisingSet : null;
+        if (advertisingSet == null) {
+            return false;
+        }
+        advertisingSet.setAdvertisingData(data);
+        return true;
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public void stopSet(Callback callback) {
+        SetCallback setCallback = setCallbacks.remove(callback);
+        if (setCallback != null) {
+            bluetoothLeAdvertiser.stopAdvertisingSet(setCallback);
+        }
+    }
+}
@@ -3,18 +3,28 @@ package craig.mccoy.com;
 import android.app.Application;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseSettings;
 import android.content.Context;
 import android.content.Intent;
 
+import java.io.File;
+import java.io.IOException;
+
+import craig.mccoy.com.core.BeaconFleetStore;
+import craig.mccoy.com.core.MetricsRegistry;
+
 public class App extends Application {
     private static final String TAG = "BLE:App";
 
     private static App myApp;
     private static volatile AdvertiseCallback advertiseCallback = null;
     public static Intent serviceIntent = null;
+    private static BeaconFleetStore fleetStore = null;
+    private BluetoothReceiver bluetoothReceiver = null;
+    private volatile int lastBluetoothState = BluetoothAdapter.ERROR;
 
     public static BluetoothManager getBluetoothManager() {
         return (BluetoothManager)myApp.getSystemService(Context.BLUETOOTH_SERVICE);
@@ -22,6 +32,22 @@ public class App extends Application {
     public static String getAppString(int id) {
         return myApp.getResources().getString(id);
     }
+    public static int getAppInteger(int id) {
+        return myApp.getResources().getInteger(id);
+    }
+
+    /**
+     * Opens the beacon fleet store on first use and keeps it open for the life of the process.
+     * Opening only maps the file, so it is cheap enough for the main thread.
+     */
+    public static synchronized BeaconFleetStore getFleetStore() throws IOException {
+        if (fleetStore == null) {
+            File file = new File(myApp.getFilesDir(), getAppString(R.string.fleet_store_file_name));
+            fleetStore = BeaconFleetStore.open(file, myApp.getResources().getInteger(R.integer.fleet_capacity));
+            MyLog.i(TAG, "getFleetStore(): " + fleetStore.size() + " beacon(s) in " + file);
+        }
+        return fleetStore;
+    }
 
     public App() {
         MyLog.i(TAG, "Constructor(): Enter/Exit");
@@ -33,9 +59,33 @@ public class App extends Application {
         MyLog.i(TAG, "onCreate(): Enter");
         super.onCreate();
         createNotificationChannel();
+        registerBluetoothStateReceiver();
         MyLog.i(TAG, "onCreate(): Exit");
     }
 
+    /**
+     * Any adapter state change invalidates the handles cached by the BleAdvertisingManager.
+     * The invalidation only clears a few fields, so it runs directly on the receiving thread.
+     * The transitions are also counted here, once per process, rather than in every receiver.
+     */
+    private void registerBluetoothStateReceiver() {
+        bluetoothReceiver = new BluetoothReceiver(this);
+        Runnable invalidateCallback = BleAdvertisingManager.getInstance()::invalidate;
+        MetricsRegistry metrics = AdvertisingTelemetry.getInstance().getMetrics();
+        String[] stateNames = {"off", "turning_on", "on", "turning_off"};
+        for (int state = BluetoothAdapter.STATE_OFF; state <= BluetoothAdapter.STATE_TURNING_OFF; state++) {
+            bluetoothReceiver.registerBluetoothStateChanged(state, Runnable::run, invalidateCallback);
+            final int newState = state;
+            MetricsRegistry.Counter transitions = metrics.counter(
+                    "bluetooth.state." + stateNames[state - BluetoothAdapter.STATE_OFF]);
+            bluetoothReceiver.registerBluetoothStateChanged(state, Runnable::run, () -> {
+                transitions.increment();
+                lastBluetoothState = newState;
+            });
+        }
+        metrics.gauge("bluetooth.last_state", () -> lastBluetoothState);
+    }
+
     private void createNotificationChannel() {
         NotificationChannel serviceChannel = new NotificationChannel(
                 getString(R.string.service_channel_id),
@@ -60,12 +110,14 @@ public class App extends Application {
                 @Override
                 public void onStartSuccess(AdvertiseSettings settingsInEffect) {
                     MyLog.i(TAG, "Advertising onStartSuccess");
+                    AdvertisingTelemetry.getInstance().onLegacyStartResult(0);
                     super.onStartSuccess(settingsInEffect);
                 }
 
                 @Override
                 public void onStartFailure(int errorCode) {
                     MyLog.e(TAG, "Advertising onStartFailure: " + errorCode);
+                    AdvertisingTelemetry.getInstance().onLegacyStartResult(errorCode);
                     super.onStartFailure(errorCode);
                 }
             };
@@ -0,0 +1,177 @@
+package craig.mccoy.com;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import craig.mccoy.com.core.BeaconCommand;
+import craig.mccoy.com.core.CommandCoalescer;
+
+/**
+ * Serializes the advertising commands on a dedicated HandlerThread.
+ * Commands submitted while a batch is waiting are merged by a CommandCoalescer, so a storm of
+ * start/stop requests turns into a single update on the Bluetooth stack.  Actions that cannot
+ * be packed into a command (e.g. starting a rotation) are queued as OP_CALLBACK barriers and run
+ * in order with the commands around them.
+ */
+public class BeaconCommandQueue {
+    private static final String TAG = "BLE:BeaconCommandQueue";
+    private static final int LOG_DRAIN = MyLog.format(TAG, "drain(): {} command(s), submitted = {}, executed = {}");
+    private static final int LOG_QUIT = MyLog.format(TAG, "quit(): submitted = {}, executed = {}");
+
+    public interface CommandSink {
+        /**
+         * Applies the commands in order.
+         * @return the number of commands applied.
+         */
+        int execute(@NonNull long[] commands);
+    }
+
+    private final CommandSink commandSink;
+    private final HandlerThread handlerThread;
+    private final Handler handler;
+    private final CommandCoalescer coalescer = new CommandCoalescer(16);
+    private final Map<Integer, Runnable> callbacks = new HashMap<>();
+    private final Runnable drainRunnable = this::drain;
+    // Held while commands run, so a synchronous executeNow cannot overtake a batch already drained
+    private final Object runLock = new Object();
+    private long directCount = 0;
+    private int nextCallbackId = 0;
+    private boolean isDrainScheduled = false;
+    private volatile long executedCount = 0;
+
+    public BeaconCommandQueue(@NonNull CommandSink commandSink) {
+        this.commandSink = commandSink;
+        handlerThread = new HandlerThread("BeaconCommands");
+        handlerThread.start();
+        handler = new Handler(handlerThread.getLooper());
+    }
+
+    public synchronized void submit(long command) {
+        coalescer.offer(command);
+        scheduleDrain();
+    }
+
+    public synchronized void submit(@NonNull long[] commands) {
+        for (long command : commands) {
+            coalescer.offer(command);
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * Queues an action to run on the queue thread after the commands submitted before it.
+     */
+    public synchronized void post(@NonNull Runnable action) {
+        int id = nextCallbackId++;
+        callbacks.put(id, action);
+        coalescer.offer(BeaconCommand.encode(BeaconCommand.OP_CALLBACK, null, id));
+        scheduleDrain();
+    }
+
+    /**
+     * Runs the pending commands followed by the given ones on the calling thread and waits for the
+     * result, for callers that need it synchronously (the bound interface).
+     * @return the number of the given commands that were applied.
+     */
+    public int executeNow(@NonNull long[] commands) {
+        synchronized (runLock) {
+            long[] pending;
+            Runnable[] pendingCallbacks;
+            synchronized (this) {
+                pending = coalescer.drain();
+                pendingCallbacks = takeCallbacks(pending);
+                directCount += commands.length;
+            }
+            run(pending, pendingCallbacks);
+            return execute(commands);
+        }
+    }
+
+    /**
+     * @return true if no command is waiting to be drained.
+     */
+    public synchronized boolean isIdle() {
+        return coalescer.isEmpty();
+    }
+
+    public synchronized long getSubmittedCount() {
+        return coalescer.getSubmittedCount() + directCount;
+    }
+
+    /**
+     * @return the number of commands handed to the sink after merging.
+     */
+    public long getExecutedCount() {
+        return executedCount;
+    }
+
+    public synchronized long getMergedCount() {
+        return coalescer.getMergedCount();
+    }
+
+    public void quit() {
+        MyLog.i(LOG_QUIT, getSubmittedCount(), executedCount);
+        handlerThread.quitSafely();
+    }
+
+    private void scheduleDrain() {
+        if (!isDrainScheduled) {
+            isDrainScheduled = true;
+            handler.post(drainRunnable);
+        }
+    }
+
+    private void drain() {
+        synchronized (runLock) {
+            long[] commands;
+            Runnable[] pendingCallbacks;
+            synchronized (this) {
+                isDrainScheduled = false;
+                commands = coalescer.drain();
+                pendingCallbacks = takeCallbacks(commands);
+            }
+            if (commands.length > 0) {
+                run(commands, pendingCallbacks);
+                MyLog.i(LOG_DRAIN, commands.length, getSubmittedCount(), executedCount);
+            }
+        }
+    }
+
+    private Runnable[] takeCallbacks(long[] commands) {
+        Runnable[] taken = new Runnable[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            if (BeaconCommand.getOpcode(commands[i]) == BeaconCommand.OP_CALLBACK) {
+                taken[i] = callbacks.remove(BeaconCommand.getUniqueCode(commands[i]));
+            }
+        }
+        return taken;
+    }
+
+    private void run(long[] commands, Runnable[] pendingCallbacks) {
+        int batchStart = 0;
+        for (int i = 0; i < commands.length; i++) {
+            if (BeaconCommand.getOpcode(commands[i]) == BeaconCommand.OP_CALLBACK) {
+                execute(Arrays.copyOfRange(commands, batchStart, i));
+                batchStart = i + 1;
+                if (pendingCallbacks[i] != null) {
+                    pendingCallbacks[i].run();
+                }
+            }
+        }
+        execute(Arrays.copyOfRange(commands, batchStart, commands.length));
+    }
+
+    private int execute(long[] commands) {
+        if (commands.length == 0) {
+            return 0;
+        }
+        executedCount += commands.length;
+        return commandSink.execute(commands);
+    }
+}
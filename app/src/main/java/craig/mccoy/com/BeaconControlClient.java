@@ -0,0 +1,127 @@
+package craig.mccoy.com;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import craig.mccoy.com.core.LatencyHistogram;
+
+/**
+ * Binds to the BleAdvertisingService and sends it batches of packed BeaconCommand values.
+ * The round trip of every call is recorded, so a caller sending many commands per second can
+ * check that the control path stays in the low milliseconds.
+ */
+public class BeaconControlClient implements ServiceConnection {
+    private static final String TAG = "BLE:BeaconControlClient";
+    private static final int LOG_BIND_EXIT = MyLog.format(TAG, "bind(): Exit with {}");
+
+    private final Context context;
+    private final LatencyHistogram roundTripLatency = new LatencyHistogram();
+    private volatile IBeaconControl beaconControl = null;
+    private boolean isBound = false;
+
+    public BeaconControlClient(@NonNull Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    public synchronized boolean bind() {
+        MyLog.i(TAG, "bind(): Enter");
+        if (!isBound) {
+            isBound = context.bindService(new Intent(context, BleAdvertisingService.class), this, Context.BIND_AUTO_CREATE);
+        }
+        MyLog.i(LOG_BIND_EXIT, isBound ? 1 : 0);
+        return isBound;
+    }
+
+    public synchronized void unbind() {
+        MyLog.i(TAG, "unbind(): Enter/Exit");
+        if (isBound) {
+            context.unbindService(this);
+            isBound = false;
+            beaconControl = null;
+        }
+    }
+
+    public boolean isConnected() {
+        return beaconControl != null;
+    }
+
+    /**
+     * Sends the commands and waits until the service has applied them.
+     * @return the number of commands applied, or -1 if the service is not connected.
+     */
+    public int execute(@NonNull long... commands) throws RemoteException {
+        IBeaconControl control = beaconControl;
+        if (control == null) {
+            return -1;
+        }
+        long startNanos = System.nanoTime();
+        int applied = control.execute(commands);
+        roundTripLatency.record(System.nanoTime() - startNanos);
+        return applied;
+    }
+
+    /**
+     * Sends the commands without waiting for them to be applied.
+     * @return false if the service is not connected.
+     */
+    public boolean submit(@NonNull long... commands) throws RemoteException {
+        IBeaconControl control = beaconControl;
+        if (control == null) {
+            return false;
+        }
+        control.submit(commands);
+        return true;
+    }
+
+    /**
+     * @return the status laid out as described in BeaconCommand, or null if the service is not connected.
+     */
+    @Nullable
+    public long[] getStatus() throws RemoteException {
+        IBeaconControl control = beaconControl;
+        if (control == null) {
+            return null;
+        }
+        long startNanos = System.nanoTime();
+        long[] status = control.getStatus();
+        roundTripLatency.record(System.nanoTime() - startNanos);
+        return status;
+    }
+
+    /**
+     * Asks the service to write its ring log and metrics to its files directory.
+     * @return false if the service is not connected.
+     */
+    public boolean dumpLog() throws RemoteException {
+        IBeaconControl control = beaconControl;
+        if (control == null) {
+            return false;
+        }
+        control.dumpLog();
+        return true;
+    }
+
+    @NonNull
+    public LatencyHistogram getRoundTripLatency() {
+        return roundTripLatency;
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder service) {
+        MyLog.i(TAG, "onServiceConnected(): " + name);
+        beaconControl = IBeaconControl.Stub.asInterface(service);
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        MyLog.w(TAG, "onServiceDisconnected(): " + name);
+        beaconControl = null;
+    }
+}
@@ -0,0 +1,334 @@
+package craig.mccoy.com;
+
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.os.ParcelUuid;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import craig.mccoy.com.core.AdvertisingPhy;
+import craig.mccoy.com.core.BeaconEncoder;
+import craig.mccoy.com.core.BeaconType;
+import craig.mccoy.com.core.EddystoneEncoder;
+import craig.mccoy.com.core.FrameLayout;
+
+/**
+ * Caches the pre-encoded advertising payloads so that restarting a beacon does not repeat the
+ * resource lookup, the UUID parsing and the byte-by-byte payload assembly.
+ * The manufacturer-data templates are encoded once per UUID; only the unique code bytes are
+ * patched for a new code.  Recently used (BeaconType, uniqueCode) pairs are kept, so restarting
+ * with a known code allocates nothing.
+ * The BLE 5 beacon types go on air with extended advertising when the controller supports it,
+ * carrying the device name, the AltBeacon frame and the Eddystone-URL frame in one set; on a
+ * legacy-only controller they fall back to the AltBeacon frame, which fits in 31 bytes.
+ */
+final class BeaconPayloadCache {
+    private static final String TAG = "BLE:BeaconPayloadCache";
+
+    private static final int MAX_ENTRIES = 64;
+
+    static final ParcelUuid EDDYSTONE_SERVICE_UUID = ParcelUuid.fromString(EddystoneEncoder.SERVICE_UUID_STRING);
+
+    private static volatile BeaconPayloadCache instance = null;
+
+    private final UUID uuid;
+    private final byte[] altBeaconTemplate;
+    private final byte[] iBeaconTemplate;
+    private final byte[] eddystoneUidTemplate;
+    private final AdvertiseSettings advertiseSettings;
+    private final AdvertisingSetParameters advertisingSetParameters;
+    private final AdvertisingSetParameters[] phyParameters = new AdvertisingSetParameters[AdvertisingPhy.values().length];
+    private final byte[] urlFrame;
+    private final AdvertiseData ble1MPhyData;
+    private final AdvertiseData iBeaconData;
+    private final AdvertiseData eddystoneUrlData;
+
+    // Small fixed-size cache of AdvertiseData keyed by (BeaconType, uniqueCode); evicted round-robin
+    private final long[] keys = new long[MAX_ENTRIES];
+    private final AdvertiseData[] entries = new AdvertiseData[MAX_ENTRIES];
+    private int size = 0;
+    private int nextVictim = 0;
+
+    /**
+     * @return the cache for the UUID configured in the resources.  The resource is only read
+     * the first time.
+     */
+    @NonNull
+    static BeaconPayloadCache getInstance() {
+        BeaconPayloadCache cache = instance;
+        if (cache == null) {
+            cache = getInstance(UUID.fromString(App.getAppString(R.string.ble_uuid)));
+        }
+        return cache;
+    }
+
+    /**
+     * @return the cache for the given UUID, replacing the current one if the UUID differs.
+     */
+    @NonNull
+    static synchronized BeaconPayloadCache getInstance(@NonNull UUID uuid) {
+        BeaconPayloadCache cache = instance;
+        if (cache == null || !cache.uuid.equals(uuid)) {
+            MyLog.i(TAG, "getInstance(): Encoding the templates for " + uuid);
+            cache = new BeaconPayloadCache(uuid);
+            instance = cache;
+        }
+        return cache;
+    }
+
+    private BeaconPayloadCache(@NonNull UUID uuid) {
+        this.uuid = uuid;
+        byte[] uuidBytes = BeaconEncoder.getIdAsBytes(uuid);
+        altBeaconTemplate = BeaconEncoder.encode(BeaconType.AltBeacon, uuidBytes, 0);
+        iBeaconTemplate = BeaconEncoder.encode(BeaconType.IBeacon, uuidBytes, 0);
+        eddystoneUidTemplate = new byte[FrameLayout.EDDYSTONE_UID.maxLength];
+        EddystoneEncoder.encodeUid(uuidBytes, 0, EddystoneEncoder.TX_POWER_AT_0M, eddystoneUidTemplate, 0);
+        advertiseSettings = new AdvertiseSettings.Builder()
+                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_POWER)
+                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM)
+                .setConnectable(false)
+                .setTimeout(0)
+                .build();
+        // Legacy, non-connectable advertising matching the AdvertiseSettings above
+        advertisingSetParameters = new AdvertisingSetParameters.Builder()
+                .setLegacyMode(true)
+                .setConnectable(false)
+                .setScannable(false)
+                .setInterval(AdvertisingSetParameters.INTERVAL_HIGH)
+                .setTxPowerLevel(AdvertisingSetParameters.TX_POWER_MEDIUM)
+                .build();
+        ble1MPhyData = new AdvertiseData.Builder()
+                .setIncludeDeviceName(true)
+                .setIncludeTxPowerLevel(true)
+                .build();
+        iBeaconData = new AdvertiseData.Builder()
+                .addManufacturerData(BeaconEncoder.I_BEACON_MANUFACTURER_ID, iBeaconTemplate)
+                .build();
+        byte[] frame = new byte[FrameLayout.EDDYSTONE_URL.maxLength];
+        int urlLength = EddystoneEncoder.encodeUrl(App.getAppString(R.string.eddystone_url),
+                EddystoneEncoder.TX_POWER_AT_0M, frame, 0);
+        urlFrame = Arrays.copyOf(frame, urlLength);
+        eddystoneUrlData = createEddystoneAdvertiseData(urlFrame);
+    }
+
+    @NonNull
+    UUID getUuid() {
+        return uuid;
+    }
+
+    @NonNull
+    AdvertiseSettings getAdvertiseSettings() {
+        return advertiseSettings;
+    }
+
+    @NonNull
+    AdvertisingSetParameters getAdvertisingSetParameters() {
+        return advertisingSetParameters;
+    }
+
+    /**
+     * @return the parameters for the advertising mode the beacon type goes on air with.
+     */
+    @NonNull
+    AdvertisingSetParameters getAdvertisingSetParameters(@NonNull BeaconType beaconType) {
+        AdvertisingPhy phy = BleAdvertisingManager.getInstance().getAdvertisingPhy(beaconType);
+        if (!phy.isExtended) {
+            return advertisingSetParameters;
+        }
+        synchronized (phyParameters) {
+            AdvertisingSetParameters parameters = phyParameters[phy.ordinal()];
+            if (parameters == null) {
+                parameters = createExtendedParameters(phy);
+                phyParameters[phy.ordinal()] = parameters;
+            }
+            return parameters;
+        }
+    }
+
+    /**
+     * Extended advertising sets may not be both connectable and scannable; these beacons are
+     * neither, so all of the data goes in the advertisement itself.
+     */
+    @NonNull
+    private static AdvertisingSetParameters createExtendedParameters(@NonNull AdvertisingPhy phy) {
+        return new AdvertisingSetParameters.Builder()
+                .setLegacyMode(false)
+                .setConnectable(false)
+                .setScannable(false)
+                .setPrimaryPhy(phy.primaryPhy)
+                .setSecondaryPhy(phy.secondaryPhy)
+                .setInterval(AdvertisingSetParameters.INTERVAL_HIGH)
+                // The coded PHY is picked for range, so give it the power to go with it
+                .setTxPowerLevel(phy == AdvertisingPhy.EXTENDED_CODED ? AdvertisingSetParameters.TX_POWER_HIGH
+                        : AdvertisingSetParameters.TX_POWER_MEDIUM)
+                .build();
+    }
+
+    @NonNull
+    synchronized AdvertiseData getAdvertiseData(@NonNull BeaconType beaconType, int uniqueCode) {
+        switch (beaconType) {
+            case AltBeacon:
+            case EddystoneUid:
+            case Ble2MBeacon:
+            case BleCodedBeacon:
+                return getCodedAdvertiseData(beaconType, uniqueCode);
+            case IBeacon:
+                return iBeaconData;
+            case EddystoneUrl:
+                return eddystoneUrlData;
+            case EddystoneTlm:
+                // The TLM fields are kept up to date by EddystoneTlmUpdater
+                return createEddystoneAdvertiseData(createEddystoneTlmFrame());
+            case Ble1MBeacon:
+            default:
+                return ble1MPhyData;
+        }
+    }
+
+    @NonNull
+    private AdvertiseData getCodedAdvertiseData(BeaconType beaconType, int uniqueCode) {
+        long key = toKey(beaconType, uniqueCode);
+        if (beaconType == BeaconType.Ble2MBeacon || beaconType == BeaconType.BleCodedBeacon) {
+            // The payload depends on the mode the controller supports
+            key |= (long) BleAdvertisingManager.getInstance().getAdvertisingPhy(beaconType).ordinal() << 40;
+        }
+        for (int i = 0; i < size; i++) {
+            if (keys[i] == key) {
+                return entries[i];
+            }
+        }
+        AdvertiseData data = encodeAdvertiseData(beaconType, uniqueCode);
+        int index;
+        if (size < MAX_ENTRIES) {
+            index = size++;
+        } else {
+            index = nextVictim;
+            nextVictim = (nextVictim + 1) % MAX_ENTRIES;
+        }
+        keys[index] = key;
+        entries[index] = data;
+        return data;
+    }
+
+    /**
+     * Encodes a payload without keeping it in the cache.  Used to pre-encode long lists of codes
+     * (e.g. a rotation) that would otherwise evict the recently used entries.
+     */
+    @NonNull
+    AdvertiseData encodeAdvertiseData(@NonNull BeaconType beaconType, int uniqueCode) {
+        switch (beaconType) {
+            case AltBeacon:
+                return encodeAltBeaconAdvertiseData(uniqueCode);
+            case EddystoneUid:
+                return encodeEddystoneUidAdvertiseData(uniqueCode);
+            case Ble2MBeacon:
+            case BleCodedBeacon:
+                return BleAdvertisingManager.getInstance().getAdvertisingPhy(beaconType).isExtended
+                        ? encodeExtendedAdvertiseData(uniqueCode) : encodeAltBeaconAdvertiseData(uniqueCode);
+            default:
+                return getAdvertiseData(beaconType, uniqueCode);
+        }
+    }
+
+    @NonNull
+    private AdvertiseData encodeAltBeaconAdvertiseData(int uniqueCode) {
+        // Copy the template and patch only the unique code
+        byte[] manufacturerData = altBeaconTemplate.clone();
+        BeaconEncoder.patchAltBeaconCode(manufacturerData, uniqueCode);
+        return new AdvertiseData.Builder()
+                .addManufacturerData(BeaconEncoder.ALT_BEACON_MANUFACTURER_ID, manufacturerData)
+                .build();
+    }
+
+    /**
+     * More than legacy advertising can carry: the device name and TX power, the AltBeacon frame
+     * and the Eddystone-URL frame.
+     */
+    @NonNull
+    private AdvertiseData encodeExtendedAdvertiseData(int uniqueCode) {
+        byte[] manufacturerData = altBeaconTemplate.clone();
+        BeaconEncoder.patchAltBeaconCode(manufacturerData, uniqueCode);
+        return new AdvertiseData.Builder()
+                .setIncludeDeviceName(true)
+                .setIncludeTxPowerLevel(true)
+                .addManufacturerData(BeaconEncoder.ALT_BEACON_MANUFACTURER_ID, manufacturerData)
+                .addServiceUuid(EDDYSTONE_SERVICE_UUID)
+                .addServiceData(EDDYSTONE_SERVICE_UUID, urlFrame)
+                .build();
+    }
+
+    @NonNull
+    private AdvertiseData encodeEddystoneUidAdvertiseData(int uniqueCode) {
+        // Copy the template and patch only the instance
+        byte[] frame = eddystoneUidTemplate.clone();
+        EddystoneEncoder.patchUidInstance(frame, 0, uniqueCode & 0xFFFFFFFFL);
+        return createEddystoneAdvertiseData(frame);
+    }
+
+    /**
+     * @return a private copy of the frame the unique code is patched into, for callers that rewrite
+     * the identifier in place (see {@link #createAdvertiseData(BeaconType, byte[])}).
+     */
+    @NonNull
+    byte[] copyTemplateFrame(@NonNull BeaconType beaconType) {
+        switch (beaconType) {
+            case AltBeacon:
+                return altBeaconTemplate.clone();
+            case IBeacon:
+                return iBeaconTemplate.clone();
+            case EddystoneUid:
+                return eddystoneUidTemplate.clone();
+            default:
+                throw new IllegalArgumentException(beaconType + " has no identifier to rewrite");
+        }
+    }
+
+    /**
+     * Like {@link #createEddystoneAdvertiseData(byte[])}, the returned AdvertiseData keeps a
+     * reference to the frame.
+     */
+    @NonNull
+    static AdvertiseData createAdvertiseData(@NonNull BeaconType beaconType, @NonNull byte[] frame) {
+        switch (beaconType) {
+            case AltBeacon:
+                return new AdvertiseData.Builder()
+                        .addManufacturerData(BeaconEncoder.ALT_BEACON_MANUFACTURER_ID, frame)
+                        .build();
+            case IBeacon:
+                return new AdvertiseData.Builder()
+                        .addManufacturerData(BeaconEncoder.I_BEACON_MANUFACTURER_ID, frame)
+                        .build();
+            case EddystoneUid:
+                return createEddystoneAdvertiseData(frame);
+            default:
+                throw new IllegalArgumentException(beaconType + " has no identifier to rewrite");
+        }
+    }
+
+    @NonNull
+    static byte[] createEddystoneTlmFrame() {
+        byte[] frame = new byte[FrameLayout.EDDYSTONE_TLM.maxLength];
+        EddystoneEncoder.encodeTlm(0, EddystoneEncoder.TLM_TEMPERATURE_UNKNOWN, 0, 0, frame, 0);
+        return frame;
+    }
+
+    /**
+     * The returned AdvertiseData keeps a reference to the frame, so later changes to the frame are
+     * picked up the next time the AdvertiseData is handed to the advertiser.
+     */
+    @NonNull
+    static AdvertiseData createEddystoneAdvertiseData(@NonNull byte[] frame) {
+        return new AdvertiseData.Builder()
+                .addServiceUuid(EDDYSTONE_SERVICE_UUID)
+                .addServiceData(EDDYSTONE_SERVICE_UUID, frame)
+                .build();
+    }
+
+    private static long toKey(BeaconType beaconType, int uniqueCode) {
+        return ((long) beaconType.ordinal() << 32) | (uniqueCode & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,173 @@
+package craig.mccoy.com;
+
+import android.bluetooth.le.AdvertiseData;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import craig.mccoy.com.core.BeaconType;
+
+/**
+ * Rotates one advertised beacon through a list of unique codes on a fixed period.
+ * The payloads of the whole list are encoded before the rotation starts, so each tick only swaps
+ * the advertising data of the running AdvertisingSet.  Ticks run on a dedicated thread and are
+ * scheduled against absolute deadlines (start + n * period), so a late tick does not push the
+ * following ones back and the error does not add up over a shift.
+ */
+public class BeaconRotationScheduler {
+    private static final String TAG = "BLE:BeaconRotationScheduler";
+    private static final int LOG_PRE_ENCODING = MyLog.format(TAG, "Constructor(): Pre-encoding {} payloads");
+    private static final int REPORT_EVERY_TICKS = 60;
+
+    private final MultiBeaconAdvertiser multiBeaconAdvertiser;
+    private final BeaconType beaconType;
+    private final int[] uniqueCodes;
+    private final AdvertiseData[] payloads;
+    private final long periodNanos;
+
+    private Thread rotationThread = null;
+    private volatile boolean isRunning = false;
+
+    // How far each switch landed from its deadline
+    private volatile long tickCount = 0;
+    private volatile long skippedTicks = 0;
+    private volatile long lastLatenessNanos = 0;
+    private volatile long maxLatenessNanos = 0;
+    private volatile long totalLatenessNanos = 0;
+
+    public BeaconRotationScheduler(@NonNull MultiBeaconAdvertiser multiBeaconAdvertiser, @NonNull BeaconType beaconType,
+                                   @NonNull int[] uniqueCodes, long periodMillis) {
+        if (uniqueCodes.length == 0 || periodMillis <= 0) {
+            throw new IllegalArgumentException("A rotation needs at least one code and a positive period");
+        }
+        this.multiBeaconAdvertiser = multiBeaconAdvertiser;
+        this.beaconType = beaconType;
+        this.uniqueCodes = uniqueCodes.clone();
+        this.periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+
+        MyLog.i(LOG_PRE_ENCODING, uniqueCodes.length);
+        BeaconPayloadCache payloadCache = BeaconPayloadCache.getInstance();
+        payloads = new AdvertiseData[uniqueCodes.length];
+        for (int i = 0; i < uniqueCodes.length; i++) {
+            payloads[i] = payloadCache.encodeAdvertiseData(beaconType, uniqueCodes[i]);
+        }
+    }
+
+    public synchronized void start() {
+        MyLog.i(TAG, "start(): Enter");
+        if (rotationThread == null) {
+            multiBeaconAdvertiser.addBeacon(beaconType, uniqueCodes[0]);
+            isRunning = true;
+            rotationThread = new Thread(this::rotate, "BeaconRotation");
+            rotationThread.setPriority(Thread.MAX_PRIORITY);
+            rotationThread.start();
+        }
+        MyLog.i(TAG, "start(): Exit");
+    }
+
+    public synchronized void stop() {
+        MyLog.i(TAG, "stop(): Enter");
+        isRunning = false;
+        if (rotationThread != null) {
+            LockSupport.unpark(rotationThread);
+            try {
+                rotationThread.join(TimeUnit.NANOSECONDS.toMillis(periodNanos) + 100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            rotationThread = null;
+        }
+        MyLog.i(TAG, "stop(): " + getReport());
+    }
+
+    @NonNull
+    public BeaconType getBeaconType() {
+        return beaconType;
+    }
+
+    /**
+     * @return the codes rotated through; the beacon on air carries one of them.
+     */
+    @NonNull
+    public int[] getUniqueCodes() {
+        return uniqueCodes.clone();
+    }
+
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    public long getSkippedTicks() {
+        return skippedTicks;
+    }
+
+    public long getLastLatenessNanos() {
+        return lastLatenessNanos;
+    }
+
+    public long getMaxLatenessNanos() {
+        return maxLatenessNanos;
+    }
+
+    public long getMeanLatenessNanos() {
+        long ticks = tickCount;
+        return ticks == 0 ? 0 : totalLatenessNanos / ticks;
+    }
+
+    @NonNull
+    public String getReport() {
+        return "ticks = " + tickCount + ", skipped = " + skippedTicks
+                + ", lateness last/mean/max = " + TimeUnit.NANOSECONDS.toMicros(lastLatenessNanos)
+                + "/" + TimeUnit.NANOSECONDS.toMicros(getMeanLatenessNanos())
+                + "/" + TimeUnit.NANOSECONDS.toMicros(maxLatenessNanos) + " us";
+    }
+
+    private void rotate() {
+        int currentIndex = 0;
+        final long startNanos = System.nanoTime();
+        long tick = 1;
+
+        while (isRunning) {
+            long deadline = startNanos + tick * periodNanos;
+            long remaining;
+            while (isRunning && (remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+            if (!isRunning) {
+                break;
+            }
+
+            int nextIndex = (int) (tick % uniqueCodes.length);
+            multiBeaconAdvertiser.updateUniqueCode(beaconType, uniqueCodes[currentIndex], uniqueCodes[nextIndex], payloads[nextIndex]);
+            currentIndex = nextIndex;
+
+            long latenessNanos = System.nanoTime() - deadline;
+            recordLateness(latenessNanos);
+
+            // Deadlines stay anchored to the start; if the thread stalled past whole periods,
+            // skip the missed ticks rather than firing them back to back
+            long nextTick = tick + 1;
+            long behind = latenessNanos / periodNanos;
+            if (behind > 0) {
+                skippedTicks += behind;
+                nextTick += behind;
+            }
+            tick = nextTick;
+        }
+        multiBeaconAdvertiser.removeBeacon(beaconType, uniqueCodes[currentIndex]);
+    }
+
+    private void recordLateness(long latenessNanos) {
+        lastLatenessNanos = latenessNanos;
+        totalLatenessNanos += latenessNanos;
+        if (latenessNanos > maxLatenessNanos) {
+            maxLatenessNanos = latenessNanos;
+        }
+        long ticks = ++tickCount;
+        if (ticks % REPORT_EVERY_TICKS == 0) {
+            MyLog.i(TAG, "rotate(): " + getReport());
+        }
+    }
+}
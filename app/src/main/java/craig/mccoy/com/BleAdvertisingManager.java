@@ -9,45 +9,91 @@ import android.bluetooth.le.AdvertiseSettings;
 import android.bluetooth.le.BluetoothLeAdvertiser;
 
 import androidx.annotation.NonNull;
-
-import java.nio.ByteBuffer;
-import java.util.UUID;
-
-enum BeaconType {
-    Ble1MBeacon,
-    AltBeacon,
-    IBeacon
-}
-
-public class BleAdvertisingManager {
+import androidx.annotation.Nullable;
+
+import craig.mccoy.com.core.AdvertisingPhy;
+import craig.mccoy.com.core.BeaconType;
+
+/**
+ * One process-wide handle on the Bluetooth adapter and its LE advertiser.
+ * The adapter, the advertiser and the capability flags are looked up once and kept, so the
+ * start/stop path does not repeat the binder calls.  The cached advertiser and flags are dropped
+ * whenever the adapter changes state (see {@link #invalidate()}, wired up in App.onCreate).
+ */
+public final class BleAdvertisingManager {
     private static final String TAG = "BLE:BleAdvertisingManager";
+    private static final int LOG_IS_ENABLED = MyLog.format(TAG, "isBluetoothEnabled(): {}");
+    private static final int LOG_IS_SUPPORTED = MyLog.format(TAG, "isBleAdvertisingSupported(): {}");
+    private static final int LOG_PHY_FALLBACK = MyLog.format(TAG, "getLeFeatures(): Beacon type {} PHY {} not supported...falling back to {}");
+    private static final int LOG_LE_FEATURES = MyLog.format(TAG, "getLeFeatures(): Features {x}, max data length = {}");
+
+    private static volatile BleAdvertisingManager instance = null;
+
+    private final BluetoothAdapter bluetoothAdapter;
+    private volatile BluetoothLeAdvertiser bluetoothLeAdvertiser = null;
+    private volatile Boolean isEnabled = null;
+    private volatile Boolean isAdvertisingSupported = null;
+    // Extended advertising capabilities, packed as FEATURE_* bits; only cached while the adapter is on
+    private volatile int leFeatures = -1;
+    private volatile int maxExtendedDataLength = 0;
+
+    private static final int FEATURE_EXTENDED_ADVERTISING = 1;
+    private static final int FEATURE_LE_2M_PHY = 2;
+    private static final int FEATURE_LE_CODED_PHY = 4;
+    private static final int FEATURE_PERIODIC_ADVERTISING = 8;
 
-    private BluetoothAdapter bluetoothAdapter = null;
-    private BluetoothLeAdvertiser bluetoothLeAdvertiser = null;
+    @NonNull
+    public static BleAdvertisingManager getInstance() {
+        BleAdvertisingManager manager = instance;
+        if (manager == null) {
+            synchronized (BleAdvertisingManager.class) {
+                manager = instance;
+                if (manager == null) {
+                    manager = new BleAdvertisingManager();
+                    instance = manager;
+                }
+            }
+        }
+        return manager;
+    }
 
-    public BleAdvertisingManager() {
+    private BleAdvertisingManager() {
         MyLog.i(TAG, "Constructor(): Enter");
+        BluetoothAdapter adapter = null;
         BluetoothManager bluetoothManager = App.getBluetoothManager();
         if (bluetoothManager != null) {
-            bluetoothAdapter = bluetoothManager.getAdapter();
-            if (bluetoothAdapter != null) {
-                bluetoothLeAdvertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
-                if (bluetoothLeAdvertiser == null) {
-                    MyLog.e(TAG, "Constructor(): Unable to access the Bluetooth LE Advertiser");
-                }
-            } else {
+            adapter = bluetoothManager.getAdapter();
+            if (adapter == null) {
                 MyLog.e(TAG, "Constructor(): Unable to access the Bluetooth Adapter");
             }
         } else {
             MyLog.e(TAG, "Constructor(): Unable to access the Bluetooth Manager");
         }
+        bluetoothAdapter = adapter;
         MyLog.i(TAG, "Constructor(): Exit");
     }
 
+    /**
+     * Drops the cached advertiser and capability flags; they are looked up again on next use.
+     * Called on every adapter state broadcast, since the advertiser handle does not survive the
+     * adapter being turned off.
+     */
+    public void invalidate() {
+        MyLog.i(TAG, "invalidate(): Enter/Exit");
+        bluetoothLeAdvertiser = null;
+        isEnabled = null;
+        isAdvertisingSupported = null;
+        leFeatures = -1;
+    }
+
     public boolean isBluetoothEnabled() {
-        boolean isEnabled = bluetoothAdapter != null && bluetoothAdapter.isEnabled();
-        MyLog.i(TAG, "isBluetoothEnabled(): " + isEnabled);
-        return isEnabled;
+        Boolean enabled = isEnabled;
+        if (enabled == null) {
+            enabled = bluetoothAdapter != null && bluetoothAdapter.isEnabled();
+            isEnabled = enabled;
+        }
+        MyLog.i(LOG_IS_ENABLED, enabled ? 1 : 0);
+        return enabled;
     }
 
     /**
@@ -60,12 +106,98 @@ public class BleAdvertisingManager {
         MyLog.i(TAG, "enableBluetooth(): isEnabled" + isEnabled);
     }
 
+    @Nullable
+    public BluetoothLeAdvertiser getBluetoothLeAdvertiser() {
+        BluetoothLeAdvertiser advertiser = bluetoothLeAdvertiser;
+        if (advertiser == null && bluetoothAdapter != null) {
+            // Null while the adapter is off; cached once it is available
+            advertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
+            if (advertiser == null) {
+                MyLog.e(TAG, "getBluetoothLeAdvertiser(): Unable to access the Bluetooth LE Advertiser");
+            }
+            bluetoothLeAdvertiser = advertiser;
+        }
+        return advertiser;
+    }
+
     public boolean isBleAdvertisingSupported() {
-        boolean isSupported = bluetoothAdapter != null && bluetoothAdapter.isMultipleAdvertisementSupported();
-        MyLog.i(TAG, "isBleAdvertisingSupported(): " + isSupported);
+        Boolean isSupported = isAdvertisingSupported;
+        if (isSupported == null) {
+            isSupported = bluetoothAdapter != null && bluetoothAdapter.isMultipleAdvertisementSupported();
+            isAdvertisingSupported = isSupported;
+        }
+        MyLog.i(LOG_IS_SUPPORTED, isSupported ? 1 : 0);
         return isSupported;
     }
 
+    /**
+     * @return the advertising mode the beacon type goes on air with: the mode it asks for if the
+     * controller supports it, otherwise the closest one it does (see AdvertisingPhy.select).
+     */
+    @NonNull
+    public AdvertisingPhy getAdvertisingPhy(@NonNull BeaconType beaconType) {
+        AdvertisingPhy requested = AdvertisingPhy.forBeaconType(beaconType);
+        if (!requested.isExtended) {
+            return requested;
+        }
+        return selectPhy(requested, getLeFeatures());
+    }
+
+    /**
+     * @return the most advertising data a set in the given mode can carry on this controller.
+     */
+    public int getMaxAdvertisingDataLength(@NonNull AdvertisingPhy phy) {
+        getLeFeatures();
+        return phy.getMaxDataLength(maxExtendedDataLength);
+    }
+
+    public boolean isPeriodicAdvertisingSupported() {
+        return (getLeFeatures() & FEATURE_PERIODIC_ADVERTISING) != 0;
+    }
+
+    private int getLeFeatures() {
+        int features = leFeatures;
+        if (features < 0) {
+            features = 0;
+            if (bluetoothAdapter != null && bluetoothAdapter.isLeExtendedAdvertisingSupported()) {
+                features |= FEATURE_EXTENDED_ADVERTISING;
+                if (bluetoothAdapter.isLe2MPhySupported()) {
+                    features |= FEATURE_LE_2M_PHY;
+                }
+                if (bluetoothAdapter.isLeCodedPhySupported()) {
+                    features |= FEATURE_LE_CODED_PHY;
+                }
+                if (bluetoothAdapter.isLePeriodicAdvertisingSupported()) {
+                    features |= FEATURE_PERIODIC_ADVERTISING;
+                }
+                maxExtendedDataLength = bluetoothAdapter.getLeMaximumAdvertisingDataLength();
+            }
+            // The adapter reports no features while it is off, so only keep the answer once it is on
+            if (bluetoothAdapter != null && bluetoothAdapter.isEnabled()) {
+                leFeatures = features;
+                // Warn about the fallbacks once per cached answer, not on every getAdvertisingPhy()
+                for (BeaconType beaconType : BeaconType.values()) {
+                    AdvertisingPhy requested = AdvertisingPhy.forBeaconType(beaconType);
+                    AdvertisingPhy selected = selectPhy(requested, features);
+                    if (selected != requested) {
+                        MyLog.w(LOG_PHY_FALLBACK, beaconType.ordinal(), requested.ordinal(), selected.ordinal());
+                    }
+                }
+            }
+            MyLog.i(LOG_LE_FEATURES, features, maxExtendedDataLength);
+        }
+        return features;
+    }
+
+    @NonNull
+    private static AdvertisingPhy selectPhy(@NonNull AdvertisingPhy requested, int features) {
+        if (!requested.isExtended) {
+            return requested;
+        }
+        return AdvertisingPhy.select(requested, (features & FEATURE_EXTENDED_ADVERTISING) != 0,
+                (features & FEATURE_LE_2M_PHY) != 0, (features & FEATURE_LE_CODED_PHY) != 0);
+    }
+
     /**
      * It is assumed the caller has already verified and/or obtained the Manifest.permission.BLUETOOTH_ADVERTISE
      * permission.  Otherwise, this method will throw a permission denied exceptions.
@@ -74,11 +206,14 @@ public class BleAdvertisingManager {
     public void startAdvertising(BeaconType beaconType, int uniqueCode) {
         MyLog.i(TAG, "startAdvertising(): Enter");
 
+        BluetoothLeAdvertiser bluetoothLeAdvertiser = getBluetoothLeAdvertiser();
         if (bluetoothLeAdvertiser != null) {
-            AdvertiseSettings settings = getAdvertiseSettings();
-            AdvertiseData data = getAdvertiseData(beaconType, uniqueCode);
+            BeaconPayloadCache payloadCache = BeaconPayloadCache.getInstance();
+            AdvertiseSettings settings = payloadCache.getAdvertiseSettings();
+            AdvertiseData data = payloadCache.getAdvertiseData(beaconType, uniqueCode);
             AdvertiseCallback advertisingCallback = App.getAdvertiseCallback(true);
 
+            AdvertisingTelemetry.getInstance().onLegacyStartRequested();
             bluetoothLeAdvertiser.startAdvertising(settings, data, advertisingCallback);
         }
         else {
@@ -96,104 +231,14 @@ public class BleAdvertisingManager {
         MyLog.i(TAG, "stopAdvertising(): Enter");
 
         AdvertiseCallback callback = App.getAdvertiseCallback(false);
+        BluetoothLeAdvertiser bluetoothLeAdvertiser = getBluetoothLeAdvertiser();
         if (bluetoothLeAdvertiser != null && callback != null) {
+            // The legacy API has no stop callback, so only the request is counted
+            AdvertisingTelemetry.getInstance().onStopRequested();
             bluetoothLeAdvertiser.stopAdvertising(callback);
         } else {
             MyLog.e(TAG, "stopAdvertising(): Failed");
         }
         MyLog.i(TAG, "stopAdvertising(): Exit");
     }
-
-    @NonNull
-    private static AdvertiseSettings getAdvertiseSettings() {
-        return new AdvertiseSettings.Builder()
-                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_POWER)
-                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM)
-                .setConnectable(false)
-                .setTimeout(0)
-                .build();
-    }
-
-    @NonNull
-    private static AdvertiseData getAdvertiseData(BeaconType beaconType, int uniqueCode) {
-        AdvertiseData data;
-        switch (beaconType) {
-            case AltBeacon:
-                data = getAltBeaconAdvertiseData(uniqueCode);
-                break;
-            case IBeacon:
-                data = getIBeaconAdvertiseData();
-                break;
-            case Ble1MBeacon:
-            default:
-                data = getBle1MPhyAdvertiseData();
-        }
-        return data;
-    }
-
-    @NonNull
-    private static AdvertiseData getBle1MPhyAdvertiseData() {
-        return new AdvertiseData.Builder()
-                .setIncludeDeviceName(true)
-                .setIncludeTxPowerLevel(true)
-                .build();
-    }
-
-    @NonNull
-    private static AdvertiseData getAltBeaconAdvertiseData(int code) {
-        ByteBuffer manufacturerData = ByteBuffer.allocate(24);
-        // Beacon Code - 0xBEAC the AltBeacon advertisement code
-        manufacturerData.putShort(0, (short)0xBEAC); // AltBeacon Identifier
-        // Beacon ID - UUID
-        byte[] uuid = getIdAsByte(UUID.fromString(App.getAppString(R.string.ble_uuid)));
-        for (int i=2; i<=17; i++) {
-            manufacturerData.put(i, uuid[i-2]); // adding the UUID
-        }
-        // 8 Byte Data - Unique Code
-        manufacturerData.putInt(18, code);  // unique code
-        // Reference RSSI - A 1-byte value representing the average received signal strength
-        // at 1m from the advertiser
-        manufacturerData.put(22, (byte)0xCC); // reference RSSI (-52 dBm)
-        // Mfg Reserved
-        manufacturerData.put(23, (byte)0);
-        // Mfg ID - using google's company ID
-        int manufacturerId = 224;
-
-        return new AdvertiseData.Builder()
-                .addManufacturerData(manufacturerId, manufacturerData.array())
-                .build();
-    }
-
-    @NonNull
-    private static AdvertiseData getIBeaconAdvertiseData() {
-        ByteBuffer manufacturerData = ByteBuffer.allocate(23);
-        // Beacon Code - 0xBEAC the AltBeacon advertisement code
-        manufacturerData.putShort(0, (short)0x0215); // iBeacon Identifier
-        // Beacon ID - UUID
-        byte[] uuid = getIdAsByte(UUID.fromString(App.getAppString(R.string.ble_uuid)));
-        for (int i=2; i<=17; i++) {
-            manufacturerData.put(i, uuid[i-2]); // adding the UUID
-        }
-        // Major Version Number
-        manufacturerData.putShort(18, (short) 0x0001);
-        // Minor Version Number
-        manufacturerData.putShort(20, (short) 0x0000);
-        // Reference RSSI - A 1-byte value representing the average received signal strength
-        // at 1m from the advertiser
-        manufacturerData.put(22, (byte)0xCC); // reference RSSI (-52 dBm)
-
-        // Mfg ID - using apple's company ID
-        int manufacturerId = 76;
-        return new AdvertiseData.Builder()
-                .addManufacturerData(manufacturerId, manufacturerData.array())
-                .build();
-    }
-
-    private static byte[] getIdAsByte(java.util.UUID uuid)
-    {
-        ByteBuffer bb = ByteBuffer.wrap(new byte[16]);
-        bb.putLong(uuid.getMostSignificantBits());
-        bb.putLong(uuid.getLeastSignificantBits());
-        return bb.array();
-    }
 }
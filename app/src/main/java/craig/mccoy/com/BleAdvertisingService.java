@@ -1,64 +1,567 @@
 package craig.mccoy.com;
 
 import android.app.Notification;
+import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Intent;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import craig.mccoy.com.core.AdvertisingEngine;
+import craig.mccoy.com.core.AdvertiserBackend;
+import craig.mccoy.com.core.AdvertisingPhy;
+import craig.mccoy.com.core.AdvertisingWatchdog;
+import craig.mccoy.com.core.BeaconCommand;
+import craig.mccoy.com.core.BeaconCommandProcessor;
+import craig.mccoy.com.core.BeaconType;
+import craig.mccoy.com.core.LatencyHistogram;
+import craig.mccoy.com.core.MetricsRegistry;
+
 public class BleAdvertisingService extends Service {
     private static final String TAG = "BLE:BleAdvertisingService";
+    private static final int LOG_ON_START_COMMAND_ENTER = MyLog.format(TAG, "onStartCommand({}, {})");
+    // One format per beacon type, so the type is logged by name without building a string
+    private static final int[] LOG_ON_START_COMMAND_EXTRAS = new int[BeaconType.values().length];
+    private static final int LOG_ON_START_COMMAND_EXIT = MyLog.format(TAG, "onStartCommand(): Exit");
+    private static final int LOG_EXECUTE_COMMANDS = MyLog.format(TAG, "executeCommands(): {} command(s), {} applied in {} us");
+    private static final int LOG_COMMAND_REJECTED = MyLog.format(TAG, "executeCommands(): Command {x} rejected");
+    private static final int LOG_CLIENT_COMMAND_REJECTED = MyLog.format(TAG, "filterClientCommands(): Command {x} rejected");
+    private static final int LOG_SUSPEND = MyLog.format(TAG, "suspendAdvertising(): {} beacon(s) to resume");
+    private static final int LOG_RETRY = MyLog.format(TAG, "retryBeacons(): {} beacon(s), {} expected");
+    private static final String LOG_DUMP_FILE_NAME = "ble-log.bin";
+    private static final String TELEMETRY_DUMP_FILE_NAME = "ble-telemetry.txt";
+
+    static {
+        for (BeaconType beaconType : BeaconType.values()) {
+            LOG_ON_START_COMMAND_EXTRAS[beaconType.ordinal()] =
+                    MyLog.format(TAG, "onStartCommand: inputExtra = {x}, beaconType = " + beaconType.name());
+        }
+    }
+
+    private static final int NOTIFICATION_ID = 1;
+    private static final long DEFAULT_ROTATION_PERIOD_MS = 1000;
 
     public static volatile boolean isServiceAdvertising = false;
     private BluetoothReceiver bluetoothReceiver = null;
+    private ExecutorService bluetoothExecutor = null;
+    private final Runnable turningOffCallback = () -> {
+        MyLog.i(TAG, "The local Bluetooth adapter is turning off. Stop BLE Advertising.");
+        suspendAdvertising();
+    };
+    private final Runnable turnedOnCallback = () -> {
+        MyLog.i(TAG, "The local Bluetooth adapter is on. Resume BLE Advertising.");
+        watchdog.onAdapterOn(System.nanoTime());
+        Runnable launcher = suspendedRotation;
+        if (launcher != null) {
+            commandQueue.post(() -> resumeRotation(launcher));
+        }
+        scheduleWatchdog(0);
+    };
+    // Brings back the beacons the stack dropped or failed to start; see checkWatchdog
+    private volatile AdvertisingWatchdog watchdog = null;
+    private final Handler watchdogHandler = new Handler(Looper.getMainLooper());
+    private final Runnable watchdogRunnable = this::checkWatchdog;
+    // Written on the command queue thread, read on the main thread for the notification
+    private volatile MultiBeaconAdvertiser multiBeaconAdvertiser = null;
+    private volatile BeaconRotationScheduler rotationScheduler = null;
+    private volatile PeriodicBroadcaster broadcaster = null;
+    private volatile EphemeralIdRotator ephemeralIdRotator = null;
+    // Starts the running rotation or ephemeral ID beacon again on a new advertiser
+    private Runnable rotationLauncher = null;
+    // The rotation the adapter took down, started again once the adapter is back on
+    private volatile Runnable suspendedRotation = null;
+    private EddystoneTlmUpdater tlmUpdater = null;
+    private Notification notification = null;
+    private String notificationText = null;
+    private final BeaconCommandProcessor<AdvertiseData> commandProcessor = new BeaconCommandProcessor<>(
+            new BeaconCommandProcessor.Host<AdvertiseData>() {
+                @Override
+                public AdvertisingEngine<AdvertiseData> getEngine(boolean create) {
+                    if (create && !createMultiBeaconAdvertiser()) {
+                        return null;
+                    }
+                    MultiBeaconAdvertiser advertiser = multiBeaconAdvertiser;
+                    return advertiser != null ? advertiser.getEngine() : null;
+                }
+
+                @Override
+                public void onBeaconAdded(BeaconType beaconType, int uniqueCode) {
+                    if (beaconType == BeaconType.EddystoneTlm) {
+                        stopTlmUpdater();
+                        tlmUpdater = new EddystoneTlmUpdater(BleAdvertisingService.this, multiBeaconAdvertiser, uniqueCode,
+                                getResources().getInteger(R.integer.tlm_update_period_ms));
+                        tlmUpdater.start();
+                    }
+                }
+
+                @Override
+                public void onBeaconRemoved(BeaconType beaconType, int uniqueCode) {
+                    watchdog.forget(beaconType, uniqueCode);
+                    if (beaconType == BeaconType.EddystoneTlm) {
+                        stopTlmUpdater();
+                    }
+                }
+
+                @Override
+                public void onRemoveAll() {
+                    stopBroadcast();
+                    if (rotationScheduler != null) {
+                        rotationScheduler.stop();
+                        rotationScheduler = null;
+                    }
+                    if (ephemeralIdRotator != null) {
+                        ephemeralIdRotator.stop();
+                        ephemeralIdRotator = null;
+                    }
+                    rotationLauncher = null;
+                    suspendedRotation = null;
+                    stopTlmUpdater();
+                }
+
+                @Override
+                public boolean isRotating() {
+                    return rotationScheduler != null || ephemeralIdRotator != null;
+                }
+
+                @Override
+                public void onRejected(long command, String reason) {
+                    rejectedCommands.increment();
+                    MyLog.e(LOG_COMMAND_REJECTED, command);
+                }
+            });
+    private final MetricsRegistry metrics = AdvertisingTelemetry.getInstance().getMetrics();
+    private final LatencyHistogram commandLatency = metrics.histogram("service.command_latency");
+    private final LatencyHistogram startCommandTime = metrics.histogram("service.on_start_command");
+    private final MetricsRegistry.Counter rejectedCommands = metrics.counter("service.commands_rejected");
+    private BeaconCommandQueue commandQueue = null;
+    private volatile int lastStartId = 0;
+
+    // Binder calls arrive on binder threads; the service methods they call are synchronized
+    private final IBeaconControl.Stub controlBinder = new IBeaconControl.Stub() {
+        @Override
+        public int execute(long[] commands) {
+            return commands == null ? 0 : commandQueue.executeNow(filterClientCommands(commands));
+        }
+
+        @Override
+        public void submit(long[] commands) {
+            if (commands != null) {
+                commandQueue.submit(filterClientCommands(commands));
+            }
+        }
+
+        @Override
+        public long[] getStatus() {
+            return getControlStatus();
+        }
+
+        @Override
+        public void dumpLog() {
+            BleAdvertisingService.this.dumpLog();
+        }
+    };
 
     @Override
     public void onCreate() {
         MyLog.i(TAG, "onCreate(): Enter");
         super.onCreate();
+        commandQueue = new BeaconCommandQueue(this::executeCommands);
         bluetoothReceiver = new BluetoothReceiver(this);
+        // The teardown joins the rotation thread and stops every AdvertisingSet, so keep it off the main thread
+        bluetoothExecutor = Executors.newSingleThreadExecutor();
+        bluetoothReceiver.registerBluetoothStateChanged(BluetoothAdapter.STATE_TURNING_OFF, bluetoothExecutor, turningOffCallback);
+        bluetoothReceiver.registerBluetoothStateChanged(BluetoothAdapter.STATE_ON, bluetoothExecutor, turnedOnCallback);
+        metrics.gauge("service.advertising", () -> isServiceAdvertising ? 1 : 0);
+        watchdog = new AdvertisingWatchdog(getResources().getInteger(R.integer.watchdog_base_delay_ms),
+                getResources().getInteger(R.integer.watchdog_max_delay_ms),
+                getResources().getInteger(R.integer.watchdog_confirm_timeout_ms), new Random());
         MyLog.i(TAG, "onCreate(): Exit");
     }
 
     @Override
     public int onStartCommand(@NonNull Intent intent, int flags, int startId) {
-        MyLog.i(TAG, String.format("onStartCommand(%o, %o)", flags, startId));
-        stopAdvertising();
-        isServiceAdvertising = true;
+        long startNanos = System.nanoTime();
+        try {
+            return handleStartCommand(intent, flags, startId);
+        } finally {
+            startCommandTime.record(System.nanoTime() - startNanos);
+        }
+    }
 
+    private int handleStartCommand(@NonNull Intent intent, int flags, int startId) {
+        MyLog.i(LOG_ON_START_COMMAND_ENTER, flags, startId);
+
+        String action = intent.getAction();
+        if (getString(R.string.action_dump_log).equals(action)) {
+            dumpLog();
+            if (!isServiceAdvertising) {
+                // Sent with startForegroundService, the service has to enter the foreground even
+                // though it stops right away
+                startForeground(NOTIFICATION_ID, buildNotification(getString(R.string.ble_dumping_log_text)));
+                stopSelf();
+            }
+            return START_NOT_STICKY;
+        }
+        if (getString(R.string.action_start_broadcast).equals(action)) {
+            byte[] data = intent.getByteArrayExtra(getString(R.string.broadcast_data));
+            commandQueue.post(() -> startBroadcast(data));
+            lastStartId = startId;
+            if (notification == null) {
+                notificationText = getString(R.string.ble_broadcasting_text);
+                notification = buildNotification(notificationText);
+            }
+            startForeground(NOTIFICATION_ID, notification);
+            MyLog.i(LOG_ON_START_COMMAND_EXIT);
+            return START_NOT_STICKY;
+        }
         String beaconTypeString = intent.getStringExtra(getString(R.string.beacon_type));
         int uniqueCode = intent.getIntExtra(getString(R.string.unique_code), 0);
-        MyLog.i(TAG, String.format("onStartCommand: inputExtra = %x, beaconType = %s", uniqueCode, beaconTypeString));
         BeaconType beaconType = BeaconType.valueOf(beaconTypeString);
+        MyLog.i(LOG_ON_START_COMMAND_EXTRAS[beaconType.ordinal()], uniqueCode & 0xFFFFFFFFL);
+
+        // Only queue the work here; the queue thread merges bursts of requests before they reach the stack
+        boolean isRotation = getString(R.string.action_start_rotation).equals(action);
+        boolean isEphemeral = getString(R.string.action_start_ephemeral).equals(action);
+        if (getString(R.string.action_update_code).equals(action)) {
+            commandQueue.submit(BeaconCommand.encode(BeaconCommand.OP_SET_CODE, beaconType, uniqueCode));
+        } else if (isRotation) {
+            int[] rotationCodes = intent.getIntArrayExtra(getString(R.string.rotation_codes));
+            long periodMillis = intent.getLongExtra(getString(R.string.rotation_period_ms), DEFAULT_ROTATION_PERIOD_MS);
+            commandQueue.post(() -> startRotation(beaconType, rotationCodes, periodMillis));
+        } else if (isEphemeral) {
+            // The key is handed over by the caller and only kept in memory
+            byte[] identityKey = intent.getByteArrayExtra(getString(R.string.eid_identity_key));
+            int rotationExponent = intent.getIntExtra(getString(R.string.eid_rotation_exponent),
+                    getResources().getInteger(R.integer.default_eid_rotation_exponent));
+            commandQueue.post(() -> startEphemeral(beaconType, identityKey, rotationExponent));
+        } else if (getString(R.string.action_add_beacon).equals(action)) {
+            commandQueue.submit(BeaconCommand.encode(BeaconCommand.OP_ADD, beaconType, uniqueCode));
+        } else if (getString(R.string.action_remove_beacon).equals(action)) {
+            commandQueue.submit(BeaconCommand.encode(BeaconCommand.OP_REMOVE, beaconType, uniqueCode));
+        } else {
+            commandQueue.submit(BeaconCommand.encode(BeaconCommand.OP_REPLACE, beaconType, uniqueCode));
+        }
+        // Set after queueing, so onCommandsApplied never stops the service with this start still pending
+        lastStartId = startId;
+
+        // startForeground has to be called for every start; the text is corrected once the commands ran
+        if (notification == null) {
+            notificationText = isRotation ? getString(R.string.ble_advertising_rotation_text)
+                    : isEphemeral ? getString(R.string.ble_advertising_ephemeral_text) : getContextText(beaconType, uniqueCode);
+            notification = buildNotification(notificationText);
+        }
+        // Re-posting the same notification id updates it in place, so an update does not flicker
+        startForeground(NOTIFICATION_ID, notification);
+
+        MyLog.i(LOG_ON_START_COMMAND_EXIT);
+        return START_NOT_STICKY;
+    }
+
+    @NonNull
+    private String getNotificationText(int beaconCount, BeaconType beaconType, int uniqueCode) {
+        if (rotationScheduler != null) {
+            return getString(R.string.ble_advertising_rotation_text);
+        } else if (ephemeralIdRotator != null) {
+            return getString(R.string.ble_advertising_ephemeral_text);
+        } else if (beaconCount > 1) {
+            return String.format(getString(R.string.ble_advertising_multiple_beacons_text_format), beaconCount);
+        }
+        return getContextText(beaconType, uniqueCode);
+    }
+
+    /**
+     * Applies a batch of packed commands received over the bound interface.
+     * A command that cannot be decoded is logged and skipped; the rest of the batch still runs.
+     * @return the number of commands applied.
+     */
+    private synchronized int executeCommands(@NonNull long[] commands) {
+        long startNanos = System.nanoTime();
+        int applied = commandProcessor.applyAll(commands);
+        onCommandsApplied();
+        long latencyNanos = System.nanoTime() - startNanos;
+        commandLatency.record(latencyNanos);
+        MyLog.i(LOG_EXECUTE_COMMANDS, commands.length, applied, TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+        return applied;
+    }
+
+    /**
+     * Drops what a client must not send before it reaches the queue: OP_CALLBACK would run (or
+     * swallow) an action the service queued, and an unknown opcode or type cannot be merged.
+     */
+    @NonNull
+    private long[] filterClientCommands(@NonNull long[] commands) {
+        int valid = 0;
+        for (long command : commands) {
+            if (BeaconCommand.isClientCommand(command)) {
+                valid++;
+            }
+        }
+        if (valid == commands.length) {
+            return commands;
+        }
+        long[] filtered = new long[valid];
+        int i = 0;
+        for (long command : commands) {
+            if (BeaconCommand.isClientCommand(command)) {
+                filtered[i++] = command;
+            } else {
+                rejectedCommands.increment();
+                MyLog.e(LOG_CLIENT_COMMAND_REJECTED, command);
+            }
+        }
+        return filtered;
+    }
+
+    @NonNull
+    private synchronized long[] getControlStatus() {
+        long[] beacons = multiBeaconAdvertiser != null ? multiBeaconAdvertiser.getBeaconCommands() : new long[0];
+        long[] status = new long[BeaconCommand.STATUS_HEADER_LENGTH + beacons.length];
+        status[BeaconCommand.STATUS_FLAGS] = (beacons.length > 0 ? BeaconCommand.FLAG_ADVERTISING : 0)
+                | (commandProcessor.isPaused() ? BeaconCommand.FLAG_PAUSED : 0);
+        status[BeaconCommand.STATUS_COMMAND_COUNT] = commandLatency.getCount();
+        status[BeaconCommand.STATUS_LATENCY_MEAN_NANOS] = commandLatency.getMeanNanos();
+        status[BeaconCommand.STATUS_LATENCY_MAX_NANOS] = commandLatency.getMaxNanos();
+        System.arraycopy(beacons, 0, status, BeaconCommand.STATUS_HEADER_LENGTH, beacons.length);
+        return status;
+    }
+
+    /**
+     * Publishes the new advertising state after a batch: stops the service once nothing is left
+     * to advertise, otherwise brings the notification text up to date on the main thread.
+     */
+    private void onCommandsApplied() {
+        int beaconCount = multiBeaconAdvertiser != null ? multiBeaconAdvertiser.getBeaconCount() : 0;
+        // Beacons the watchdog is still bringing back keep the service up
+        isServiceAdvertising = beaconCount > 0 || broadcaster != null || watchdog.getExpectedCount() > 0
+                || suspendedRotation != null;
+        if (isServiceAdvertising) {
+            scheduleWatchdog(0);
+        }
+        if (!isServiceAdvertising && !commandProcessor.isPaused()) {
+            int startId = lastStartId;
+            if (commandQueue.isIdle()) {
+                MyLog.i(TAG, "onCommandsApplied(): No beacons left to advertise");
+                // Ignored by the system if another start request arrived in the meantime
+                stopSelfResult(startId);
+            }
+        } else {
+            getMainExecutor().execute(this::refreshNotification);
+        }
+    }
+
+    /**
+     * Nothing is shown if the service was only bound and never started in the foreground.
+     */
+    private void refreshNotification() {
+        MultiBeaconAdvertiser advertiser = multiBeaconAdvertiser;
+        PeriodicBroadcaster currentBroadcaster = broadcaster;
+        if (notification == null) {
+            return;
+        }
+        long[] beacons = advertiser != null ? advertiser.getBeaconCommands() : new long[0];
+        String contentText;
+        if (watchdog.isAdapterOff()) {
+            contentText = getString(R.string.ble_advertising_waiting_text);
+        } else if (beacons.length > 0) {
+            contentText = getNotificationText(beacons.length, BeaconCommand.getBeaconType(beacons[0]),
+                    BeaconCommand.getUniqueCode(beacons[0]));
+        } else if (currentBroadcaster != null) {
+            contentText = String.format(getString(R.string.ble_broadcasting_text_format),
+                    currentBroadcaster.getPayloadLength(), currentBroadcaster.getFrameCount(),
+                    (long) currentBroadcaster.getExpectedBytesPerSecond());
+        } else {
+            return;
+        }
+        if (!contentText.equals(notificationText)) {
+            notification = buildNotification(contentText);
+            notificationText = contentText;
+            getSystemService(NotificationManager.class).notify(NOTIFICATION_ID, notification);
+        }
+    }
+
+    private void dumpLog() {
+        File file = new File(getFilesDir(), LOG_DUMP_FILE_NAME);
+        try {
+            int records = MyLog.dump(file);
+            MyLog.i(TAG, "dumpLog(): " + records + " records written to " + file);
+            PeriodicBroadcaster currentBroadcaster = broadcaster;
+            if (currentBroadcaster != null) {
+                MyLog.i(TAG, "dumpLog(): Broadcast " + currentBroadcaster.getReport());
+            }
+            EphemeralIdRotator currentRotator = ephemeralIdRotator;
+            if (currentRotator != null) {
+                MyLog.i(TAG, "dumpLog(): Ephemeral IDs " + currentRotator.getReport());
+            }
+            MyLog.i(TAG, "dumpLog(): Watchdog " + watchdog);
+            AdvertisingTelemetry.getInstance().dump(new File(getFilesDir(), TELEMETRY_DUMP_FILE_NAME));
+        } catch (IOException e) {
+            MyLog.e(TAG, "dumpLog(): " + e);
+        }
+    }
 
+    @NonNull
+    private Notification buildNotification(String contentText) {
         Intent notificationIntent = new Intent(this, MainActivity.class);
         notificationIntent.putExtra("ACTIVITY_NAME", "From Service");
         PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, notificationIntent, PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
 
-        Notification notification = new NotificationCompat.Builder(this, getString(R.string.service_channel_id))
+        return new NotificationCompat.Builder(this, getString(R.string.service_channel_id))
                 .setContentTitle(getString(R.string.ble_advertising_service_title))
-                .setContentText(getContextText(beaconType, uniqueCode))
+                .setContentText(contentText)
                 .setSmallIcon(R.drawable.ic_ble_beacon)
                 .setContentIntent(pendingIntent)
+                .setOnlyAlertOnce(true)
                 .build();
+    }
 
-        startForeground(1, notification);
+    private void stopTlmUpdater() {
+        if (tlmUpdater != null) {
+            tlmUpdater.stop();
+            tlmUpdater = null;
+        }
+    }
 
-        new BleAdvertisingManager().startAdvertising(beaconType, uniqueCode);
+    private synchronized void startRotation(BeaconType beaconType, @Nullable int[] rotationCodes, long periodMillis) {
+        MyLog.i(TAG, "startRotation(): Enter");
+        commandProcessor.clearPaused();
+        stopAdvertising();
+        launchRotation(beaconType, rotationCodes, periodMillis);
+        onCommandsApplied();
+        MyLog.i(TAG, "startRotation(): Exit");
+    }
 
-        bluetoothReceiver.registerBluetoothStateChanged(BluetoothAdapter.STATE_TURNING_OFF, () -> {
-            MyLog.i(TAG, "The local Bluetooth adapter is turning off. Stop BLE Advertising.");
-            stopAdvertising();
-            stopSelf();
-        });
+    private void launchRotation(BeaconType beaconType, @Nullable int[] rotationCodes, long periodMillis) {
+        if (rotationCodes == null || rotationCodes.length == 0) {
+            MyLog.e(TAG, "launchRotation(): No codes to rotate through");
+        } else if (createMultiBeaconAdvertiser()) {
+            rotationScheduler = new BeaconRotationScheduler(multiBeaconAdvertiser, beaconType, rotationCodes, periodMillis);
+            rotationScheduler.start();
+            rotationLauncher = () -> launchRotation(beaconType, rotationCodes, periodMillis);
+        }
+    }
 
-        MyLog.i(TAG, "onStartCommand(): Exit");
-        return START_NOT_STICKY;
+    /**
+     * Replaces every beacon with one whose identifier rotates through ephemeral IDs.  The beacon is
+     * added with code 0; only the frame on air carries the ID.
+     */
+    private synchronized void startEphemeral(BeaconType beaconType, @Nullable byte[] identityKey, int rotationExponent) {
+        MyLog.i(TAG, "startEphemeral(): Enter");
+        commandProcessor.clearPaused();
+        stopAdvertising();
+        launchEphemeral(beaconType, identityKey, rotationExponent);
+        onCommandsApplied();
+        MyLog.i(TAG, "startEphemeral(): Exit");
+    }
+
+    private void launchEphemeral(BeaconType beaconType, @Nullable byte[] identityKey, int rotationExponent) {
+        if (createMultiBeaconAdvertiser()) {
+            try {
+                ephemeralIdRotator = new EphemeralIdRotator(multiBeaconAdvertiser, beaconType, 0,
+                        identityKey == null ? new byte[0] : identityKey, rotationExponent);
+                multiBeaconAdvertiser.addBeacon(beaconType, 0);
+                ephemeralIdRotator.start();
+                rotationLauncher = () -> launchEphemeral(beaconType, identityKey, rotationExponent);
+            } catch (IllegalArgumentException e) {
+                MyLog.e(TAG, "launchEphemeral(): " + e.getMessage());
+                ephemeralIdRotator = null;
+            }
+        }
+    }
+
+    /**
+     * Starts the rotation the adapter took down over again, unless it was removed or replaced
+     * while the adapter was off.
+     */
+    private synchronized void resumeRotation(@NonNull Runnable launcher) {
+        if (suspendedRotation != launcher) {
+            return;
+        }
+        MyLog.i(TAG, "resumeRotation(): Enter");
+        suspendedRotation = null;
+        launcher.run();
+        onCommandsApplied();
+        MyLog.i(TAG, "resumeRotation(): Exit");
+    }
+
+    /**
+     * Replaces the data set being broadcast, if any.  Beacons already on air keep running.
+     */
+    private synchronized void startBroadcast(@Nullable byte[] data) {
+        MyLog.i(TAG, "startBroadcast(): Enter");
+        stopBroadcast();
+        BleAdvertisingManager manager = BleAdvertisingManager.getInstance();
+        BluetoothLeAdvertiser bluetoothLeAdvertiser = manager.getBluetoothLeAdvertiser();
+        if (data == null) {
+            MyLog.e(TAG, "startBroadcast(): No data to broadcast");
+        } else if (bluetoothLeAdvertiser == null || !manager.isPeriodicAdvertisingSupported()) {
+            MyLog.e(TAG, "startBroadcast(): Periodic advertising is not supported");
+        } else {
+            try {
+                broadcaster = new PeriodicBroadcaster(bluetoothLeAdvertiser,
+                        BeaconPayloadCache.getInstance().getUuid(), data,
+                        getResources().getInteger(R.integer.broadcast_interval_ms),
+                        manager.getMaxAdvertisingDataLength(AdvertisingPhy.EXTENDED_2M),
+                        (failed, status) -> commandQueue.post(() -> onBroadcastFailed(failed)));
+                broadcaster.start(manager.getAdvertisingPhy(BeaconType.Ble2MBeacon) == AdvertisingPhy.EXTENDED_2M);
+            } catch (IllegalArgumentException e) {
+                MyLog.e(TAG, "startBroadcast(): " + e.getMessage());
+                broadcaster = null;
+            }
+        }
+        onCommandsApplied();
+        MyLog.i(TAG, "startBroadcast(): Exit");
+    }
+
+    /**
+     * Drops a broadcast the controller would not start, so it no longer keeps the service up.
+     */
+    private synchronized void onBroadcastFailed(@NonNull PeriodicBroadcaster failed) {
+        if (broadcaster != failed) {
+            // Already replaced or stopped
+            return;
+        }
+        MyLog.e(TAG, "onBroadcastFailed(): " + failed.getReport());
+        stopBroadcast();
+        onCommandsApplied();
+    }
+
+    private void stopBroadcast() {
+        if (broadcaster != null) {
+            broadcaster.stop();
+            broadcaster = null;
+        }
+    }
+
+    private boolean createMultiBeaconAdvertiser() {
+        if (multiBeaconAdvertiser == null) {
+            BluetoothLeAdvertiser bluetoothLeAdvertiser = BleAdvertisingManager.getInstance().getBluetoothLeAdvertiser();
+            if (bluetoothLeAdvertiser == null) {
+                MyLog.e(TAG, "createMultiBeaconAdvertiser(): Unable to access the Bluetooth LE Advertiser");
+                return false;
+            }
+            multiBeaconAdvertiser = new MultiBeaconAdvertiser(bluetoothLeAdvertiser,
+                    getResources().getInteger(R.integer.max_advertising_sets), watchdog);
+        }
+        return true;
     }
 
     private String getContextText(BeaconType beaconType, int uniqueCode) {
@@ -70,6 +573,22 @@ public class BleAdvertisingService extends Service {
             case IBeacon:
                 contentText = getString(R.string.ble_advertising_i_beacon_text);
                 break;
+            case EddystoneUid:
+                contentText = String.format(getString(R.string.ble_advertising_eddystone_uid_text_format), uniqueCode);
+                break;
+            case EddystoneUrl:
+                contentText = getString(R.string.ble_advertising_eddystone_url_text);
+                break;
+            case EddystoneTlm:
+                contentText = getString(R.string.ble_advertising_eddystone_tlm_text);
+                break;
+            case Ble2MBeacon:
+            case BleCodedBeacon:
+                // Names the mode actually on air, which may be a fallback
+                AdvertisingPhy phy = BleAdvertisingManager.getInstance().getAdvertisingPhy(beaconType);
+                contentText = String.format(getString(R.string.ble_advertising_extended_text_format),
+                        getString(getPhyNameId(phy)), uniqueCode);
+                break;
             case Ble1MBeacon:
             default:
                 contentText = getString(R.string.ble_advertising_ble_1m_phy_text);
@@ -78,31 +597,156 @@ public class BleAdvertisingService extends Service {
         return contentText;
     }
 
+    private static int getPhyNameId(@NonNull AdvertisingPhy phy) {
+        switch (phy) {
+            case EXTENDED_1M:
+                return R.string.phy_extended_1m;
+            case EXTENDED_2M:
+                return R.string.phy_extended_2m;
+            case EXTENDED_CODED:
+                return R.string.phy_extended_coded;
+            case LEGACY_1M:
+            default:
+                return R.string.phy_legacy_1m;
+        }
+    }
+
     @Override
     public void onDestroy() {
         MyLog.i(TAG, "onDestroy(): Enter");
         if (bluetoothReceiver != null) {
-            bluetoothReceiver.unregisterBluetoothStateChanged(BluetoothAdapter.STATE_TURNING_OFF);
+            bluetoothReceiver.unregisterBluetoothStateChanged(BluetoothAdapter.STATE_TURNING_OFF, turningOffCallback);
+            bluetoothReceiver.unregisterBluetoothStateChanged(BluetoothAdapter.STATE_ON, turnedOnCallback);
             bluetoothReceiver = null;
         }
+        if (bluetoothExecutor != null) {
+            bluetoothExecutor.shutdown();
+            bluetoothExecutor = null;
+        }
+        watchdogHandler.removeCallbacks(watchdogRunnable);
+        commandQueue.quit();
         stopAdvertising();
         super.onDestroy();
         MyLog.i(TAG, "onDestroy(): Exit");
     }
 
+    /**
+     * Prints a snapshot of the metrics for adb shell dumpsys activity service BleAdvertisingService.
+     * With the argument "log" the ring log is printed too and written to the files directory,
+     * as the DUMP_LOG action does.  Nothing on the advertising paths waits for it.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("isServiceAdvertising: " + isServiceAdvertising);
+        AdvertisingTelemetry.getInstance().dump(writer);
+        AdvertisingWatchdog currentWatchdog = watchdog;
+        if (currentWatchdog != null) {
+            writer.println("watchdog: " + currentWatchdog);
+        }
+        PeriodicBroadcaster currentBroadcaster = broadcaster;
+        if (currentBroadcaster != null) {
+            writer.println("broadcast: " + currentBroadcaster.getReport());
+        }
+        EphemeralIdRotator currentRotator = ephemeralIdRotator;
+        if (currentRotator != null) {
+            writer.println("ephemeral_ids: " + currentRotator.getReport());
+        }
+        if (args != null && Arrays.asList(args).contains("log")) {
+            dumpLog();
+            try {
+                MyLog.dump(writer);
+            } catch (IOException e) {
+                writer.println("log: " + e);
+            }
+        }
+        writer.flush();
+    }
+
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
         MyLog.i(TAG, "onBind(): Enter/Exit");
-        return null;
+        return controlBinder;
     }
 
-    private void stopAdvertising() {
+    private synchronized void stopAdvertising() {
         MyLog.i(TAG, "stopAdvertising():isServiceAdvertising = " + isServiceAdvertising);
-        if (isServiceAdvertising) {
-            new BleAdvertisingManager().stopAdvertising();
-            isServiceAdvertising = false;
-        }
+        commandProcessor.removeAll();
+        watchdog.forgetAll();
+        isServiceAdvertising = false;
         MyLog.i(TAG, "stopAdvertising(): Exit");
     }
+
+    /**
+     * Takes everything off the air with the adapter, but leaves the beacons with the watchdog so
+     * they are started again once the adapter is back on.  A rotation or ephemeral ID beacon is
+     * started over instead, since the watchdog would bring its beacon back as a static frame.
+     * Telemetry updaters come back with their beacon (see retryBeacons); broadcasts are stopped for good.
+     */
+    private synchronized void suspendAdvertising() {
+        MyLog.i(LOG_SUSPEND, watchdog.getExpectedCount());
+        watchdog.onAdapterOff(System.nanoTime());
+        BeaconRotationScheduler scheduler = rotationScheduler;
+        EphemeralIdRotator rotator = ephemeralIdRotator;
+        Runnable launcher = rotationLauncher;
+        commandProcessor.removeAll();
+        if (scheduler != null) {
+            for (int uniqueCode : scheduler.getUniqueCodes()) {
+                watchdog.forget(scheduler.getBeaconType(), uniqueCode);
+            }
+        }
+        if (rotator != null) {
+            watchdog.forget(rotator.getBeaconType(), rotator.getUniqueCode());
+        }
+        suspendedRotation = launcher;
+        // The advertiser handle does not survive the adapter restart
+        multiBeaconAdvertiser = null;
+        onCommandsApplied();
+    }
+
+    /**
+     * Runs on the main thread while the service advertises: hands the beacons due for a retry to
+     * the command queue, then comes back at the next deadline, or after the check period at the latest.
+     */
+    private void checkWatchdog() {
+        long[] retries = watchdog.poll(System.nanoTime());
+        if (retries.length > 0) {
+            commandQueue.post(() -> retryBeacons(retries));
+        }
+        if (watchdog.getExpectedCount() > 0) {
+            long delayNanos = watchdog.getNextDeadlineNanos() - System.nanoTime();
+            scheduleWatchdog(TimeUnit.NANOSECONDS.toMillis(Math.max(0, delayNanos)));
+        }
+    }
+
+    private void scheduleWatchdog(long delayMillis) {
+        watchdogHandler.removeCallbacks(watchdogRunnable);
+        watchdogHandler.postDelayed(watchdogRunnable,
+                Math.min(delayMillis, getResources().getInteger(R.integer.watchdog_check_period_ms)));
+    }
+
+    /**
+     * Starts the given beacons again through the command processor, so an Eddystone-TLM beacon
+     * gets its telemetry updater back.  A beacon removed since the watchdog handed it out is skipped.
+     */
+    private synchronized void retryBeacons(@NonNull long[] beacons) {
+        MyLog.i(LOG_RETRY, beacons.length, watchdog.getExpectedCount());
+        boolean hasAdvertiser = createMultiBeaconAdvertiser();
+        for (long beacon : beacons) {
+            BeaconType beaconType = BeaconCommand.getBeaconType(beacon);
+            int uniqueCode = BeaconCommand.getUniqueCode(beacon);
+            if (!watchdog.isRetrying(beaconType, uniqueCode)) {
+                continue;
+            }
+            if (!hasAdvertiser) {
+                watchdog.onStartFailed(beaconType, uniqueCode, AdvertiserBackend.FAILED_INTERNAL_ERROR, System.nanoTime());
+            } else if (!commandProcessor.restartBeacon(beaconType, uniqueCode)) {
+                watchdog.onStartFailed(beaconType, uniqueCode, AdvertiserBackend.FAILED_TOO_MANY_ADVERTISERS,
+                        System.nanoTime());
+            }
+        }
+        if (hasAdvertiser) {
+            onCommandsApplied();
+        }
+    }
 }
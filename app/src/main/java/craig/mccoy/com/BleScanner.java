@@ -0,0 +1,171 @@
+package craig.mccoy.com;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import craig.mccoy.com.core.BeaconDistanceEstimator;
+import craig.mccoy.com.core.BeaconFrame;
+import craig.mccoy.com.core.ScanIngestionPipeline;
+
+/**
+ * Scans for the AltBeacon and iBeacon frames this app advertises, so what is on air can be checked
+ * without a separate tool.  The results are delivered in batches (ScanSettings.setReportDelay)
+ * and handed to a ScanIngestionPipeline, which copies each batch into a preallocated ring and
+ * parses it on a worker thread into one reused BeaconFrame; a burst of thousands of results
+ * neither creates garbage nor runs on the main thread, and a worker that falls behind sheds
+ * duplicates and samples instead of queueing them.  The RSSI of every beacon is filtered to
+ * estimate its distance.
+ * It is assumed the caller has already verified and/or obtained the Manifest.permission.BLUETOOTH_SCAN
+ * permission.  Otherwise, the methods of this class will throw a permission denied exceptions.
+ */
+public class BleScanner {
+    private static final String TAG = "BLE:BleScanner";
+    private static final int LOG_SCAN_FAILED = MyLog.format(TAG, "onScanFailed(): {}");
+    private static final int LOG_REPORT_DELAY = MyLog.format(TAG, "startScanning(): report delay {} ms");
+    private static final int LOG_FORGOT = MyLog.format(TAG, "onBeacon(): Forgot {} beacons not heard recently");
+
+    public interface OnBeaconFoundListener {
+        /**
+         * Called on the scan worker thread.  The frame is reused for the next result, so copy it
+         * (see BeaconFrame.copyFrom) if it has to be kept.
+         * @param distanceMeters the distance estimated from the filtered RSSI of this beacon.
+         */
+        void onBeaconFound(@NonNull BeaconFrame frame, int rssi, double distanceMeters, long timestampNanos);
+    }
+
+    // Legacy advertising data plus scan response
+    private static final int MAX_RECORD_LENGTH = 62;
+
+    private static final ScanIngestionPipeline.ResultReader<ScanResult> RESULT_READER = new ScanIngestionPipeline.ResultReader<ScanResult>() {
+        @Override
+        public byte[] getRecord(ScanResult result) {
+            ScanRecord scanRecord = result.getScanRecord();
+            // getBytes() returns the record's own array; the pipeline copies it into the ring
+            return scanRecord != null ? scanRecord.getBytes() : null;
+        }
+
+        @Override
+        public int getRssi(ScanResult result) {
+            return result.getRssi();
+        }
+
+        @Override
+        public long getTimestampNanos(ScanResult result) {
+            return result.getTimestampNanos();
+        }
+    };
+
+    private final OnBeaconFoundListener listener;
+    // Only touched by the pipeline worker
+    private final BeaconDistanceEstimator distanceEstimator;
+    private final long forgetAfterNanos;
+    private long nextPruneNanos = Long.MIN_VALUE;
+    private final ScanIngestionPipeline pipeline;
+    private BluetoothLeScanner bluetoothLeScanner = null;
+
+    private final ScanCallback scanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            // Only without batching, when every result comes on its own
+            pipeline.offer(Collections.singletonList(result), RESULT_READER);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            pipeline.offer(results, RESULT_READER);
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            MyLog.e(LOG_SCAN_FAILED, errorCode);
+        }
+    };
+
+    public BleScanner(@NonNull OnBeaconFoundListener listener, int expectedBeacons) {
+        this.listener = listener;
+        this.distanceEstimator = new BeaconDistanceEstimator(expectedBeacons);
+        this.forgetAfterNanos = TimeUnit.MILLISECONDS.toNanos(App.getAppInteger(R.integer.scan_forget_beacon_ms));
+        this.pipeline = new ScanIngestionPipeline(App.getAppInteger(R.integer.scan_ring_batches),
+                App.getAppInteger(R.integer.scan_batch_max_results), MAX_RECORD_LENGTH,
+                this::onBeacon, AdvertisingTelemetry.getInstance().getMetrics());
+    }
+
+    @SuppressLint("MissingPermission")
+    public boolean startScanning() {
+        MyLog.i(TAG, "startScanning(): Enter");
+        BluetoothManager bluetoothManager = App.getBluetoothManager();
+        BluetoothAdapter bluetoothAdapter = bluetoothManager != null ? bluetoothManager.getAdapter() : null;
+        bluetoothLeScanner = bluetoothAdapter != null ? bluetoothAdapter.getBluetoothLeScanner() : null;
+        if (bluetoothLeScanner == null) {
+            MyLog.e(TAG, "startScanning(): Unable to access the Bluetooth LE Scanner");
+            return false;
+        }
+        // A controller without offloaded batching fails the scan if a report delay is asked for
+        long reportDelayMillis = bluetoothAdapter.isOffloadedScanBatchingSupported()
+                ? App.getAppInteger(R.integer.scan_report_delay_ms) : 0;
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                .setReportDelay(reportDelayMillis)
+                .build();
+        pipeline.start();
+        bluetoothLeScanner.startScan(null, settings, scanCallback);
+        MyLog.i(LOG_REPORT_DELAY, reportDelayMillis);
+        MyLog.i(TAG, "startScanning(): Exit");
+        return true;
+    }
+
+    @SuppressLint("MissingPermission")
+    public void stopScanning() {
+        if (bluetoothLeScanner != null) {
+            bluetoothLeScanner.stopScan(scanCallback);
+            bluetoothLeScanner = null;
+        }
+        try {
+            pipeline.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        MyLog.i(TAG, "stopScanning(): " + pipeline);
+    }
+
+    public long getResultCount() {
+        return pipeline.getOfferedCount();
+    }
+
+    public long getBeaconCount() {
+        return pipeline.getBeaconCount();
+    }
+
+    public long getDroppedCount() {
+        return pipeline.getDroppedCount();
+    }
+
+    // On the pipeline worker
+    private void onBeacon(BeaconFrame frame, int rssi, long timestampNanos) {
+        double distanceMeters = distanceEstimator.update(frame, rssi, timestampNanos);
+        listener.onBeaconFound(frame, rssi, distanceMeters, timestampNanos);
+        // In a busy venue the filters of passing beacons would otherwise pile up; the check is
+        // driven by the scan timestamps, so a sweep runs at most once per forget period
+        if (nextPruneNanos == Long.MIN_VALUE) {
+            nextPruneNanos = timestampNanos + forgetAfterNanos;
+        } else if (timestampNanos - nextPruneNanos >= 0) {
+            int removed = distanceEstimator.removeOlderThan(timestampNanos - forgetAfterNanos);
+            nextPruneNanos = timestampNanos + forgetAfterNanos;
+            if (removed > 0) {
+                MyLog.i(LOG_FORGOT, removed);
+            }
+        }
+    }
+}
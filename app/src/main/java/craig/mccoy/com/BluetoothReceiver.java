@@ -8,67 +8,145 @@ import android.content.IntentFilter;
 
 import androidx.annotation.NonNull;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.Executor;
 
+/**
+ * Dispatches the Bluetooth adapter state changes to any number of listeners per state.
+ * The listeners are kept in a copy-on-write table indexed by state, so onReceive finds them
+ * without taking a lock; registering or unregistering copies the row it changes.
+ * Each listener runs on the executor it was registered with, so slow work such as tearing down
+ * the advertisers can be kept off the main thread.
+ */
 public class BluetoothReceiver extends BroadcastReceiver {
     private static final String TAG = "BLE:BluetoothReceiver";
+    private static final int LOG_ON_RECEIVE_ENTER = MyLog.format(TAG, "onReceive():Enter");
+    private static final int LOG_ON_RECEIVE_STATE = MyLog.format(TAG, "onReceive():state {}");
+    private static final int LOG_ON_RECEIVE_CALLING_BACK = MyLog.format(TAG, "onReceive(): Calling back {} listener(s) on {}");
+    private static final int LOG_ON_RECEIVE_EXIT = MyLog.format(TAG, "onReceive():Exit");
+    private static final int LOG_REGISTER_ENTER = MyLog.format(TAG, "registerBluetoothStateChanged({}): Enter");
+    private static final int LOG_ALREADY_REGISTERED = MyLog.format(TAG, "registerBluetoothStateChanged(): Callback already registered for {}");
+    private static final int LOG_UNREGISTER_ENTER = MyLog.format(TAG, "unregisterBluetoothStateChanged({}): Enter");
+    private static final int LOG_NOT_REGISTERED = MyLog.format(TAG, "unregisterBluetoothStateChanged(): Callback is not registered for {}");
+
+    // ACTION_STATE_CHANGED reports STATE_OFF, STATE_TURNING_ON, STATE_ON and STATE_TURNING_OFF (10..13)
+    private static final int FIRST_STATE = BluetoothAdapter.STATE_OFF;
+    private static final int STATE_COUNT = BluetoothAdapter.STATE_TURNING_OFF - FIRST_STATE + 1;
+    private static final Listener[] NO_LISTENERS = new Listener[0];
+
+    private static final class Listener {
+        final Runnable callback;
+        final Executor executor;
+
+        Listener(Runnable callback, Executor executor) {
+            this.callback = callback;
+            this.executor = executor;
+        }
+    }
 
     private final Context parentContext;
-    private final Map<Integer, Runnable> registeredCallbacks = new HashMap<>();
     private final IntentFilter bluetoothStateChangedIntent = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
+    private volatile Listener[][] listenersByState = new Listener[STATE_COUNT][];
+    private int listenerCount = 0;
 
     public  BluetoothReceiver(Context context) {
         parentContext = context;
+        for (int i = 0; i < STATE_COUNT; i++) {
+            listenersByState[i] = NO_LISTENERS;
+        }
     }
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        MyLog.i(TAG, "onReceive():Enter for " + context);
+        MyLog.i(LOG_ON_RECEIVE_ENTER);
         String action = intent.getAction();
         if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
             int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, -1);
-            MyLog.i(TAG, "onReceive():state " + state);
-            Runnable currentCallback = null;
-            synchronized (this) {
-                for (Map.Entry<Integer, Runnable> entry : registeredCallbacks.entrySet()) {
-                    if (entry.getKey().equals(state)) {
-                        currentCallback = entry.getValue();
-                        break;
-                    }
+            MyLog.i(LOG_ON_RECEIVE_STATE, state);
+            int index = state - FIRST_STATE;
+            if (index >= 0 && index < STATE_COUNT) {
+                Listener[] listeners = listenersByState[index];
+                if (listeners.length > 0) {
+                    MyLog.i(LOG_ON_RECEIVE_CALLING_BACK, listeners.length, state);
+                }
+                for (Listener listener : listeners) {
+                    listener.executor.execute(listener.callback);
                 }
-            }
-            if (currentCallback != null) {
-                MyLog.i(TAG, "onReceive(): Calling back on " + state);
-                currentCallback.run();
             }
         }
-        MyLog.i(TAG, "onReceive():Exit");
+        MyLog.i(LOG_ON_RECEIVE_EXIT);
+    }
+
+    /**
+     * Registers a callback run on the main thread when the adapter enters the given state.
+     */
+    public void registerBluetoothStateChanged(int state, @NonNull Runnable callback) {
+        registerBluetoothStateChanged(state, parentContext.getMainExecutor(), callback);
     }
 
-    public synchronized  void registerBluetoothStateChanged(int state, @NonNull Runnable callback) {
-        MyLog.i(TAG, "registerBluetoothStateChanged(" + state + "): Enter ");
-        if (registeredCallbacks.size() == 0) {
+    /**
+     * Registers a callback run on the given executor when the adapter enters the given state.
+     * The same callback may be registered for several states.
+     */
+    public synchronized void registerBluetoothStateChanged(int state, @NonNull Executor executor, @NonNull Runnable callback) {
+        MyLog.i(LOG_REGISTER_ENTER, state);
+        int index = toIndex(state);
+        Listener[] listeners = listenersByState[index];
+        for (Listener listener : listeners) {
+            if (listener.callback == callback) {
+                MyLog.w(LOG_ALREADY_REGISTERED, state);
+                return;
+            }
+        }
+        if (listenerCount == 0) {
             MyLog.i(TAG, "registerBluetoothStateChanged(): Register the Receiver");
             parentContext.registerReceiver(this, bluetoothStateChangedIntent);
         }
-        if (registeredCallbacks.put(state, callback) != null)
-        {
-            MyLog.w(TAG, "registerBluetoothStateChanged(): " + state + " already registered");
-        }
+        Listener[] newListeners = new Listener[listeners.length + 1];
+        System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+        newListeners[listeners.length] = new Listener(callback, executor);
+        publish(index, newListeners);
+        listenerCount++;
         MyLog.i(TAG, "registerBluetoothStateChanged(): Exit");
     }
 
-    public synchronized  void unregisterBluetoothStateChanged(int state) {
-        MyLog.i(TAG, "unregisterBluetoothStateChanged(" + state + "): Enter ");
-
-        if (registeredCallbacks.remove(state) == null) {
-            MyLog.w(TAG, "unregisterBluetoothStateChanged(): " + state + " is not registered");
-        } else if (registeredCallbacks.size() == 0) {
-            MyLog.i(TAG, "unregisterBluetoothStateChanged(): Unregister the Receiver");
-            parentContext.unregisterReceiver(this);
+    public synchronized void unregisterBluetoothStateChanged(int state, @NonNull Runnable callback) {
+        MyLog.i(LOG_UNREGISTER_ENTER, state);
+        int index = toIndex(state);
+        Listener[] listeners = listenersByState[index];
+        int position = -1;
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i].callback == callback) {
+                position = i;
+                break;
+            }
+        }
+        if (position < 0) {
+            MyLog.w(LOG_NOT_REGISTERED, state);
+        } else {
+            Listener[] newListeners = listeners.length == 1 ? NO_LISTENERS : new Listener[listeners.length - 1];
+            System.arraycopy(listeners, 0, newListeners, 0, position);
+            System.arraycopy(listeners, position + 1, newListeners, position, listeners.length - position - 1);
+            publish(index, newListeners);
+            if (--listenerCount == 0) {
+                MyLog.i(TAG, "unregisterBluetoothStateChanged(): Unregister the Receiver");
+                parentContext.unregisterReceiver(this);
+            }
         }
-
         MyLog.i(TAG, "unregisterBluetoothStateChanged(): Exit");
     }
+
+    private void publish(int index, Listener[] listeners) {
+        // Copy the outer table too, so a reader sees either the old or the new row, never a mix
+        Listener[][] table = listenersByState.clone();
+        table[index] = listeners;
+        listenersByState = table;
+    }
+
+    private static int toIndex(int state) {
+        int index = state - FIRST_STATE;
+        if (index < 0 || index >= STATE_COUNT) {
+            throw new IllegalArgumentException("Not an adapter state: " + state);
+        }
+        return index;
+    }
 }
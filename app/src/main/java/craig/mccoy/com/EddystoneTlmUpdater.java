@@ -0,0 +1,111 @@
+package craig.mccoy.com;
+
+import android.bluetooth.le.AdvertiseData;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import craig.mccoy.com.core.BeaconType;
+import craig.mccoy.com.core.EddystoneEncoder;
+
+/**
+ * Keeps the battery, temperature, advertising count and uptime of an Eddystone-TLM beacon up to
+ * date.  The frame and its AdvertiseData are created once; each refresh only rewrites the TLM
+ * fields of the frame and hands the same AdvertiseData back to the AdvertisingSet.  The battery
+ * voltage and temperature come from an ACTION_BATTERY_CHANGED receiver registered while the
+ * updater runs, so a refresh does not query the system.
+ */
+public class EddystoneTlmUpdater {
+    private static final String TAG = "BLE:EddystoneTlmUpdater";
+    private static final int LOG_START = MyLog.format(TAG, "start(): Every {} ms");
+
+    private final Context context;
+    private final MultiBeaconAdvertiser multiBeaconAdvertiser;
+    private final int uniqueCode;
+    private final long periodMillis;
+    private final long advertisingIntervalMillis;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final IntentFilter batteryChangedFilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+
+    private final byte[] frame = BeaconPayloadCache.createEddystoneTlmFrame();
+    private final AdvertiseData data = BeaconPayloadCache.createEddystoneAdvertiseData(frame);
+    private final long startMillis = SystemClock.elapsedRealtime();
+
+    // Seeded by start() on the caller's thread, then written by the receiver on the main thread
+    private volatile int batteryMillivolts = 0;
+    private volatile int temperature88 = EddystoneEncoder.TLM_TEMPERATURE_UNKNOWN;
+    private boolean isReceiverRegistered = false;
+
+    private final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onBatteryChanged(intent);
+        }
+    };
+
+    private final Runnable updateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            update();
+            handler.postDelayed(this, periodMillis);
+        }
+    };
+
+    public EddystoneTlmUpdater(@NonNull Context context, @NonNull MultiBeaconAdvertiser multiBeaconAdvertiser,
+                               int uniqueCode, long periodMillis) {
+        this.context = context;
+        this.multiBeaconAdvertiser = multiBeaconAdvertiser;
+        this.uniqueCode = uniqueCode;
+        this.periodMillis = periodMillis;
+        // The interval is expressed in units of 0.625 ms
+        this.advertisingIntervalMillis = Math.max(1,
+                BeaconPayloadCache.getInstance().getAdvertisingSetParameters().getInterval() * 5L / 8);
+    }
+
+    public void start() {
+        MyLog.i(LOG_START, periodMillis);
+        if (!isReceiverRegistered) {
+            // ACTION_BATTERY_CHANGED is sticky, so the last broadcast comes back right away
+            onBatteryChanged(context.registerReceiver(batteryReceiver, batteryChangedFilter));
+            isReceiverRegistered = true;
+        }
+        handler.removeCallbacks(updateRunnable);
+        handler.postDelayed(updateRunnable, periodMillis);
+    }
+
+    public void stop() {
+        MyLog.i(TAG, "stop(): Enter/Exit");
+        handler.removeCallbacks(updateRunnable);
+        if (isReceiverRegistered) {
+            context.unregisterReceiver(batteryReceiver);
+            isReceiverRegistered = false;
+        }
+    }
+
+    private void onBatteryChanged(Intent battery) {
+        if (battery == null) {
+            return;
+        }
+        batteryMillivolts = battery.getIntExtra(BatteryManager.EXTRA_VOLTAGE, 0);
+        temperature88 = battery.hasExtra(BatteryManager.EXTRA_TEMPERATURE)
+                ? EddystoneEncoder.toFixed88(battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0))
+                : EddystoneEncoder.TLM_TEMPERATURE_UNKNOWN;
+    }
+
+    private void update() {
+        long elapsedMillis = SystemClock.elapsedRealtime() - startMillis;
+
+        EddystoneEncoder.updateTlm(frame, 0, batteryMillivolts, temperature88,
+                elapsedMillis / advertisingIntervalMillis, elapsedMillis / 100);
+        if (!multiBeaconAdvertiser.setAdvertiseData(BeaconType.EddystoneTlm, uniqueCode, data)) {
+            MyLog.w(TAG, "update(): The TLM beacon is not on air");
+        }
+    }
+}
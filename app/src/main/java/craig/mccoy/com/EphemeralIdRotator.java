@@ -0,0 +1,152 @@
+package craig.mccoy.com;
+
+import android.bluetooth.le.AdvertiseData;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import craig.mccoy.com.core.BeaconType;
+import craig.mccoy.com.core.EphemeralIdGenerator;
+import craig.mccoy.com.core.EphemeralIdWindow;
+
+/**
+ * Rotates the identifier of one advertised beacon through Eddystone-EID style ephemeral IDs.
+ * The IDs of the coming periods are computed ahead on a background thread, half a window before
+ * they are needed, so each rotation on the main thread is a lookup, a patch of the frame and a
+ * hand-over of the same AdvertiseData to the AdvertisingSet.  Rotations are aligned on the period
+ * boundaries of the wall clock, which the resolver shares.
+ */
+public class EphemeralIdRotator {
+    private static final String TAG = "BLE:EphemeralIdRotator";
+    private static final int LOG_ROTATE = MyLog.format(TAG, "rotate(): Counter {x} -> ID {x}");
+    private static final int LOG_WINDOW_MISS = MyLog.format(TAG, "rotate(): Counter {x} not precomputed, {} misses");
+    private static final int LOG_START = MyLog.format(TAG, "start(): Beacon type {} every {} s");
+    private static final int WINDOW_SIZE = 32;
+    private static final long RETRY_MILLIS = 100;
+
+    private final MultiBeaconAdvertiser multiBeaconAdvertiser;
+    private final BeaconType beaconType;
+    private final int uniqueCode;
+    // Not thread-safe; shared by the main thread and the precompute thread under its own lock
+    private final EphemeralIdGenerator generator;
+    private final byte[] frame;
+    private final AdvertiseData data;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService precomputeExecutor = Executors.newSingleThreadExecutor();
+
+    // Main thread only, apart from nextWindow which the precompute thread publishes
+    private EphemeralIdWindow currentWindow = null;
+    private volatile EphemeralIdWindow nextWindow = null;
+    private boolean isNextWindowRequested = false;
+    private long lastCounter = -1;
+
+    private volatile long rotationCount = 0;
+    private volatile long windowMissCount = 0;
+
+    private final Runnable rotateRunnable = this::rotate;
+
+    /**
+     * @param uniqueCode the code the beacon was added with; the ID replaces it on air only.
+     * @throws IllegalArgumentException if the key or exponent is invalid or the beacon type has no
+     * identifier to rotate.
+     */
+    public EphemeralIdRotator(@NonNull MultiBeaconAdvertiser multiBeaconAdvertiser, @NonNull BeaconType beaconType,
+                              int uniqueCode, @NonNull byte[] identityKey, int rotationExponent) {
+        this.multiBeaconAdvertiser = multiBeaconAdvertiser;
+        this.beaconType = beaconType;
+        this.uniqueCode = uniqueCode;
+        this.generator = new EphemeralIdGenerator(identityKey, rotationExponent);
+        this.frame = BeaconPayloadCache.getInstance().copyTemplateFrame(beaconType);
+        this.data = BeaconPayloadCache.createAdvertiseData(beaconType, frame);
+    }
+
+    public void start() {
+        MyLog.i(LOG_START, beaconType.ordinal(), generator.getPeriodSeconds());
+        handler.removeCallbacks(rotateRunnable);
+        handler.post(rotateRunnable);
+    }
+
+    public void stop() {
+        MyLog.i(TAG, "stop(): " + getReport());
+        handler.removeCallbacks(rotateRunnable);
+        precomputeExecutor.shutdownNow();
+    }
+
+    @NonNull
+    public BeaconType getBeaconType() {
+        return beaconType;
+    }
+
+    public int getUniqueCode() {
+        return uniqueCode;
+    }
+
+    public long getRotationCount() {
+        return rotationCount;
+    }
+
+    public long getWindowMissCount() {
+        return windowMissCount;
+    }
+
+    @NonNull
+    public String getReport() {
+        return "rotations = " + rotationCount + ", window misses = " + windowMissCount;
+    }
+
+    private void rotate() {
+        long nowMillis = System.currentTimeMillis();
+        long counter = generator.quantize(nowMillis / 1000);
+        if (counter != lastCounter) {
+            long id = lookUpId(counter);
+            EphemeralIdGenerator.patch(beaconType, frame, id);
+            MyLog.i(LOG_ROTATE, counter, id);
+        }
+        if (!multiBeaconAdvertiser.setAdvertiseData(beaconType, uniqueCode, data)) {
+            // The AdvertisingSet has not started yet; the frame is already patched
+            handler.postDelayed(rotateRunnable, RETRY_MILLIS);
+            return;
+        }
+        if (counter != lastCounter) {
+            lastCounter = counter;
+            rotationCount++;
+        }
+        long nextBoundaryMillis = (counter + generator.getPeriodSeconds()) * 1000;
+        handler.postDelayed(rotateRunnable, Math.max(1, nextBoundaryMillis - nowMillis));
+    }
+
+    private long lookUpId(long counter) {
+        EphemeralIdWindow window = currentWindow;
+        if (window == null || !window.contains(counter)) {
+            EphemeralIdWindow next = nextWindow;
+            if (next != null && next.contains(counter)) {
+                window = next;
+            } else {
+                // First rotation, a clock jump or a precompute that fell behind
+                if (window != null) {
+                    MyLog.w(LOG_WINDOW_MISS, counter, ++windowMissCount);
+                }
+                synchronized (generator) {
+                    window = generator.computeWindow(counter, WINDOW_SIZE);
+                }
+            }
+            currentWindow = window;
+            nextWindow = null;
+            isNextWindowRequested = false;
+        }
+        if (!isNextWindowRequested && window.indexOf(counter) >= window.size() / 2 && !precomputeExecutor.isShutdown()) {
+            isNextWindowRequested = true;
+            long nextStart = window.getEndCounter();
+            precomputeExecutor.execute(() -> {
+                synchronized (generator) {
+                    nextWindow = generator.computeWindow(nextStart, WINDOW_SIZE);
+                }
+            });
+        }
+        return window.getId(counter);
+    }
+}
@@ -1,6 +1,9 @@
 package craig.mccoy.com;
 
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
@@ -11,22 +14,59 @@ import android.bluetooth.BluetoothAdapter;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.location.LocationManager;
+import android.net.Uri;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.EditText;
 import android.widget.RadioGroup;
 import android.widget.TextView;
 import android.widget.Toast;
+
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import craig.mccoy.com.core.BeaconFleetStore;
+import craig.mccoy.com.core.BeaconFrame;
+import craig.mccoy.com.core.BeaconImporter;
+import craig.mccoy.com.core.BeaconRecord;
+import craig.mccoy.com.core.BeaconType;
 
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "BLE:MainActivity";
     private static final int REQUEST_CODE = 1234;
+    private static final int SCAN_REQUEST_CODE = 1235;
+    // Fine location has to be asked for together with coarse; the scan needs fine
+    private static final String[] SCAN_PERMISSIONS = {
+            Manifest.permission.BLUETOOTH_SCAN,
+            Manifest.permission.ACCESS_FINE_LOCATION,
+            Manifest.permission.ACCESS_COARSE_LOCATION };
+    private static final long SCAN_STATUS_PERIOD_MS = 1000;
+    // Distance filters kept by the scanner; a venue may hold more, the table grows as needed
+    private static final int EXPECTED_BEACONS = 64;
 
     private BleAdvertisingManager bleAdvertisingManager = null;
     private BluetoothReceiver bluetoothReceiver = null;
-    private SharedPreferences sharedPreferences = null;
+    private final Runnable bluetoothOnCallback = () -> {
+        MyLog.i(TAG, "BluetoothReceiver Callback: The local Bluetooth adapter is on and ready for use.");
+        destroyBluetoothReceiver();
+        checkForBleAdvertisingSupported();
+    };
+    private BeaconFleetStore fleetStore = null;
+    private ExecutorService importExecutor = null;
+    private volatile BeaconImporter beaconImporter = null;
+    private final ActivityResultLauncher<String[]> importDocumentLauncher =
+            registerForActivityResult(new ActivityResultContracts.OpenDocument(), this::importBeacons);
+
+    private BleScanner bleScanner = null;
+    // The last beacon heard, written on the scan worker and read by the status refresh
+    private final BeaconFrame lastFrame = new BeaconFrame();
+    private double lastDistanceMeters = 0;
+    private final Runnable scanStatusUpdater = this::updateScanStatus;
 
     private String activityName;
     private EditText editTextInput;
@@ -42,6 +82,7 @@ public class MainActivity extends AppCompatActivity {
 
         beaconTypeRadioGroup = findViewById(R.id.beaconTypeGroupRadio);
         editTextInput = findViewById(R.id.edit_text_input);
+        importExecutor = Executors.newSingleThreadExecutor();
 
         MyLog.i(TAG, "onCreate(): Exit");
     }
@@ -66,15 +107,23 @@ public class MainActivity extends AppCompatActivity {
             text.setText(activityName);
         }
 
-        bleAdvertisingManager = new BleAdvertisingManager();
-        sharedPreferences = getPreferences(MODE_PRIVATE);
+        bleAdvertisingManager = BleAdvertisingManager.getInstance();
+        try {
+            fleetStore = App.getFleetStore();
+        } catch (IOException e) {
+            MyLog.e(TAG, "onStart(): Unable to open the fleet store: " + e);
+        }
 
-        String uniqueCodeString = sharedPreferences.getString(getString(R.string.unique_code_string), "");
-        editTextInput.setText(uniqueCodeString);
+        if (fleetStore != null) {
+            migrateSelection();
+        }
 
-        int checkedBeaconTypeId = sharedPreferences.getInt(getString(R.string.checked_beacon_type_id), R.id.ble1mRadioButton);
+        // Restore the beacon selected last time
+        BeaconRecord activeRecord = new BeaconRecord();
+        boolean hasActive = fleetStore != null && fleetStore.getActive(activeRecord);
+        editTextInput.setText(hasActive ? Integer.toHexString(activeRecord.code).toUpperCase() : "");
         beaconTypeRadioGroup.clearCheck();
-        beaconTypeRadioGroup.check(checkedBeaconTypeId);
+        beaconTypeRadioGroup.check(hasActive ? getRadioButtonId(activeRecord.beaconType) : R.id.ble1mRadioButton);
 
         findViewById(R.id.stop_advertising_button).setEnabled(isBleAdvertisingServiceRunning());
 
@@ -99,15 +148,22 @@ public class MainActivity extends AppCompatActivity {
     protected void onStop() {
         MyLog.i(TAG, "onStop(): Enter " + activityName);
         super.onStop();
+        // The scan is only a check for the user, so it does not outlive the screen
+        stopScanning();
         destroyBluetoothReceiver();
         bleAdvertisingManager = null;
-        sharedPreferences = null;
+        fleetStore = null;
         MyLog.i(TAG, "onStop(): Exit " + activityName);
     }
 
     @Override
     protected void onDestroy() {
         MyLog.i(TAG, "onDestroy(): Enter " + activityName);
+        BeaconImporter importer = beaconImporter;
+        if (importer != null) {
+            importer.cancel();
+        }
+        importExecutor.shutdown();
         if (!isBleAdvertisingServiceRunning()) {
             MyLog.i(TAG, "onDestroy(): destroying Activity while the Service is not running...finishAndRemoveTask()");
             finishAndRemoveTask();
@@ -135,14 +191,162 @@ public class MainActivity extends AppCompatActivity {
         MyLog.i(TAG, "onClickStopAdvertising(): Exit");
     }
 
+    public void onClickScan(@SuppressWarnings("unused") View view) {
+        MyLog.i(TAG, "onClickScan(): Enter");
+        if (bleScanner != null) {
+            stopScanning();
+        } else if (hasScanPermissions()) {
+            startScanning();
+        } else {
+            MyLog.i(TAG, "onClickScan(): Requesting permissions to scan");
+            requestPermissions(SCAN_PERMISSIONS, SCAN_REQUEST_CODE);
+        }
+        MyLog.i(TAG, "onClickScan(): Exit");
+    }
+
+    /**
+     * Scans for the frames this device (or a neighbour) has on air and shows how many were heard
+     * and the last one, refreshed once a second rather than on every frame.
+     */
+    private void startScanning() {
+        // Without location on, the scan starts but the stack hands back no results
+        if (!getSystemService(LocationManager.class).isLocationEnabled()) {
+            MyLog.i(TAG, "startScanning(): Location is off");
+            Toast.makeText(this, R.string.scan_location_disabled, Toast.LENGTH_LONG).show();
+            return;
+        }
+        BleScanner scanner = new BleScanner((frame, rssi, distanceMeters, timestampNanos) -> {
+            synchronized (lastFrame) {
+                lastFrame.copyFrom(frame);
+                lastDistanceMeters = distanceMeters;
+            }
+        }, EXPECTED_BEACONS);
+        if (!scanner.startScanning()) {
+            Toast.makeText(this, R.string.scan_failed, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        bleScanner = scanner;
+        ((TextView) findViewById(R.id.scan_button)).setText(R.string.stop_scanning);
+        updateScanStatus();
+    }
+
+    private boolean hasScanPermissions() {
+        return checkSelfPermission(Manifest.permission.BLUETOOTH_SCAN) == PackageManager.PERMISSION_GRANTED
+                && checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private void stopScanning() {
+        if (bleScanner == null) {
+            return;
+        }
+        bleScanner.stopScanning();
+        bleScanner = null;
+        TextView statusText = findViewById(R.id.scan_status_text);
+        statusText.removeCallbacks(scanStatusUpdater);
+        ((TextView) findViewById(R.id.scan_button)).setText(R.string.start_scanning);
+    }
+
+    private void updateScanStatus() {
+        BleScanner scanner = bleScanner;
+        if (scanner == null) {
+            return;
+        }
+        String status;
+        synchronized (lastFrame) {
+            status = lastFrame.beaconType == null
+                    ? String.format(getString(R.string.scan_status_empty_format), scanner.getBeaconCount())
+                    : String.format(getString(R.string.scan_status_format), scanner.getBeaconCount(),
+                            lastFrame.beaconType, lastFrame.code, lastDistanceMeters);
+        }
+        TextView statusText = findViewById(R.id.scan_status_text);
+        statusText.setText(status);
+        statusText.postDelayed(scanStatusUpdater, SCAN_STATUS_PERIOD_MS);
+    }
+
+    public void onClickImportBeacons(@SuppressWarnings("unused") View view) {
+        MyLog.i(TAG, "onClickImportBeacons(): Enter");
+        if (beaconImporter == null) {
+            importDocumentLauncher.launch(new String[] { "text/*", "application/json" });
+        }
+        MyLog.i(TAG, "onClickImportBeacons(): Exit");
+    }
+
+    /**
+     * Streams the selected CSV or JSON site plan into the fleet store on a background thread,
+     * showing the progress below the buttons.
+     */
+    private void importBeacons(@Nullable Uri uri) {
+        if (uri == null || fleetStore == null) {
+            return;
+        }
+        MyLog.i(TAG, "importBeacons(): " + uri);
+        BeaconFleetStore store = fleetStore;
+        TextView statusText = findViewById(R.id.import_status_text);
+        BeaconImporter importer = new BeaconImporter(store, BeaconPayloadCache.getInstance().getUuid(),
+                BeaconImporter.DEFAULT_BATCH_SIZE);
+        importer.setProgressListener((rowsImported, rowsRejected, bytesRead, rowsPerSecond) ->
+                runOnUiThread(() -> statusText.setText(String.format(getString(R.string.import_progress_format),
+                        rowsImported, rowsRejected, rowsPerSecond))));
+        beaconImporter = importer;
+        findViewById(R.id.import_beacons_button).setEnabled(false);
+        importExecutor.execute(() -> {
+            String status;
+            try (InputStream inputStream = getContentResolver().openInputStream(uri)) {
+                if (inputStream == null) {
+                    throw new IOException("Unable to open " + uri);
+                }
+                BeaconImporter.Result result = importer.importFrom(inputStream);
+                store.force();
+                MyLog.i(TAG, "importBeacons(): " + result);
+                for (String error : result.errors) {
+                    MyLog.w(TAG, "importBeacons(): " + error);
+                }
+                status = String.format(getString(R.string.import_finished_format), result);
+            } catch (IOException | IllegalStateException e) {
+                MyLog.e(TAG, "importBeacons(): " + e);
+                status = String.format(getString(R.string.import_failed_format), e.getMessage());
+            }
+            final String finalStatus = status;
+            runOnUiThread(() -> {
+                beaconImporter = null;
+                statusText.setText(finalStatus);
+                findViewById(R.id.import_beacons_button).setEnabled(true);
+            });
+        });
+    }
+
     public void startBleAdvertising() {
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-        editor.putString(getString(R.string.unique_code_string), editTextInput.getText().toString());
-        editor.putInt(getString(R.string.checked_beacon_type_id), beaconTypeRadioGroup.getCheckedRadioButtonId());
-        editor.apply();
+        if (fleetStore != null) {
+            // Only the header; the fleet records are the imported site definitions
+            fleetStore.setActive(getBeaconType(), getUniqueCode());
+        }
         checkForBleSupported();
     }
 
+    /**
+     * Moves the selection earlier versions kept in the shared preferences into the fleet store,
+     * then drops the preferences so it only happens once.
+     */
+    private void migrateSelection() {
+        SharedPreferences preferences = getPreferences(MODE_PRIVATE);
+        String uniqueCodeKey = getString(R.string.unique_code_string);
+        String beaconTypeKey = getString(R.string.checked_beacon_type_id);
+        if (!preferences.contains(uniqueCodeKey) && !preferences.contains(beaconTypeKey)) {
+            return;
+        }
+        if (!fleetStore.getActive(new BeaconRecord())) {
+            String uniqueCodeString = preferences.getString(uniqueCodeKey, "");
+            BeaconType beaconType = getBeaconType(preferences.getInt(beaconTypeKey, R.id.ble1mRadioButton));
+            try {
+                fleetStore.setActive(beaconType, uniqueCodeString.isEmpty() ? 0 : Integer.parseUnsignedInt(uniqueCodeString, 16));
+                MyLog.i(TAG, "migrateSelection(): " + beaconType + " " + uniqueCodeString);
+            } catch (NumberFormatException e) {
+                MyLog.e(TAG, "migrateSelection(): " + e.getMessage());
+            }
+        }
+        preferences.edit().remove(uniqueCodeKey).remove(beaconTypeKey).apply();
+    }
+
     public void stopBleAdvertising() {
         stopAdvertisingService();
     }
@@ -197,6 +401,15 @@ public class MainActivity extends AppCompatActivity {
             } else {
                 Toast.makeText(this, R.string.required_permissions_not_granted, Toast.LENGTH_LONG).show();
             }
+        } else if (requestCode == SCAN_REQUEST_CODE) {
+            // Approximate location alone is not enough, so check what was actually granted
+            if (hasScanPermissions()) {
+                startScanning();
+            } else {
+                MyLog.i(TAG, "Permission Denied: " + Manifest.permission.BLUETOOTH_SCAN + " or "
+                        + Manifest.permission.ACCESS_FINE_LOCATION);
+                Toast.makeText(this, R.string.scan_permission_not_granted, Toast.LENGTH_LONG).show();
+            }
         } else {
             super.onRequestPermissionsResult(requestCode, permissions, grantResults);
         }
@@ -211,11 +424,7 @@ public class MainActivity extends AppCompatActivity {
         } else {
             // Bluetooth not enabled, so attempt to enable it and wait for the BT adapter to signal is it ready for use
             bluetoothReceiver = new BluetoothReceiver(this);
-            bluetoothReceiver.registerBluetoothStateChanged(BluetoothAdapter.STATE_ON, () -> {
-                MyLog.i(TAG, "BluetoothReceiver Callback: The local Bluetooth adapter is on and ready for use.");
-                destroyBluetoothReceiver();
-                checkForBleAdvertisingSupported();
-            });
+            bluetoothReceiver.registerBluetoothStateChanged(BluetoothAdapter.STATE_ON, bluetoothOnCallback);
             // The following should cause the callback from the previous statement to be executed when the BT adapter is ready
             bleAdvertisingManager.enableBluetooth();
             MyLog.w(TAG, "okToStartAdvertising(): Attempting to enable the bluetooth adapter...wait for it to finish enabling");
@@ -240,10 +449,9 @@ public class MainActivity extends AppCompatActivity {
     private void startAdvertisingService() {
         MyLog.i(TAG, "startAdvertisingService(): Enter");
 
-        // Stop any previously started BLE Advertising Service
-        stopAdvertisingService();
-
-        // Start the service as a Foreground Service so the system won't kill it after 15 minutes
+        // A running service replaces its beacon in place, and the service merges repeated taps,
+        // so there is no need to stop it first.  Started as a Foreground Service so the system
+        // won't kill it after 15 minutes.
         App.serviceIntent = getServiceIntent();
         ContextCompat.startForegroundService(this, App.serviceIntent);
 
@@ -256,26 +464,67 @@ public class MainActivity extends AppCompatActivity {
         MyLog.i(TAG, "startAdvertisingService(): Exit");
     }
 
-    @SuppressLint("NonConstantResourceId")
     private Intent getServiceIntent() {
         Intent  intent = new Intent(this, BleAdvertisingService.class);
-        int beaconTypeID = beaconTypeRadioGroup.getCheckedRadioButtonId();
-        switch (beaconTypeID) {
+        BeaconType beaconType = getBeaconType();
+        intent.putExtra(getString(R.string.beacon_type), beaconType.name());
+        if (hasUniqueCode(beaconType)) {
+            intent.putExtra(getString(R.string.unique_code), getUniqueCode());
+        }
+        return intent;
+    }
+
+    private BeaconType getBeaconType() {
+        return getBeaconType(beaconTypeRadioGroup.getCheckedRadioButtonId());
+    }
+
+    @SuppressLint("NonConstantResourceId")
+    private static BeaconType getBeaconType(int radioButtonId) {
+        switch (radioButtonId) {
             case R.id.altBeaconRadioButton:
-                intent.putExtra(getString(R.string.beacon_type), BeaconType.AltBeacon.name());
-                String input = editTextInput.getText().toString();
-                int uniqueCode = input.isEmpty() ? 0 : Integer.parseUnsignedInt(input, 16);
-                intent.putExtra(getString(R.string.unique_code), uniqueCode);
-                break;
+                return BeaconType.AltBeacon;
             case R.id.iBeaconRadioButton:
-                intent.putExtra(getString(R.string.beacon_type), BeaconType.IBeacon.name());
-                break;
+                return BeaconType.IBeacon;
+            case R.id.ble2mRadioButton:
+                return BeaconType.Ble2MBeacon;
+            case R.id.bleCodedRadioButton:
+                return BeaconType.BleCodedBeacon;
             case R.id.ble1mRadioButton:
             default:
-                intent.putExtra(getString(R.string.beacon_type), BeaconType.Ble1MBeacon.name());
-                break;
+                return BeaconType.Ble1MBeacon;
         }
-        return intent;
+    }
+
+    private int getRadioButtonId(@Nullable BeaconType beaconType) {
+        if (beaconType == null) {
+            return R.id.ble1mRadioButton;
+        }
+        switch (beaconType) {
+            case AltBeacon:
+                return R.id.altBeaconRadioButton;
+            case IBeacon:
+                return R.id.iBeaconRadioButton;
+            case Ble2MBeacon:
+                return R.id.ble2mRadioButton;
+            case BleCodedBeacon:
+                return R.id.bleCodedRadioButton;
+            case Ble1MBeacon:
+            default:
+                return R.id.ble1mRadioButton;
+        }
+    }
+
+    /**
+     * The extended beacons carry an AltBeacon frame, so they take a unique code too.
+     */
+    private static boolean hasUniqueCode(@NonNull BeaconType beaconType) {
+        return beaconType == BeaconType.AltBeacon || beaconType == BeaconType.Ble2MBeacon
+                || beaconType == BeaconType.BleCodedBeacon;
+    }
+
+    private int getUniqueCode() {
+        String input = editTextInput.getText().toString();
+        return input.isEmpty() ? 0 : Integer.parseUnsignedInt(input, 16);
     }
 
     private void stopAdvertisingService() {
@@ -297,7 +546,7 @@ public class MainActivity extends AppCompatActivity {
     private void destroyBluetoothReceiver() {
         synchronized (this) {
             if (bluetoothReceiver != null) {
-                bluetoothReceiver.unregisterBluetoothStateChanged(BluetoothAdapter.STATE_ON);
+                bluetoothReceiver.unregisterBluetoothStateChanged(BluetoothAdapter.STATE_ON, bluetoothOnCallback);
                 bluetoothReceiver = null;
             }
         }
@@ -310,7 +559,7 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void setTextInputEnabled() {
-        boolean isTextInputEnabled= beaconTypeRadioGroup.getCheckedRadioButtonId() == R.id.altBeaconRadioButton;
+        boolean isTextInputEnabled = hasUniqueCode(getBeaconType());
         MyLog.i(TAG, "setTextInputEnabled(): isTextInputEnabled = " + isTextInputEnabled);
         editTextInput.setEnabled(isTextInputEnabled);
     }
@@ -0,0 +1,258 @@
+package craig.mccoy.com;
+
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+import craig.mccoy.com.core.AdvertiserBackend;
+import craig.mccoy.com.core.AdvertisingEngine;
+import craig.mccoy.com.core.AdvertisingWatchdog;
+import craig.mccoy.com.core.BeaconType;
+
+/**
+ * Advertises several beacons at once by opening one AdvertisingSet per active beacon.
+ * The bookkeeping lives in the AdvertisingEngine of beacon-core, which drives the
+ * BluetoothLeAdvertiser through an AndroidAdvertiserBackend; this class feeds it the cached
+ * payloads and reports its results to the log, the AdvertisingTelemetry and the AdvertisingWatchdog.
+ * It is assumed the caller has already verified and/or obtained the Manifest.permission.BLUETOOTH_ADVERTISE
+ * permission.  Otherwise, the methods of this class will throw a permission denied exceptions.
+ */
+public class MultiBeaconAdvertiser {
+    private static final String TAG = "BLE:MultiBeaconAdvertiser";
+    private static final int LOG_ADD_ENTER = MyLog.format(TAG, "addBeacon({}, {x}): Enter");
+    private static final int LOG_ADD_REFUSED = MyLog.format(TAG, "addBeacon(): Already advertising or the limit of {} advertising sets reached");
+    private static final int LOG_ADD_EXIT = MyLog.format(TAG, "addBeacon(): Exit");
+    private static final int LOG_REMOVE_ENTER = MyLog.format(TAG, "removeBeacon({}, {x}): Enter");
+    private static final int LOG_REMOVE_NOT_ADVERTISING = MyLog.format(TAG, "removeBeacon(): Not advertising");
+    private static final int LOG_REMOVE_EXIT = MyLog.format(TAG, "removeBeacon(): Exit");
+    private static final int LOG_REMOVE_ALL = MyLog.format(TAG, "removeAllBeacons(): Stopping {} beacon(s)");
+    private static final int LOG_UPDATE_ENTER = MyLog.format(TAG, "updateUniqueCode({}, {x} -> {x}): Enter");
+    private static final int LOG_UPDATE_NOT_ADVERTISING = MyLog.format(TAG, "updateUniqueCode(): Not advertising");
+    private static final int LOG_UPDATE_EXIT = MyLog.format(TAG, "updateUniqueCode(): Exit");
+    private static final int LOG_STARTED = MyLog.format(TAG, "onAdvertisingSetStarted(): {} {x} is on air");
+    private static final int LOG_START_FAILED = MyLog.format(TAG, "onAdvertisingSetStarted(): {} {x} failed with {}");
+    private static final int LOG_LIMIT_LOWERED = MyLog.format(TAG, "onAdvertisingSetStarted(): Controller limit lowered to {}");
+    private static final int LOG_STOPPED = MyLog.format(TAG, "onAdvertisingSetStopped(): {} {x}");
+    private static final int LOG_LOST = MyLog.format(TAG, "onAdvertisingSetStopped(): {} {x} was stopped by the stack");
+    private static final int LOG_DATA_SET_FAILED = MyLog.format(TAG, "onAdvertisingDataSet(): {} failed with {}");
+    private static final int LOG_SWAP = MyLog.format(TAG, "onAdvertisingDataSet(): Swap took {} us");
+    private static final int LOG_SWAP_SLOW = MyLog.format(TAG, "onAdvertisingDataSet(): Swap took {} us, over half an advertising interval");
+
+    private final AdvertisingTelemetry telemetry = AdvertisingTelemetry.getInstance();
+    private final AdvertisingEngine<AdvertiseData> engine;
+    @Nullable
+    private final AdvertisingWatchdog watchdog;
+
+    // A swap should land well inside one advertising interval
+    private final long swapGapLimitNanos;
+
+    private final AdvertisingEngine.Listener engineListener = new AdvertisingEngine.Listener() {
+        @Override
+        public void onStartRequested(BeaconType beaconType, int uniqueCode) {
+            telemetry.onStartRequested();
+            if (watchdog != null) {
+                watchdog.onStartRequested(beaconType, uniqueCode, System.nanoTime());
+            }
+        }
+
+        @Override
+        public void onStarted(BeaconType beaconType, int uniqueCode, long requestedNanos) {
+            telemetry.onStartSucceeded(requestedNanos);
+            if (watchdog != null) {
+                watchdog.onStarted(beaconType, uniqueCode, System.nanoTime());
+            }
+            MyLog.i(LOG_STARTED, beaconType.ordinal(), uniqueCode & 0xFFFFFFFFL);
+        }
+
+        @Override
+        public void onStartFailed(BeaconType beaconType, int uniqueCode, int status, long requestedNanos) {
+            telemetry.onStartFailed(requestedNanos, status);
+            if (watchdog != null) {
+                watchdog.onStartFailed(beaconType, uniqueCode, status, System.nanoTime());
+            }
+            MyLog.e(LOG_START_FAILED, beaconType.ordinal(), uniqueCode & 0xFFFFFFFFL, status);
+        }
+
+        @Override
+        public void onStopRequested(BeaconType beaconType, int uniqueCode) {
+            telemetry.onStopRequested();
+            if (watchdog != null) {
+                watchdog.onStopRequested(beaconType, uniqueCode);
+            }
+        }
+
+        @Override
+        public void onStopped(BeaconType beaconType, int uniqueCode, long requestedNanos) {
+            MyLog.i(LOG_STOPPED, beaconType.ordinal(), uniqueCode & 0xFFFFFFFFL);
+            telemetry.onStopped(requestedNanos);
+        }
+
+        @Override
+        public void onDataSet(BeaconType beaconType, int uniqueCode, int status, long requestedNanos) {
+            if (status != AdvertiserBackend.SUCCESS) {
+                MyLog.e(LOG_DATA_SET_FAILED, beaconType.ordinal(), status);
+                telemetry.onDataSetFailed();
+                return;
+            }
+            telemetry.onDataSet(requestedNanos);
+            long gapNanos = System.nanoTime() - requestedNanos;
+            if (gapNanos > swapGapLimitNanos) {
+                MyLog.w(LOG_SWAP_SLOW, TimeUnit.NANOSECONDS.toMicros(gapNanos));
+            } else {
+                MyLog.i(LOG_SWAP, TimeUnit.NANOSECONDS.toMicros(gapNanos));
+            }
+        }
+
+        @Override
+        public void onUniqueCodeChanged(BeaconType beaconType, int previousCode, int uniqueCode) {
+            if (watchdog != null) {
+                watchdog.onUniqueCodeChanged(beaconType, previousCode, uniqueCode);
+            }
+        }
+
+        @Override
+        public void onLost(BeaconType beaconType, int uniqueCode) {
+            MyLog.e(LOG_LOST, beaconType.ordinal(), uniqueCode & 0xFFFFFFFFL);
+            telemetry.onLost();
+            if (watchdog != null) {
+                watchdog.onLost(beaconType, uniqueCode, System.nanoTime());
+            }
+        }
+
+        @Override
+        public void onLimitLowered(int maxAdvertisingSets) {
+            MyLog.w(LOG_LIMIT_LOWERED, maxAdvertisingSets);
+        }
+    };
+
+    public MultiBeaconAdvertiser(@NonNull BluetoothLeAdvertiser bluetoothLeAdvertiser, int maxAdvertisingSets) {
+        this(bluetoothLeAdvertiser, maxAdvertisingSets, null);
+    }
+
+    /**
+     * @param watchdog told about every start, stop and loss, so it can bring lost beacons back.
+     */
+    public MultiBeaconAdvertiser(@NonNull BluetoothLeAdvertiser bluetoothLeAdvertiser, int maxAdvertisingSets,
+                                 @Nullable AdvertisingWatchdog watchdog) {
+        this.watchdog = watchdog;
+        BeaconPayloadCache payloadCache = BeaconPayloadCache.getInstance();
+        // The interval is expressed in units of 0.625 ms
+        int interval = payloadCache.getAdvertisingSetParameters().getInterval();
+        this.swapGapLimitNanos = TimeUnit.MICROSECONDS.toNanos(interval * 625L) / 2;
+        this.engine = new AdvertisingEngine<>(
+                new AndroidAdvertiserBackend(bluetoothLeAdvertiser),
+                (beaconType, uniqueCode) -> BeaconPayloadCache.getInstance().getAdvertiseData(beaconType, uniqueCode),
+                maxAdvertisingSets, engineListener);
+    }
+
+    @NonNull
+    AdvertisingEngine<AdvertiseData> getEngine() {
+        return engine;
+    }
+
+    /**
+     * Starts advertising the given beacon in its own AdvertisingSet.
+     * @return false if the beacon is already advertised or the controller limit has been reached.
+     */
+    public boolean addBeacon(@NonNull BeaconType beaconType, int uniqueCode) {
+        MyLog.i(LOG_ADD_ENTER, beaconType.ordinal(), uniqueCode & 0xFFFFFFFFL);
+        if (!engine.addBeacon(beaconType, uniqueCode)) {
+            MyLog.w(LOG_ADD_REFUSED, engine.getMaxAdvertisingSets());
+            return false;
+        }
+        MyLog.i(LOG_ADD_EXIT);
+        return true;
+    }
+
+    /**
+     * Stops advertising the given beacon, leaving the other beacons on air.
+     * @return false if the beacon was not being advertised.
+     */
+    public boolean removeBeacon(@NonNull BeaconType beaconType, int uniqueCode) {
+        MyLog.i(LOG_REMOVE_ENTER, beaconType.ordinal(), uniqueCode & 0xFFFFFFFFL);
+        if (!engine.removeBeacon(beaconType, uniqueCode)) {
+            MyLog.w(LOG_REMOVE_NOT_ADVERTISING);
+            return false;
+        }
+        MyLog.i(LOG_REMOVE_EXIT);
+        return true;
+    }
+
+    public void removeAllBeacons() {
+        MyLog.i(LOG_REMOVE_ALL, engine.getBeaconCount());
+        engine.removeAllBeacons();
+    }
+
+    /**
+     * Replaces the unique code of a running beacon in place with AdvertisingSet.setAdvertisingData,
+     * so scanners keep seeing the beacon while the payload changes.  If the AdvertisingSet has not
+     * been started yet, the beacon is removed and added again instead.
+     * @return false if the beacon with the previous code is not being advertised.
+     */
+    public boolean updateUniqueCode(@NonNull BeaconType beaconType, int previousCode, int uniqueCode) {
+        return updateUniqueCode(beaconType, previousCode, uniqueCode, null);
+    }
+
+    /**
+     * Same as {@link #updateUniqueCode(BeaconType, int, int)}, using an already encoded payload
+     * for the new code when one is given.
+     */
+    public boolean updateUniqueCode(@NonNull BeaconType beaconType, int previousCode, int uniqueCode,
+                                    @Nullable AdvertiseData data) {
+        MyLog.i(LOG_UPDATE_ENTER, beaconType.ordinal(), previousCode & 0xFFFFFFFFL, uniqueCode & 0xFFFFFFFFL);
+        if (!engine.updateUniqueCode(beaconType, previousCode, uniqueCode, data)) {
+            MyLog.w(LOG_UPDATE_NOT_ADVERTISING);
+            return false;
+        }
+        MyLog.i(LOG_UPDATE_EXIT);
+        return true;
+    }
+
+    /**
+     * Hands new advertising data to a running beacon, e.g. a refreshed telemetry frame.
+     * @return false if the beacon is not on air yet.
+     */
+    public boolean setAdvertiseData(@NonNull BeaconType beaconType, int uniqueCode, @NonNull AdvertiseData data) {
+        return engine.setData(beaconType, uniqueCode, data);
+    }
+
+    /**
+     * @return the unique code of the first advertised beacon of the given type, or null if none.
+     */
+    @Nullable
+    public Integer findUniqueCode(@NonNull BeaconType beaconType) {
+        return engine.findUniqueCode(beaconType);
+    }
+
+    /**
+     * @return one BeaconCommand.OP_ADD entry per beacon, enough to add them all again later.
+     */
+    @NonNull
+    public long[] getBeaconCommands() {
+        return engine.getBeaconCommands();
+    }
+
+    public long getLastSwapGapNanos() {
+        return engine.getLastSwapGapNanos();
+    }
+
+    public long getMaxSwapGapNanos() {
+        return engine.getMaxSwapGapNanos();
+    }
+
+    public long getSwapCount() {
+        return engine.getSwapCount();
+    }
+
+    public int getBeaconCount() {
+        return engine.getBeaconCount();
+    }
+
+    public boolean isAdvertising(@NonNull BeaconType beaconType, int uniqueCode) {
+        return engine.isAdvertising(beaconType, uniqueCode);
+    }
+}
@@ -2,9 +2,24 @@ package craig.mccoy.com;
 
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+
+import craig.mccoy.com.core.BinaryRingLog;
+
+/**
+ * Logs to Logcat on debug builds.  The parameterized methods, which take a format registered
+ * with {@link #format} and up to three long arguments, also write a binary record into an in-memory
+ * ring that is kept on release builds and can be dumped to a file on request.  They never build
+ * a string unless Logcat logging is on, so they are cheap enough for the hot paths.
+ */
 public class MyLog {
 
     private static final boolean LOGGING = BuildConfig.DEBUG;
+    private static final int RING_CAPACITY = 8192;
+
+    private static final BinaryRingLog ringLog = new BinaryRingLog(RING_CAPACITY);
+    private static volatile boolean ringLogging = true;
 
     public static void i(String tag, String message) {
         if (LOGGING) {
@@ -23,4 +38,90 @@ public class MyLog {
             Log.e(tag, message);
         }
     }
+
+    /**
+     * Registers a message format; "{}" is replaced by an argument in decimal and "{x}" in hexadecimal.
+     * Keep the returned id in a static final field.
+     */
+    public static int format(String tag, String pattern) {
+        return BinaryRingLog.registerFormat(tag, pattern);
+    }
+
+    public static void i(int format) {
+        log(BinaryRingLog.LEVEL_INFO, format, 0, 0, 0, 0);
+    }
+
+    public static void i(int format, long arg0) {
+        log(BinaryRingLog.LEVEL_INFO, format, 1, arg0, 0, 0);
+    }
+
+    public static void i(int format, long arg0, long arg1) {
+        log(BinaryRingLog.LEVEL_INFO, format, 2, arg0, arg1, 0);
+    }
+
+    public static void i(int format, long arg0, long arg1, long arg2) {
+        log(BinaryRingLog.LEVEL_INFO, format, 3, arg0, arg1, arg2);
+    }
+
+    public static void w(int format) {
+        log(BinaryRingLog.LEVEL_WARN, format, 0, 0, 0, 0);
+    }
+
+    public static void w(int format, long arg0) {
+        log(BinaryRingLog.LEVEL_WARN, format, 1, arg0, 0, 0);
+    }
+
+    public static void w(int format, long arg0, long arg1) {
+        log(BinaryRingLog.LEVEL_WARN, format, 2, arg0, arg1, 0);
+    }
+
+    public static void w(int format, long arg0, long arg1, long arg2) {
+        log(BinaryRingLog.LEVEL_WARN, format, 3, arg0, arg1, arg2);
+    }
+
+    public static void e(int format) {
+        log(BinaryRingLog.LEVEL_ERROR, format, 0, 0, 0, 0);
+    }
+
+    public static void e(int format, long arg0) {
+        log(BinaryRingLog.LEVEL_ERROR, format, 1, arg0, 0, 0);
+    }
+
+    public static void e(int format, long arg0, long arg1) {
+        log(BinaryRingLog.LEVEL_ERROR, format, 2, arg0, arg1, 0);
+    }
+
+    public static void e(int format, long arg0, long arg1, long arg2) {
+        log(BinaryRingLog.LEVEL_ERROR, format, 3, arg0, arg1, arg2);
+    }
+
+    public static void setRingLoggingEnabled(boolean enabled) {
+        ringLogging = enabled;
+    }
+
+    /**
+     * Writes the ring to a memory-mapped file (see BinaryRingLog.dump for the layout).
+     * @return the number of records written.
+     */
+    public static int dump(File file) throws IOException {
+        return ringLog.dump(file);
+    }
+
+    /**
+     * Formats the ring as text, oldest record first.
+     */
+    public static void dump(Appendable out) throws IOException {
+        ringLog.format(out);
+    }
+
+    private static void log(int level, int format, int argCount, long arg0, long arg1, long arg2) {
+        if (ringLogging) {
+            ringLog.log(level, format, argCount, arg0, arg1, arg2);
+        }
+        if (LOGGING) {
+            // The BinaryRingLog levels match the Log priorities
+            Log.println(level, BinaryRingLog.getTag(format),
+                    BinaryRingLog.formatMessage(format, argCount, arg0, arg1, arg2));
+        }
+    }
 }
@@ -0,0 +1,241 @@
+package craig.mccoy.com;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.bluetooth.le.PeriodicAdvertisingParameters;
+import android.os.ParcelUuid;
+
+import androidx.annotation.NonNull;
+
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import craig.mccoy.com.core.AdvertisingPhy;
+import craig.mccoy.com.core.BroadcastChunker;
+
+/**
+ * Broadcasts a data set of a few KB to any number of receivers over a periodic advertising train,
+ * without connections.  The data set is split into frames by BroadcastChunker, each carried as
+ * service data of the app UUID, and the periodic data is switched to the next frame once per
+ * periodic advertising event, cycling through all of them until stopped.  Receivers rebuild the
+ * data set with BroadcastReassembler.
+ * The throughput is measured from the confirmed frame updates: data set bytes per full cycle.
+ * It is assumed the caller has already verified and/or obtained the Manifest.permission.BLUETOOTH_ADVERTISE
+ * permission.  Otherwise, the methods of this class will throw a permission denied exceptions.
+ */
+public class PeriodicBroadcaster {
+
+    public interface Listener {
+        /**
+         * Called on a binder thread when the controller refused to start the advertising set; the
+         * broadcaster sends nothing until it is stopped and started again.
+         */
+        void onStartFailed(PeriodicBroadcaster broadcaster, int status);
+    }
+
+    private static final String TAG = "BLE:PeriodicBroadcaster";
+    private static final int LOG_CYCLE = MyLog.format(TAG, "onPeriodicAdvertisingDataSet(): Cycle {} in {} ms, {} bytes/s");
+    private static final int LOG_DATA_SET_FAILED = MyLog.format(TAG, "onPeriodicAdvertisingDataSet(): Frame {} failed with {}");
+    private static final int LOG_START_FAILED = MyLog.format(TAG, "onAdvertisingSetStarted(): Failed with {}");
+    private static final int LOG_STARTED = MyLog.format(TAG, "onAdvertisingSetStarted(): Broadcasting {} bytes in {} frames");
+    private static final int LOG_CREATED = MyLog.format(TAG, "Constructor(): {} bytes, transfer {}, {} frames");
+    private static final int LOG_EXPECTED_RATE = MyLog.format(TAG, "Constructor(): Expected {} bytes/s");
+
+    // Service data AD structure: length, type and the 128-bit UUID
+    private static final int AD_HEADER_LENGTH = 2 + 16;
+    // The periodic advertising interval is expressed in units of 1.25 ms, from 7.5 ms up
+    private static final int MIN_PERIODIC_INTERVAL = 6;
+
+    private final BluetoothLeAdvertiser bluetoothLeAdvertiser;
+    private final ParcelUuid serviceUuid;
+    private final int payloadLength;
+    private final int transferId;
+    private final AdvertiseData[] frames;
+    private final long eventIntervalNanos;
+    private final int periodicInterval;
+    private final Listener listener;
+
+    private ScheduledExecutorService ticker = null;
+    private volatile AdvertisingSet advertisingSet = null;
+    // Only touched on the binder thread of the callback and the ticker, one at a time via isUpdatePending
+    private volatile boolean isUpdatePending = false;
+    private int nextFrame = 0;
+    private volatile long frameCount = 0;
+    private volatile long skippedEvents = 0;
+    private volatile long cycleCount = 0;
+    private long cycleStartNanos = 0;
+    private volatile double bytesPerSecond = 0;
+
+    private final AdvertisingSetCallback callback = new AdvertisingSetCallback() {
+        @Override
+        public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower, int status) {
+            if (status != ADVERTISE_SUCCESS) {
+                MyLog.e(LOG_START_FAILED, status);
+                listener.onStartFailed(PeriodicBroadcaster.this, status);
+                return;
+            }
+            MyLog.i(LOG_STARTED, payloadLength, frames.length);
+            // The first frame went out with the start
+            nextFrame = 1 % frames.length;
+            cycleStartNanos = System.nanoTime();
+            PeriodicBroadcaster.this.advertisingSet = advertisingSet;
+        }
+
+        @Override
+        public void onPeriodicAdvertisingDataSet(AdvertisingSet advertisingSet, int status) {
+            isUpdatePending = false;
+            if (status != ADVERTISE_SUCCESS) {
+                MyLog.e(LOG_DATA_SET_FAILED, nextFrame, status);
+                return;
+            }
+            frameCount++;
+            nextFrame = (nextFrame + 1) % frames.length;
+            if (nextFrame == 0) {
+                onCycleCompleted();
+            }
+        }
+
+        @Override
+        public void onAdvertisingSetStopped(AdvertisingSet advertisingSet) {
+            MyLog.i(TAG, "onAdvertisingSetStopped(): " + getReport());
+        }
+    };
+
+    /**
+     * @param maxDataLength the most extended advertising data the controller takes
+     *                      (BleAdvertisingManager.getMaxAdvertisingDataLength).
+     */
+    public PeriodicBroadcaster(@NonNull BluetoothLeAdvertiser bluetoothLeAdvertiser, @NonNull UUID serviceUuid,
+                               @NonNull byte[] payload, long eventIntervalMillis, int maxDataLength,
+                               @NonNull Listener listener) {
+        this.bluetoothLeAdvertiser = bluetoothLeAdvertiser;
+        this.listener = listener;
+        this.serviceUuid = new ParcelUuid(serviceUuid);
+        this.payloadLength = payload.length;
+        this.periodicInterval = Math.max(MIN_PERIODIC_INTERVAL, (int) (eventIntervalMillis * 4 / 5));
+        this.eventIntervalNanos = TimeUnit.MICROSECONDS.toNanos(periodicInterval * 1250L);
+        // The same data set keeps its transfer id, so a restart does not make receivers start over
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        this.transferId = (int) crc.getValue() & 0xFFFF;
+
+        // Keep each frame within one AUX_SYNC_IND, which every extended controller takes
+        int maxFrameLength = Math.min(maxDataLength, AdvertisingPhy.EXTENDED_MIN_DATA_LENGTH) - AD_HEADER_LENGTH;
+        byte[][] chunks = BroadcastChunker.split(payload, transferId, maxFrameLength);
+        frames = new AdvertiseData[chunks.length];
+        for (int i = 0; i < chunks.length; i++) {
+            frames[i] = new AdvertiseData.Builder().addServiceData(this.serviceUuid, chunks[i]).build();
+        }
+        MyLog.i(LOG_CREATED, payload.length, transferId, frames.length);
+        MyLog.i(LOG_EXPECTED_RATE, (long) getExpectedBytesPerSecond());
+    }
+
+    @SuppressLint("MissingPermission")
+    public synchronized void start(boolean isLe2MSupported) {
+        MyLog.i(TAG, "start(): Enter");
+        if (ticker != null) {
+            return;
+        }
+        // Periodic advertising needs a non-connectable, non-scannable extended set
+        AdvertisingSetParameters parameters = new AdvertisingSetParameters.Builder()
+                .setLegacyMode(false)
+                .setConnectable(false)
+                .setScannable(false)
+                .setPrimaryPhy(BluetoothDevice.PHY_LE_1M)
+                .setSecondaryPhy(isLe2MSupported ? BluetoothDevice.PHY_LE_2M : BluetoothDevice.PHY_LE_1M)
+                .setInterval(AdvertisingSetParameters.INTERVAL_MEDIUM)
+                .setTxPowerLevel(AdvertisingSetParameters.TX_POWER_MEDIUM)
+                .build();
+        PeriodicAdvertisingParameters periodicParameters = new PeriodicAdvertisingParameters.Builder()
+                .setInterval(periodicInterval)
+                .setIncludeTxPower(false)
+                .build();
+        // The extended advertisements only point scanners at the train
+        AdvertiseData data = new AdvertiseData.Builder().addServiceUuid(serviceUuid).build();
+        bluetoothLeAdvertiser.startAdvertisingSet(parameters, data, null, periodicParameters, frames[0], callback);
+
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "PeriodicBroadcast"));
+        ticker.scheduleAtFixedRate(this::onEvent, eventIntervalNanos, eventIntervalNanos, TimeUnit.NANOSECONDS);
+        MyLog.i(TAG, "start(): Exit");
+    }
+
+    @SuppressLint("MissingPermission")
+    public synchronized void stop() {
+        MyLog.i(TAG, "stop(): Enter");
+        if (ticker != null) {
+            ticker.shutdownNow();
+            ticker = null;
+            bluetoothLeAdvertiser.stopAdvertisingSet(callback);
+            advertisingSet = null;
+        }
+        MyLog.i(TAG, "stop(): Exit");
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    public int getFrameCount() {
+        return frames.length;
+    }
+
+    public long getCycleCount() {
+        return cycleCount;
+    }
+
+    /**
+     * @return the data set bytes per second measured over the last full cycle, 0 until one completes.
+     */
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return the throughput with one frame per periodic advertising event.
+     */
+    public double getExpectedBytesPerSecond() {
+        return BroadcastChunker.getBytesPerSecond(payloadLength, frames.length, eventIntervalNanos);
+    }
+
+    @NonNull
+    public String getReport() {
+        return "transfer = " + transferId + ", frames sent = " + frameCount + ", cycles = " + cycleCount
+                + ", skipped events = " + skippedEvents + ", bytes/s measured/expected = " + (long) bytesPerSecond
+                + "/" + (long) getExpectedBytesPerSecond();
+    }
+
+    /**
+     * Hands the next frame to the controller once per event.  If the previous update has not been
+     * confirmed yet, the event is skipped rather than queueing updates behind it.
+     */
+    @SuppressLint("MissingPermission")
+    private void onEvent() {
+        AdvertisingSet set = advertisingSet;
+        if (set == null || frames.length == 1) {
+            return;
+        }
+        if (isUpdatePending) {
+            skippedEvents++;
+            return;
+        }
+        isUpdatePending = true;
+        set.setPeriodicAdvertisingData(frames[nextFrame]);
+    }
+
+    private void onCycleCompleted() {
+        long now = System.nanoTime();
+        long cycleNanos = now - cycleStartNanos;
+        cycleStartNanos = now;
+        long cycles = ++cycleCount;
+        bytesPerSecond = cycleNanos <= 0 ? 0 : payloadLength * 1e9 / cycleNanos;
+        MyLog.i(LOG_CYCLE, cycles, TimeUnit.NANOSECONDS.toMillis(cycleNanos), (long) bytesPerSecond);
+    }
+}
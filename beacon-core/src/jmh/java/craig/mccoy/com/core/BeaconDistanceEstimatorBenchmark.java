@@ -0,0 +1,62 @@
+package craig.mccoy.com.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one RSSI update with a venue-sized number of tracked beacons.  Also prints the memory
+ * used per beacon.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BeaconDistanceEstimatorBenchmark {
+
+    @Param({"1000", "50000"})
+    public int beacons;
+
+    private BeaconDistanceEstimator estimator;
+    private long[] keys;
+    private int next;
+    private long now;
+
+    @Setup
+    public void setUp() {
+        estimator = new BeaconDistanceEstimator(beacons);
+        keys = new long[beacons];
+        BeaconFrame frame = new BeaconFrame();
+        frame.beaconType = BeaconType.AltBeacon;
+        for (int i = 0; i < beacons; i++) {
+            frame.code = i;
+            keys[i] = BeaconDistanceEstimator.keyOf(frame);
+            estimator.update(keys[i], -70, -52, 1);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf("%n%d beacons: %.1f bytes per beacon%n", estimator.size(), estimator.getBytesPerBeacon());
+    }
+
+    @Benchmark
+    public double update() {
+        int i = next;
+        next = i + 1 == keys.length ? 0 : i + 1;
+        return estimator.update(keys[i], -60 - (i & 31), -52, ++now);
+    }
+}
@@ -0,0 +1,76 @@
+package craig.mccoy.com.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding throughput and allocation per operation for every BeaconType.
+ * Run with the gc profiler (the jmh task does) to get the bytes allocated per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BeaconEncoderBenchmark {
+    private static final String UUID_STRING = "B8CE3F1D-D741-482A-B466-CE3F46B5B1C8";
+
+    @Param({"Ble1MBeacon", "AltBeacon", "IBeacon"})
+    public BeaconType beaconType;
+
+    private byte[] uuid;
+    private byte[] buffer;
+    private byte[] template;
+    private int uniqueCode;
+
+    @Setup
+    public void setUp() {
+        uuid = BeaconEncoder.getIdAsBytes(UUID.fromString(UUID_STRING));
+        buffer = new byte[BeaconEncoder.getManufacturerDataLength(beaconType)];
+        template = BeaconEncoder.encode(beaconType, uuid, 0);
+        uniqueCode = 0x12345678;
+    }
+
+    /** Encoding into a reused buffer, the steady state of the payload cache. */
+    @Benchmark
+    public byte[] encodeIntoBuffer() {
+        BeaconEncoder.encode(beaconType, uuid, uniqueCode++, buffer);
+        return buffer;
+    }
+
+    /** Encoding into a new buffer, as done for a code that is not cached yet. */
+    @Benchmark
+    public byte[] encodeNewBuffer() {
+        return BeaconEncoder.encode(beaconType, uuid, uniqueCode++);
+    }
+
+    /** Copying the template and patching the unique code. */
+    @Benchmark
+    public byte[] copyTemplateAndPatch() {
+        byte[] frame = template.clone();
+        if (beaconType == BeaconType.AltBeacon) {
+            BeaconEncoder.patchAltBeaconCode(frame, uniqueCode++);
+        }
+        return frame;
+    }
+
+    /** The original per-start path: parse the UUID string, convert it and encode. */
+    @Benchmark
+    public byte[] parseUuidAndEncode() {
+        byte[] uuidBytes = BeaconEncoder.getIdAsBytes(UUID.fromString(UUID_STRING));
+        return BeaconEncoder.encode(beaconType, uuidBytes, uniqueCode++);
+    }
+}
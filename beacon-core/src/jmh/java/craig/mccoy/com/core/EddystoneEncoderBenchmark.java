@@ -0,0 +1,55 @@
+package craig.mccoy.com.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding cost of the Eddystone frames; updateTlm is the per-refresh cost of a running TLM frame.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EddystoneEncoderBenchmark {
+    private final byte[] buffer = new byte[FrameLayout.EDDYSTONE_UID.maxLength];
+    private byte[] uuid;
+    private long counter;
+
+    @Setup
+    public void setUp() {
+        uuid = BeaconEncoder.getIdAsBytes(UUID.fromString("B8CE3F1D-D741-482A-B466-CE3F46B5B1C8"));
+        EddystoneEncoder.encodeTlm(3000, EddystoneEncoder.toFixed88(215), 0, 0, buffer, 0);
+    }
+
+    @Benchmark
+    public byte[] encodeUid() {
+        EddystoneEncoder.encodeUid(uuid, counter++, EddystoneEncoder.TX_POWER_AT_0M, buffer, 0);
+        return buffer;
+    }
+
+    @Benchmark
+    public byte[] encodeUrl() {
+        EddystoneEncoder.encodeUrl("https://www.example.com/beacon", EddystoneEncoder.TX_POWER_AT_0M, buffer, 0);
+        return buffer;
+    }
+
+    @Benchmark
+    public byte[] updateTlm() {
+        long count = counter++;
+        EddystoneEncoder.updateTlm(buffer, 0, 3000, EddystoneEncoder.toFixed88(215), count, count * 10);
+        return buffer;
+    }
+}
@@ -0,0 +1,56 @@
+package craig.mccoy.com.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a rotation: computing the ephemeral ID with AES versus looking it up in a precomputed
+ * window and patching it into the cached frame.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EphemeralIdBenchmark {
+    private static final int WINDOW_SIZE = 256;
+    private static final int ROTATION_EXPONENT = 10;
+
+    private final EphemeralIdGenerator generator = new EphemeralIdGenerator(new byte[EphemeralIdGenerator.KEY_LENGTH],
+            ROTATION_EXPONENT);
+    private final EphemeralIdWindow window = generator.computeWindow(0, WINDOW_SIZE);
+    private final byte[] frame = BeaconEncoder.encode(BeaconType.AltBeacon, new byte[BeaconEncoder.UUID_LENGTH], 0);
+    private long counter = 0;
+
+    private long nextCounter() {
+        counter = (counter + (1 << ROTATION_EXPONENT)) % window.getEndCounter();
+        return counter;
+    }
+
+    @Benchmark
+    public byte[] computeAndPatch() {
+        EphemeralIdGenerator.patch(BeaconType.AltBeacon, frame, generator.computeId(nextCounter()));
+        return frame;
+    }
+
+    @Benchmark
+    public byte[] lookupAndPatch() {
+        EphemeralIdGenerator.patch(BeaconType.AltBeacon, frame, window.getId(nextCounter()));
+        return frame;
+    }
+
+    @Benchmark
+    public EphemeralIdWindow computeWindow() {
+        return generator.computeWindow(0, WINDOW_SIZE);
+    }
+}
@@ -0,0 +1,92 @@
+package craig.mccoy.com.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one detection with 100k beacons present: a beacon already in its zone (the common
+ * case), a beacon moving to another zone (exit and enter events), and a new beacon pushing out
+ * the one heard least recently.  The events are delivered synchronously, so the event latency
+ * is the cost of the detection that raises it; exitOnAdvance measures the exits found by advance.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PresenceAggregatorBenchmark {
+    private static final int BEACONS = 100_000;
+    private static final int ZONES = 64;
+    private static final long STEP_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+    private PresenceAggregator aggregator;
+    private PresenceAggregator shortTimeout;
+    private Blackhole blackhole;
+    private long now;
+    private int next;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        PresenceAggregator.Listener listener = new PresenceAggregator.Listener() {
+            @Override
+            public void onEnter(BeaconType beaconType, int code, int zone, long timestampNanos) {
+                PresenceAggregatorBenchmark.this.blackhole.consume(code);
+            }
+
+            @Override
+            public void onExit(BeaconType beaconType, int code, int zone, long dwellNanos, long timestampNanos) {
+                PresenceAggregatorBenchmark.this.blackhole.consume(dwellNanos);
+            }
+        };
+        aggregator = new PresenceAggregator(BEACONS, ZONES, 5000, 60_000, 60, listener);
+        shortTimeout = new PresenceAggregator(BEACONS, ZONES, 1, 60_000, 60, listener);
+        for (int code = 0; code < BEACONS; code++) {
+            aggregator.onDetection(BeaconType.AltBeacon, code, code % ZONES, now);
+        }
+        next = 0;
+    }
+
+    @Benchmark
+    public void detectionInZone() {
+        int code = next;
+        next = next + 1 == BEACONS ? 0 : next + 1;
+        now += STEP_NANOS;
+        aggregator.onDetection(BeaconType.AltBeacon, code, code % ZONES, now);
+    }
+
+    @Benchmark
+    public void detectionChangingZone() {
+        int code = next;
+        next = next + 1 == BEACONS ? 0 : next + 1;
+        now += STEP_NANOS;
+        aggregator.onDetection(BeaconType.AltBeacon, code, (int) ((code + now / STEP_NANOS) % ZONES), now);
+    }
+
+    @Benchmark
+    public void detectionEvictingOldest() {
+        now += STEP_NANOS;
+        aggregator.onDetection(BeaconType.IBeacon, next++, 0, now);
+    }
+
+    @Benchmark
+    public int exitOnAdvance() {
+        // One new beacon per step with a 1 ms timeout: after the first 100 steps every advance
+        // lets exactly one beacon exit
+        now += STEP_NANOS;
+        shortTimeout.onDetection(BeaconType.IBeacon, next++, 1, now);
+        return shortTimeout.advance(now);
+    }
+}
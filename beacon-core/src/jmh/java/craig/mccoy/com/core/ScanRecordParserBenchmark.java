@@ -0,0 +1,57 @@
+package craig.mccoy.com.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing cost per scan record; should report no allocation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ScanRecordParserBenchmark {
+
+    @Param({"AltBeacon", "IBeacon"})
+    public BeaconType beaconType;
+
+    private final BeaconFrame frame = new BeaconFrame();
+    private byte[] scanRecord;
+
+    @Setup
+    public void setUp() {
+        byte[] uuid = new byte[BeaconEncoder.UUID_LENGTH];
+        BeaconEncoder.putUuid(uuid, 0, 0xB8CE3F1DD741482AL, 0xB466CE3F46B5B1C8L);
+        byte[] manufacturerData = BeaconEncoder.encode(beaconType, uuid, 0x12345678);
+        int manufacturerId = BeaconEncoder.getManufacturerId(beaconType);
+        // Flags AD structure, then the manufacturer data, zero padded like a legacy advertisement
+        scanRecord = new byte[62];
+        scanRecord[0] = 2;
+        scanRecord[1] = 0x01;
+        scanRecord[2] = 0x06;
+        scanRecord[3] = (byte) (3 + manufacturerData.length);
+        scanRecord[4] = (byte) 0xFF;
+        scanRecord[5] = (byte) manufacturerId;
+        scanRecord[6] = (byte) (manufacturerId >> 8);
+        System.arraycopy(manufacturerData, 0, scanRecord, 7, manufacturerData.length);
+    }
+
+    @Benchmark
+    public BeaconFrame parse() {
+        ScanRecordParser.parse(scanRecord, frame);
+        return frame;
+    }
+}
@@ -0,0 +1,46 @@
+package craig.mccoy.com.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the UUID handling that every beacon frame needs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UuidBenchmark {
+    private static final String UUID_STRING = "B8CE3F1D-D741-482A-B466-CE3F46B5B1C8";
+
+    private final UUID uuid = UUID.fromString(UUID_STRING);
+    private final byte[] buffer = new byte[BeaconEncoder.UUID_LENGTH];
+
+    @Benchmark
+    public UUID parseString() {
+        return UUID.fromString(UUID_STRING);
+    }
+
+    @Benchmark
+    public byte[] toNewBytes() {
+        return BeaconEncoder.getIdAsBytes(uuid);
+    }
+
+    @Benchmark
+    public byte[] toExistingBytes() {
+        BeaconEncoder.putUuid(buffer, 0, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        return buffer;
+    }
+}
@@ -0,0 +1,151 @@
+package craig.mccoy.com.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the service logic (coalescer, command processor, engine) through thousands of start,
+ * stop and update cycles against the simulated controller, and reports the throughput and the
+ * tail latencies.  Run with ./gradlew :beacon-core:loadTest
+ */
+public class AdvertisingEngineLoadTest {
+
+    private static final int CYCLES = 10000;
+    private static final int BATCH_SIZE = 8;
+    private static final int CODE_RANGE = 16;
+
+    private final LatencyHistogram applyLatency = new LatencyHistogram();
+    private final LatencyHistogram startLatency = new LatencyHistogram();
+    private final LatencyHistogram swapLatency = new LatencyHistogram();
+    private final LatencyHistogram stopLatency = new LatencyHistogram();
+    private SimulatedAdvertiserBackend backend;
+    private AdvertisingEngine<byte[]> engine;
+    private BeaconCommandProcessor<byte[]> processor;
+
+    @Before
+    public void setUp() {
+        // A controller answering in 50-150 us, with fewer sets than the app asks for
+        backend = SimulatedAdvertiserBackend.builder()
+                .setMaxAdvertisingSets(6)
+                .setDelays(50, 50, 50, TimeUnit.MICROSECONDS)
+                .setJitter(100, TimeUnit.MICROSECONDS)
+                .setFailureRate(0.001)
+                .setSeed(17)
+                .build();
+        byte[] payload = new byte[27];
+        engine = new AdvertisingEngine<>(backend, (beaconType, uniqueCode) -> payload, 8,
+                new AdvertisingEngine.Listener() {
+                    @Override
+                    public void onStarted(BeaconType beaconType, int uniqueCode, long requestedNanos) {
+                        startLatency.record(System.nanoTime() - requestedNanos);
+                    }
+
+                    @Override
+                    public void onDataSet(BeaconType beaconType, int uniqueCode, int status, long requestedNanos) {
+                        swapLatency.record(System.nanoTime() - requestedNanos);
+                    }
+
+                    @Override
+                    public void onStopped(BeaconType beaconType, int uniqueCode, long requestedNanos) {
+                        stopLatency.record(System.nanoTime() - requestedNanos);
+                    }
+                });
+        processor = new BeaconCommandProcessor<>(create -> engine);
+    }
+
+    @After
+    public void tearDown() {
+        backend.close();
+    }
+
+    /**
+     * Steady state: each batch is answered by the controller before the next one arrives, so the
+     * latencies are those of the controller and the engine rather than of a growing backlog.
+     */
+    @Test
+    public void pacedCycles() throws Exception {
+        run("paced", true);
+    }
+
+    /**
+     * Open loop: the commands arrive faster than the controller answers, so the requests queue up
+     * in the stack.  The engine has to stay consistent with the controller throughout.
+     */
+    @Test
+    public void burstCycles() throws Exception {
+        run("burst", false);
+    }
+
+    private void run(String name, boolean isPaced) throws Exception {
+        Random random = new Random(42);
+        BeaconType[] types = { BeaconType.AltBeacon, BeaconType.EddystoneUid, BeaconType.IBeacon };
+        CommandCoalescer coalescer = new CommandCoalescer(BATCH_SIZE);
+        long applied = 0;
+
+        long startNanos = System.nanoTime();
+        for (int cycle = 0; cycle < CYCLES; cycle++) {
+            BeaconType beaconType = types[random.nextInt(types.length)];
+            int code = random.nextInt(CODE_RANGE);
+            int choice = random.nextInt(100);
+            int opcode = choice < 35 ? BeaconCommand.OP_ADD
+                    : choice < 65 ? BeaconCommand.OP_REMOVE
+                    : choice < 90 ? BeaconCommand.OP_SET_CODE
+                    : choice < 97 ? BeaconCommand.OP_REPLACE
+                    : BeaconCommand.OP_REMOVE_ALL;
+            coalescer.offer(opcode == BeaconCommand.OP_REMOVE_ALL ? BeaconCommand.encode(opcode)
+                    : BeaconCommand.encode(opcode, beaconType, code));
+            if (coalescer.size() >= BATCH_SIZE || cycle == CYCLES - 1) {
+                for (long command : coalescer.drain()) {
+                    long commandNanos = System.nanoTime();
+                    if (processor.apply(command)) {
+                        applied++;
+                    }
+                    applyLatency.record(System.nanoTime() - commandNanos);
+                }
+                if (isPaced) {
+                    backend.awaitIdle(10, TimeUnit.SECONDS);
+                }
+            }
+        }
+        long submittedNanos = System.nanoTime() - startNanos;
+        backend.awaitIdle(60, TimeUnit.SECONDS);
+        long settledNanos = System.nanoTime() - startNanos;
+
+        System.out.println("[" + name + "]");
+        report("apply", applyLatency);
+        report("start", startLatency);
+        report("swap", swapLatency);
+        report("stop", stopLatency);
+        System.out.println("cycles=" + CYCLES + " merged=" + coalescer.getMergedCount() + " applied=" + applied
+                + " commands_per_s=" + perSecond(coalescer.getDrainedCount(), submittedNanos)
+                + " controller_requests_per_s=" + perSecond(backend.getRequestCount(), settledNanos)
+                + " failed=" + backend.getFailedCount() + " too_many=" + backend.getTooManyAdvertisersCount()
+                + " limit=" + engine.getMaxAdvertisingSets());
+
+        // Once the controller has answered everything, the engine and the controller agree
+        assertEquals(backend.getActiveSetCount(), engine.getBeaconCount());
+        assertEquals(engine.getBeaconCount(), engine.getStartedCount());
+        assertTrue(backend.getPeakActiveSetCount() <= backend.getMaxAdvertisingSets());
+        // The limit settles on what the controller really has instead of collapsing
+        assertEquals(backend.getMaxAdvertisingSets(), engine.getMaxAdvertisingSets());
+        assertTrue(startLatency.getCount() > 0);
+    }
+
+    private static void report(String name, LatencyHistogram histogram) {
+        System.out.println(name + ": count=" + histogram.getCount()
+                + " p50_us=" + histogram.getPercentileNanos(50) / 1000
+                + " p99_us=" + histogram.getPercentileNanos(99) / 1000
+                + " p999_us=" + histogram.getPercentileNanos(99.9) / 1000
+                + " max_us=" + histogram.getMaxNanos() / 1000);
+    }
+
+    private static long perSecond(long count, long nanos) {
+        return nanos == 0 ? 0 : count * TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+}
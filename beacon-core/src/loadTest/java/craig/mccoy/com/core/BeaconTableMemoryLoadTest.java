@@ -0,0 +1,86 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the heap a 100k-beacon site takes as a BeaconTable against one object graph per
+ * beacon (record, UUID and encoded ByteBuffer in a map keyed by code).  Run with
+ * ./gradlew :beacon-core:loadTest
+ */
+public class BeaconTableMemoryLoadTest {
+
+    private static final int BEACONS = 100_000;
+    private static final int NAMESPACES = 8;
+
+    private static final class BeaconObject {
+        final BeaconType beaconType;
+        final UUID uuid;
+        final ByteBuffer frame;
+        final int code;
+
+        BeaconObject(BeaconType beaconType, UUID uuid, ByteBuffer frame, int code) {
+            this.beaconType = beaconType;
+            this.uuid = uuid;
+            this.frame = frame;
+            this.code = code;
+        }
+    }
+
+    @Test
+    public void bytesPerBeacon() {
+        BeaconRecord record = new BeaconRecord();
+        record.beaconType = BeaconType.AltBeacon;
+        record.uuidMostSignificantBits = 0x0123456789ABCDEFL;
+
+        long before = usedHeap();
+        BeaconTable table = new BeaconTable(BEACONS);
+        for (int code = 0; code < BEACONS; code++) {
+            record.code = code * 7919;
+            record.uuidLeastSignificantBits = code % NAMESPACES;
+            table.put(record);
+        }
+        long tableBytes = usedHeap() - before;
+        assertEquals(BEACONS, table.size());
+
+        before = usedHeap();
+        Map<Integer, BeaconObject> objects = new HashMap<>();
+        byte[] frame = new byte[BeaconEncoder.ALT_BEACON_LENGTH];
+        for (int code = 0; code < BEACONS; code++) {
+            UUID uuid = new UUID(record.uuidMostSignificantBits, code % NAMESPACES);
+            BeaconEncoder.encodeAltBeacon(BeaconEncoder.getIdAsBytes(uuid), code * 7919, frame);
+            objects.put(code * 7919, new BeaconObject(BeaconType.AltBeacon, uuid, ByteBuffer.wrap(frame.clone()), code * 7919));
+        }
+        long objectBytes = usedHeap() - before;
+        assertEquals(BEACONS, objects.size());
+
+        double tablePerBeacon = (double) tableBytes / BEACONS;
+        double objectPerBeacon = (double) objectBytes / BEACONS;
+        System.out.printf("beacons=%d namespaces=%d table_reported_bytes_per_beacon=%.1f"
+                        + " table_measured_bytes_per_beacon=%.1f objects_measured_bytes_per_beacon=%.1f%n",
+                BEACONS, table.getNamespaceCount(), table.getBytesPerBeacon(), tablePerBeacon, objectPerBeacon);
+        assertTrue(tablePerBeacon < 40);
+        assertTrue(objectPerBeacon > 4 * tablePerBeacon);
+        // Keep both reachable until measured
+        assertNotNull(table.getNamespaceUuid(0));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
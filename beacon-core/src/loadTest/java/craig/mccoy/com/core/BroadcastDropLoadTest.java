@@ -0,0 +1,61 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures how long a receiver takes to complete a chunked broadcast as more frames are lost.
+ * Time is simulated: one frame per periodic advertising event.  Run with
+ * ./gradlew :beacon-core:loadTest
+ */
+public class BroadcastDropLoadTest {
+
+    private static final int PAYLOAD_LENGTH = 4096;
+    // Periodic advertising data less the service data AD header
+    private static final int FRAME_LENGTH = 248;
+    private static final long EVENT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int RECEIVERS = 2000;
+
+    @Test
+    public void completionTimeUnderDrops() {
+        byte[] payload = new byte[PAYLOAD_LENGTH];
+        new Random(1).nextBytes(payload);
+        byte[][] frames = BroadcastChunker.split(payload, 1, FRAME_LENGTH);
+        System.out.println("payload=" + PAYLOAD_LENGTH + " frames=" + frames.length + " interval_ms="
+                + TimeUnit.NANOSECONDS.toMillis(EVENT_INTERVAL_NANOS) + " ideal_bytes_per_s="
+                + (long) BroadcastChunker.getBytesPerSecond(PAYLOAD_LENGTH, frames.length, EVENT_INTERVAL_NANOS));
+
+        Random random = new Random(2);
+        for (int dropPercent : new int[] { 0, 5, 10, 20, 30, 50 }) {
+            LatencyHistogram completion = new LatencyHistogram();
+            long totalEvents = 0;
+            for (int receiver = 0; receiver < RECEIVERS; receiver++) {
+                BroadcastReassembler reassembler = new BroadcastReassembler();
+                // Receivers tune in at any point of the cycle
+                int event = random.nextInt(frames.length);
+                int events = 0;
+                while (!reassembler.isComplete()) {
+                    if (random.nextInt(100) >= dropPercent) {
+                        reassembler.accept(frames[event % frames.length]);
+                    }
+                    event++;
+                    events++;
+                }
+                assertArrayEquals(payload, reassembler.getPayload());
+                completion.record(events * EVENT_INTERVAL_NANOS);
+                totalEvents += events;
+            }
+            double meanSeconds = totalEvents * (double) EVENT_INTERVAL_NANOS / RECEIVERS / 1e9;
+            System.out.println("drop=" + dropPercent + "%"
+                    + " mean_ms=" + (long) (meanSeconds * 1000)
+                    + " p50_ms=" + completion.getPercentileNanos(50) / 1_000_000
+                    + " p99_ms=" + completion.getPercentileNanos(99) / 1_000_000
+                    + " max_ms=" + completion.getMaxNanos() / 1_000_000
+                    + " effective_bytes_per_s=" + (long) (PAYLOAD_LENGTH / meanSeconds));
+        }
+    }
+}
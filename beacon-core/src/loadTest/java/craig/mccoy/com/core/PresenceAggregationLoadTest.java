@@ -0,0 +1,84 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds the presence aggregator a simulated site: beacons that come and go, wander between zones
+ * and are heard several times a second.  Reports the cost per detection, how long the events
+ * take to reach the listener and how late the exits are for a given advance period.  The clock
+ * of the detections is simulated; the costs and the enter latency are wall time.  Run with
+ * ./gradlew :beacon-core:loadTest
+ */
+public class PresenceAggregationLoadTest {
+
+    private static final int CAPACITY = 100_000;
+    private static final int POPULATION = 150_000;
+    private static final int ZONES = 256;
+    private static final int DETECTIONS = 5_000_000;
+    // 50k detections per simulated second
+    private static final long STEP_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+
+    @Test
+    public void detectionsAndEvents() {
+        long[] detectionStartNanos = { 0 };
+        LatencyHistogram enterLatency = new LatencyHistogram();
+        PresenceAggregator.Listener listener = new PresenceAggregator.Listener() {
+            @Override
+            public void onEnter(BeaconType beaconType, int code, int zone, long timestampNanos) {
+                enterLatency.record(System.nanoTime() - detectionStartNanos[0]);
+            }
+        };
+        for (long advancePeriodMillis : new long[] { 100, 1000 }) {
+            PresenceAggregator aggregator = new PresenceAggregator(CAPACITY, ZONES, 5000, 60_000, 60, listener);
+            Random random = new Random(1);
+            int[] zones = new int[POPULATION];
+            for (int i = 0; i < POPULATION; i++) {
+                zones[i] = random.nextInt(ZONES);
+            }
+            long advancePeriodNanos = TimeUnit.MILLISECONDS.toNanos(advancePeriodMillis);
+            long now = 0;
+            long nextAdvance = advancePeriodNanos;
+            long detectionNanos = 0;
+            long advanceNanos = 0;
+            enterLatency.reset();
+            for (int i = 0; i < DETECTIONS; i++) {
+                // A third of the population is active at a time, drifting over the run
+                int beacon = (random.nextInt(POPULATION / 3) + i / 100) % POPULATION;
+                if (random.nextInt(1000) == 0) {
+                    zones[beacon] = random.nextInt(ZONES);
+                }
+                now += STEP_NANOS;
+                long start = System.nanoTime();
+                detectionStartNanos[0] = start;
+                aggregator.onDetection(BeaconType.AltBeacon, beacon, zones[beacon], now);
+                detectionNanos += System.nanoTime() - start;
+                if (now >= nextAdvance) {
+                    start = System.nanoTime();
+                    aggregator.advance(now);
+                    advanceNanos += System.nanoTime() - start;
+                    nextAdvance += advancePeriodNanos;
+                }
+            }
+            assertTrue(aggregator.size() <= CAPACITY);
+            LatencyHistogram exitDelays = aggregator.getExitDelays();
+            System.out.println("advance_ms=" + advancePeriodMillis
+                    + " bytes_per_beacon=" + aggregator.getRetainedBytes() / CAPACITY
+                    + " ns_per_detection=" + detectionNanos / DETECTIONS
+                    + " advance_ms_total=" + TimeUnit.NANOSECONDS.toMillis(advanceNanos)
+                    + " present=" + aggregator.size()
+                    + " enters=" + aggregator.getEnterCount()
+                    + " exits=" + exitDelays.getCount()
+                    + " evicted=" + aggregator.getEvictedCount()
+                    + " enter_p50_ns=" + enterLatency.getPercentileNanos(50)
+                    + " enter_p99_ns=" + enterLatency.getPercentileNanos(99)
+                    + " exit_delay_p50_ms=" + exitDelays.getPercentileNanos(50) / 1_000_000
+                    + " exit_delay_max_ms=" + exitDelays.getMaxNanos() / 1_000_000);
+            assertTrue(exitDelays.getMaxNanos() <= advancePeriodNanos);
+        }
+    }
+}
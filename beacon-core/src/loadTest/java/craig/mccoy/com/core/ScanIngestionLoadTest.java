@@ -0,0 +1,105 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Floods the scan ingestion pipeline with synthetic batches, from a pace the worker keeps up with
+ * to bursts far beyond it, and reports the throughput, the queue depth and what was shed.  The
+ * sink filters every RSSI into a distance estimate, as the scanner does.  Run with
+ * ./gradlew :beacon-core:loadTest
+ */
+public class ScanIngestionLoadTest {
+
+    private static final int BEACONS = 5000;
+    private static final int BATCH_SIZE = 1000;
+    private static final int BATCHES = 2000;
+    private static final int RING_CAPACITY = 16;
+
+    // The synthetic results are the records themselves, heard at a fixed RSSI
+    private static final ScanIngestionPipeline.ResultReader<byte[]> READER = new ScanIngestionPipeline.ResultReader<byte[]>() {
+        @Override
+        public byte[] getRecord(byte[] result) {
+            return result;
+        }
+
+        @Override
+        public int getRssi(byte[] result) {
+            return -70;
+        }
+
+        @Override
+        public long getTimestampNanos(byte[] result) {
+            return 0;
+        }
+    };
+
+    // Flags, then the AltBeacon manufacturer data
+    private static byte[] altBeaconRecord(int code) {
+        byte[] record = new byte[7 + BeaconEncoder.ALT_BEACON_LENGTH];
+        record[0] = 2;
+        record[1] = 1;
+        record[2] = 6;
+        record[3] = (byte) (3 + BeaconEncoder.ALT_BEACON_LENGTH);
+        record[4] = (byte) 0xFF;
+        record[5] = (byte) BeaconEncoder.ALT_BEACON_MANUFACTURER_ID;
+        byte[] data = new byte[BeaconEncoder.ALT_BEACON_LENGTH];
+        BeaconEncoder.encodeAltBeacon(new byte[BeaconEncoder.UUID_LENGTH], code, data);
+        System.arraycopy(data, 0, record, 7, data.length);
+        return record;
+    }
+
+    @Test
+    public void floodWithSyntheticBatches() throws Exception {
+        Random random = new Random(1);
+        byte[][] records = new byte[BEACONS][];
+        for (int code = 0; code < BEACONS; code++) {
+            records[code] = altBeaconRecord(code);
+        }
+        List<List<byte[]>> batches = new ArrayList<>();
+        for (int b = 0; b < 64; b++) {
+            List<byte[]> results = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                results.add(records[random.nextInt(BEACONS)]);
+            }
+            batches.add(results);
+        }
+
+        // Microseconds between batches; 0 = as fast as the producer can copy
+        for (long pauseMicros : new long[] { 2000, 500, 100, 0 }) {
+            BeaconDistanceEstimator estimator = new BeaconDistanceEstimator(BEACONS);
+            long[] now = { 0 };
+            ScanIngestionPipeline pipeline = new ScanIngestionPipeline(RING_CAPACITY, BATCH_SIZE, 62,
+                    (frame, rssi, timestampNanos) -> estimator.update(frame, rssi, now[0]++), new MetricsRegistry());
+            pipeline.start();
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < BATCHES; i++) {
+                pipeline.offer(batches.get(i % batches.size()), READER);
+                if (pauseMicros > 0) {
+                    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(pauseMicros));
+                }
+            }
+            pipeline.stop();
+            long elapsedNanos = System.nanoTime() - startNanos;
+
+            assertEquals(pipeline.getOfferedCount(), pipeline.getProcessedCount() + pipeline.getDroppedCount());
+            LatencyHistogram latency = pipeline.getBatchLatency();
+            System.out.println("pause_us=" + pauseMicros
+                    + " offered_per_s=" + (long) (pipeline.getOfferedCount() * 1e9 / elapsedNanos)
+                    + " processed_per_s=" + (long) (pipeline.getProcessedCount() * 1e9 / elapsedNanos)
+                    + " duplicates=" + pipeline.getDuplicateCount()
+                    + " downsampled=" + pipeline.getDownsampledCount()
+                    + " overflow=" + pipeline.getOverflowCount()
+                    + " max_depth=" + pipeline.getMaxQueueDepth() + "/" + RING_CAPACITY
+                    + " p50_us=" + latency.getPercentileNanos(50) / 1000
+                    + " p99_us=" + latency.getPercentileNanos(99) / 1000);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package craig.mccoy.com.core;
+
+/**
+ * The controller side of the advertising engine: opens, updates and closes advertising sets.
+ * The Android implementation drives BluetoothLeAdvertiser; SimulatedAdvertiserBackend models a
+ * controller on the JVM so the engine can be load-tested without hardware.
+ * All results are asynchronous and may arrive on any thread.
+ *
+ * @param <D> the payload type handed to the controller (AdvertiseData on Android).
+ */
+public interface AdvertiserBackend<D> {
+
+    // Same values as AdvertisingSetCallback / AdvertiseCallback
+    int SUCCESS = 0;
+    int FAILED_DATA_TOO_LARGE = 1;
+    int FAILED_TOO_MANY_ADVERTISERS = 2;
+    int FAILED_ALREADY_STARTED = 3;
+    int FAILED_INTERNAL_ERROR = 4;
+    int FAILED_FEATURE_UNSUPPORTED = 5;
+
+    /**
+     * Receives the results for one advertising set; the callback also identifies the set.
+     */
+    interface Callback {
+        void onStarted(int status);
+
+        void onDataSet(int status);
+
+        void onStopped();
+    }
+
+    /**
+     * Opens a new advertising set; the result arrives on {@link Callback#onStarted(int)}.
+     * The beacon type selects the advertising mode, see {@link AdvertisingPhy#forBeaconType(BeaconType)}.
+     */
+    void startSet(BeaconType beaconType, D data, Callback callback);
+
+    /**
+     * Replaces the payload of a started set; the result arrives on {@link Callback#onDataSet(int)}.
+     * @return false if the set has not been started.
+     */
+    boolean setData(Callback callback, D data);
+
+    /**
+     * Closes the set, whether or not it has been started yet.
+     */
+    void stopSet(Callback callback);
+}
@@ -0,0 +1,335 @@
+package craig.mccoy.com.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Advertises several beacons at once by opening one advertising set per beacon through an
+ * {@link AdvertiserBackend}.  Beacons can be added, removed or switched to a new code in place
+ * without disturbing the others.  When the controller reports FAILED_TOO_MANY_ADVERTISERS the
+ * limit is lowered to what it actually supports.
+ * All methods are synchronized; the backend results may arrive on any thread.
+ *
+ * @param <D> the payload type of the backend.
+ */
+public final class AdvertisingEngine<D> {
+
+    public interface PayloadSource<D> {
+        D getPayload(BeaconType beaconType, int uniqueCode);
+    }
+
+    /**
+     * Observes the requests and their results, e.g. for telemetry and logging.  The request
+     * timestamps are System.nanoTime() values.
+     */
+    public interface Listener {
+        default void onStartRequested(BeaconType beaconType, int uniqueCode) {
+        }
+
+        default void onStarted(BeaconType beaconType, int uniqueCode, long requestedNanos) {
+        }
+
+        default void onStartFailed(BeaconType beaconType, int uniqueCode, int status, long requestedNanos) {
+        }
+
+        default void onStopRequested(BeaconType beaconType, int uniqueCode) {
+        }
+
+        default void onStopped(BeaconType beaconType, int uniqueCode, long requestedNanos) {
+        }
+
+        default void onDataSet(BeaconType beaconType, int uniqueCode, int status, long requestedNanos) {
+        }
+
+        /**
+         * The code of a running beacon was switched in place; no stop or start goes with it.
+         */
+        default void onUniqueCodeChanged(BeaconType beaconType, int previousCode, int uniqueCode) {
+        }
+
+        /**
+         * The controller stopped a started set nobody asked to stop; the beacon has been removed.
+         */
+        default void onLost(BeaconType beaconType, int uniqueCode) {
+        }
+
+        default void onLimitLowered(int maxAdvertisingSets) {
+        }
+    }
+
+    private static final Listener NO_LISTENER = new Listener() {
+    };
+
+    private final AdvertiserBackend<D> backend;
+    private final PayloadSource<D> payloadSource;
+    private final Listener listener;
+    private final Map<Long, Slot> slots = new HashMap<>();
+    private int maxAdvertisingSets;
+    // Started sets that were removed but whose stop the controller has not confirmed yet
+    private int pendingStops = 0;
+
+    // Time from a setData request until the controller confirms the new payload
+    private long lastSwapGapNanos = 0;
+    private long maxSwapGapNanos = 0;
+    private long swapCount = 0;
+
+    private final class Slot implements AdvertiserBackend.Callback {
+        final BeaconType beaconType;
+        int uniqueCode;
+        boolean isStarted = false;
+        boolean isStopRequested = false;
+        long startRequestedNanos = 0;
+        long stopRequestedNanos = 0;
+        long swapRequestedNanos = 0;
+
+        Slot(BeaconType beaconType, int uniqueCode) {
+            this.beaconType = beaconType;
+            this.uniqueCode = uniqueCode;
+        }
+
+        @Override
+        public void onStarted(int status) {
+            onSetStarted(this, status);
+        }
+
+        @Override
+        public void onDataSet(int status) {
+            onSetDataSet(this, status);
+        }
+
+        @Override
+        public void onStopped() {
+            onSetStopped(this);
+        }
+    }
+
+    public AdvertisingEngine(AdvertiserBackend<D> backend, PayloadSource<D> payloadSource, int maxAdvertisingSets,
+                             Listener listener) {
+        this.backend = backend;
+        this.payloadSource = payloadSource;
+        this.maxAdvertisingSets = maxAdvertisingSets;
+        this.listener = listener != null ? listener : NO_LISTENER;
+    }
+
+    /**
+     * Starts advertising the given beacon in its own advertising set.
+     * @return false if the beacon is already advertised or the limit has been reached.
+     */
+    public synchronized boolean addBeacon(BeaconType beaconType, int uniqueCode) {
+        long key = toKey(beaconType, uniqueCode);
+        if (slots.containsKey(key) || slots.size() >= maxAdvertisingSets) {
+            return false;
+        }
+        Slot slot = new Slot(beaconType, uniqueCode);
+        slots.put(key, slot);
+        listener.onStartRequested(beaconType, uniqueCode);
+        slot.startRequestedNanos = System.nanoTime();
+        backend.startSet(beaconType, payloadSource.getPayload(beaconType, uniqueCode), slot);
+        return true;
+    }
+
+    /**
+     * @return false if the beacon was not being advertised.
+     */
+    public synchronized boolean removeBeacon(BeaconType beaconType, int uniqueCode) {
+        Slot slot = slots.remove(toKey(beaconType, uniqueCode));
+        if (slot == null) {
+            return false;
+        }
+        stopSet(slot);
+        return true;
+    }
+
+    public synchronized void removeAllBeacons() {
+        for (Slot slot : slots.values()) {
+            stopSet(slot);
+        }
+        slots.clear();
+    }
+
+    /**
+     * Replaces the code of a running beacon in place, so scanners keep seeing the beacon while the
+     * payload changes.  If its set has not been started yet, the beacon is removed and added again.
+     * @param data the payload for the new code, or null to get it from the payload source.
+     * @return false if the beacon with the previous code is not being advertised.
+     */
+    public synchronized boolean updateUniqueCode(BeaconType beaconType, int previousCode, int uniqueCode, D data) {
+        long previousKey = toKey(beaconType, previousCode);
+        Slot slot = slots.get(previousKey);
+        if (slot == null) {
+            return false;
+        }
+        if (previousCode == uniqueCode) {
+            return true;
+        }
+        if (slots.containsKey(toKey(beaconType, uniqueCode))) {
+            // The new code is already on air; just drop the previous one
+            return removeBeacon(beaconType, previousCode);
+        }
+        if (!slot.isStarted) {
+            removeBeacon(beaconType, previousCode);
+            return addBeacon(beaconType, uniqueCode);
+        }
+        slots.remove(previousKey);
+        slot.uniqueCode = uniqueCode;
+        slots.put(toKey(beaconType, uniqueCode), slot);
+        listener.onUniqueCodeChanged(beaconType, previousCode, uniqueCode);
+        slot.swapRequestedNanos = System.nanoTime();
+        backend.setData(slot, data != null ? data : payloadSource.getPayload(beaconType, uniqueCode));
+        return true;
+    }
+
+    /**
+     * Hands new data to a running beacon, e.g. a refreshed telemetry frame.
+     * @return false if the beacon is not on air yet.
+     */
+    public synchronized boolean setData(BeaconType beaconType, int uniqueCode, D data) {
+        Slot slot = slots.get(toKey(beaconType, uniqueCode));
+        return slot != null && slot.isStarted && backend.setData(slot, data);
+    }
+
+    /**
+     * @return the code of the first advertised beacon of the given type, or null if none.
+     */
+    public synchronized Integer findUniqueCode(BeaconType beaconType) {
+        for (Slot slot : slots.values()) {
+            if (slot.beaconType == beaconType) {
+                return slot.uniqueCode;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return one BeaconCommand.OP_ADD entry per beacon, enough to add them all again later.
+     */
+    public synchronized long[] getBeaconCommands() {
+        long[] commands = new long[slots.size()];
+        int i = 0;
+        for (Slot slot : slots.values()) {
+            commands[i++] = BeaconCommand.encode(BeaconCommand.OP_ADD, slot.beaconType, slot.uniqueCode);
+        }
+        return commands;
+    }
+
+    public synchronized int getBeaconCount() {
+        return slots.size();
+    }
+
+    /**
+     * @return the number of beacons whose set the controller has confirmed.
+     */
+    public synchronized int getStartedCount() {
+        int started = 0;
+        for (Slot slot : slots.values()) {
+            if (slot.isStarted) {
+                started++;
+            }
+        }
+        return started;
+    }
+
+    public synchronized boolean isAdvertising(BeaconType beaconType, int uniqueCode) {
+        return slots.containsKey(toKey(beaconType, uniqueCode));
+    }
+
+    public synchronized int getMaxAdvertisingSets() {
+        return maxAdvertisingSets;
+    }
+
+    public synchronized long getLastSwapGapNanos() {
+        return lastSwapGapNanos;
+    }
+
+    public synchronized long getMaxSwapGapNanos() {
+        return maxSwapGapNanos;
+    }
+
+    public synchronized long getSwapCount() {
+        return swapCount;
+    }
+
+    public static long toKey(BeaconType beaconType, int uniqueCode) {
+        return ((long) beaconType.ordinal() << 32) | (uniqueCode & 0xFFFFFFFFL);
+    }
+
+    private void stopSet(Slot slot) {
+        listener.onStopRequested(slot.beaconType, slot.uniqueCode);
+        slot.stopRequestedNanos = System.nanoTime();
+        slot.isStopRequested = true;
+        if (slot.isStarted) {
+            pendingStops++;
+        }
+        backend.stopSet(slot);
+    }
+
+    private synchronized void onSetStarted(Slot slot, int status) {
+        long requestedNanos = slot.startRequestedNanos;
+        slot.startRequestedNanos = 0;
+        long key = toKey(slot.beaconType, slot.uniqueCode);
+        // A set removed or replaced before it answered, e.g. the stale set of a retry, must not
+        // speak for the beacon that now holds its key
+        boolean isCurrent = slots.get(key) == slot && !slot.isStopRequested;
+        if (status == AdvertiserBackend.SUCCESS) {
+            slot.isStarted = true;
+            if (slot.isStopRequested) {
+                // Removed before it started; the controller holds it until the stop goes through
+                pendingStops++;
+            }
+            if (isCurrent) {
+                listener.onStarted(slot.beaconType, slot.uniqueCode, requestedNanos);
+            }
+            return;
+        }
+        if (isCurrent) {
+            slots.remove(key);
+            listener.onStartFailed(slot.beaconType, slot.uniqueCode, status, requestedNanos);
+        }
+        // Even from a stale set, a refusal says how many sets the controller really has
+        if (status == AdvertiserBackend.FAILED_TOO_MANY_ADVERTISERS) {
+            // The controller has fewer advertising sets than configured, so lower the limit to what
+            // it holds right now.  Sets being stopped still count; without them a burst of removes
+            // would drag the limit down to one.
+            int heldSets = Math.max(1, getStartedCount() + pendingStops);
+            if (heldSets < maxAdvertisingSets) {
+                maxAdvertisingSets = heldSets;
+                listener.onLimitLowered(maxAdvertisingSets);
+            }
+        }
+    }
+
+    private synchronized void onSetDataSet(Slot slot, int status) {
+        long requestedNanos = slot.swapRequestedNanos;
+        if (requestedNanos == 0) {
+            // Data set by setData (e.g. telemetry); no swap to account for
+            return;
+        }
+        slot.swapRequestedNanos = 0;
+        if (status == AdvertiserBackend.SUCCESS) {
+            long gapNanos = System.nanoTime() - requestedNanos;
+            lastSwapGapNanos = gapNanos;
+            if (gapNanos > maxSwapGapNanos) {
+                maxSwapGapNanos = gapNanos;
+            }
+            swapCount++;
+        }
+        listener.onDataSet(slot.beaconType, slot.uniqueCode, status, requestedNanos);
+    }
+
+    private synchronized void onSetStopped(Slot slot) {
+        if (!slot.isStopRequested) {
+            // Dropped by the stack, e.g. on a controller reset; nothing is on air for this beacon any more
+            long key = toKey(slot.beaconType, slot.uniqueCode);
+            if (slots.get(key) == slot) {
+                slots.remove(key);
+            }
+            slot.isStarted = false;
+            listener.onLost(slot.beaconType, slot.uniqueCode);
+            return;
+        }
+        if (slot.isStarted && pendingStops > 0) {
+            pendingStops--;
+        }
+        listener.onStopped(slot.beaconType, slot.uniqueCode, slot.stopRequestedNanos);
+    }
+}
@@ -0,0 +1,77 @@
+package craig.mccoy.com.core;
+
+/**
+ * The PHY and PDU type an advertising set goes on air with.
+ * Legacy advertising is limited to the 1M PHY and 31 bytes of data; BLE 5 extended advertising
+ * moves the data to a secondary channel, where it can use the 2M PHY (shorter airtime per packet)
+ * or the LE Coded PHY (longer range), and can carry more than 31 bytes.
+ * The extended 2M mode keeps its primary advertisements on the 1M PHY, since the 2M PHY is not
+ * allowed on the primary channels.
+ */
+public enum AdvertisingPhy {
+    LEGACY_1M(AdvertisingPhy.PHY_LE_1M, AdvertisingPhy.PHY_LE_1M, false),
+    EXTENDED_1M(AdvertisingPhy.PHY_LE_1M, AdvertisingPhy.PHY_LE_1M, true),
+    EXTENDED_2M(AdvertisingPhy.PHY_LE_1M, AdvertisingPhy.PHY_LE_2M, true),
+    EXTENDED_CODED(AdvertisingPhy.PHY_LE_CODED, AdvertisingPhy.PHY_LE_CODED, true);
+
+    // Same values as BluetoothDevice.PHY_LE_*
+    public static final int PHY_LE_1M = 1;
+    public static final int PHY_LE_2M = 2;
+    public static final int PHY_LE_CODED = 3;
+
+    public static final int LEGACY_MAX_DATA_LENGTH = 31;
+    // Every controller supporting extended advertising takes at least one full AUX_ADV_IND
+    public static final int EXTENDED_MIN_DATA_LENGTH = 251;
+
+    public final int primaryPhy;
+    public final int secondaryPhy;
+    public final boolean isExtended;
+
+    AdvertisingPhy(int primaryPhy, int secondaryPhy, boolean isExtended) {
+        this.primaryPhy = primaryPhy;
+        this.secondaryPhy = secondaryPhy;
+        this.isExtended = isExtended;
+    }
+
+    /**
+     * @return the mode the beacon type asks for.
+     */
+    public static AdvertisingPhy forBeaconType(BeaconType beaconType) {
+        switch (beaconType) {
+            case Ble2MBeacon:
+                return EXTENDED_2M;
+            case BleCodedBeacon:
+                return EXTENDED_CODED;
+            default:
+                return LEGACY_1M;
+        }
+    }
+
+    /**
+     * @return the requested mode if the controller supports it, otherwise the closest mode it
+     * does support: extended advertising on the 1M PHY, then legacy advertising.
+     */
+    public static AdvertisingPhy select(AdvertisingPhy requested, boolean isExtendedSupported,
+                                        boolean isLe2MSupported, boolean isLeCodedSupported) {
+        if (!requested.isExtended || !isExtendedSupported) {
+            return LEGACY_1M;
+        }
+        switch (requested) {
+            case EXTENDED_2M:
+                return isLe2MSupported ? EXTENDED_2M : EXTENDED_1M;
+            case EXTENDED_CODED:
+                return isLeCodedSupported ? EXTENDED_CODED : EXTENDED_1M;
+            default:
+                return EXTENDED_1M;
+        }
+    }
+
+    /**
+     * @param maxExtendedDataLength what the controller reports for extended advertising
+     *                              (BluetoothAdapter.getLeMaximumAdvertisingDataLength).
+     * @return the most advertising data a set in this mode can carry.
+     */
+    public int getMaxDataLength(int maxExtendedDataLength) {
+        return isExtended ? Math.max(EXTENDED_MIN_DATA_LENGTH, maxExtendedDataLength) : LEGACY_MAX_DATA_LENGTH;
+    }
+}
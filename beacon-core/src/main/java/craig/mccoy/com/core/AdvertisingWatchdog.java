@@ -0,0 +1,326 @@
+package craig.mccoy.com.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks which beacons are expected on air against what the controller has confirmed, and tells
+ * the owner which ones to start again.  A beacon is lost when its start fails, when the stack
+ * drops its set or when a start is never confirmed; it is then retried with jittered exponential
+ * backoff until it is back on air.  While the adapter is off nothing is retried; once it is on
+ * again every lost beacon is retried at once.  The time from the loss to the confirmation is
+ * recorded as the time to recovery.
+ * The event methods take System.nanoTime() values so tests can drive the clock.  All methods are
+ * synchronized; the controller results may arrive on any thread.
+ */
+public final class AdvertisingWatchdog {
+
+    private static final int PENDING = 0;
+    private static final int ON_AIR = 1;
+    private static final int LOST = 2;
+    // Handed to the owner by poll, not requested again yet
+    private static final int RETRYING = 3;
+
+    private static final class Entry {
+        final BeaconType beaconType;
+        int uniqueCode;
+        int state = PENDING;
+        int attempts = 0;
+        long requestedNanos;
+        long retryAtNanos = 0;
+        boolean isInOutage = false;
+        long lostAtNanos = 0;
+
+        Entry(BeaconType beaconType, int uniqueCode, long requestedNanos) {
+            this.beaconType = beaconType;
+            this.uniqueCode = uniqueCode;
+            this.requestedNanos = requestedNanos;
+        }
+    }
+
+    private final long baseDelayNanos;
+    private final long maxDelayNanos;
+    private final long confirmTimeoutNanos;
+    private final Random random;
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private final LatencyHistogram recoveryTimes = new LatencyHistogram();
+    private boolean isAdapterOff = false;
+
+    private long outageCount = 0;
+    private long retryCount = 0;
+    private long abandonedCount = 0;
+
+    /**
+     * @param baseDelayMillis the delay before the first retry; each further retry doubles it.
+     * @param maxDelayMillis the cap on the delay between retries.
+     * @param confirmTimeoutMillis how long a start may go unanswered before the beacon counts as lost.
+     */
+    public AdvertisingWatchdog(long baseDelayMillis, long maxDelayMillis, long confirmTimeoutMillis, Random random) {
+        if (baseDelayMillis <= 0 || maxDelayMillis < baseDelayMillis || confirmTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Invalid watchdog delays");
+        }
+        this.baseDelayNanos = TimeUnit.MILLISECONDS.toNanos(baseDelayMillis);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.confirmTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(confirmTimeoutMillis);
+        this.random = random;
+    }
+
+    /**
+     * A start was requested, either by the owner or as a retry handed out by {@link #poll(long)}.
+     */
+    public synchronized void onStartRequested(BeaconType beaconType, int uniqueCode, long nowNanos) {
+        long key = AdvertisingEngine.toKey(beaconType, uniqueCode);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entries.put(key, new Entry(beaconType, uniqueCode, nowNanos));
+            return;
+        }
+        entry.state = PENDING;
+        entry.requestedNanos = nowNanos;
+    }
+
+    public synchronized void onStarted(BeaconType beaconType, int uniqueCode, long nowNanos) {
+        Entry entry = entries.get(AdvertisingEngine.toKey(beaconType, uniqueCode));
+        if (entry == null) {
+            return;
+        }
+        if (entry.isInOutage) {
+            recoveryTimes.record(nowNanos - entry.lostAtNanos);
+            entry.isInOutage = false;
+        }
+        entry.state = ON_AIR;
+        entry.attempts = 0;
+    }
+
+    /**
+     * A payload that is too large or a mode the controller lacks will not start on a retry either,
+     * so those beacons are given up on.
+     */
+    public synchronized void onStartFailed(BeaconType beaconType, int uniqueCode, int status, long nowNanos) {
+        long key = AdvertisingEngine.toKey(beaconType, uniqueCode);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return;
+        }
+        if (status == AdvertiserBackend.FAILED_DATA_TOO_LARGE || status == AdvertiserBackend.FAILED_FEATURE_UNSUPPORTED) {
+            entries.remove(key);
+            abandonedCount++;
+            return;
+        }
+        markLost(entry, nowNanos);
+    }
+
+    /**
+     * The stack stopped a started set on its own.
+     */
+    public synchronized void onLost(BeaconType beaconType, int uniqueCode, long nowNanos) {
+        Entry entry = entries.get(AdvertisingEngine.toKey(beaconType, uniqueCode));
+        if (entry != null) {
+            markLost(entry, nowNanos);
+        }
+    }
+
+    /**
+     * A stop was requested.  The beacon is no longer expected, unless the stop only clears the way
+     * for a retry or comes from the teardown while the adapter is off.
+     */
+    public synchronized void onStopRequested(BeaconType beaconType, int uniqueCode) {
+        long key = AdvertisingEngine.toKey(beaconType, uniqueCode);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.state != RETRYING && !isAdapterOff) {
+            entries.remove(key);
+        }
+    }
+
+    public synchronized void onUniqueCodeChanged(BeaconType beaconType, int previousCode, int uniqueCode) {
+        Entry entry = entries.remove(AdvertisingEngine.toKey(beaconType, previousCode));
+        if (entry != null) {
+            entry.uniqueCode = uniqueCode;
+            entries.put(AdvertisingEngine.toKey(beaconType, uniqueCode), entry);
+        }
+    }
+
+    /**
+     * The beacon was removed on purpose; it is not brought back, even while the adapter is off.
+     */
+    public synchronized void forget(BeaconType beaconType, int uniqueCode) {
+        entries.remove(AdvertisingEngine.toKey(beaconType, uniqueCode));
+    }
+
+    public synchronized void forgetAll() {
+        entries.clear();
+    }
+
+    /**
+     * Every beacon goes off the air with the adapter but stays expected.
+     */
+    public synchronized void onAdapterOff(long nowNanos) {
+        isAdapterOff = true;
+        for (Entry entry : entries.values()) {
+            markLost(entry, nowNanos);
+        }
+    }
+
+    /**
+     * Retries every lost beacon on the next poll, with the backoff started over.
+     */
+    public synchronized void onAdapterOn(long nowNanos) {
+        isAdapterOff = false;
+        for (Entry entry : entries.values()) {
+            if (entry.state == LOST || entry.state == RETRYING) {
+                entry.state = LOST;
+                entry.attempts = 0;
+                entry.retryAtNanos = nowNanos;
+            }
+        }
+    }
+
+    /**
+     * Marks the starts that went unanswered for too long as lost and hands out the beacons whose
+     * retry is due.  Each one is handed out once; the owner is expected to remove any stale set
+     * and start it again, which reports back through {@link #onStartRequested}.
+     * @return one BeaconCommand.OP_ADD entry per beacon to start again, empty while the adapter is off.
+     */
+    public synchronized long[] poll(long nowNanos) {
+        if (isAdapterOff) {
+            return new long[0];
+        }
+        List<Entry> due = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.state == PENDING && nowNanos - entry.requestedNanos >= confirmTimeoutNanos) {
+                markLost(entry, nowNanos);
+            }
+            if (entry.state == LOST && nowNanos - entry.retryAtNanos >= 0) {
+                entry.state = RETRYING;
+                due.add(entry);
+            }
+        }
+        long[] commands = new long[due.size()];
+        for (int i = 0; i < commands.length; i++) {
+            Entry entry = due.get(i);
+            commands[i] = BeaconCommand.encode(BeaconCommand.OP_ADD, entry.beaconType, entry.uniqueCode);
+        }
+        retryCount += commands.length;
+        return commands;
+    }
+
+    /**
+     * @return when {@link #poll(long)} has something to do next, or Long.MAX_VALUE if nothing is
+     * waiting on a confirmation or a retry.
+     */
+    public synchronized long getNextDeadlineNanos() {
+        long deadline = Long.MAX_VALUE;
+        if (isAdapterOff) {
+            return deadline;
+        }
+        for (Entry entry : entries.values()) {
+            long entryDeadline;
+            if (entry.state == PENDING) {
+                entryDeadline = entry.requestedNanos + confirmTimeoutNanos;
+            } else if (entry.state == LOST) {
+                entryDeadline = entry.retryAtNanos;
+            } else {
+                continue;
+            }
+            if (deadline == Long.MAX_VALUE || entryDeadline - deadline < 0) {
+                deadline = entryDeadline;
+            }
+        }
+        return deadline;
+    }
+
+    /**
+     * @return true if the beacon was handed out by {@link #poll} and is still waiting for its
+     * retry; false once it was removed, forgotten or lost again with the adapter in the meantime.
+     */
+    public synchronized boolean isRetrying(BeaconType beaconType, int uniqueCode) {
+        Entry entry = entries.get(AdvertisingEngine.toKey(beaconType, uniqueCode));
+        return entry != null && entry.state == RETRYING;
+    }
+
+    public synchronized int getExpectedCount() {
+        return entries.size();
+    }
+
+    public synchronized int getOnAirCount() {
+        int onAir = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.state == ON_AIR) {
+                onAir++;
+            }
+        }
+        return onAir;
+    }
+
+    /**
+     * @return true while any expected beacon is off the air after a loss.
+     */
+    public synchronized boolean isRecovering() {
+        for (Entry entry : entries.values()) {
+            if (entry.isInOutage) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized boolean isAdapterOff() {
+        return isAdapterOff;
+    }
+
+    public synchronized long getOutageCount() {
+        return outageCount;
+    }
+
+    public synchronized long getRetryCount() {
+        return retryCount;
+    }
+
+    public synchronized long getAbandonedCount() {
+        return abandonedCount;
+    }
+
+    /**
+     * @return the time from each loss until the beacon was confirmed on air again.
+     */
+    public LatencyHistogram getRecoveryTimes() {
+        return recoveryTimes;
+    }
+
+    /**
+     * Full delay d = min(max, base * 2^attempt), then a uniform pick in [d/2, d] so beacons lost
+     * together do not all hit the controller at the same moment.
+     */
+    long getBackoffNanos(int attempt) {
+        long delay = baseDelayNanos << Math.min(attempt, 30);
+        if (delay <= 0 || delay > maxDelayNanos) {
+            delay = maxDelayNanos;
+        }
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+
+    private void markLost(Entry entry, long nowNanos) {
+        if (entry.state == LOST) {
+            return;
+        }
+        if (!entry.isInOutage) {
+            entry.isInOutage = true;
+            entry.lostAtNanos = nowNanos;
+            outageCount++;
+        }
+        entry.state = LOST;
+        entry.retryAtNanos = nowNanos + getBackoffNanos(entry.attempts++);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "expected=" + entries.size() + " on_air=" + getOnAirCount() + " outages=" + outageCount
+                + " retries=" + retryCount + " abandoned=" + abandonedCount
+                + " recovery " + recoveryTimes;
+    }
+}
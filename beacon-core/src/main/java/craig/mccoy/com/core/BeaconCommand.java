@@ -0,0 +1,93 @@
+package craig.mccoy.com.core;
+
+/**
+ * Packs one advertising control command into a long, so a batch of commands crosses a binder
+ * call as a single long[] without any per-command objects.
+ * Layout: opcode (bits 56-63), beacon type ordinal (bits 48-55, 0xFF for none), unique code (bits 0-31).
+ * A status snapshot is a long[] with a fixed header followed by one OP_ADD entry per beacon on air.
+ */
+public final class BeaconCommand {
+
+    public static final int OP_ADD = 1;
+    public static final int OP_REMOVE = 2;
+    /** Switches the running beacon of the type to the code in place, or starts it if none is on air. */
+    public static final int OP_SET_CODE = 3;
+    /** Takes every beacon off air but remembers them for OP_RESUME. */
+    public static final int OP_PAUSE = 4;
+    public static final int OP_RESUME = 5;
+    public static final int OP_REMOVE_ALL = 6;
+    /** Replaces every beacon on air with this one; a single beacon of the same type is updated in place. */
+    public static final int OP_REPLACE = 7;
+    /** Runs an action registered by the queue under the unique code; never merged or discarded. */
+    public static final int OP_CALLBACK = 8;
+
+    public static final int STATUS_FLAGS = 0;
+    public static final int STATUS_COMMAND_COUNT = 1;
+    public static final int STATUS_LATENCY_MEAN_NANOS = 2;
+    public static final int STATUS_LATENCY_MAX_NANOS = 3;
+    public static final int STATUS_HEADER_LENGTH = 4;
+
+    public static final long FLAG_ADVERTISING = 1;
+    public static final long FLAG_PAUSED = 1 << 1;
+
+    private static final int NO_TYPE = 0xFF;
+    private static final BeaconType[] TYPES = BeaconType.values();
+
+    private BeaconCommand() {
+    }
+
+    public static long encode(int opcode, BeaconType beaconType, int uniqueCode) {
+        int type = beaconType == null ? NO_TYPE : beaconType.ordinal();
+        return ((long) (opcode & 0xFF) << 56) | ((long) type << 48) | (uniqueCode & 0xFFFFFFFFL);
+    }
+
+    public static long encode(int opcode) {
+        return encode(opcode, null, 0);
+    }
+
+    public static int getOpcode(long command) {
+        return (int) (command >>> 56);
+    }
+
+    /**
+     * @return the beacon type of the command, or null for commands that apply to all beacons.
+     * @throws IllegalArgumentException if the ordinal is not a known beacon type.
+     */
+    public static BeaconType getBeaconType(long command) {
+        int type = (int) (command >>> 48) & 0xFF;
+        if (type == NO_TYPE) {
+            return null;
+        }
+        if (type >= TYPES.length) {
+            throw new IllegalArgumentException("Unknown beacon type " + type);
+        }
+        return TYPES[type];
+    }
+
+    /**
+     * @return true if a client may send the command: a known opcode other than OP_CALLBACK, which
+     * only the command queue issues, and a known beacon type or none.
+     */
+    public static boolean isClientCommand(long command) {
+        int opcode = getOpcode(command);
+        int type = (int) (command >>> 48) & 0xFF;
+        return opcode >= OP_ADD && opcode <= OP_REPLACE && (type == NO_TYPE || type < TYPES.length);
+    }
+
+    public static int getUniqueCode(long command) {
+        return (int) command;
+    }
+
+    public static int getBeaconCount(long[] status) {
+        return status.length - STATUS_HEADER_LENGTH;
+    }
+
+    /**
+     * Never throws, so it is safe to log a command that failed to decode.
+     */
+    public static String toString(long command) {
+        int type = (int) (command >>> 48) & 0xFF;
+        String beaconType = type == NO_TYPE ? "null" : type < TYPES.length ? TYPES[type].name() : "?" + type;
+        return getOpcode(command) + ":" + beaconType + ":" + Integer.toHexString(getUniqueCode(command));
+    }
+}
@@ -0,0 +1,207 @@
+package craig.mccoy.com.core;
+
+/**
+ * Applies packed {@link BeaconCommand}s to an {@link AdvertisingEngine}: adding and removing
+ * beacons, switching codes in place, replacing what is on air, and pausing/resuming the whole set.
+ * Not thread-safe; the caller runs one command at a time (the service runs them on its command
+ * queue thread).
+ *
+ * @param <D> the payload type of the engine.
+ */
+public final class BeaconCommandProcessor<D> {
+
+    /**
+     * Gives the processor its engine and lets the owner react to the beacons it adds and removes,
+     * e.g. to start or stop a telemetry updater.
+     */
+    public interface Host<D> {
+        /**
+         * @param create true if the engine should be created when there is none yet.
+         * @return the engine, or null if there is none or it cannot be created.
+         */
+        AdvertisingEngine<D> getEngine(boolean create);
+
+        default void onBeaconAdded(BeaconType beaconType, int uniqueCode) {
+        }
+
+        default void onBeaconRemoved(BeaconType beaconType, int uniqueCode) {
+        }
+
+        /**
+         * Called before every beacon is removed, e.g. to stop a rotation first.
+         */
+        default void onRemoveAll() {
+        }
+
+        /**
+         * @return true while a rotation owns the beacon on air: a replace must not patch it, and
+         * adds, removes and code changes are rejected so they cannot pull it from under the rotation.
+         */
+        default boolean isRotating() {
+            return false;
+        }
+
+        /**
+         * Called for a command that is skipped: one {@link #applyAll} cannot decode, or one
+         * {@link #isRotating} rules out.
+         */
+        default void onRejected(long command, String reason) {
+        }
+    }
+
+    private final Host<D> host;
+    private long[] pausedBeacons = null;
+
+    public BeaconCommandProcessor(Host<D> host) {
+        this.host = host;
+    }
+
+    /**
+     * Applies a batch in order.  A command that cannot be decoded is reported to the host and
+     * skipped; the rest of the batch still runs.
+     * @return the number of commands that changed what is on air.
+     */
+    public int applyAll(long[] commands) {
+        int applied = 0;
+        for (long command : commands) {
+            try {
+                if (apply(command)) {
+                    applied++;
+                }
+            } catch (IllegalArgumentException e) {
+                host.onRejected(command, e.getMessage());
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * @return true if the command changed what is on air.
+     * @throws IllegalArgumentException if the command cannot be decoded or lacks its beacon type.
+     */
+    public boolean apply(long command) {
+        int opcode = BeaconCommand.getOpcode(command);
+        BeaconType beaconType = BeaconCommand.getBeaconType(command);
+        int uniqueCode = BeaconCommand.getUniqueCode(command);
+        if ((opcode == BeaconCommand.OP_ADD || opcode == BeaconCommand.OP_REMOVE || opcode == BeaconCommand.OP_SET_CODE)
+                && host.isRotating()) {
+            host.onRejected(command, "a rotation owns the beacons on air");
+            return false;
+        }
+        switch (opcode) {
+            case BeaconCommand.OP_ADD:
+                return addBeacon(requireBeaconType(beaconType), uniqueCode);
+            case BeaconCommand.OP_REMOVE:
+                return removeBeacon(requireBeaconType(beaconType), uniqueCode);
+            case BeaconCommand.OP_SET_CODE:
+                return setUniqueCode(requireBeaconType(beaconType), uniqueCode);
+            case BeaconCommand.OP_PAUSE:
+                AdvertisingEngine<D> engine = host.getEngine(false);
+                if (pausedBeacons != null || engine == null) {
+                    return false;
+                }
+                pausedBeacons = engine.getBeaconCommands();
+                removeAll();
+                return true;
+            case BeaconCommand.OP_RESUME:
+                if (pausedBeacons == null) {
+                    return false;
+                }
+                long[] beacons = pausedBeacons;
+                pausedBeacons = null;
+                for (long beacon : beacons) {
+                    apply(beacon);
+                }
+                return true;
+            case BeaconCommand.OP_REPLACE:
+                pausedBeacons = null;
+                return replaceBeacons(requireBeaconType(beaconType), uniqueCode);
+            case BeaconCommand.OP_REMOVE_ALL:
+                pausedBeacons = null;
+                removeAll();
+                return true;
+            default:
+                throw new IllegalArgumentException("Unknown opcode " + opcode);
+        }
+    }
+
+    /**
+     * Takes every beacon off the air without remembering them.
+     */
+    public void removeAll() {
+        host.onRemoveAll();
+        AdvertisingEngine<D> engine = host.getEngine(false);
+        if (engine != null) {
+            engine.removeAllBeacons();
+        }
+    }
+
+    /**
+     * Starts a beacon the stack dropped again, e.g. a retry handed out by the watchdog: drops the
+     * stale set the engine may still hold, then adds the beacon through the same path as OP_ADD,
+     * so the host can restart what goes with it (e.g. a telemetry updater).  Allowed while rotating.
+     * @return false if the beacon could not be added.
+     */
+    public boolean restartBeacon(BeaconType beaconType, int uniqueCode) {
+        AdvertisingEngine<D> engine = host.getEngine(false);
+        if (engine != null) {
+            engine.removeBeacon(beaconType, uniqueCode);
+        }
+        return addBeacon(beaconType, uniqueCode);
+    }
+
+    public boolean isPaused() {
+        return pausedBeacons != null;
+    }
+
+    public void clearPaused() {
+        pausedBeacons = null;
+    }
+
+    private boolean addBeacon(BeaconType beaconType, int uniqueCode) {
+        AdvertisingEngine<D> engine = host.getEngine(true);
+        if (engine == null || !engine.addBeacon(beaconType, uniqueCode)) {
+            return false;
+        }
+        host.onBeaconAdded(beaconType, uniqueCode);
+        return true;
+    }
+
+    private boolean removeBeacon(BeaconType beaconType, int uniqueCode) {
+        AdvertisingEngine<D> engine = host.getEngine(false);
+        boolean isRemoved = engine != null && engine.removeBeacon(beaconType, uniqueCode);
+        host.onBeaconRemoved(beaconType, uniqueCode);
+        return isRemoved;
+    }
+
+    private boolean setUniqueCode(BeaconType beaconType, int uniqueCode) {
+        AdvertisingEngine<D> engine = host.getEngine(false);
+        Integer runningCode = engine == null ? null : engine.findUniqueCode(beaconType);
+        return runningCode != null ? engine.updateUniqueCode(beaconType, runningCode, uniqueCode, null)
+                : addBeacon(beaconType, uniqueCode);
+    }
+
+    /**
+     * Replaces whatever is on air with the given beacon.  If the only beacon on air has the same
+     * type, its code is switched in place so scanners keep seeing it.
+     */
+    private boolean replaceBeacons(BeaconType beaconType, int uniqueCode) {
+        AdvertisingEngine<D> engine = host.getEngine(false);
+        if (!host.isRotating() && engine != null && engine.getBeaconCount() == 1
+                && beaconType != BeaconType.EddystoneTlm) {
+            Integer runningCode = engine.findUniqueCode(beaconType);
+            if (runningCode != null && engine.updateUniqueCode(beaconType, runningCode, uniqueCode, null)) {
+                return true;
+            }
+        }
+        removeAll();
+        return addBeacon(beaconType, uniqueCode);
+    }
+
+    private static BeaconType requireBeaconType(BeaconType beaconType) {
+        if (beaconType == null) {
+            throw new IllegalArgumentException("Missing beacon type");
+        }
+        return beaconType;
+    }
+}
@@ -0,0 +1,269 @@
+package craig.mccoy.com.core;
+
+/**
+ * Keeps a one-dimensional Kalman filter of the RSSI of every observed beacon and turns the
+ * filtered RSSI into a distance with the log-distance path loss model, using the reference RSSI
+ * at 1 m carried in the frame.
+ * The filter state lives in parallel primitive arrays indexed through an open-addressing table
+ * of long keys (see {@link #keyOf}), so an update is O(1) and does not allocate; the arrays only
+ * grow when the table passes its load factor.  Not thread safe: feed it from one thread.
+ */
+public final class BeaconDistanceEstimator {
+
+    public static final double DEFAULT_PATH_LOSS_EXPONENT = 2.0;
+    public static final float DEFAULT_PROCESS_NOISE = 0.05f;
+    public static final float DEFAULT_MEASUREMENT_NOISE = 4.0f;
+
+    private static final long EMPTY = 0;
+    // Substituted for a real key of 0 so that 0 can mark an empty slot
+    private static final long ZERO_KEY = 0x9E3779B97F4A7C15L;
+    private static final float MAX_LOAD_FACTOR = 0.75f;
+    private static final int MIN_CAPACITY = 16;
+
+    /** Size of one slot of the table: key, filtered RSSI, error covariance, reference RSSI, last update. */
+    public static final int BYTES_PER_SLOT = 8 + 4 + 4 + 1 + 8;
+
+    private final double pathLossExponent;
+    private final float processNoise;
+    private final float measurementNoise;
+
+    private long[] keys;
+    private float[] filteredRssi;
+    private float[] errorCovariance;
+    private byte[] referenceRssi;
+    private long[] lastUpdateNanos;
+    private int mask;
+    private int size = 0;
+    private int resizeThreshold;
+
+    public BeaconDistanceEstimator(int expectedBeacons) {
+        this(expectedBeacons, DEFAULT_PATH_LOSS_EXPONENT, DEFAULT_PROCESS_NOISE, DEFAULT_MEASUREMENT_NOISE);
+    }
+
+    public BeaconDistanceEstimator(int expectedBeacons, double pathLossExponent, float processNoise, float measurementNoise) {
+        this.pathLossExponent = pathLossExponent;
+        this.processNoise = processNoise;
+        this.measurementNoise = measurementNoise;
+        allocate(capacityFor(expectedBeacons));
+    }
+
+    /**
+     * @return a 64 bit key identifying the beacon of a parsed frame: a mix of its UUID, type and
+     * code.  Keys of distinct beacons can collide, but with 64 bits that is negligible for a fleet
+     * of tens of thousands.
+     */
+    public static long keyOf(BeaconFrame frame) {
+        long h = frame.uuidMostSignificantBits * 0x9E3779B97F4A7C15L;
+        h = (h ^ frame.uuidLeastSignificantBits) * 0xC2B2AE3D27D4EB4FL;
+        h = (h ^ ((long) frame.beaconType.ordinal() << 32 | (frame.code & 0xFFFFFFFFL))) * 0x165667B19E3779F9L;
+        return h ^ (h >>> 29);
+    }
+
+    /**
+     * Adds an RSSI sample of a beacon.
+     * @return the estimated distance in meters.
+     */
+    public double update(long key, int rssi, int referenceRssiAt1m, long timestampNanos) {
+        int slot = findOrInsert(key);
+        float estimate;
+        if (lastUpdateNanos[slot] == 0) {
+            // First sample seeds the filter
+            estimate = rssi;
+            errorCovariance[slot] = measurementNoise;
+        } else {
+            float predictedCovariance = errorCovariance[slot] + processNoise;
+            float gain = predictedCovariance / (predictedCovariance + measurementNoise);
+            estimate = filteredRssi[slot] + gain * (rssi - filteredRssi[slot]);
+            errorCovariance[slot] = (1 - gain) * predictedCovariance;
+        }
+        filteredRssi[slot] = estimate;
+        referenceRssi[slot] = (byte) referenceRssiAt1m;
+        lastUpdateNanos[slot] = timestampNanos == 0 ? 1 : timestampNanos;
+        return toDistance(referenceRssiAt1m, estimate);
+    }
+
+    public double update(BeaconFrame frame, int rssi, long timestampNanos) {
+        return update(keyOf(frame), rssi, frame.referenceRssi, timestampNanos);
+    }
+
+    /**
+     * @return the last estimated distance in meters, or NaN if the beacon has not been seen.
+     */
+    public double getDistance(long key) {
+        int slot = find(key);
+        return slot < 0 ? Double.NaN : toDistance(referenceRssi[slot], filteredRssi[slot]);
+    }
+
+    /**
+     * @return the filtered RSSI in dBm, or NaN if the beacon has not been seen.
+     */
+    public float getFilteredRssi(long key) {
+        int slot = find(key);
+        return slot < 0 ? Float.NaN : filteredRssi[slot];
+    }
+
+    public boolean remove(long key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return false;
+        }
+        deleteSlot(slot);
+        return true;
+    }
+
+    /**
+     * Forgets every beacon not updated since the given time.
+     * @return the number of beacons removed.
+     */
+    public int removeOlderThan(long timestampNanos) {
+        int removed = 0;
+        int slot = 0;
+        while (slot < keys.length) {
+            if (keys[slot] != EMPTY && lastUpdateNanos[slot] - timestampNanos < 0) {
+                // Deleting shifts a later entry into this slot, so look at it again
+                deleteSlot(slot);
+                removed++;
+            } else {
+                slot++;
+            }
+        }
+        return removed;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return the memory used by the table per tracked beacon, in bytes.
+     */
+    public double getBytesPerBeacon() {
+        return size == 0 ? 0 : (double) keys.length * BYTES_PER_SLOT / size;
+    }
+
+    private double toDistance(int referenceRssiAt1m, float rssi) {
+        return Math.pow(10.0, (referenceRssiAt1m - rssi) / (10.0 * pathLossExponent));
+    }
+
+    private static long normalize(long key) {
+        return key == EMPTY ? ZERO_KEY : key;
+    }
+
+    private static int mix(long key) {
+        long h = key ^ (key >>> 32);
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int find(long key) {
+        key = normalize(key);
+        int slot = mix(key) & mask;
+        while (true) {
+            long k = keys[slot];
+            if (k == key) {
+                return slot;
+            }
+            if (k == EMPTY) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int findOrInsert(long key) {
+        key = normalize(key);
+        int slot = mix(key) & mask;
+        while (true) {
+            long k = keys[slot];
+            if (k == key) {
+                return slot;
+            }
+            if (k == EMPTY) {
+                if (size >= resizeThreshold) {
+                    resize();
+                    return findOrInsert(key);
+                }
+                keys[slot] = key;
+                lastUpdateNanos[slot] = 0;
+                size++;
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Backward-shift deletion, so no tombstones are needed.
+     */
+    private void deleteSlot(int slot) {
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (keys[next] != EMPTY) {
+            int home = mix(keys[next]) & mask;
+            // Move the entry back if its home is not in (hole, next]
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                moveSlot(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = EMPTY;
+        lastUpdateNanos[hole] = 0;
+        size--;
+    }
+
+    private void moveSlot(int from, int to) {
+        keys[to] = keys[from];
+        filteredRssi[to] = filteredRssi[from];
+        errorCovariance[to] = errorCovariance[from];
+        referenceRssi[to] = referenceRssi[from];
+        lastUpdateNanos[to] = lastUpdateNanos[from];
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        float[] oldFilteredRssi = filteredRssi;
+        float[] oldErrorCovariance = errorCovariance;
+        byte[] oldReferenceRssi = referenceRssi;
+        long[] oldLastUpdateNanos = lastUpdateNanos;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != EMPTY) {
+                int slot = mix(key) & mask;
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                filteredRssi[slot] = oldFilteredRssi[i];
+                errorCovariance[slot] = oldErrorCovariance[i];
+                referenceRssi[slot] = oldReferenceRssi[i];
+                lastUpdateNanos[slot] = oldLastUpdateNanos[i];
+                size++;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        filteredRssi = new float[capacity];
+        errorCovariance = new float[capacity];
+        referenceRssi = new byte[capacity];
+        lastUpdateNanos = new long[capacity];
+        mask = capacity - 1;
+        size = 0;
+        resizeThreshold = (int) (capacity * MAX_LOAD_FACTOR);
+    }
+
+    private static int capacityFor(int expectedEntries) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * MAX_LOAD_FACTOR < expectedEntries) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
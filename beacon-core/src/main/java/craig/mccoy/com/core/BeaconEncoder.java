@@ -0,0 +1,159 @@
+package craig.mccoy.com.core;
+
+import java.util.UUID;
+
+/**
+ * Encodes the manufacturer-specific data of the supported beacon formats.
+ * The encoders write into a caller-supplied buffer so the hot paths can reuse their buffers;
+ * the UUID is passed as its 16 big-endian bytes, which can be computed once with
+ * {@link #getIdAsBytes(UUID)}.
+ */
+public final class BeaconEncoder {
+
+    public static final int ALT_BEACON_MANUFACTURER_ID = 224;   // google's company ID
+    public static final int I_BEACON_MANUFACTURER_ID = 76;      // apple's company ID
+
+    public static final int UUID_LENGTH = 16;
+    public static final int UUID_OFFSET = 2;
+
+    public static final int ALT_BEACON_LENGTH = 24;
+    public static final int ALT_BEACON_CODE_OFFSET = 18;
+
+    public static final int I_BEACON_LENGTH = 23;
+    public static final int I_BEACON_MAJOR_OFFSET = 18;
+    public static final int I_BEACON_MINOR_OFFSET = 20;
+    public static final int I_BEACON_DEFAULT_MAJOR = 0x0001;
+    public static final int I_BEACON_DEFAULT_MINOR = 0x0000;
+
+    // Reference RSSI - A 1-byte value representing the average received signal strength
+    // at 1m from the advertiser
+    public static final byte REFERENCE_RSSI = (byte)0xCC; // reference RSSI (-52 dBm)
+    public static final int REFERENCE_RSSI_OFFSET = 22;
+
+    private BeaconEncoder() {
+    }
+
+    /**
+     * @return the manufacturer ID of the beacon type, or -1 if the beacon type does not carry
+     * manufacturer data (a BLE 1M PHY beacon only advertises the device name and TX power and
+     * the Eddystone frames are service data, see {@link EddystoneEncoder}).
+     */
+    public static int getManufacturerId(BeaconType beaconType) {
+        switch (beaconType) {
+            case AltBeacon:
+                return ALT_BEACON_MANUFACTURER_ID;
+            case IBeacon:
+                return I_BEACON_MANUFACTURER_ID;
+            case Ble1MBeacon:
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return the length of the manufacturer data of the beacon type (0 if it has none).
+     */
+    public static int getManufacturerDataLength(BeaconType beaconType) {
+        switch (beaconType) {
+            case AltBeacon:
+                return ALT_BEACON_LENGTH;
+            case IBeacon:
+                return I_BEACON_LENGTH;
+            case Ble1MBeacon:
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Encodes the manufacturer data of the beacon type into out, starting at index 0.
+     * @return the number of bytes written.
+     */
+    public static int encode(BeaconType beaconType, byte[] uuid, int uniqueCode, byte[] out) {
+        switch (beaconType) {
+            case AltBeacon:
+                return encodeAltBeacon(uuid, uniqueCode, out);
+            case IBeacon:
+                return encodeIBeacon(uuid, I_BEACON_DEFAULT_MAJOR, I_BEACON_DEFAULT_MINOR, out);
+            case Ble1MBeacon:
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return a newly allocated buffer holding the manufacturer data of the beacon type.
+     */
+    public static byte[] encode(BeaconType beaconType, byte[] uuid, int uniqueCode) {
+        byte[] out = new byte[getManufacturerDataLength(beaconType)];
+        encode(beaconType, uuid, uniqueCode, out);
+        return out;
+    }
+
+    public static int encodeAltBeacon(byte[] uuid, int uniqueCode, byte[] out) {
+        // Beacon Code - 0xBEAC the AltBeacon advertisement code
+        putShort(out, 0, 0xBEAC); // AltBeacon Identifier
+        // Beacon ID - UUID
+        System.arraycopy(uuid, 0, out, UUID_OFFSET, UUID_LENGTH);
+        // 8 Byte Data - Unique Code
+        putInt(out, ALT_BEACON_CODE_OFFSET, uniqueCode);
+        out[REFERENCE_RSSI_OFFSET] = REFERENCE_RSSI;
+        // Mfg Reserved
+        out[23] = 0;
+        return ALT_BEACON_LENGTH;
+    }
+
+    public static int encodeIBeacon(byte[] uuid, int major, int minor, byte[] out) {
+        putShort(out, 0, 0x0215); // iBeacon Identifier
+        // Beacon ID - UUID
+        System.arraycopy(uuid, 0, out, UUID_OFFSET, UUID_LENGTH);
+        // Major Version Number
+        putShort(out, I_BEACON_MAJOR_OFFSET, major);
+        // Minor Version Number
+        putShort(out, I_BEACON_MINOR_OFFSET, minor);
+        out[REFERENCE_RSSI_OFFSET] = REFERENCE_RSSI;
+        return I_BEACON_LENGTH;
+    }
+
+    /**
+     * Replaces the unique code of an already encoded AltBeacon frame.
+     */
+    public static void patchAltBeaconCode(byte[] altBeacon, int uniqueCode) {
+        putInt(altBeacon, ALT_BEACON_CODE_OFFSET, uniqueCode);
+    }
+
+    /**
+     * Replaces the major (high 16 bits) and minor (low 16 bits) of an already encoded iBeacon frame.
+     */
+    public static void patchIBeaconMajorMinor(byte[] iBeacon, int majorMinor) {
+        putInt(iBeacon, I_BEACON_MAJOR_OFFSET, majorMinor);
+    }
+
+    public static byte[] getIdAsBytes(UUID uuid) {
+        byte[] out = new byte[UUID_LENGTH];
+        putUuid(out, 0, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        return out;
+    }
+
+    public static void putUuid(byte[] out, int offset, long mostSignificantBits, long leastSignificantBits) {
+        putLong(out, offset, mostSignificantBits);
+        putLong(out, offset + 8, leastSignificantBits);
+    }
+
+    static void putShort(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 8);
+        out[offset + 1] = (byte) value;
+    }
+
+    static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+
+    static void putLong(byte[] out, int offset, long value) {
+        putInt(out, offset, (int) (value >>> 32));
+        putInt(out, offset + 4, (int) value);
+    }
+}
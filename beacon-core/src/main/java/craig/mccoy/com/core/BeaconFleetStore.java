@@ -0,0 +1,358 @@
+package craig.mccoy.com.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Keeps the beacon definitions of a site in a memory-mapped file of fixed-size records, with a
+ * persisted open-addressing hash index on the type and code: an AltBeacon and an iBeacon with the
+ * same code are different beacons, and so are the code-less types with code 0.
+ * Opening the store only maps the file and checks its header, so startup does not depend on the
+ * fleet size; updating one record writes its 32 bytes and one index slot in place.
+ * The records are kept dense: removing one moves the last record into the hole.
+ * The beacon the user last selected is kept in the header only, apart from the fleet.
+ * <pre>
+ * header  : magic, version, capacity, index slots, size, active code, flags, active type (8 ints)
+ * index   : one int per slot, record index + 1 (0 = empty)
+ * records : status, type, days, reserved, code, uuid msb, uuid lsb, major, minor, start, end
+ * </pre>
+ */
+public final class BeaconFleetStore implements Closeable {
+
+    static final int MAGIC = 0x42464C54; // "BFLT"
+    static final int VERSION = 2;
+    // Same layout, with the index keyed on the code alone; rebuilt on open
+    private static final int VERSION_CODE_INDEX = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 32;
+
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_INDEX_SLOTS = 12;
+    private static final int HEADER_SIZE_FIELD = 16;
+    private static final int HEADER_ACTIVE_CODE = 20;
+    private static final int HEADER_FLAGS = 24;
+    private static final int HEADER_ACTIVE_TYPE = 28;
+    private static final int FLAG_HAS_ACTIVE = 1;
+
+    private static final int RECORD_STATUS = 0;
+    private static final int RECORD_TYPE = 1;
+    private static final int RECORD_DAYS = 2;
+    private static final int RECORD_CODE = 4;
+    private static final int RECORD_UUID_MSB = 8;
+    private static final int RECORD_UUID_LSB = 16;
+    private static final int RECORD_MAJOR = 24;
+    private static final int RECORD_MINOR = 26;
+    private static final int RECORD_START = 28;
+    private static final int RECORD_END = 30;
+    private static final byte STATUS_LIVE = 1;
+
+    private static final BeaconType[] TYPES = BeaconType.values();
+
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int indexSlots;
+    private final int indexMask;
+    private final int recordsOffset;
+    private int size;
+
+    private BeaconFleetStore(RandomAccessFile randomAccessFile, MappedByteBuffer buffer, int capacity, int indexSlots) {
+        this.randomAccessFile = randomAccessFile;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.indexSlots = indexSlots;
+        this.indexMask = indexSlots - 1;
+        this.recordsOffset = HEADER_SIZE + 4 * indexSlots;
+        this.size = buffer.getInt(HEADER_SIZE_FIELD);
+    }
+
+    /**
+     * Opens the store in the given file, creating it with room for the given number of records if
+     * it does not exist.  An existing store keeps the capacity it was created with.
+     * @throws IOException if the file exists but is not a fleet store.
+     */
+    public static BeaconFleetStore open(File file, int capacity) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (randomAccessFile.length() == 0) {
+                if (capacity <= 0) {
+                    throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+                }
+                // A load factor of at most 0.5 keeps the probe sequences short
+                int indexSlots = Integer.highestOneBit(capacity * 2 - 1) << 1;
+                long fileSize = HEADER_SIZE + 4L * indexSlots + (long) RECORD_SIZE * capacity;
+                randomAccessFile.setLength(fileSize);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(HEADER_CAPACITY, capacity)
+                        .putInt(HEADER_INDEX_SLOTS, indexSlots).putInt(HEADER_SIZE_FIELD, 0);
+                return new BeaconFleetStore(randomAccessFile, buffer, capacity, indexSlots);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int storedCapacity = buffer.getInt(HEADER_CAPACITY);
+            int indexSlots = buffer.getInt(HEADER_INDEX_SLOTS);
+            int version = buffer.getInt(4);
+            if (buffer.getInt(0) != MAGIC || (version != VERSION && version != VERSION_CODE_INDEX)
+                    || storedCapacity <= 0 || Integer.bitCount(indexSlots) != 1
+                    || randomAccessFile.length() != HEADER_SIZE + 4L * indexSlots + (long) RECORD_SIZE * storedCapacity) {
+                throw new IOException("Not a beacon fleet store: " + file);
+            }
+            BeaconFleetStore store = new BeaconFleetStore(randomAccessFile, buffer, storedCapacity, indexSlots);
+            if (version == VERSION_CODE_INDEX) {
+                store.rebuildIndex();
+                buffer.putInt(4, VERSION);
+            }
+            return store;
+        } catch (IOException | RuntimeException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Inserts the record, or overwrites the record with the same type and code.
+     * @return the index of the record.
+     * @throws IllegalStateException if the store is full.
+     */
+    public synchronized int put(BeaconRecord record) {
+        int slot = findSlot(typeOf(record.beaconType), record.code);
+        int index = buffer.getInt(slotOffset(slot)) - 1;
+        if (index < 0) {
+            if (size == capacity) {
+                throw new IllegalStateException("Fleet store is full (" + capacity + " records)");
+            }
+            index = size;
+            buffer.putInt(slotOffset(slot), index + 1);
+            setSize(size + 1);
+        }
+        write(index, record);
+        return index;
+    }
+
+    /**
+     * Puts the first count records under one lock, e.g. a batch of an import.
+     * @throws IllegalStateException if the store fills up; the records before that one are kept.
+     */
+    public synchronized void putAll(BeaconRecord[] records, int count) {
+        for (int i = 0; i < count; i++) {
+            put(records[i]);
+        }
+    }
+
+    /**
+     * @return true and fills the holder if a record with the type and code exists.
+     */
+    public synchronized boolean get(BeaconType beaconType, int code, BeaconRecord out) {
+        int index = buffer.getInt(slotOffset(findSlot(typeOf(beaconType), code))) - 1;
+        if (index < 0) {
+            return false;
+        }
+        read(index, out);
+        return true;
+    }
+
+    public synchronized boolean contains(BeaconType beaconType, int code) {
+        return buffer.getInt(slotOffset(findSlot(typeOf(beaconType), code))) != 0;
+    }
+
+    /**
+     * Reads the record at the given index, 0 <= index < size(), e.g. to walk the whole fleet.
+     */
+    public synchronized void read(int index, BeaconRecord out) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Record " + index + " of " + size);
+        }
+        int offset = recordOffset(index);
+        int type = buffer.get(offset + RECORD_TYPE) & 0xFF;
+        out.beaconType = type < TYPES.length ? TYPES[type] : null;
+        out.scheduleDays = buffer.get(offset + RECORD_DAYS) & 0xFF;
+        out.code = buffer.getInt(offset + RECORD_CODE);
+        out.uuidMostSignificantBits = buffer.getLong(offset + RECORD_UUID_MSB);
+        out.uuidLeastSignificantBits = buffer.getLong(offset + RECORD_UUID_LSB);
+        out.major = buffer.getShort(offset + RECORD_MAJOR) & 0xFFFF;
+        out.minor = buffer.getShort(offset + RECORD_MINOR) & 0xFFFF;
+        out.scheduleStartMinute = buffer.getShort(offset + RECORD_START) & 0xFFFF;
+        out.scheduleEndMinute = buffer.getShort(offset + RECORD_END) & 0xFFFF;
+    }
+
+    public synchronized boolean remove(BeaconType beaconType, int code) {
+        int slot = findSlot(typeOf(beaconType), code);
+        int index = buffer.getInt(slotOffset(slot)) - 1;
+        if (index < 0) {
+            return false;
+        }
+        deleteSlot(slot);
+        int last = size - 1;
+        if (index != last) {
+            // Move the last record into the hole and repoint its index slot
+            int lastType = buffer.get(recordOffset(last) + RECORD_TYPE) & 0xFF;
+            int lastCode = buffer.getInt(recordOffset(last) + RECORD_CODE);
+            for (int i = 0; i < RECORD_SIZE; i += 8) {
+                buffer.putLong(recordOffset(index) + i, buffer.getLong(recordOffset(last) + i));
+            }
+            buffer.putInt(slotOffset(findSlot(lastType, lastCode)), index + 1);
+        }
+        buffer.put(recordOffset(last) + RECORD_STATUS, (byte) 0);
+        setSize(last);
+        return true;
+    }
+
+    public synchronized void clear() {
+        for (int slot = 0; slot < indexSlots; slot++) {
+            buffer.putInt(slotOffset(slot), 0);
+        }
+        setSize(0);
+        buffer.putInt(HEADER_FLAGS, 0);
+    }
+
+    /**
+     * Remembers the beacon the user last selected, so it can be restored on startup.  Only the
+     * header is written; the fleet records are left alone.
+     */
+    public synchronized void setActive(BeaconType beaconType, int code) {
+        buffer.putInt(HEADER_ACTIVE_CODE, code);
+        buffer.putInt(HEADER_ACTIVE_TYPE, beaconType == null ? 0xFF : beaconType.ordinal());
+        buffer.putInt(HEADER_FLAGS, buffer.getInt(HEADER_FLAGS) | FLAG_HAS_ACTIVE);
+    }
+
+    /**
+     * @return true and fills the holder with the active selection, if one was set.  The rest of
+     * the holder comes from the fleet record of that type and code, if there is one.
+     */
+    public synchronized boolean getActive(BeaconRecord out) {
+        if ((buffer.getInt(HEADER_FLAGS) & FLAG_HAS_ACTIVE) == 0) {
+            return false;
+        }
+        int code = buffer.getInt(HEADER_ACTIVE_CODE);
+        int type = buffer.getInt(HEADER_ACTIVE_TYPE);
+        BeaconType beaconType = type >= 0 && type < TYPES.length ? TYPES[type] : null;
+        if (!get(beaconType, code, out)) {
+            out.clear();
+            out.beaconType = beaconType;
+            out.code = code;
+        }
+        return true;
+    }
+
+    /**
+     * Flushes the changes to the storage device.  The mapping is shared with the page cache, so
+     * the changes survive a crash of the process without it; this guards against power loss.
+     */
+    public synchronized void force() {
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        randomAccessFile.close();
+    }
+
+    private void write(int index, BeaconRecord record) {
+        int offset = recordOffset(index);
+        buffer.put(offset + RECORD_STATUS, STATUS_LIVE);
+        buffer.put(offset + RECORD_TYPE, (byte) typeOf(record.beaconType));
+        buffer.put(offset + RECORD_DAYS, (byte) record.scheduleDays);
+        buffer.putInt(offset + RECORD_CODE, record.code);
+        buffer.putLong(offset + RECORD_UUID_MSB, record.uuidMostSignificantBits);
+        buffer.putLong(offset + RECORD_UUID_LSB, record.uuidLeastSignificantBits);
+        buffer.putShort(offset + RECORD_MAJOR, (short) record.major);
+        buffer.putShort(offset + RECORD_MINOR, (short) record.minor);
+        buffer.putShort(offset + RECORD_START, (short) record.scheduleStartMinute);
+        buffer.putShort(offset + RECORD_END, (short) record.scheduleEndMinute);
+    }
+
+    /**
+     * @return the slot holding the type and code, or the empty slot ending its probe sequence.
+     */
+    private int findSlot(int type, int code) {
+        int slot = hash(type, code) & indexMask;
+        while (true) {
+            int index = buffer.getInt(slotOffset(slot)) - 1;
+            if (index < 0 || (buffer.getInt(recordOffset(index) + RECORD_CODE) == code
+                    && (buffer.get(recordOffset(index) + RECORD_TYPE) & 0xFF) == type)) {
+                return slot;
+            }
+            slot = (slot + 1) & indexMask;
+        }
+    }
+
+    // Reindexes the live records; a record whose key is already indexed is dropped like a remove
+    private void rebuildIndex() {
+        for (int slot = 0; slot < indexSlots; slot++) {
+            buffer.putInt(slotOffset(slot), 0);
+        }
+        int count = size;
+        setSize(0);
+        for (int index = 0; index < count; index++) {
+            int type = buffer.get(recordOffset(index) + RECORD_TYPE) & 0xFF;
+            int slot = findSlot(type, buffer.getInt(recordOffset(index) + RECORD_CODE));
+            if (buffer.getInt(slotOffset(slot)) == 0) {
+                if (index != size) {
+                    for (int i = 0; i < RECORD_SIZE; i += 8) {
+                        buffer.putLong(recordOffset(size) + i, buffer.getLong(recordOffset(index) + i));
+                    }
+                }
+                buffer.putInt(slotOffset(slot), size + 1);
+                setSize(size + 1);
+            }
+        }
+    }
+
+    // Backward-shift deletion, so lookups never need tombstones
+    private void deleteSlot(int slot) {
+        int hole = slot;
+        int next = (slot + 1) & indexMask;
+        while (true) {
+            int value = buffer.getInt(slotOffset(next));
+            if (value == 0) {
+                break;
+            }
+            int home = hash(buffer.get(recordOffset(value - 1) + RECORD_TYPE) & 0xFF,
+                    buffer.getInt(recordOffset(value - 1) + RECORD_CODE)) & indexMask;
+            if (((next - home) & indexMask) >= ((next - hole) & indexMask)) {
+                buffer.putInt(slotOffset(hole), value);
+                hole = next;
+            }
+            next = (next + 1) & indexMask;
+        }
+        buffer.putInt(slotOffset(hole), 0);
+    }
+
+    private void setSize(int newSize) {
+        size = newSize;
+        buffer.putInt(HEADER_SIZE_FIELD, newSize);
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + 4 * slot;
+    }
+
+    private int recordOffset(int index) {
+        return recordsOffset + RECORD_SIZE * index;
+    }
+
+    private static int typeOf(BeaconType beaconType) {
+        return beaconType == null ? 0xFF : beaconType.ordinal();
+    }
+
+    private static int hash(int type, int code) {
+        int h = (code ^ type * 0x85EBCA6B) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,48 @@
+package craig.mccoy.com.core;
+
+/**
+ * A mutable, reusable holder for one parsed AltBeacon or iBeacon frame.  The parser overwrites
+ * it for every scan result, so the scanning path does not allocate.
+ */
+public final class BeaconFrame {
+    public BeaconType beaconType = null;
+    public int manufacturerId;
+    public long uuidMostSignificantBits;
+    public long uuidLeastSignificantBits;
+    /** AltBeacon unique code, or (major << 16 | minor) for an iBeacon. */
+    public int code;
+    /** Reference RSSI at 1 m, in dBm. */
+    public int referenceRssi;
+
+    public int getMajor() {
+        return code >>> 16;
+    }
+
+    public int getMinor() {
+        return code & 0xFFFF;
+    }
+
+    public void clear() {
+        beaconType = null;
+        manufacturerId = 0;
+        uuidMostSignificantBits = 0;
+        uuidLeastSignificantBits = 0;
+        code = 0;
+        referenceRssi = 0;
+    }
+
+    public void copyFrom(BeaconFrame other) {
+        beaconType = other.beaconType;
+        manufacturerId = other.manufacturerId;
+        uuidMostSignificantBits = other.uuidMostSignificantBits;
+        uuidLeastSignificantBits = other.uuidLeastSignificantBits;
+        code = other.code;
+        referenceRssi = other.referenceRssi;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s{uuid=%016x%016x, code=%x, referenceRssi=%d}", beaconType,
+                uuidMostSignificantBits, uuidLeastSignificantBits, code, referenceRssi);
+    }
+}
@@ -0,0 +1,617 @@
+package craig.mccoy.com.core;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Streams beacon definitions from a CSV or JSON site plan into a {@link BeaconFleetStore}.
+ * The input is read through a fixed buffer and the rows are written to the store in batches of
+ * reusable records, so memory use does not depend on the size of the file.
+ * <p>
+ * CSV: a header row naming the columns, then one beacon per row.  JSON: an array of flat objects.
+ * Either way the fields are type, uuid, code, major, minor, days, start and end; only type is
+ * required.  code is hex (up to 8 digits), days a bit mask (bit 0 = Monday), start/end minutes
+ * since midnight.  An iBeacon without a code is keyed by (major << 16 | minor).
+ * Rows that break the rules of their BeaconType are counted and reported, and the import goes on;
+ * a syntax error in the file stops it with an IOException.  A row with the type and code of an
+ * earlier row is rejected as a duplicate; one that replaces a beacon already in the store is
+ * imported and counted as replaced.  The keys seen are kept for the duplicate check, so memory
+ * grows with the rows imported, which the store capacity bounds.
+ */
+public final class BeaconImporter {
+
+    public interface ProgressListener {
+        void onProgress(long rowsImported, long rowsRejected, long bytesRead, double rowsPerSecond);
+    }
+
+    public static final class Result {
+        public final long rowsImported;
+        /** The imported rows that overwrote a beacon already in the store. */
+        public final long rowsReplaced;
+        public final long rowsRejected;
+        public final long elapsedNanos;
+        public final boolean isCancelled;
+        /** The first rejected rows, as "row N: reason". */
+        public final List<String> errors;
+
+        Result(long rowsImported, long rowsReplaced, long rowsRejected, long elapsedNanos, boolean isCancelled,
+               List<String> errors) {
+            this.rowsImported = rowsImported;
+            this.rowsReplaced = rowsReplaced;
+            this.rowsRejected = rowsRejected;
+            this.elapsedNanos = elapsedNanos;
+            this.isCancelled = isCancelled;
+            this.errors = errors;
+        }
+
+        public double getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rowsImported * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d imported (%d replaced), %d rejected in %d ms (%.0f rows/s)%s", rowsImported,
+                    rowsReplaced, rowsRejected, elapsedNanos / 1_000_000, getRowsPerSecond(), isCancelled ? ", cancelled" : "");
+        }
+    }
+
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+    static final int MAX_ERRORS = 100;
+
+    static final int FIELD_TYPE = 0;
+    static final int FIELD_UUID = 1;
+    static final int FIELD_CODE = 2;
+    static final int FIELD_MAJOR = 3;
+    static final int FIELD_MINOR = 4;
+    static final int FIELD_DAYS = 5;
+    static final int FIELD_START = 6;
+    static final int FIELD_END = 7;
+    private static final String[] FIELD_NAMES = { "type", "uuid", "code", "major", "minor", "days", "start", "end" };
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int EOF = -1;
+
+    private final BeaconFleetStore store;
+    private final long defaultUuidMostSignificantBits;
+    private final long defaultUuidLeastSignificantBits;
+    private final BeaconRecord[] batch;
+    private ProgressListener progressListener = null;
+    private volatile boolean isCancelled = false;
+
+    // Parsing state of the current import
+    private Reader reader;
+    private CountingInputStream countingStream;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private final StringBuilder token = new StringBuilder();
+    private final String[] values = new String[FIELD_NAMES.length];
+    private int batchSize;
+    private long rowNumber;
+    private long rowsImported;
+    private long rowsReplaced;
+    private long rowsRejected;
+    // Open-addressing set of the keys imported so far, AdvertisingEngine.toKey + 1 (0 = empty)
+    private long[] seenKeys;
+    private int seenCount;
+    private long startNanos;
+    private List<String> errors;
+    private String lastUuid = null;
+    private long lastUuidMostSignificantBits;
+    private long lastUuidLeastSignificantBits;
+
+    public BeaconImporter(BeaconFleetStore store, UUID defaultUuid, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.store = store;
+        this.defaultUuidMostSignificantBits = defaultUuid.getMostSignificantBits();
+        this.defaultUuidLeastSignificantBits = defaultUuid.getLeastSignificantBits();
+        this.batch = new BeaconRecord[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            batch[i] = new BeaconRecord();
+        }
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Stops a running import after the current batch; the rows already written stay in the store.
+     */
+    public void cancel() {
+        isCancelled = true;
+    }
+
+    /**
+     * Imports the whole stream, detecting the format from its first character ('[' for JSON).
+     * The stream is not closed.
+     * @throws IOException on a read error or malformed file.
+     * @throws IllegalStateException if the store fills up.
+     */
+    public Result importFrom(InputStream inputStream) throws IOException {
+        countingStream = new CountingInputStream(inputStream);
+        reader = new InputStreamReader(countingStream, StandardCharsets.UTF_8);
+        position = 0;
+        limit = 0;
+        batchSize = 0;
+        rowNumber = 0;
+        rowsImported = 0;
+        rowsReplaced = 0;
+        rowsRejected = 0;
+        seenKeys = new long[2 * batch.length];
+        seenCount = 0;
+        errors = new ArrayList<>();
+        lastUuid = null;
+        isCancelled = false;
+        startNanos = System.nanoTime();
+        try {
+            skipWhitespace();
+            if (peek() == '[') {
+                importJson();
+            } else {
+                importCsv();
+            }
+            flushBatch();
+        } finally {
+            reader = null;
+        }
+        return new Result(rowsImported, rowsReplaced, rowsRejected, System.nanoTime() - startNanos, isCancelled, errors);
+    }
+
+    private void importCsv() throws IOException {
+        List<String> fields = new ArrayList<>();
+        if (!readCsvRecord(fields)) {
+            return;
+        }
+        int[] columns = new int[fields.size()];
+        boolean hasType = false;
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = toField(fields.get(i).trim());
+            hasType |= columns[i] == FIELD_TYPE;
+        }
+        if (!hasType) {
+            throw new IOException("The CSV header has no type column");
+        }
+        while (!isCancelled && readCsvRecord(fields)) {
+            if (fields.size() == 1 && fields.get(0).isEmpty()) {
+                continue;
+            }
+            clearValues();
+            for (int i = 0; i < fields.size() && i < columns.length; i++) {
+                if (columns[i] >= 0) {
+                    values[columns[i]] = fields.get(i).trim();
+                }
+            }
+            addRow();
+        }
+    }
+
+    /**
+     * Reads one CSV record into fields, handling quoted fields with "" escapes.
+     * @return false at the end of the input.
+     */
+    private boolean readCsvRecord(List<String> fields) throws IOException {
+        fields.clear();
+        int c = read();
+        if (c == EOF) {
+            return false;
+        }
+        token.setLength(0);
+        boolean isQuoted = false;
+        while (true) {
+            if (isQuoted) {
+                if (c == EOF) {
+                    throw new IOException("Unterminated quote at row " + (rowNumber + 1));
+                } else if (c == '"') {
+                    if (peek() == '"') {
+                        read();
+                        token.append('"');
+                    } else {
+                        isQuoted = false;
+                    }
+                } else {
+                    token.append((char) c);
+                }
+            } else if (c == ',') {
+                fields.add(token.toString());
+                token.setLength(0);
+            } else if (c == '\n' || c == EOF) {
+                break;
+            } else if (c == '"' && token.length() == 0) {
+                isQuoted = true;
+            } else if (c != '\r') {
+                token.append((char) c);
+            }
+            c = read();
+        }
+        fields.add(token.toString());
+        return true;
+    }
+
+    private void importJson() throws IOException {
+        expect('[');
+        skipWhitespace();
+        if (peek() == ']') {
+            read();
+            return;
+        }
+        while (!isCancelled) {
+            skipWhitespace();
+            expect('{');
+            clearValues();
+            skipWhitespace();
+            if (peek() == '}') {
+                read();
+            } else {
+                while (true) {
+                    skipWhitespace();
+                    String key = readJsonString();
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                    String value = readJsonValue();
+                    int field = toField(key);
+                    if (field >= 0) {
+                        values[field] = value;
+                    }
+                    skipWhitespace();
+                    int c = read();
+                    if (c == '}') {
+                        break;
+                    } else if (c != ',') {
+                        throw syntaxError("',' or '}'", c);
+                    }
+                }
+            }
+            addRow();
+            skipWhitespace();
+            int c = read();
+            if (c == ']') {
+                return;
+            } else if (c != ',') {
+                throw syntaxError("',' or ']'", c);
+            }
+        }
+    }
+
+    private String readJsonValue() throws IOException {
+        int c = peek();
+        if (c == '"') {
+            return readJsonString();
+        }
+        if (c == '{' || c == '[') {
+            throw new IOException("Nested values are not supported at row " + (rowNumber + 1));
+        }
+        token.setLength(0);
+        while ((c = peek()) != EOF && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+            token.append((char) read());
+        }
+        String literal = token.toString();
+        return literal.equals("null") ? null : literal;
+    }
+
+    private String readJsonString() throws IOException {
+        expect('"');
+        token.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == EOF) {
+                throw new IOException("Unterminated string at row " + (rowNumber + 1));
+            } else if (c == '"') {
+                return token.toString();
+            } else if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case 'n': token.append('\n'); break;
+                    case 't': token.append('\t'); break;
+                    case 'r': token.append('\r'); break;
+                    case 'b': token.append('\b'); break;
+                    case 'f': token.append('\f'); break;
+                    case 'u':
+                        int codePoint = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(read(), 16);
+                            if (digit < 0) {
+                                throw new IOException("Bad \\u escape at row " + (rowNumber + 1));
+                            }
+                            codePoint = codePoint << 4 | digit;
+                        }
+                        token.append((char) codePoint);
+                        break;
+                    case EOF:
+                        throw new IOException("Unterminated string at row " + (rowNumber + 1));
+                    default:
+                        token.append((char) c);
+                        break;
+                }
+            } else {
+                token.append((char) c);
+            }
+        }
+    }
+
+    private void addRow() throws IOException {
+        rowNumber++;
+        BeaconRecord record = batch[batchSize];
+        String error = validate(values, record);
+        if (error == null && !markSeen(AdvertisingEngine.toKey(record.beaconType, record.code))) {
+            error = "duplicate " + record.beaconType + " " + Integer.toHexString(record.code);
+        }
+        if (error != null) {
+            rowsRejected++;
+            if (errors.size() < MAX_ERRORS) {
+                errors.add("row " + rowNumber + ": " + error);
+            }
+            return;
+        }
+        if (store.contains(record.beaconType, record.code)) {
+            rowsReplaced++;
+        }
+        if (++batchSize == batch.length) {
+            flushBatch();
+        }
+    }
+
+    private void flushBatch() {
+        if (batchSize == 0) {
+            return;
+        }
+        store.putAll(batch, batchSize);
+        rowsImported += batchSize;
+        batchSize = 0;
+        ProgressListener listener = progressListener;
+        if (listener != null) {
+            long elapsedNanos = System.nanoTime() - startNanos;
+            listener.onProgress(rowsImported, rowsRejected, countingStream.count,
+                    elapsedNanos == 0 ? 0 : rowsImported * 1e9 / elapsedNanos);
+        }
+    }
+
+    // @return false if the key was already imported
+    private boolean markSeen(long key) {
+        if (2 * (seenCount + 1) > seenKeys.length) {
+            long[] old = seenKeys;
+            seenKeys = new long[old.length * 2];
+            for (long value : old) {
+                if (value != 0) {
+                    insertSeen(value);
+                }
+            }
+        }
+        if (!insertSeen(key + 1)) {
+            return false;
+        }
+        seenCount++;
+        return true;
+    }
+
+    private boolean insertSeen(long value) {
+        int mask = seenKeys.length - 1;
+        long h = value * 0x9E3779B97F4A7C15L;
+        int slot = (int) (h ^ (h >>> 32)) & mask;
+        while (seenKeys[slot] != 0) {
+            if (seenKeys[slot] == value) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        seenKeys[slot] = value;
+        return true;
+    }
+
+    /**
+     * Fills the record from the row values.
+     * @return null if the row is valid, otherwise the reason it is rejected.
+     */
+    String validate(String[] values, BeaconRecord record) {
+        record.clear();
+        String typeValue = values[FIELD_TYPE];
+        if (typeValue == null || typeValue.isEmpty()) {
+            return "missing type";
+        }
+        record.beaconType = parseBeaconType(typeValue);
+        if (record.beaconType == null) {
+            return "unknown type '" + typeValue + "'";
+        }
+
+        String uuidValue = values[FIELD_UUID];
+        if (uuidValue == null || uuidValue.isEmpty()) {
+            record.uuidMostSignificantBits = defaultUuidMostSignificantBits;
+            record.uuidLeastSignificantBits = defaultUuidLeastSignificantBits;
+        } else {
+            if (!uuidValue.equals(lastUuid)) {
+                // Site plans mostly share one UUID, so only parse it when it changes
+                try {
+                    UUID uuid = UUID.fromString(uuidValue);
+                    lastUuidMostSignificantBits = uuid.getMostSignificantBits();
+                    lastUuidLeastSignificantBits = uuid.getLeastSignificantBits();
+                    lastUuid = uuidValue;
+                } catch (IllegalArgumentException e) {
+                    return "bad uuid '" + uuidValue + "'";
+                }
+            }
+            record.uuidMostSignificantBits = lastUuidMostSignificantBits;
+            record.uuidLeastSignificantBits = lastUuidLeastSignificantBits;
+        }
+
+        record.major = parseInt(values[FIELD_MAJOR], 0);
+        record.minor = parseInt(values[FIELD_MINOR], 0);
+        if (record.major < 0 || record.major > 0xFFFF || record.minor < 0 || record.minor > 0xFFFF) {
+            return "major and minor must be 0..65535";
+        }
+
+        String codeValue = values[FIELD_CODE];
+        boolean hasCode = codeValue != null && !codeValue.isEmpty();
+        if (hasCode) {
+            long code = parseHex(codeValue);
+            if (code < 0) {
+                return "code '" + codeValue + "' is not a 32-bit hex value";
+            }
+            record.code = (int) code;
+        }
+        switch (record.beaconType) {
+            case AltBeacon:
+            case EddystoneUid:
+                if (!hasCode) {
+                    return record.beaconType + " needs a code";
+                }
+                break;
+            case IBeacon:
+                if (!hasCode) {
+                    record.code = record.major << 16 | record.minor;
+                }
+                break;
+            default:
+                break;
+        }
+
+        record.scheduleDays = parseInt(values[FIELD_DAYS], BeaconRecord.ALL_DAYS);
+        record.scheduleStartMinute = parseInt(values[FIELD_START], 0);
+        record.scheduleEndMinute = parseInt(values[FIELD_END], BeaconRecord.MINUTES_PER_DAY);
+        if (record.scheduleDays < 0 || record.scheduleDays > BeaconRecord.ALL_DAYS) {
+            return "days must be a 7-bit mask";
+        }
+        if (record.scheduleStartMinute < 0 || record.scheduleEndMinute > BeaconRecord.MINUTES_PER_DAY
+                || record.scheduleStartMinute >= record.scheduleEndMinute) {
+            return "schedule must satisfy 0 <= start < end <= " + BeaconRecord.MINUTES_PER_DAY;
+        }
+        return null;
+    }
+
+    private static BeaconType parseBeaconType(String value) {
+        for (BeaconType beaconType : BeaconType.values()) {
+            if (beaconType.name().equalsIgnoreCase(value)) {
+                return beaconType;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the value of up to 8 hex digits (optionally prefixed with 0x), or -1 if invalid.
+     */
+    static long parseHex(String value) {
+        int start = value.startsWith("0x") || value.startsWith("0X") ? 2 : 0;
+        int length = value.length() - start;
+        if (length == 0 || length > 8) {
+            return -1;
+        }
+        long result = 0;
+        for (int i = start; i < value.length(); i++) {
+            int digit = Character.digit(value.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            result = result << 4 | digit;
+        }
+        return result;
+    }
+
+    /**
+     * @return the decimal value, the default if absent, or Integer.MIN_VALUE if invalid (which
+     * then fails the range checks).
+     */
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return Integer.MIN_VALUE;
+        }
+    }
+
+    private static int toField(String name) {
+        for (int i = 0; i < FIELD_NAMES.length; i++) {
+            if (FIELD_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void clearValues() {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = null;
+        }
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return EOF;
+        }
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return EOF;
+        }
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        int count = reader.read(buffer, 0, buffer.length);
+        if (count <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = count;
+        return true;
+    }
+
+    private void skipWhitespace() throws IOException {
+        int c;
+        while ((c = peek()) != EOF && (Character.isWhitespace(c) || c == '\uFEFF')) {
+            read();
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = read();
+        if (c != expected) {
+            throw syntaxError("'" + expected + "'", c);
+        }
+    }
+
+    private IOException syntaxError(String expected, int found) {
+        return new IOException("Expected " + expected + " but found "
+                + (found == EOF ? "end of file" : "'" + (char) found + "'") + " at row " + (rowNumber + 1));
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+}
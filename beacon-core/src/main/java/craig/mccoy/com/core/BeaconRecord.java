@@ -0,0 +1,53 @@
+package craig.mccoy.com.core;
+
+/**
+ * A mutable, reusable holder for one beacon definition of the fleet, as kept by the
+ * {@link BeaconFleetStore}.
+ */
+public final class BeaconRecord {
+    public static final int ALL_DAYS = 0x7F;
+    public static final int MINUTES_PER_DAY = 24 * 60;
+
+    public BeaconType beaconType = null;
+    public long uuidMostSignificantBits;
+    public long uuidLeastSignificantBits;
+    /** AltBeacon code or Eddystone-UID instance; the key of the store. */
+    public int code;
+    public int major;
+    public int minor;
+    /** Days the beacon is on air, bit 0 = Monday. */
+    public int scheduleDays = ALL_DAYS;
+    /** On-air window within those days, in minutes since midnight; end is exclusive. */
+    public int scheduleStartMinute = 0;
+    public int scheduleEndMinute = MINUTES_PER_DAY;
+
+    public void clear() {
+        beaconType = null;
+        uuidMostSignificantBits = 0;
+        uuidLeastSignificantBits = 0;
+        code = 0;
+        major = 0;
+        minor = 0;
+        scheduleDays = ALL_DAYS;
+        scheduleStartMinute = 0;
+        scheduleEndMinute = MINUTES_PER_DAY;
+    }
+
+    public void copyFrom(BeaconRecord other) {
+        beaconType = other.beaconType;
+        uuidMostSignificantBits = other.uuidMostSignificantBits;
+        uuidLeastSignificantBits = other.uuidLeastSignificantBits;
+        code = other.code;
+        major = other.major;
+        minor = other.minor;
+        scheduleDays = other.scheduleDays;
+        scheduleStartMinute = other.scheduleStartMinute;
+        scheduleEndMinute = other.scheduleEndMinute;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s code=%08x major=%d minor=%d days=%02x %d-%d", beaconType, code, major, minor,
+                scheduleDays, scheduleStartMinute, scheduleEndMinute);
+    }
+}
@@ -0,0 +1,363 @@
+package craig.mccoy.com.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The in-memory counterpart of the {@link BeaconFleetStore}: the beacons of a site kept column by
+ * column in parallel primitive arrays, so a 100k-beacon fleet costs a few megabytes and no
+ * objects per beacon.  The UUIDs are shared by many beacons, so each distinct one is stored once
+ * as a namespace and the beacons refer to it by a 16-bit index.  An open-addressing hash index on
+ * the type and code, like the store's, gives the lookups; the rotation and rendering paths walk
+ * the columns by position.
+ * The rows are kept dense: removing one moves the last row into the hole.
+ * Not thread-safe; fill it on one thread, then share it read-only or keep it confined.
+ */
+public final class BeaconTable {
+
+    /** Type, days, namespace, code, major, minor, start and end of one row, in bytes. */
+    public static final int ROW_BYTES = 1 + 1 + 2 + 4 + 2 + 2 + 2 + 2;
+    public static final int MAX_NAMESPACES = 1 << 16;
+
+    private static final BeaconType[] TYPES = BeaconType.values();
+    private static final byte NO_TYPE = (byte) 0xFF;
+    // Two longs, the encoded bytes and their array header, per namespace
+    private static final int NAMESPACE_BYTES = 8 + 8 + BeaconEncoder.UUID_LENGTH + 16;
+
+    private final int capacity;
+    private final byte[] types;
+    private final byte[] scheduleDays;
+    private final char[] namespaces;
+    private final int[] codes;
+    private final char[] majors;
+    private final char[] minors;
+    private final char[] startMinutes;
+    private final char[] endMinutes;
+    // Row index + 1 per slot, 0 = empty
+    private final int[] index;
+    private final int indexMask;
+    private int size = 0;
+
+    private long[] namespaceMsb = new long[4];
+    private long[] namespaceLsb = new long[4];
+    private byte[][] namespaceBytes = new byte[4][];
+    private int namespaceCount = 0;
+    private final Map<UUID, Integer> namespaceIds = new HashMap<>();
+
+    public BeaconTable(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        types = new byte[capacity];
+        scheduleDays = new byte[capacity];
+        namespaces = new char[capacity];
+        codes = new int[capacity];
+        majors = new char[capacity];
+        minors = new char[capacity];
+        startMinutes = new char[capacity];
+        endMinutes = new char[capacity];
+        // A load factor of at most 0.5 keeps the probe sequences short
+        index = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        indexMask = index.length - 1;
+    }
+
+    /**
+     * Copies every record of the store into a new table with the same capacity.
+     */
+    public static BeaconTable load(BeaconFleetStore store) {
+        BeaconTable table = new BeaconTable(store.capacity());
+        BeaconRecord record = new BeaconRecord();
+        int size = store.size();
+        for (int i = 0; i < size; i++) {
+            store.read(i, record);
+            table.put(record);
+        }
+        return table;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the index of the namespace, adding it if it is new.
+     * @throws IllegalStateException if the table already holds {@link #MAX_NAMESPACES} namespaces.
+     */
+    public int internNamespace(long mostSignificantBits, long leastSignificantBits) {
+        UUID uuid = new UUID(mostSignificantBits, leastSignificantBits);
+        Integer id = namespaceIds.get(uuid);
+        if (id != null) {
+            return id;
+        }
+        if (namespaceCount == MAX_NAMESPACES) {
+            throw new IllegalStateException("More than " + MAX_NAMESPACES + " namespaces");
+        }
+        if (namespaceCount == namespaceMsb.length) {
+            int length = Math.min(MAX_NAMESPACES, namespaceCount * 2);
+            namespaceMsb = Arrays.copyOf(namespaceMsb, length);
+            namespaceLsb = Arrays.copyOf(namespaceLsb, length);
+            namespaceBytes = Arrays.copyOf(namespaceBytes, length);
+        }
+        int namespace = namespaceCount++;
+        namespaceMsb[namespace] = mostSignificantBits;
+        namespaceLsb[namespace] = leastSignificantBits;
+        byte[] bytes = new byte[BeaconEncoder.UUID_LENGTH];
+        BeaconEncoder.putUuid(bytes, 0, mostSignificantBits, leastSignificantBits);
+        namespaceBytes[namespace] = bytes;
+        namespaceIds.put(uuid, namespace);
+        return namespace;
+    }
+
+    public int getNamespaceCount() {
+        return namespaceCount;
+    }
+
+    public UUID getNamespaceUuid(int namespace) {
+        checkNamespace(namespace);
+        return new UUID(namespaceMsb[namespace], namespaceLsb[namespace]);
+    }
+
+    /**
+     * Inserts the record, or overwrites the row with the same type and code.
+     * @return the index of the row.
+     * @throws IllegalStateException if the table is full.
+     */
+    public int put(BeaconRecord record) {
+        byte type = typeOf(record.beaconType);
+        int slot = findSlot(type, record.code);
+        int row = index[slot] - 1;
+        if (row < 0 && size == capacity) {
+            throw new IllegalStateException("Beacon table is full (" + capacity + " rows)");
+        }
+        int namespace = internNamespace(record.uuidMostSignificantBits, record.uuidLeastSignificantBits);
+        if (row < 0) {
+            row = size++;
+            index[slot] = row + 1;
+        }
+        types[row] = type;
+        scheduleDays[row] = (byte) record.scheduleDays;
+        namespaces[row] = (char) namespace;
+        codes[row] = record.code;
+        majors[row] = (char) record.major;
+        minors[row] = (char) record.minor;
+        startMinutes[row] = (char) record.scheduleStartMinute;
+        endMinutes[row] = (char) record.scheduleEndMinute;
+        return row;
+    }
+
+    /**
+     * @return the row holding the type and code, or -1 if there is none.
+     */
+    public int indexOf(BeaconType beaconType, int code) {
+        return index[findSlot(typeOf(beaconType), code)] - 1;
+    }
+
+    /**
+     * @return true and fills the holder if a row with the type and code exists.
+     */
+    public boolean get(BeaconType beaconType, int code, BeaconRecord out) {
+        int row = indexOf(beaconType, code);
+        if (row < 0) {
+            return false;
+        }
+        read(row, out);
+        return true;
+    }
+
+    /**
+     * Reads the row at the given index, 0 <= index < size().
+     */
+    public void read(int row, BeaconRecord out) {
+        checkRow(row);
+        out.beaconType = getBeaconType(row);
+        int namespace = namespaces[row];
+        out.uuidMostSignificantBits = namespaceMsb[namespace];
+        out.uuidLeastSignificantBits = namespaceLsb[namespace];
+        out.code = codes[row];
+        out.major = majors[row];
+        out.minor = minors[row];
+        out.scheduleDays = scheduleDays[row] & 0xFF;
+        out.scheduleStartMinute = startMinutes[row];
+        out.scheduleEndMinute = endMinutes[row];
+    }
+
+    public boolean remove(BeaconType beaconType, int code) {
+        int slot = findSlot(typeOf(beaconType), code);
+        int row = index[slot] - 1;
+        if (row < 0) {
+            return false;
+        }
+        deleteSlot(slot);
+        int last = size - 1;
+        if (row != last) {
+            // Move the last row into the hole and repoint its index slot
+            types[row] = types[last];
+            scheduleDays[row] = scheduleDays[last];
+            namespaces[row] = namespaces[last];
+            codes[row] = codes[last];
+            majors[row] = majors[last];
+            minors[row] = minors[last];
+            startMinutes[row] = startMinutes[last];
+            endMinutes[row] = endMinutes[last];
+            index[findSlot(types[row], codes[row])] = row + 1;
+        }
+        size = last;
+        return true;
+    }
+
+    /**
+     * Removes every row; the namespaces are kept.
+     */
+    public void clear() {
+        Arrays.fill(index, 0);
+        size = 0;
+    }
+
+    // Column accessors, for walking the table by row without a holder
+
+    public BeaconType getBeaconType(int row) {
+        int type = types[row] & 0xFF;
+        return type < TYPES.length ? TYPES[type] : null;
+    }
+
+    public int getCode(int row) {
+        return codes[row];
+    }
+
+    public int getNamespace(int row) {
+        return namespaces[row];
+    }
+
+    public int getMajor(int row) {
+        return majors[row];
+    }
+
+    public int getMinor(int row) {
+        return minors[row];
+    }
+
+    /**
+     * @param dayOfWeek 0 = Monday.
+     * @return true if the schedule of the row puts the beacon on air at the given time.
+     */
+    public boolean isScheduled(int row, int dayOfWeek, int minuteOfDay) {
+        return (scheduleDays[row] & (1 << dayOfWeek)) != 0
+                && minuteOfDay >= startMinutes[row] && minuteOfDay < endMinutes[row];
+    }
+
+    /**
+     * Collects the codes of the beacons of the given type that are scheduled on air at the given
+     * time, e.g. the list a rotation goes through.
+     * @return the number of codes written to out; stops when out is full.
+     */
+    public int collectCodes(BeaconType beaconType, int dayOfWeek, int minuteOfDay, int[] out) {
+        byte type = (byte) beaconType.ordinal();
+        int count = 0;
+        for (int row = 0; row < size && count < out.length; row++) {
+            if (types[row] == type && isScheduled(row, dayOfWeek, minuteOfDay)) {
+                out[count++] = codes[row];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Renders the frame of the row into out, starting at index 0, straight from the columns: the
+     * manufacturer data of an AltBeacon or iBeacon, or the service data of an Eddystone-UID.
+     * @return the number of bytes written, 0 for types without a per-beacon frame.
+     */
+    public int encode(int row, byte[] out) {
+        checkRow(row);
+        byte[] uuid = namespaceBytes[namespaces[row]];
+        BeaconType beaconType = getBeaconType(row);
+        if (beaconType == null) {
+            return 0;
+        }
+        switch (beaconType) {
+            case AltBeacon:
+                return BeaconEncoder.encodeAltBeacon(uuid, codes[row], out);
+            case IBeacon:
+                return BeaconEncoder.encodeIBeacon(uuid, majors[row], minors[row], out);
+            case EddystoneUid:
+                return EddystoneEncoder.encodeUid(uuid, codes[row] & 0xFFFFFFFFL, EddystoneEncoder.TX_POWER_AT_0M, out, 0);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return the heap taken by the columns, the code index and the namespaces, in bytes.
+     * Array headers are left out of the columns; they do not grow with the fleet.
+     */
+    public long getRetainedBytes() {
+        return (long) ROW_BYTES * capacity + 4L * index.length + (long) NAMESPACE_BYTES * namespaceCount;
+    }
+
+    /**
+     * @return the retained bytes spread over the rows in use, or over the capacity while empty.
+     */
+    public double getBytesPerBeacon() {
+        return (double) getRetainedBytes() / Math.max(1, size == 0 ? capacity : size);
+    }
+
+    /**
+     * @return the slot holding the type and code, or the empty slot ending its probe sequence.
+     */
+    private int findSlot(byte type, int code) {
+        int slot = hash(type, code) & indexMask;
+        while (true) {
+            int row = index[slot] - 1;
+            if (row < 0 || (codes[row] == code && types[row] == type)) {
+                return slot;
+            }
+            slot = (slot + 1) & indexMask;
+        }
+    }
+
+    // Backward-shift deletion, so lookups never need tombstones
+    private void deleteSlot(int slot) {
+        int hole = slot;
+        int next = (slot + 1) & indexMask;
+        while (true) {
+            int value = index[next];
+            if (value == 0) {
+                break;
+            }
+            int home = hash(types[value - 1], codes[value - 1]) & indexMask;
+            if (((next - home) & indexMask) >= ((next - hole) & indexMask)) {
+                index[hole] = value;
+                hole = next;
+            }
+            next = (next + 1) & indexMask;
+        }
+        index[hole] = 0;
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        }
+    }
+
+    private void checkNamespace(int namespace) {
+        if (namespace < 0 || namespace >= namespaceCount) {
+            throw new IndexOutOfBoundsException("Namespace " + namespace + " of " + namespaceCount);
+        }
+    }
+
+    private static byte typeOf(BeaconType beaconType) {
+        return beaconType == null ? NO_TYPE : (byte) beaconType.ordinal();
+    }
+
+    private static int hash(byte type, int code) {
+        int h = (code ^ (type & 0xFF) * 0x85EBCA6B) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,13 @@
+package craig.mccoy.com.core;
+
+public enum BeaconType {
+    Ble1MBeacon,
+    AltBeacon,
+    IBeacon,
+    EddystoneUid,
+    EddystoneUrl,
+    EddystoneTlm,
+    // BLE 5 extended advertising; appended so the stored ordinals stay valid
+    Ble2MBeacon,
+    BleCodedBeacon
+}
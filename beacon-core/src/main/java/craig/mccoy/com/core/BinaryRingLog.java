@@ -0,0 +1,248 @@
+package craig.mccoy.com.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An in-memory log of fixed-size binary records with deferred formatting.
+ * A message is registered once as a format ("onReceive(): state {}") and logged as its format id
+ * plus up to {@link #MAX_ARGS} long arguments, so logging builds no strings and allocates nothing.
+ * Records go into a preallocated ring that keeps the most recent {@code capacity} records; writers
+ * claim a slot with one atomic increment and never block.  Each slot carries the sequence number
+ * of its record, negated while a writer fills it, so a reader only keeps records whose sequence
+ * was the same before and after it copied them.  A writer that finds its slot taken by a writer
+ * that lapped it (or already reused by a newer record) drops its record and counts it.  The ring is turned into text only when
+ * it is dumped, either to a memory-mapped file ({@link #dump(File)}) or as text ({@link #format}).
+ */
+public final class BinaryRingLog {
+
+    public static final int MAX_ARGS = 3;
+    public static final int LEVEL_INFO = 4;
+    public static final int LEVEL_WARN = 5;
+    public static final int LEVEL_ERROR = 6;
+
+    static final int MAGIC = 0x424C4F47; // "BLOG"
+    static final int VERSION = 1;
+
+    // Per record: timestamp, (format id << 32 | level << 8 | arg count), arguments
+    static final int LONGS_PER_RECORD = 2 + MAX_ARGS;
+    static final int BYTES_PER_RECORD = 8 + 8 * LONGS_PER_RECORD; // sequence + record
+
+    private static final int MAX_FORMATS = 4096;
+    private static final String[] tags = new String[MAX_FORMATS];
+    private static final String[] patterns = new String[MAX_FORMATS];
+    private static int formatCount = 0;
+
+    private final int capacity;
+    private final int mask;
+    // Atomic so the ordered stores and reads below order the record against its sequence
+    private final AtomicLongArray records;
+    // Sequence number + 1 of the record in each slot, -(sequence number + 1) while it is written
+    private final AtomicLongArray committed;
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * @param capacity the number of records kept, rounded up to a power of two.
+     */
+    public BinaryRingLog(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.records = new AtomicLongArray(size * LONGS_PER_RECORD);
+        this.committed = new AtomicLongArray(size);
+    }
+
+    /**
+     * Registers a message format.  "{}" is replaced by the next argument in decimal and "{x}" in
+     * hexadecimal (pass an int as {@code value & 0xFFFFFFFFL} to keep it to 8 digits).
+     * Intended to be called once, from a static initializer.
+     * @return the format id to pass to {@link #log}.
+     */
+    public static synchronized int registerFormat(String tag, String pattern) {
+        if (formatCount == MAX_FORMATS) {
+            throw new IllegalStateException("Too many log formats");
+        }
+        tags[formatCount] = tag;
+        patterns[formatCount] = pattern;
+        return formatCount++;
+    }
+
+    public static synchronized String getTag(int format) {
+        return tags[format];
+    }
+
+    /**
+     * Formats a message right away, for the logs that are not deferred (e.g. Logcat on debug builds).
+     */
+    public static String formatMessage(int format, int argCount, long arg0, long arg1, long arg2) {
+        StringBuilder message = new StringBuilder();
+        String pattern;
+        synchronized (BinaryRingLog.class) {
+            pattern = patterns[format];
+        }
+        formatMessage(pattern, new long[]{arg0, arg1, arg2}, 0, argCount, message);
+        return message.toString();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getRecordCount() {
+        return nextSequence.get();
+    }
+
+    /**
+     * @return the records dropped because another writer held their slot.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public void log(int level, int format, int argCount, long arg0, long arg1, long arg2) {
+        long sequence = nextSequence.getAndIncrement();
+        int slot = (int) (sequence & mask);
+        int base = slot * LONGS_PER_RECORD;
+        // Claim the slot; a writer a whole lap ahead or behind never writes it at the same time
+        long current = committed.get(slot);
+        if (current < 0 || current > sequence || !committed.compareAndSet(slot, current, -(sequence + 1))) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        // Ordered stores: none becomes visible before the claim above
+        records.lazySet(base, System.nanoTime());
+        records.lazySet(base + 1, (long) format << 32 | level << 8 | argCount);
+        records.lazySet(base + 2, arg0);
+        records.lazySet(base + 3, arg1);
+        records.lazySet(base + 4, arg2);
+        committed.lazySet(slot, sequence + 1);
+    }
+
+    /**
+     * Copies the committed records, oldest first, into dst (LONGS_PER_RECORD longs per record,
+     * preceded by their sequence number).
+     * @return the number of records copied.
+     */
+    int snapshot(long[] dst) {
+        long end = nextSequence.get();
+        long start = Math.max(0, end - capacity);
+        int count = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence & mask);
+            int base = slot * LONGS_PER_RECORD;
+            int out = count * (LONGS_PER_RECORD + 1);
+            if (committed.get(slot) != sequence + 1) {
+                continue;
+            }
+            dst[out] = sequence;
+            // Volatile reads, so the check below cannot move ahead of the copy
+            for (int i = 0; i < LONGS_PER_RECORD; i++) {
+                dst[out + 1 + i] = records.get(base + i);
+            }
+            // Overwritten while copying: drop it
+            if (committed.get(slot) == sequence + 1) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the format table and the records to a memory-mapped file, replacing its content.
+     * Layout (little-endian): magic, version, format count, record count, then every format as
+     * (tag length, tag UTF-8, pattern length, pattern UTF-8), then every record as
+     * (sequence, timestamp nanos, format/level/arg count, arguments).
+     * @return the number of records written.
+     */
+    public int dump(File file) throws IOException {
+        long[] snapshot = new long[capacity * (LONGS_PER_RECORD + 1)];
+        int recordCount = snapshot(snapshot);
+        int formats;
+        byte[][] strings;
+        synchronized (BinaryRingLog.class) {
+            formats = formatCount;
+            strings = new byte[formats * 2][];
+            for (int i = 0; i < formats; i++) {
+                strings[2 * i] = tags[i].getBytes(StandardCharsets.UTF_8);
+                strings[2 * i + 1] = patterns[i].getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        long size = 16;
+        for (byte[] string : strings) {
+            size += 4 + string.length;
+        }
+        size += (long) recordCount * BYTES_PER_RECORD;
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            randomAccessFile.setLength(size);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(formats).putInt(recordCount);
+            for (byte[] string : strings) {
+                buffer.putInt(string.length).put(string);
+            }
+            for (int i = 0; i < recordCount * (LONGS_PER_RECORD + 1); i++) {
+                buffer.putLong(snapshot[i]);
+            }
+            buffer.force();
+        }
+        return recordCount;
+    }
+
+    /**
+     * Formats the records in the ring as text, oldest first.
+     */
+    public void format(Appendable out) throws IOException {
+        long[] snapshot = new long[capacity * (LONGS_PER_RECORD + 1)];
+        int recordCount = snapshot(snapshot);
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < recordCount; i++) {
+            int base = i * (LONGS_PER_RECORD + 1);
+            line.setLength(0);
+            formatRecord(snapshot, base + 1, line);
+            out.append(line).append('\n');
+        }
+    }
+
+    private static void formatRecord(long[] record, int base, StringBuilder line) {
+        long meta = record[base + 1];
+        int format = (int) (meta >>> 32);
+        int level = (int) (meta >> 8) & 0xFF;
+        int argCount = (int) meta & 0xFF;
+        String tag;
+        String pattern;
+        synchronized (BinaryRingLog.class) {
+            tag = format < formatCount ? tags[format] : "?";
+            pattern = format < formatCount ? patterns[format] : "?";
+        }
+        line.append(record[base]).append(' ')
+                .append(level == LEVEL_ERROR ? 'E' : level == LEVEL_WARN ? 'W' : 'I').append(' ')
+                .append(tag).append(": ");
+        formatMessage(pattern, record, base + 2, argCount, line);
+    }
+
+    static void formatMessage(String pattern, long[] args, int argOffset, int argCount, StringBuilder out) {
+        int arg = 0;
+        int i = 0;
+        while (i < pattern.length()) {
+            if (arg < argCount && pattern.startsWith("{}", i)) {
+                out.append(args[argOffset + arg++]);
+                i += 2;
+            } else if (arg < argCount && pattern.startsWith("{x}", i)) {
+                out.append(Long.toHexString(args[argOffset + arg++]));
+                i += 3;
+            } else {
+                out.append(pattern.charAt(i++));
+            }
+        }
+    }
+}
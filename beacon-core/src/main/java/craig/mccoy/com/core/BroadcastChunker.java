@@ -0,0 +1,108 @@
+package craig.mccoy.com.core;
+
+import java.util.zip.CRC32;
+
+/**
+ * Splits a data set (a config blob, a sensor snapshot) into frames small enough for one periodic
+ * advertising event, so it can be broadcast to any number of receivers without connections.
+ * The broadcaster cycles through the frames continuously; a receiver that misses some simply
+ * picks them up on a later cycle (see {@link BroadcastReassembler}).
+ * Frame layout (big-endian):
+ * <pre>
+ *  0     version
+ *  1-2   transfer id, changes whenever the data set changes
+ *  3-4   chunk index
+ *  5-6   chunk count
+ *  7-10  CRC-32 of the whole data set
+ *  11-   chunk data
+ *  last 2 bytes: CRC-16/CCITT of everything before it
+ * </pre>
+ */
+public final class BroadcastChunker {
+
+    public static final int VERSION = 1;
+    public static final int VERSION_OFFSET = 0;
+    public static final int TRANSFER_ID_OFFSET = 1;
+    public static final int INDEX_OFFSET = 3;
+    public static final int COUNT_OFFSET = 5;
+    public static final int PAYLOAD_CRC_OFFSET = 7;
+    public static final int HEADER_LENGTH = 11;
+    public static final int CHECKSUM_LENGTH = 2;
+    public static final int OVERHEAD = HEADER_LENGTH + CHECKSUM_LENGTH;
+    public static final int MAX_CHUNK_COUNT = 0xFFFF;
+
+    private BroadcastChunker() {
+    }
+
+    /**
+     * @return the number of frames needed for the data set.
+     */
+    public static int getChunkCount(int payloadLength, int maxFrameLength) {
+        int chunkLength = getChunkLength(maxFrameLength);
+        return Math.max(1, (payloadLength + chunkLength - 1) / chunkLength);
+    }
+
+    /**
+     * @param maxFrameLength the most bytes one frame may take, e.g. the periodic advertising data
+     *                       length minus the AD structure header.
+     * @return the frames, in order.
+     * @throws IllegalArgumentException if the frame is too short to carry data or the data set
+     * needs more than {@link #MAX_CHUNK_COUNT} frames.
+     */
+    public static byte[][] split(byte[] payload, int transferId, int maxFrameLength) {
+        int chunkLength = getChunkLength(maxFrameLength);
+        int chunkCount = getChunkCount(payload.length, maxFrameLength);
+        if (chunkCount > MAX_CHUNK_COUNT) {
+            throw new IllegalArgumentException(payload.length + " bytes need more than " + MAX_CHUNK_COUNT + " frames");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        int payloadCrc = (int) crc.getValue();
+
+        byte[][] frames = new byte[chunkCount][];
+        for (int index = 0; index < chunkCount; index++) {
+            int offset = index * chunkLength;
+            int length = Math.min(chunkLength, payload.length - offset);
+            byte[] frame = new byte[OVERHEAD + length];
+            frame[VERSION_OFFSET] = VERSION;
+            BeaconEncoder.putShort(frame, TRANSFER_ID_OFFSET, transferId);
+            BeaconEncoder.putShort(frame, INDEX_OFFSET, index);
+            BeaconEncoder.putShort(frame, COUNT_OFFSET, chunkCount);
+            BeaconEncoder.putInt(frame, PAYLOAD_CRC_OFFSET, payloadCrc);
+            System.arraycopy(payload, offset, frame, HEADER_LENGTH, length);
+            BeaconEncoder.putShort(frame, HEADER_LENGTH + length, crc16(frame, 0, HEADER_LENGTH + length));
+            frames[index] = frame;
+        }
+        return frames;
+    }
+
+    /**
+     * @return the data set bytes a full cycle through the frames delivers per second, when one
+     * frame goes out per periodic advertising event.
+     */
+    public static double getBytesPerSecond(int payloadLength, int chunkCount, long eventIntervalNanos) {
+        return eventIntervalNanos <= 0 ? 0 : payloadLength * 1e9 / ((double) chunkCount * eventIntervalNanos);
+    }
+
+    /**
+     * CRC-16/CCITT-FALSE (polynomial 0x1021, initial value 0xFFFF).
+     */
+    public static int crc16(byte[] data, int offset, int length) {
+        int crc = 0xFFFF;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (data[i] & 0xFF) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+        }
+        return crc & 0xFFFF;
+    }
+
+    private static int getChunkLength(int maxFrameLength) {
+        int chunkLength = maxFrameLength - OVERHEAD;
+        if (chunkLength <= 0) {
+            throw new IllegalArgumentException("A frame of " + maxFrameLength + " bytes cannot carry data");
+        }
+        return chunkLength;
+    }
+}
@@ -0,0 +1,165 @@
+package craig.mccoy.com.core;
+
+import java.util.zip.CRC32;
+
+/**
+ * Rebuilds a data set from the frames of a {@link BroadcastChunker} broadcast, received in any
+ * order, with losses and repeats.  Corrupted frames (bad CRC-16) are dropped; a new transfer id
+ * starts over.  Once every chunk is in, the data set is checked against its CRC-32.
+ * Not thread-safe.
+ */
+public final class BroadcastReassembler {
+
+    public static final int ACCEPTED = 0;
+    public static final int DUPLICATE = 1;
+    public static final int CORRUPT = 2;
+    public static final int COMPLETE = 3;
+
+    private int transferId = -1;
+    private int chunkCount = 0;
+    private int payloadCrc = 0;
+    private byte[][] chunks = null;
+    private long[] received = null;
+    private int receivedCount = 0;
+    private byte[] payload = null;
+
+    private long frameCount = 0;
+    private long duplicateCount = 0;
+    private long corruptCount = 0;
+    private long transferCount = 0;
+
+    /**
+     * @return ACCEPTED, DUPLICATE (already have the chunk or the data set is complete), CORRUPT,
+     * or COMPLETE when this frame completed the data set.
+     */
+    public int accept(byte[] frame, int offset, int length) {
+        frameCount++;
+        if (length < BroadcastChunker.OVERHEAD || frame[offset + BroadcastChunker.VERSION_OFFSET] != BroadcastChunker.VERSION) {
+            corruptCount++;
+            return CORRUPT;
+        }
+        int dataEnd = offset + length - BroadcastChunker.CHECKSUM_LENGTH;
+        if (getShort(frame, dataEnd) != BroadcastChunker.crc16(frame, offset, length - BroadcastChunker.CHECKSUM_LENGTH)) {
+            corruptCount++;
+            return CORRUPT;
+        }
+        int frameTransferId = getShort(frame, offset + BroadcastChunker.TRANSFER_ID_OFFSET);
+        int index = getShort(frame, offset + BroadcastChunker.INDEX_OFFSET);
+        int count = getShort(frame, offset + BroadcastChunker.COUNT_OFFSET);
+        int crc = getInt(frame, offset + BroadcastChunker.PAYLOAD_CRC_OFFSET);
+        if (count == 0 || index >= count) {
+            corruptCount++;
+            return CORRUPT;
+        }
+        if (frameTransferId != transferId || count != chunkCount || crc != payloadCrc) {
+            start(frameTransferId, count, crc);
+        }
+        if (payload != null || isReceived(index)) {
+            duplicateCount++;
+            return DUPLICATE;
+        }
+        int dataStart = offset + BroadcastChunker.HEADER_LENGTH;
+        byte[] chunk = new byte[dataEnd - dataStart];
+        System.arraycopy(frame, dataStart, chunk, 0, chunk.length);
+        chunks[index] = chunk;
+        received[index >>> 6] |= 1L << index;
+        if (++receivedCount < chunkCount) {
+            return ACCEPTED;
+        }
+        return assemble() ? COMPLETE : CORRUPT;
+    }
+
+    public int accept(byte[] frame) {
+        return accept(frame, 0, frame.length);
+    }
+
+    public boolean isComplete() {
+        return payload != null;
+    }
+
+    /**
+     * @return the data set, or null until it is complete.
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getTransferId() {
+        return transferId;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public int getReceivedChunkCount() {
+        return receivedCount;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    public long getCorruptCount() {
+        return corruptCount;
+    }
+
+    /**
+     * @return the number of transfers seen, including the current one.
+     */
+    public long getTransferCount() {
+        return transferCount;
+    }
+
+    private void start(int transferId, int chunkCount, int payloadCrc) {
+        this.transferId = transferId;
+        this.chunkCount = chunkCount;
+        this.payloadCrc = payloadCrc;
+        chunks = new byte[chunkCount][];
+        received = new long[(chunkCount + 63) >>> 6];
+        receivedCount = 0;
+        payload = null;
+        transferCount++;
+    }
+
+    private boolean isReceived(int index) {
+        return (received[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private boolean assemble() {
+        int length = 0;
+        for (byte[] chunk : chunks) {
+            length += chunk.length;
+        }
+        byte[] data = new byte[length];
+        int offset = 0;
+        for (byte[] chunk : chunks) {
+            System.arraycopy(chunk, 0, data, offset, chunk.length);
+            offset += chunk.length;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        if ((int) crc.getValue() != payloadCrc) {
+            // A corrupted chunk got past its CRC-16; collect the whole set again
+            corruptCount++;
+            start(transferId, chunkCount, payloadCrc);
+            transferCount--;
+            return false;
+        }
+        payload = data;
+        chunks = null;
+        return true;
+    }
+
+    private static int getShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return (getShort(data, offset) << 16) | getShort(data, offset + 2);
+    }
+}
@@ -0,0 +1,91 @@
+package craig.mccoy.com.core;
+
+import java.util.Arrays;
+
+/**
+ * Collects pending BeaconCommand values and merges them as they arrive, so a burst of
+ * start/stop requests reaches the advertiser as the few commands that still matter:
+ * <ul>
+ * <li>OP_REPLACE and OP_REMOVE_ALL reset the advertised state, so they discard every pending
+ * command back to the last OP_CALLBACK; a stop followed by a start becomes one replace and
+ * several starts resolve to the last one.</li>
+ * <li>An OP_SET_CODE directly following an OP_SET_CODE of the same beacon type replaces it.</li>
+ * <li>Everything else is kept in order.</li>
+ * </ul>
+ * Not thread-safe; the owning queue synchronizes around it.
+ */
+public final class CommandCoalescer {
+
+    private long[] pending;
+    private int size = 0;
+    private long submittedCount = 0;
+    private long drainedCount = 0;
+
+    public CommandCoalescer(int initialCapacity) {
+        pending = new long[Math.max(1, initialCapacity)];
+    }
+
+    public void offer(long command) {
+        submittedCount++;
+        switch (BeaconCommand.getOpcode(command)) {
+            case BeaconCommand.OP_REPLACE:
+            case BeaconCommand.OP_REMOVE_ALL:
+                while (size > 0 && BeaconCommand.getOpcode(pending[size - 1]) != BeaconCommand.OP_CALLBACK) {
+                    size--;
+                }
+                break;
+            case BeaconCommand.OP_SET_CODE:
+                if (size > 0 && BeaconCommand.getOpcode(pending[size - 1]) == BeaconCommand.OP_SET_CODE
+                        && sameBeaconType(pending[size - 1], command)) {
+                    size--;
+                }
+                break;
+            default:
+                break;
+        }
+        if (size == pending.length) {
+            pending = Arrays.copyOf(pending, size * 2);
+        }
+        pending[size++] = command;
+    }
+
+    /**
+     * Moves the pending commands to a new array, oldest first, and empties the coalescer.
+     */
+    public long[] drain() {
+        long[] commands = Arrays.copyOf(pending, size);
+        drainedCount += size;
+        size = 0;
+        return commands;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount;
+    }
+
+    /**
+     * @return the number of commands that left the coalescer through {@link #drain()}.
+     */
+    public long getDrainedCount() {
+        return drainedCount;
+    }
+
+    /**
+     * @return the number of submitted commands that were merged away.
+     */
+    public long getMergedCount() {
+        return submittedCount - drainedCount - size;
+    }
+
+    private static boolean sameBeaconType(long a, long b) {
+        return ((a ^ b) >>> 48 & 0xFF) == 0;
+    }
+}
@@ -0,0 +1,188 @@
+package craig.mccoy.com.core;
+
+/**
+ * Encodes Eddystone-UID, Eddystone-URL and Eddystone-TLM frames with the layouts of
+ * {@link FrameLayout}.  The frames are the service data of the 0xFEAA service UUID and are
+ * written into a caller-supplied buffer.  A TLM frame changes every few seconds, so once encoded
+ * it is kept up to date with {@link #updateTlm}, which only rewrites the changing fields.
+ */
+public final class EddystoneEncoder {
+
+    public static final int SERVICE_UUID = 0xFEAA;
+    public static final String SERVICE_UUID_STRING = "0000FEAA-0000-1000-8000-00805F9B34FB";
+
+    public static final int NAMESPACE_LENGTH = 10;
+
+    // Calibrated TX power at 0 m: the 1 m reference RSSI of the other formats plus 41 dBm
+    public static final byte TX_POWER_AT_0M = (byte) (BeaconEncoder.REFERENCE_RSSI + 41);
+
+    // TLM temperature value meaning "not supported"
+    public static final int TLM_TEMPERATURE_UNKNOWN = 0x8000;
+
+    private static final String[] URL_SCHEMES = {
+            "http://www.",
+            "https://www.",
+            "http://",
+            "https://"
+    };
+
+    // Index in this table is the expansion code; the "/" variants come first so they win
+    private static final String[] URL_EXPANSIONS = {
+            ".com/", ".org/", ".edu/", ".net/", ".info/", ".biz/", ".gov/",
+            ".com", ".org", ".edu", ".net", ".info", ".biz", ".gov"
+    };
+
+    private EddystoneEncoder() {
+    }
+
+    public static int getFrameLength(BeaconType beaconType) {
+        switch (beaconType) {
+            case EddystoneUid:
+                return FrameLayout.EDDYSTONE_UID.maxLength;
+            case EddystoneUrl:
+                return FrameLayout.EDDYSTONE_URL.maxLength;
+            case EddystoneTlm:
+                return FrameLayout.EDDYSTONE_TLM.maxLength;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * The namespace of a UID frame derived from a UUID by elision: the first 4 and the last
+     * 6 bytes of the UUID.
+     */
+    public static void putNamespace(byte[] uuid, byte[] out, int offset) {
+        System.arraycopy(uuid, 0, out, offset, 4);
+        System.arraycopy(uuid, 10, out, offset + 4, 6);
+    }
+
+    /**
+     * @return the number of bytes written.
+     */
+    public static int encodeUid(byte[] uuid, long instance, byte txPower, byte[] out, int offset) {
+        FrameLayout layout = FrameLayout.EDDYSTONE_UID;
+        layout.reset(out, offset);
+        FrameLayout.put(out, offset, FrameField.UID_TX_POWER, txPower);
+        putNamespace(uuid, out, offset + FrameField.UID_NAMESPACE.offset);
+        FrameLayout.put(out, offset, FrameField.UID_INSTANCE, instance);
+        return layout.maxLength;
+    }
+
+    /**
+     * Replaces the instance of an already encoded UID frame.
+     */
+    public static void patchUidInstance(byte[] out, int offset, long instance) {
+        FrameLayout.put(out, offset, FrameField.UID_INSTANCE, instance);
+    }
+
+    /**
+     * Encodes a URL with the Eddystone scheme prefixes and expansion codes.
+     * @return the number of bytes written.
+     * @throws IllegalArgumentException if the scheme is not supported or the compressed URL does
+     * not fit in the frame.
+     */
+    public static int encodeUrl(String url, byte txPower, byte[] out, int offset) {
+        FrameLayout layout = FrameLayout.EDDYSTONE_URL;
+        int scheme = -1;
+        for (int i = 0; i < URL_SCHEMES.length; i++) {
+            if (url.startsWith(URL_SCHEMES[i])) {
+                scheme = i;
+                break;
+            }
+        }
+        if (scheme < 0) {
+            throw new IllegalArgumentException("Unsupported URL scheme: " + url);
+        }
+        layout.reset(out, offset);
+        FrameLayout.put(out, offset, FrameField.URL_TX_POWER, txPower);
+        FrameLayout.put(out, offset, FrameField.URL_SCHEME, scheme);
+
+        int position = offset + FrameField.URL_BODY.offset;
+        int end = position + FrameField.URL_BODY.width;
+        int i = URL_SCHEMES[scheme].length();
+        while (i < url.length()) {
+            if (position >= end) {
+                throw new IllegalArgumentException("URL too long for an Eddystone-URL frame: " + url);
+            }
+            int expansion = findExpansion(url, i);
+            if (expansion >= 0) {
+                out[position++] = (byte) expansion;
+                i += URL_EXPANSIONS[expansion].length();
+            } else {
+                char c = url.charAt(i++);
+                if (c <= 0x20 || c >= 0x7F) {
+                    throw new IllegalArgumentException("Invalid character in URL: " + url);
+                }
+                out[position++] = (byte) c;
+            }
+        }
+        return position - offset;
+    }
+
+    /**
+     * Reverses {@link #encodeUrl}.
+     * @throws IllegalArgumentException if the frame is too short or its scheme byte is unknown.
+     */
+    public static String decodeUrl(byte[] frame, int offset, int length) {
+        if (length < FrameField.URL_BODY.offset) {
+            throw new IllegalArgumentException("Eddystone-URL frame too short: " + length);
+        }
+        int scheme = frame[offset + FrameField.URL_SCHEME.offset] & 0xFF;
+        if (scheme >= URL_SCHEMES.length) {
+            throw new IllegalArgumentException("Unknown Eddystone-URL scheme: " + scheme);
+        }
+        StringBuilder url = new StringBuilder(URL_SCHEMES[scheme]);
+        for (int i = offset + FrameField.URL_BODY.offset; i < offset + length; i++) {
+            int b = frame[i] & 0xFF;
+            if (b < URL_EXPANSIONS.length) {
+                url.append(URL_EXPANSIONS[b]);
+            } else {
+                url.append((char) b);
+            }
+        }
+        return url.toString();
+    }
+
+    /**
+     * @return the number of bytes written.
+     */
+    public static int encodeTlm(int batteryMillivolts, int temperature88, long advertisingCount, long uptimeTenths,
+                                byte[] out, int offset) {
+        FrameLayout layout = FrameLayout.EDDYSTONE_TLM;
+        layout.reset(out, offset);
+        FrameLayout.put(out, offset, FrameField.TLM_VERSION, 0);
+        updateTlm(out, offset, batteryMillivolts, temperature88, advertisingCount, uptimeTenths);
+        return layout.maxLength;
+    }
+
+    /**
+     * Rewrites the changing fields of an already encoded TLM frame, without allocating.
+     * @param temperature88 the temperature in degrees Celsius as a signed 8.8 fixed point value
+     * (see {@link #toFixed88}), or {@link #TLM_TEMPERATURE_UNKNOWN}.
+     * @param uptimeTenths the time since power-on in units of 0.1 s.
+     */
+    public static void updateTlm(byte[] out, int offset, int batteryMillivolts, int temperature88,
+                                 long advertisingCount, long uptimeTenths) {
+        FrameLayout.put(out, offset, FrameField.TLM_BATTERY_VOLTAGE, batteryMillivolts);
+        FrameLayout.put(out, offset, FrameField.TLM_TEMPERATURE, temperature88);
+        FrameLayout.put(out, offset, FrameField.TLM_ADVERTISING_COUNT, advertisingCount);
+        FrameLayout.put(out, offset, FrameField.TLM_UPTIME, uptimeTenths);
+    }
+
+    /**
+     * @return the temperature in tenths of a degree Celsius as a signed 8.8 fixed point value.
+     */
+    public static int toFixed88(int temperatureTenths) {
+        return ((temperatureTenths << 8) / 10) & 0xFFFF;
+    }
+
+    private static int findExpansion(String url, int index) {
+        for (int i = 0; i < URL_EXPANSIONS.length; i++) {
+            if (url.startsWith(URL_EXPANSIONS[i], index)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
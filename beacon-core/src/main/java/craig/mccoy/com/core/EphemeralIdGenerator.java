@@ -0,0 +1,148 @@
+package craig.mccoy.com.core;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Computes rotating ephemeral identifiers the way Eddystone-EID does, so only holders of the
+ * identity key can tell which beacon is on air.  The time counter (seconds since the shared
+ * epoch) is quantized to periods of 2^K seconds; for each period:
+ * <pre>
+ *  temporary key = AES(identity key, 00 x11 | FF | 00 00 | counter bits 31-16)
+ *  EID           = first 8 bytes of AES(temporary key, 00 x11 | K | counter with bits 0..K-1 cleared)
+ * </pre>
+ * The temporary key only changes every 2^16 seconds and is kept.  AES is too slow for the
+ * rotation hot path, so IDs are computed ahead in {@link EphemeralIdWindow}s.
+ * Not thread-safe; the Cipher instances are reused.
+ */
+public final class EphemeralIdGenerator {
+
+    public static final int KEY_LENGTH = 16;
+    public static final int ID_LENGTH = 8;
+    public static final int MAX_ROTATION_EXPONENT = 15;
+
+    private static final int BLOCK_LENGTH = 16;
+
+    private final Cipher identityCipher;
+    private final Cipher temporaryCipher;
+    private final int rotationExponent;
+    private final byte[] input = new byte[BLOCK_LENGTH];
+    private final byte[] output = new byte[BLOCK_LENGTH];
+    // Upper 16 bits of the counter the temporary key was derived for, -1 if none yet
+    private int temporaryKeyEpoch = -1;
+
+    /**
+     * @param rotationExponent K: the ID changes every 2^K seconds.
+     * @throws IllegalArgumentException if the key is not 16 bytes or K is out of range.
+     */
+    public EphemeralIdGenerator(byte[] identityKey, int rotationExponent) {
+        if (identityKey == null || identityKey.length != KEY_LENGTH) {
+            throw new IllegalArgumentException("The identity key must be " + KEY_LENGTH + " bytes");
+        }
+        if (rotationExponent < 0 || rotationExponent > MAX_ROTATION_EXPONENT) {
+            throw new IllegalArgumentException("Rotation exponent " + rotationExponent + " out of range");
+        }
+        this.rotationExponent = rotationExponent;
+        try {
+            identityCipher = Cipher.getInstance("AES/ECB/NoPadding");
+            identityCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(identityKey, "AES"));
+            temporaryCipher = Cipher.getInstance("AES/ECB/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES is not available", e);
+        }
+    }
+
+    public int getRotationExponent() {
+        return rotationExponent;
+    }
+
+    /**
+     * @return the length of one ID period in seconds.
+     */
+    public long getPeriodSeconds() {
+        return 1L << rotationExponent;
+    }
+
+    /**
+     * @return the counter at the start of the period holding the given counter.
+     */
+    public long quantize(long timeCounter) {
+        return timeCounter & 0xFFFFFFFFL & -(1L << rotationExponent);
+    }
+
+    /**
+     * @param timeCounter seconds since the epoch shared with the resolver, as an unsigned 32-bit value.
+     * @return the 8-byte ID, big-endian in a long.
+     */
+    public long computeId(long timeCounter) {
+        long counter = quantize(timeCounter);
+        try {
+            int epoch = (int) (counter >>> 16);
+            if (epoch != temporaryKeyEpoch) {
+                clear(input);
+                input[11] = (byte) 0xFF;
+                input[14] = (byte) (epoch >>> 8);
+                input[15] = (byte) epoch;
+                byte[] temporaryKey = identityCipher.doFinal(input);
+                temporaryCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(temporaryKey, "AES"));
+                temporaryKeyEpoch = epoch;
+            }
+            clear(input);
+            input[11] = (byte) rotationExponent;
+            input[12] = (byte) (counter >>> 24);
+            input[13] = (byte) (counter >>> 16);
+            input[14] = (byte) (counter >>> 8);
+            input[15] = (byte) counter;
+            temporaryCipher.doFinal(input, 0, BLOCK_LENGTH, output, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES failed", e);
+        }
+        long id = 0;
+        for (int i = 0; i < ID_LENGTH; i++) {
+            id = (id << 8) | (output[i] & 0xFF);
+        }
+        return id;
+    }
+
+    /**
+     * Computes the IDs of count consecutive periods, starting with the one holding firstCounter.
+     */
+    public EphemeralIdWindow computeWindow(long firstCounter, int count) {
+        long start = quantize(firstCounter);
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = computeId(start + ((long) i << rotationExponent));
+        }
+        return new EphemeralIdWindow(start, rotationExponent, ids);
+    }
+
+    /**
+     * Writes the ID into the identifier field of an encoded frame: the unique code of an AltBeacon,
+     * the major and minor of an iBeacon (both the upper 32 bits) or the 6-byte instance of an
+     * Eddystone-UID (the lower 48 bits).
+     * @throws IllegalArgumentException if the beacon type has no identifier to rotate.
+     */
+    public static void patch(BeaconType beaconType, byte[] frame, long id) {
+        switch (beaconType) {
+            case AltBeacon:
+                BeaconEncoder.patchAltBeaconCode(frame, (int) (id >>> 32));
+                break;
+            case IBeacon:
+                BeaconEncoder.patchIBeaconMajorMinor(frame, (int) (id >>> 32));
+                break;
+            case EddystoneUid:
+                EddystoneEncoder.patchUidInstance(frame, 0, id & 0xFFFFFFFFFFFFL);
+                break;
+            default:
+                throw new IllegalArgumentException(beaconType + " has no identifier to rotate");
+        }
+    }
+
+    private static void clear(byte[] block) {
+        for (int i = 0; i < block.length; i++) {
+            block[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package craig.mccoy.com.core;
+
+/**
+ * The precomputed IDs of consecutive periods, so a rotation is a lookup rather than two AES
+ * operations.  Immutable; built by {@link EphemeralIdGenerator#computeWindow(long, int)}.
+ */
+public final class EphemeralIdWindow {
+
+    private final long startCounter;
+    private final int rotationExponent;
+    private final long[] ids;
+
+    EphemeralIdWindow(long startCounter, int rotationExponent, long[] ids) {
+        this.startCounter = startCounter;
+        this.rotationExponent = rotationExponent;
+        this.ids = ids;
+    }
+
+    /**
+     * @return the first counter of the first period.
+     */
+    public long getStartCounter() {
+        return startCounter;
+    }
+
+    /**
+     * @return the first counter past the last period.
+     */
+    public long getEndCounter() {
+        return startCounter + ((long) ids.length << rotationExponent);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public boolean contains(long timeCounter) {
+        return timeCounter >= startCounter && timeCounter < getEndCounter();
+    }
+
+    /**
+     * @return the position of the counter's period in the window.
+     * @throws IndexOutOfBoundsException if the window does not cover the counter.
+     */
+    public int indexOf(long timeCounter) {
+        if (!contains(timeCounter)) {
+            throw new IndexOutOfBoundsException("Counter " + timeCounter + " outside [" + startCounter + ", "
+                    + getEndCounter() + ")");
+        }
+        return (int) ((timeCounter - startCounter) >>> rotationExponent);
+    }
+
+    public long getId(long timeCounter) {
+        return ids[indexOf(timeCounter)];
+    }
+}
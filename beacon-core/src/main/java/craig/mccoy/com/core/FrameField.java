@@ -0,0 +1,33 @@
+package craig.mccoy.com.core;
+
+/**
+ * The fields of the table-driven frame layouts: an offset from the start of the frame and a
+ * width in bytes.  Numeric fields are big-endian.
+ */
+public enum FrameField {
+    // Common to all Eddystone frames
+    FRAME_TYPE(0, 1),
+    // Eddystone-UID
+    UID_TX_POWER(1, 1),
+    UID_NAMESPACE(2, 10),
+    UID_INSTANCE(12, 6),
+    UID_RESERVED(18, 2),
+    // Eddystone-URL
+    URL_TX_POWER(1, 1),
+    URL_SCHEME(2, 1),
+    URL_BODY(3, 17),
+    // Eddystone-TLM (unencrypted)
+    TLM_VERSION(1, 1),
+    TLM_BATTERY_VOLTAGE(2, 2),
+    TLM_TEMPERATURE(4, 2),
+    TLM_ADVERTISING_COUNT(6, 4),
+    TLM_UPTIME(10, 4);
+
+    public final int offset;
+    public final int width;
+
+    FrameField(int offset, int width) {
+        this.offset = offset;
+        this.width = width;
+    }
+}
@@ -0,0 +1,47 @@
+package craig.mccoy.com.core;
+
+/**
+ * The table of frame layouts: the frame type byte and the maximum frame length.  The encoders
+ * write the fields of each frame through {@link #put}, using the offsets of {@link FrameField}.
+ */
+public enum FrameLayout {
+    EDDYSTONE_UID(0x00, 20),
+    EDDYSTONE_URL(0x10, 20),
+    EDDYSTONE_TLM(0x20, 14);
+
+    public final byte frameType;
+    public final int maxLength;
+
+    FrameLayout(int frameType, int maxLength) {
+        this.frameType = (byte) frameType;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Clears the frame and writes its frame type.
+     */
+    public void reset(byte[] out, int offset) {
+        for (int i = 0; i < maxLength; i++) {
+            out[offset + i] = 0;
+        }
+        out[offset + FrameField.FRAME_TYPE.offset] = frameType;
+    }
+
+    /**
+     * Writes a numeric field, big-endian, truncated to the width of the field.
+     */
+    public static void put(byte[] out, int offset, FrameField field, long value) {
+        int end = offset + field.offset + field.width - 1;
+        for (int i = 0; i < field.width; i++) {
+            out[end - i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Copies a byte field; src must hold at least the width of the field.
+     */
+    public static void put(byte[] out, int offset, FrameField field, byte[] src) {
+        System.arraycopy(src, 0, out, offset + field.offset, field.width);
+    }
+}
@@ -0,0 +1,120 @@
+package craig.mccoy.com.core;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters, gauges and latency histograms for a running process.  The hot paths look a
+ * metric up once and keep it; updating a counter is a LongAdder increment (striped per thread
+ * under contention) and a histogram a few atomic increments, so neither takes a lock.
+ * A snapshot walks the registry without blocking the writers; each value is read on its own, so
+ * the values in one snapshot may be a few updates apart.
+ * Registering is idempotent: asking again for a name returns the metric already registered.
+ */
+public final class MetricsRegistry {
+
+    public static final class Counter {
+        private final LongAdder adder = new LongAdder();
+
+        public void increment() {
+            adder.increment();
+        }
+
+        public void add(long delta) {
+            adder.add(delta);
+        }
+
+        public long get() {
+            return adder.sum();
+        }
+    }
+
+    // Sorted, so a dump lists related metrics together
+    private final Map<String, Object> metrics = new ConcurrentSkipListMap<>();
+
+    /**
+     * @throws IllegalArgumentException if the name is taken by another kind of metric.
+     */
+    public Counter counter(String name) {
+        return register(name, Counter.class, new Counter());
+    }
+
+    /**
+     * @throws IllegalArgumentException if the name is taken by another kind of metric.
+     */
+    public LatencyHistogram histogram(String name) {
+        return register(name, LatencyHistogram.class, new LatencyHistogram());
+    }
+
+    /**
+     * Registers a value read at snapshot time.  The supplier runs on the thread taking the
+     * snapshot, so it should only read volatile or atomic state.  A gauge registered again under
+     * the same name replaces the previous one, e.g. when a service is created again.
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        metrics.compute(name, (key, previous) -> {
+            if (previous != null && !(previous instanceof LongSupplier)) {
+                throw new IllegalArgumentException(name + " is already registered as another metric");
+            }
+            return supplier;
+        });
+    }
+
+    /**
+     * Drops a metric, e.g. a gauge that refers to an object about to go away.
+     */
+    public void remove(String name) {
+        metrics.remove(name);
+    }
+
+    /**
+     * @return the current value of a counter or gauge, the count of a histogram, or 0 if unknown.
+     */
+    public long getValue(String name) {
+        Object metric = metrics.get(name);
+        if (metric instanceof Counter) {
+            return ((Counter) metric).get();
+        } else if (metric instanceof LatencyHistogram) {
+            return ((LatencyHistogram) metric).getCount();
+        } else if (metric instanceof LongSupplier) {
+            return ((LongSupplier) metric).getAsLong();
+        }
+        return 0;
+    }
+
+    public int size() {
+        return metrics.size();
+    }
+
+    /**
+     * Writes one "name: value" line per metric, in name order.
+     */
+    public void dump(PrintWriter writer) {
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            Object metric = entry.getValue();
+            String value;
+            if (metric instanceof Counter) {
+                value = Long.toString(((Counter) metric).get());
+            } else if (metric instanceof LatencyHistogram) {
+                value = metric.toString();
+            } else {
+                value = Long.toString(((LongSupplier) metric).getAsLong());
+            }
+            writer.println(entry.getKey() + ": " + value);
+        }
+    }
+
+    private <T> T register(String name, Class<T> type, T metric) {
+        Object existing = metrics.putIfAbsent(name, metric);
+        if (existing == null) {
+            return metric;
+        }
+        if (!type.isInstance(existing)) {
+            throw new IllegalArgumentException(name + " is already registered as another metric");
+        }
+        return type.cast(existing);
+    }
+}
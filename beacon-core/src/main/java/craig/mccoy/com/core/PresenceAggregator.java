@@ -0,0 +1,418 @@
+package craig.mccoy.com.core;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns a stream of beacon detections into live presence: which beacons are in which zone, for
+ * how long, and how busy each zone was over the last window.  A beacon enters a zone when it is
+ * first heard there and exits when it has not been heard for the exit timeout, or when it is
+ * heard in another zone; the listener only hears about those changes.  Each zone keeps its
+ * detections and entries in a ring of time buckets that is rolled forward as time passes, so a
+ * detection costs a hash lookup, a list move and a bucket increment whatever the history.
+ * Memory is fixed when the aggregator is built: the beacons live in parallel arrays, linked from
+ * least to most recently heard, and when the table is full the one heard least recently is
+ * pushed out.  Timestamps are System.nanoTime() or ScanResult.getTimestampNanos() values and are
+ * expected in roughly increasing order; one that comes late only delays an exit by as much.
+ * Not thread-safe; feed it from one thread, e.g. the scan worker.
+ */
+public final class PresenceAggregator {
+
+    public interface Listener {
+        default void onEnter(BeaconType beaconType, int code, int zone, long timestampNanos) {
+        }
+
+        /**
+         * @param dwellNanos the time from the entry to the last detection in the zone.
+         * @param timestampNanos when the beacon left: the end of the exit timeout, or the
+         * detection in the next zone.
+         */
+        default void onExit(BeaconType beaconType, int code, int zone, long dwellNanos, long timestampNanos) {
+        }
+    }
+
+    /** Type, code, zone, entry, last detection and the two list links of one beacon, in bytes. */
+    public static final int ROW_BYTES = 1 + 4 + 2 + 8 + 8 + 4 + 4;
+    public static final int MAX_ZONES = 1 << 16;
+
+    private static final BeaconType[] TYPES = BeaconType.values();
+    private static final int NONE = -1;
+
+    private final int capacity;
+    private final int zoneCount;
+    private final long exitTimeoutNanos;
+    private final long bucketNanos;
+    private final int bucketCount;
+    private final Listener listener;
+
+    // Beacon columns
+    private final byte[] types;
+    private final int[] codes;
+    private final char[] zones;
+    private final long[] enteredNanos;
+    private final long[] lastSeenNanos;
+    // Recency list, oldest first; newer also chains the free rows
+    private final int[] older;
+    private final int[] newer;
+    private int oldest = NONE;
+    private int newest = NONE;
+    private int freeRow = NONE;
+    private int unusedRow = 0;
+    private int size = 0;
+    // Row index + 1 per slot, 0 = empty
+    private final int[] index;
+    private final int indexMask;
+
+    // Zone windows, bucketCount buckets per zone
+    private final int[] detectionBuckets;
+    private final int[] entryBuckets;
+    private final long[] detectionSums;
+    private final long[] entrySums;
+    private final long[] latestBuckets;
+    private final int[] occupancy;
+
+    private long detectionCount = 0;
+    private long enterCount = 0;
+    private long exitCount = 0;
+    private long evictedCount = 0;
+    private long lateCount = 0;
+    // From the end of the exit timeout until advance() noticed it
+    private final LatencyHistogram exitDelays = new LatencyHistogram();
+    private final LatencyHistogram dwellTimes = new LatencyHistogram();
+
+    /**
+     * @param capacity the beacons tracked at once.
+     * @param zoneCount zones are numbered 0 to zoneCount - 1.
+     * @param exitTimeoutMillis how long a beacon may go unheard before it exits its zone.
+     * @param windowMillis the span of the per-zone counts.
+     * @param bucketCount the window is rolled forward one bucket of windowMillis / bucketCount at a time.
+     */
+    public PresenceAggregator(int capacity, int zoneCount, long exitTimeoutMillis, long windowMillis, int bucketCount,
+                              Listener listener) {
+        if (capacity <= 0 || zoneCount <= 0 || zoneCount > MAX_ZONES || exitTimeoutMillis <= 0
+                || bucketCount <= 0 || windowMillis < bucketCount) {
+            throw new IllegalArgumentException("Invalid presence aggregator size");
+        }
+        this.capacity = capacity;
+        this.zoneCount = zoneCount;
+        this.exitTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(exitTimeoutMillis);
+        this.bucketNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis) / bucketCount;
+        this.bucketCount = bucketCount;
+        this.listener = listener;
+        types = new byte[capacity];
+        codes = new int[capacity];
+        zones = new char[capacity];
+        enteredNanos = new long[capacity];
+        lastSeenNanos = new long[capacity];
+        older = new int[capacity];
+        newer = new int[capacity];
+        // A load factor of at most 0.5 keeps the probe sequences short
+        index = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        indexMask = index.length - 1;
+        detectionBuckets = new int[zoneCount * bucketCount];
+        entryBuckets = new int[zoneCount * bucketCount];
+        detectionSums = new long[zoneCount];
+        entrySums = new long[zoneCount];
+        latestBuckets = new long[zoneCount];
+        Arrays.fill(latestBuckets, Long.MIN_VALUE);
+        occupancy = new int[zoneCount];
+    }
+
+    /**
+     * Records a detection in a zone, e.g. the zone of the receiver or the iBeacon major.
+     */
+    public void onDetection(BeaconFrame frame, int zone, long timestampNanos) {
+        onDetection(frame.beaconType, frame.code, zone, timestampNanos);
+    }
+
+    public void onDetection(BeaconType beaconType, int code, int zone, long timestampNanos) {
+        checkZone(zone);
+        detectionCount++;
+        byte type = (byte) beaconType.ordinal();
+        int slot = findSlot(type, code);
+        int row = index[slot] - 1;
+        if (row < 0) {
+            if (size == capacity) {
+                evictedCount++;
+                remove(oldest, timestampNanos);
+                slot = findSlot(type, code);
+            }
+            row = allocateRow();
+            index[slot] = row + 1;
+            types[row] = type;
+            codes[row] = code;
+            lastSeenNanos[row] = timestampNanos;
+            linkNewest(row);
+            enter(row, zone, timestampNanos);
+        } else {
+            if (zones[row] != zone) {
+                exit(row, lastSeenNanos[row] - enteredNanos[row], timestampNanos);
+                enter(row, zone, timestampNanos);
+            }
+            if (timestampNanos - lastSeenNanos[row] > 0) {
+                lastSeenNanos[row] = timestampNanos;
+            }
+            if (row != newest) {
+                unlink(row);
+                linkNewest(row);
+            }
+        }
+        add(detectionBuckets, detectionSums, zone, timestampNanos);
+    }
+
+    /**
+     * Lets the beacons that have gone unheard for the exit timeout exit their zones.  Call it
+     * periodically; an exit is reported up to one period after its timeout.
+     * @return the number of exits.
+     */
+    public int advance(long nowNanos) {
+        int exits = 0;
+        while (oldest != NONE && nowNanos - lastSeenNanos[oldest] >= exitTimeoutNanos) {
+            long exitNanos = lastSeenNanos[oldest] + exitTimeoutNanos;
+            exitDelays.record(nowNanos - exitNanos);
+            remove(oldest, exitNanos);
+            exits++;
+        }
+        return exits;
+    }
+
+    /**
+     * @return the detections in the zone over the window ending now.
+     */
+    public long getDetectionCount(int zone, long nowNanos) {
+        checkZone(zone);
+        roll(zone, Math.floorDiv(nowNanos, bucketNanos));
+        return detectionSums[zone];
+    }
+
+    /**
+     * @return the entries into the zone over the window ending now.
+     */
+    public long getEntryCount(int zone, long nowNanos) {
+        checkZone(zone);
+        roll(zone, Math.floorDiv(nowNanos, bucketNanos));
+        return entrySums[zone];
+    }
+
+    /**
+     * @return the beacons present in the zone, as of the last {@link #advance}.
+     */
+    public int getOccupancy(int zone) {
+        checkZone(zone);
+        return occupancy[zone];
+    }
+
+    /**
+     * @return the zone the beacon is in, or -1 if it is not present.
+     */
+    public int getZone(BeaconType beaconType, int code) {
+        int row = index[findSlot((byte) beaconType.ordinal(), code)] - 1;
+        return row < 0 ? -1 : zones[row];
+    }
+
+    /**
+     * @return the time from the entry of the beacon into its zone to its last detection, or -1
+     * if it is not present.
+     */
+    public long getDwellNanos(BeaconType beaconType, int code) {
+        int row = index[findSlot((byte) beaconType.ordinal(), code)] - 1;
+        return row < 0 ? -1 : lastSeenNanos[row] - enteredNanos[row];
+    }
+
+    /**
+     * @return the number of beacons present.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long getDetectionCount() {
+        return detectionCount;
+    }
+
+    public long getEnterCount() {
+        return enterCount;
+    }
+
+    public long getExitCount() {
+        return exitCount;
+    }
+
+    /** Beacons pushed out by a new one while the table was full; counted as exits too. */
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /** Detections older than the window of their zone, left out of the zone counts. */
+    public long getLateCount() {
+        return lateCount;
+    }
+
+    public LatencyHistogram getExitDelays() {
+        return exitDelays;
+    }
+
+    public LatencyHistogram getDwellTimes() {
+        return dwellTimes;
+    }
+
+    /**
+     * @return the heap taken by the beacon columns, the index and the zone windows, in bytes.
+     */
+    public long getRetainedBytes() {
+        return (long) ROW_BYTES * capacity + 4L * index.length
+                + (long) zoneCount * (2 * 4 * bucketCount + 8 + 8 + 8 + 4);
+    }
+
+    private void enter(int row, int zone, long timestampNanos) {
+        zones[row] = (char) zone;
+        enteredNanos[row] = timestampNanos;
+        occupancy[zone]++;
+        enterCount++;
+        add(entryBuckets, entrySums, zone, timestampNanos);
+        listener.onEnter(TYPES[types[row]], codes[row], zone, timestampNanos);
+    }
+
+    private void exit(int row, long dwellNanos, long timestampNanos) {
+        int zone = zones[row];
+        occupancy[zone]--;
+        exitCount++;
+        dwellTimes.record(dwellNanos);
+        listener.onExit(TYPES[types[row]], codes[row], zone, dwellNanos, timestampNanos);
+    }
+
+    private void remove(int row, long exitNanos) {
+        exit(row, lastSeenNanos[row] - enteredNanos[row], exitNanos);
+        unlink(row);
+        deleteSlot(findSlot(types[row], codes[row]));
+        newer[row] = freeRow;
+        freeRow = row;
+        size--;
+    }
+
+    private int allocateRow() {
+        size++;
+        if (freeRow != NONE) {
+            int row = freeRow;
+            freeRow = newer[row];
+            return row;
+        }
+        return unusedRow++;
+    }
+
+    private void linkNewest(int row) {
+        older[row] = newest;
+        newer[row] = NONE;
+        if (newest != NONE) {
+            newer[newest] = row;
+        } else {
+            oldest = row;
+        }
+        newest = row;
+    }
+
+    private void unlink(int row) {
+        int before = older[row];
+        int after = newer[row];
+        if (before != NONE) {
+            newer[before] = after;
+        } else {
+            oldest = after;
+        }
+        if (after != NONE) {
+            older[after] = before;
+        } else {
+            newest = before;
+        }
+    }
+
+    private void add(int[] buckets, long[] sums, int zone, long timestampNanos) {
+        long bucket = Math.floorDiv(timestampNanos, bucketNanos);
+        roll(zone, bucket);
+        if (latestBuckets[zone] - bucket >= bucketCount) {
+            lateCount++;
+            return;
+        }
+        buckets[zone * bucketCount + (int) Math.floorMod(bucket, (long) bucketCount)]++;
+        sums[zone]++;
+    }
+
+    // Moves the window of the zone forward to end with the given bucket, emptying the buckets it leaves behind
+    private void roll(int zone, long bucket) {
+        long latest = latestBuckets[zone];
+        if (latest != Long.MIN_VALUE && bucket <= latest) {
+            return;
+        }
+        int base = zone * bucketCount;
+        if (latest == Long.MIN_VALUE || bucket - latest >= bucketCount) {
+            Arrays.fill(detectionBuckets, base, base + bucketCount, 0);
+            Arrays.fill(entryBuckets, base, base + bucketCount, 0);
+            detectionSums[zone] = 0;
+            entrySums[zone] = 0;
+        } else {
+            for (long b = latest + 1; b <= bucket; b++) {
+                int i = base + (int) Math.floorMod(b, (long) bucketCount);
+                detectionSums[zone] -= detectionBuckets[i];
+                entrySums[zone] -= entryBuckets[i];
+                detectionBuckets[i] = 0;
+                entryBuckets[i] = 0;
+            }
+        }
+        latestBuckets[zone] = bucket;
+    }
+
+    /**
+     * @return the slot holding the beacon, or the empty slot ending its probe sequence.
+     */
+    private int findSlot(byte type, int code) {
+        int slot = hash(type, code) & indexMask;
+        while (true) {
+            int row = index[slot] - 1;
+            if (row < 0 || (codes[row] == code && types[row] == type)) {
+                return slot;
+            }
+            slot = (slot + 1) & indexMask;
+        }
+    }
+
+    // Backward-shift deletion, so lookups never need tombstones
+    private void deleteSlot(int slot) {
+        int hole = slot;
+        int next = (slot + 1) & indexMask;
+        while (true) {
+            int value = index[next];
+            if (value == 0) {
+                break;
+            }
+            int home = hash(types[value - 1], codes[value - 1]) & indexMask;
+            if (((next - home) & indexMask) >= ((next - hole) & indexMask)) {
+                index[hole] = value;
+                hole = next;
+            }
+            next = (next + 1) & indexMask;
+        }
+        index[hole] = 0;
+    }
+
+    private void checkZone(int zone) {
+        if (zone < 0 || zone >= zoneCount) {
+            throw new IndexOutOfBoundsException("Zone " + zone + " of " + zoneCount);
+        }
+    }
+
+    private static int hash(byte type, int code) {
+        int h = (code + type * 0x61C88647) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        return "present=" + size + "/" + capacity + " detections=" + detectionCount + " enters=" + enterCount
+                + " exits=" + exitCount + " evicted=" + evictedCount + " late=" + lateCount
+                + " exit delay " + exitDelays;
+    }
+}
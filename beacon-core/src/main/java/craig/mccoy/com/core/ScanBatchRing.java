@@ -0,0 +1,247 @@
+package craig.mccoy.com.core;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded single-producer/single-consumer ring of preallocated scan batches.  The producer
+ * claims the next free batch, copies the results into it and publishes it; the consumer takes the
+ * oldest published batch, reads it and releases it back to the producer.  No batch or record is
+ * allocated once the ring is built, and the only shared writes are the two ordered index stores.
+ * Exactly one thread may produce and one thread may consume.
+ */
+public final class ScanBatchRing {
+
+    /** Keep every result. */
+    public static final int KEEP_ALL = 0;
+    /** Keep the first result of each distinct record in the batch. */
+    public static final int DROP_DUPLICATES = 1;
+    /** Drop duplicates, then keep every other remaining result. */
+    public static final int DOWNSAMPLE = 2;
+
+    /**
+     * The results of one scan callback, stored back to back: the raw record bytes with the RSSI
+     * and timestamp of each result.
+     */
+    public static final class Batch {
+        private final int maxRecordLength;
+        private final byte[] records;
+        private final int[] lengths;
+        private final int[] rssis;
+        private final long[] timestamps;
+        // Record hashes seen in this batch, 0 = empty
+        private final long[] seen;
+        private final int seenMask;
+        private int size = 0;
+        private int policy = KEEP_ALL;
+        private int uniqueCount = 0;
+        private int duplicateCount = 0;
+        private int downsampledCount = 0;
+        private int overflowCount = 0;
+        long publishedNanos;
+
+        Batch(int maxResults, int maxRecordLength) {
+            this.maxRecordLength = maxRecordLength;
+            records = new byte[maxResults * maxRecordLength];
+            lengths = new int[maxResults];
+            rssis = new int[maxResults];
+            timestamps = new long[maxResults];
+            seen = new long[Integer.highestOneBit(maxResults * 2 - 1) << 1];
+            seenMask = seen.length - 1;
+        }
+
+        void reset(int policy) {
+            this.policy = policy;
+            size = 0;
+            uniqueCount = 0;
+            duplicateCount = 0;
+            downsampledCount = 0;
+            overflowCount = 0;
+            if (policy != KEEP_ALL) {
+                Arrays.fill(seen, 0);
+            }
+        }
+
+        /**
+         * Copies one result into the batch, unless the policy of the batch drops it.  A record
+         * longer than the slot is cut short; the beacon frames sit in the first AD structures.
+         * @return false if the result was dropped.
+         */
+        public boolean add(byte[] record, int rssi, long timestampNanos) {
+            if (size == lengths.length) {
+                overflowCount++;
+                return false;
+            }
+            int length = record == null ? 0 : Math.min(record.length, maxRecordLength);
+            if (policy != KEEP_ALL) {
+                if (!markSeen(hash(record, length))) {
+                    duplicateCount++;
+                    return false;
+                }
+                if (policy == DOWNSAMPLE && (uniqueCount++ & 1) != 0) {
+                    downsampledCount++;
+                    return false;
+                }
+            }
+            if (length > 0) {
+                System.arraycopy(record, 0, records, size * maxRecordLength, length);
+            }
+            lengths[size] = length;
+            rssis[size] = rssi;
+            timestamps[size] = timestampNanos;
+            size++;
+            return true;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int getPolicy() {
+            return policy;
+        }
+
+        /** The records of the batch, result i starting at {@link #getOffset(int)}. */
+        public byte[] getRecords() {
+            return records;
+        }
+
+        public int getOffset(int i) {
+            return i * maxRecordLength;
+        }
+
+        public int getLength(int i) {
+            return lengths[i];
+        }
+
+        public int getRssi(int i) {
+            return rssis[i];
+        }
+
+        public long getTimestampNanos(int i) {
+            return timestamps[i];
+        }
+
+        public int getDuplicateCount() {
+            return duplicateCount;
+        }
+
+        public int getDownsampledCount() {
+            return downsampledCount;
+        }
+
+        /** Results that did not fit in the batch. */
+        public int getOverflowCount() {
+            return overflowCount;
+        }
+
+        // @return false if the hash was already in the batch
+        private boolean markSeen(long hash) {
+            int slot = (int) (hash ^ (hash >>> 32)) & seenMask;
+            while (seen[slot] != 0) {
+                if (seen[slot] == hash) {
+                    return false;
+                }
+                slot = (slot + 1) & seenMask;
+            }
+            seen[slot] = hash;
+            return true;
+        }
+
+        // 64-bit FNV-1a; equal records are the same advertisement heard again
+        private static long hash(byte[] record, int length) {
+            long h = 0xCBF29CE484222325L;
+            for (int i = 0; i < length; i++) {
+                h = (h ^ (record[i] & 0xFF)) * 0x100000001B3L;
+            }
+            return h == 0 ? 1 : h;
+        }
+    }
+
+    private final Batch[] batches;
+    private final int mask;
+    // Next batch to take; written by the consumer only
+    private final AtomicLong head = new AtomicLong();
+    // Next batch to publish; written by the producer only
+    private final AtomicLong tail = new AtomicLong();
+    // Last values seen of the other side's index, so the fast path skips the volatile read
+    private long producerHead = 0;
+    private long consumerTail = 0;
+
+    /**
+     * @param capacity the number of batches, rounded up to a power of two.
+     * @param maxResults the results one batch can hold; the rest of a callback is dropped.
+     * @param maxRecordLength the record bytes kept per result.
+     */
+    public ScanBatchRing(int capacity, int maxResults, int maxRecordLength) {
+        if (capacity <= 0 || maxResults <= 0 || maxRecordLength <= 0) {
+            throw new IllegalArgumentException("Invalid ring size");
+        }
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        batches = new Batch[size];
+        for (int i = 0; i < size; i++) {
+            batches[i] = new Batch(maxResults, maxRecordLength);
+        }
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return batches.length;
+    }
+
+    /**
+     * @return the number of published batches not released yet; may be stale by the time it returns.
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, batches.length));
+    }
+
+    /**
+     * Producer side.
+     * @return the next free batch, reset to the given policy, or null if the ring is full.
+     */
+    public Batch claim(int policy) {
+        long next = tail.get();
+        if (next - producerHead >= batches.length) {
+            producerHead = head.get();
+            if (next - producerHead >= batches.length) {
+                return null;
+            }
+        }
+        Batch batch = batches[(int) next & mask];
+        batch.reset(policy);
+        return batch;
+    }
+
+    /**
+     * Producer side: hands the batch returned by the last {@link #claim} to the consumer.
+     */
+    public void publish() {
+        // The ordered store makes the batch contents visible before the new tail
+        tail.lazySet(tail.get() + 1);
+    }
+
+    /**
+     * Consumer side.
+     * @return the oldest published batch, or null if there is none.  It stays owned by the
+     * consumer until {@link #release()}.
+     */
+    public Batch peek() {
+        long next = head.get();
+        if (next >= consumerTail) {
+            consumerTail = tail.get();
+            if (next >= consumerTail) {
+                return null;
+            }
+        }
+        return batches[(int) next & mask];
+    }
+
+    /**
+     * Consumer side: gives the batch returned by {@link #peek()} back to the producer.
+     */
+    public void release() {
+        head.lazySet(head.get() + 1);
+    }
+}
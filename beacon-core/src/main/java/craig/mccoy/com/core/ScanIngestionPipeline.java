@@ -0,0 +1,259 @@
+package craig.mccoy.com.core;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves batched scan results off the scan callback thread.  Each batch is copied into a
+ * {@link ScanBatchRing} and a worker thread parses it into one reused {@link BeaconFrame} and
+ * hands every beacon found to a {@link Sink}.  When the worker falls behind the producer sheds
+ * load instead of queueing without bound: once the ring is half full duplicate records in a batch
+ * are dropped, from three quarters on every other remaining result is dropped as well, and a
+ * batch that finds the ring full is dropped whole.  Every dropped result is counted.
+ * The metrics go into a {@link MetricsRegistry} under "scan.".
+ * One thread may call {@link #offer}; the worker is the only consumer.
+ */
+public final class ScanIngestionPipeline {
+
+    public interface Sink {
+        /**
+         * Called on the worker thread.  The frame is reused for the next result, so copy it
+         * (see BeaconFrame.copyFrom) if it has to be kept.
+         */
+        void onBeacon(BeaconFrame frame, int rssi, long timestampNanos);
+    }
+
+    /**
+     * Reads a platform scan result, so the pipeline does not depend on the Android classes.
+     */
+    public interface ResultReader<T> {
+        /** @return the raw advertisement, e.g. ScanRecord.getBytes(), or null if there is none. */
+        byte[] getRecord(T result);
+
+        int getRssi(T result);
+
+        long getTimestampNanos(T result);
+    }
+
+    private final ScanBatchRing ring;
+    private final Sink sink;
+    private final BeaconFrame frame = new BeaconFrame();
+    private final int dedupeDepth;
+    private final int downsampleDepth;
+    private volatile Thread worker = null;
+    private volatile boolean isRunning = false;
+    private volatile int maxDepth = 0;
+    private final long createdNanos = System.nanoTime();
+    // The registry outlives a pipeline, so the rate counts from the value found at creation
+    private final long processedAtCreation;
+
+    private final MetricsRegistry.Counter batchesOffered;
+    private final MetricsRegistry.Counter resultsOffered;
+    private final MetricsRegistry.Counter resultsProcessed;
+    private final MetricsRegistry.Counter beaconsFound;
+    private final MetricsRegistry.Counter droppedDuplicates;
+    private final MetricsRegistry.Counter droppedDownsampled;
+    private final MetricsRegistry.Counter droppedOverflow;
+    private final MetricsRegistry.Counter droppedBatches;
+    // Publish to the end of processing, i.e. queueing plus parsing
+    private final LatencyHistogram batchLatency;
+
+    /**
+     * @param ringCapacity the batches that can wait for the worker.
+     * @param maxResults the results kept per batch.
+     * @param maxRecordLength the record bytes kept per result.
+     */
+    public ScanIngestionPipeline(int ringCapacity, int maxResults, int maxRecordLength, Sink sink, MetricsRegistry metrics) {
+        ring = new ScanBatchRing(ringCapacity, maxResults, maxRecordLength);
+        this.sink = sink;
+        dedupeDepth = ring.capacity() / 2;
+        downsampleDepth = ring.capacity() * 3 / 4;
+        batchesOffered = metrics.counter("scan.batches");
+        resultsOffered = metrics.counter("scan.results");
+        resultsProcessed = metrics.counter("scan.results_processed");
+        beaconsFound = metrics.counter("scan.beacons");
+        droppedDuplicates = metrics.counter("scan.dropped.duplicates");
+        droppedDownsampled = metrics.counter("scan.dropped.downsampled");
+        droppedOverflow = metrics.counter("scan.dropped.overflow");
+        droppedBatches = metrics.counter("scan.dropped.batches");
+        processedAtCreation = resultsProcessed.get();
+        batchLatency = metrics.histogram("scan.batch_latency");
+        metrics.gauge("scan.queue_depth", ring::size);
+        metrics.gauge("scan.queue_depth_max", () -> maxDepth);
+        metrics.gauge("scan.results_per_s", () -> (long) getThroughput());
+    }
+
+    /**
+     * Starts the worker thread.
+     */
+    public synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        isRunning = true;
+        Thread thread = new Thread(this::run, "ScanIngestion");
+        thread.setDaemon(true);
+        worker = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the worker once it has processed what is queued.
+     */
+    public synchronized void stop() throws InterruptedException {
+        Thread thread = worker;
+        if (thread == null) {
+            return;
+        }
+        isRunning = false;
+        LockSupport.unpark(thread);
+        thread.join();
+        worker = null;
+    }
+
+    /**
+     * Queues the results of one scan callback.  Called on the scan callback thread; copies the
+     * records and returns without waiting for the worker.
+     * @return false if the ring was full and the whole batch was dropped.
+     */
+    public <T> boolean offer(List<T> results, ResultReader<T> reader) {
+        int count = results.size();
+        batchesOffered.increment();
+        resultsOffered.add(count);
+        int depth = ring.size();
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+        int policy = depth >= downsampleDepth ? ScanBatchRing.DOWNSAMPLE
+                : depth >= dedupeDepth ? ScanBatchRing.DROP_DUPLICATES : ScanBatchRing.KEEP_ALL;
+        ScanBatchRing.Batch batch = ring.claim(policy);
+        if (batch == null) {
+            droppedBatches.increment();
+            droppedOverflow.add(count);
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            T result = results.get(i);
+            batch.add(reader.getRecord(result), reader.getRssi(result), reader.getTimestampNanos(result));
+        }
+        if (batch.getDuplicateCount() > 0) {
+            droppedDuplicates.add(batch.getDuplicateCount());
+        }
+        if (batch.getDownsampledCount() > 0) {
+            droppedDownsampled.add(batch.getDownsampledCount());
+        }
+        if (batch.getOverflowCount() > 0) {
+            droppedOverflow.add(batch.getOverflowCount());
+        }
+        batch.publishedNanos = System.nanoTime();
+        ring.publish();
+        Thread thread = worker;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    /**
+     * Processes every queued batch on the calling thread; for tests and for callers that run
+     * without the worker.  Must not be called while the worker is running.
+     * @return the number of batches processed.
+     */
+    public int drain() {
+        int processed = 0;
+        ScanBatchRing.Batch batch;
+        while ((batch = ring.peek()) != null) {
+            process(batch);
+            ring.release();
+            processed++;
+        }
+        return processed;
+    }
+
+    public int getQueueDepth() {
+        return ring.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxDepth;
+    }
+
+    public long getOfferedCount() {
+        return resultsOffered.get();
+    }
+
+    public long getProcessedCount() {
+        return resultsProcessed.get();
+    }
+
+    public long getBeaconCount() {
+        return beaconsFound.get();
+    }
+
+    /**
+     * @return the results dropped for any reason; offered = processed + dropped + still queued.
+     */
+    public long getDroppedCount() {
+        return droppedDuplicates.get() + droppedDownsampled.get() + droppedOverflow.get();
+    }
+
+    public long getDuplicateCount() {
+        return droppedDuplicates.get();
+    }
+
+    public long getDownsampledCount() {
+        return droppedDownsampled.get();
+    }
+
+    public long getOverflowCount() {
+        return droppedOverflow.get();
+    }
+
+    public LatencyHistogram getBatchLatency() {
+        return batchLatency;
+    }
+
+    /**
+     * @return the results processed per second since the pipeline was created.
+     */
+    public double getThroughput() {
+        long elapsedNanos = Math.max(1, System.nanoTime() - createdNanos);
+        return (resultsProcessed.get() - processedAtCreation) * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    private void run() {
+        while (isRunning) {
+            if (drain() == 0) {
+                // offer() unparks the worker after each publish; a permit left from an earlier
+                // publish only costs one extra pass
+                LockSupport.park(this);
+            }
+        }
+        drain();
+    }
+
+    private void process(ScanBatchRing.Batch batch) {
+        byte[] records = batch.getRecords();
+        int size = batch.size();
+        int beacons = 0;
+        for (int i = 0; i < size; i++) {
+            if (ScanRecordParser.parse(records, batch.getOffset(i), batch.getLength(i), frame)) {
+                beacons++;
+                sink.onBeacon(frame, batch.getRssi(i), batch.getTimestampNanos(i));
+            }
+        }
+        resultsProcessed.add(size);
+        beaconsFound.add(beacons);
+        batchLatency.record(System.nanoTime() - batch.publishedNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "offered=" + resultsOffered.get() + " processed=" + resultsProcessed.get()
+                + " beacons=" + beaconsFound.get() + " dropped(duplicates=" + droppedDuplicates.get()
+                + " downsampled=" + droppedDownsampled.get() + " overflow=" + droppedOverflow.get()
+                + ") depth=" + ring.size() + "/" + ring.capacity() + " max_depth=" + maxDepth
+                + " results_per_s=" + (long) getThroughput() + " latency " + batchLatency;
+    }
+}
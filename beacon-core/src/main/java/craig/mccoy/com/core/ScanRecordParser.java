@@ -0,0 +1,91 @@
+package craig.mccoy.com.core;
+
+/**
+ * Finds the AltBeacon (0xBEAC) and iBeacon (0x0215) frames produced by this app in the raw bytes
+ * of a BLE advertisement (ScanRecord.getBytes()).  The AD structures are walked in place and the
+ * fields are read straight from the byte array into a caller-supplied {@link BeaconFrame}; no
+ * maps, UUID objects or copies are created.
+ */
+public final class ScanRecordParser {
+
+    private static final int AD_TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    // Length of the manufacturer data including the 2 byte manufacturer ID
+    private static final int ALT_BEACON_AD_LENGTH = 2 + BeaconEncoder.ALT_BEACON_LENGTH;
+    private static final int I_BEACON_AD_LENGTH = 2 + BeaconEncoder.I_BEACON_LENGTH;
+
+    private ScanRecordParser() {
+    }
+
+    /**
+     * @return true if an AltBeacon or iBeacon frame was found, in which case frame holds it.
+     */
+    public static boolean parse(byte[] scanRecord, BeaconFrame frame) {
+        return scanRecord != null && parse(scanRecord, 0, scanRecord.length, frame);
+    }
+
+    public static boolean parse(byte[] scanRecord, int offset, int length, BeaconFrame frame) {
+        int end = offset + length;
+        int position = offset;
+        while (position < end) {
+            int adLength = scanRecord[position] & 0xFF;
+            if (adLength == 0) {
+                // Zero padding at the end of a legacy advertisement
+                break;
+            }
+            int adEnd = position + 1 + adLength;
+            if (adEnd > end) {
+                // Truncated AD structure
+                break;
+            }
+            int adType = scanRecord[position + 1] & 0xFF;
+            if (adType == AD_TYPE_MANUFACTURER_SPECIFIC_DATA
+                    && parseManufacturerData(scanRecord, position + 2, adLength - 1, frame)) {
+                return true;
+            }
+            position = adEnd;
+        }
+        return false;
+    }
+
+    /**
+     * @param offset the index of the manufacturer ID (little-endian) in data.
+     * @param length the length of the manufacturer data including the manufacturer ID.
+     */
+    public static boolean parseManufacturerData(byte[] data, int offset, int length, BeaconFrame frame) {
+        if (length < I_BEACON_AD_LENGTH) {
+            return false;
+        }
+        int manufacturerId = (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+        int beaconCode = getUnsignedShort(data, offset + 2);
+        int frameOffset = offset + 2;
+
+        if (beaconCode == 0xBEAC && length >= ALT_BEACON_AD_LENGTH) {
+            frame.beaconType = BeaconType.AltBeacon;
+            frame.code = getInt(data, frameOffset + BeaconEncoder.ALT_BEACON_CODE_OFFSET);
+        } else if (beaconCode == 0x0215) {
+            frame.beaconType = BeaconType.IBeacon;
+            frame.code = getInt(data, frameOffset + BeaconEncoder.I_BEACON_MAJOR_OFFSET);
+        } else {
+            return false;
+        }
+        frame.manufacturerId = manufacturerId;
+        frame.uuidMostSignificantBits = getLong(data, frameOffset + BeaconEncoder.UUID_OFFSET);
+        frame.uuidLeastSignificantBits = getLong(data, frameOffset + BeaconEncoder.UUID_OFFSET + 8);
+        frame.referenceRssi = data[frameOffset + BeaconEncoder.REFERENCE_RSSI_OFFSET];
+        return true;
+    }
+
+    static int getUnsignedShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+    }
+
+    static int getInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+                | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+    }
+
+    static long getLong(byte[] data, int offset) {
+        return (long) getInt(data, offset) << 32 | (getInt(data, offset + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,318 @@
+package craig.mccoy.com.core;
+
+import java.io.Closeable;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A Bluetooth controller simulated on the JVM, for driving {@link AdvertisingEngine} through load
+ * tests without a device.  Like the Android stack, it runs the requests one at a time in the order
+ * they were made, on its own thread, and answers each after a configurable delay.  It enforces the
+ * advertising set limit (FAILED_TOO_MANY_ADVERTISERS), the payload size of the advertising mode
+ * (FAILED_DATA_TOO_LARGE) and the supported PHYs (FAILED_FEATURE_UNSUPPORTED), and can inject
+ * FAILED_INTERNAL_ERROR at a given rate.
+ * A set holds its place in the controller until its stop has been processed.
+ */
+public final class SimulatedAdvertiserBackend implements AdvertiserBackend<byte[]>, Closeable {
+
+    public static final class Builder {
+        private int maxAdvertisingSets = 4;
+        private long startDelayNanos = 0;
+        private long dataDelayNanos = 0;
+        private long stopDelayNanos = 0;
+        private long jitterNanos = 0;
+        private double failureRate = 0;
+        private int maxExtendedDataLength = AdvertisingPhy.EXTENDED_MIN_DATA_LENGTH;
+        private boolean isExtendedSupported = true;
+        private boolean isLe2MSupported = true;
+        private boolean isLeCodedSupported = true;
+        private long seed = 0;
+
+        public Builder setMaxAdvertisingSets(int maxAdvertisingSets) {
+            this.maxAdvertisingSets = maxAdvertisingSets;
+            return this;
+        }
+
+        /**
+         * Sets how long the controller takes to answer each kind of request.
+         */
+        public Builder setDelays(long start, long data, long stop, TimeUnit unit) {
+            this.startDelayNanos = unit.toNanos(start);
+            this.dataDelayNanos = unit.toNanos(data);
+            this.stopDelayNanos = unit.toNanos(stop);
+            return this;
+        }
+
+        /**
+         * Adds a uniformly distributed extra delay of up to the given amount to every answer.
+         */
+        public Builder setJitter(long jitter, TimeUnit unit) {
+            this.jitterNanos = unit.toNanos(jitter);
+            return this;
+        }
+
+        /**
+         * @param failureRate the fraction (0-1) of starts and data updates failing with FAILED_INTERNAL_ERROR.
+         */
+        public Builder setFailureRate(double failureRate) {
+            this.failureRate = failureRate;
+            return this;
+        }
+
+        /**
+         * Sets what the controller reports as its maximum extended advertising data length.
+         */
+        public Builder setMaxExtendedDataLength(int maxExtendedDataLength) {
+            this.maxExtendedDataLength = maxExtendedDataLength;
+            return this;
+        }
+
+        public Builder setSupportedFeatures(boolean isExtendedSupported, boolean isLe2MSupported,
+                                            boolean isLeCodedSupported) {
+            this.isExtendedSupported = isExtendedSupported;
+            this.isLe2MSupported = isLe2MSupported;
+            this.isLeCodedSupported = isLeCodedSupported;
+            return this;
+        }
+
+        public Builder setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public SimulatedAdvertiserBackend build() {
+            if (maxAdvertisingSets <= 0 || failureRate < 0 || failureRate > 1) {
+                throw new IllegalArgumentException("Invalid controller model");
+            }
+            return new SimulatedAdvertiserBackend(this);
+        }
+    }
+
+    private final int maxAdvertisingSets;
+    private final long startDelayNanos;
+    private final long dataDelayNanos;
+    private final long stopDelayNanos;
+    private final long jitterNanos;
+    private final double failureRate;
+    private final int maxExtendedDataLength;
+    private final boolean isExtendedSupported;
+    private final boolean isLe2MSupported;
+    private final boolean isLeCodedSupported;
+    // Only used on the controller thread
+    private final Random random;
+
+    private final ExecutorService controller;
+    // The started sets and the mode each was started in
+    private final ConcurrentHashMap<Callback, AdvertisingPhy> activeSets = new ConcurrentHashMap<>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong startedCount = new AtomicLong();
+    private final AtomicLong stoppedCount = new AtomicLong();
+    private final AtomicLong dataSetCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong tooManyCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile int peakActiveSets = 0;
+
+    private SimulatedAdvertiserBackend(Builder builder) {
+        maxAdvertisingSets = builder.maxAdvertisingSets;
+        startDelayNanos = builder.startDelayNanos;
+        dataDelayNanos = builder.dataDelayNanos;
+        stopDelayNanos = builder.stopDelayNanos;
+        jitterNanos = builder.jitterNanos;
+        failureRate = builder.failureRate;
+        maxExtendedDataLength = builder.maxExtendedDataLength;
+        isExtendedSupported = builder.isExtendedSupported;
+        isLe2MSupported = builder.isLe2MSupported;
+        isLeCodedSupported = builder.isLeCodedSupported;
+        random = new Random(builder.seed);
+        controller = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SimulatedController");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public void startSet(BeaconType beaconType, byte[] data, Callback callback) {
+        requestCount.incrementAndGet();
+        AdvertisingPhy phy = AdvertisingPhy.forBeaconType(beaconType);
+        controller.execute(() -> {
+            delay(startDelayNanos);
+            int status;
+            if (activeSets.containsKey(callback)) {
+                status = FAILED_ALREADY_STARTED;
+            } else if (!isSupported(phy)) {
+                status = FAILED_FEATURE_UNSUPPORTED;
+            } else if (data.length > phy.getMaxDataLength(maxExtendedDataLength)) {
+                status = FAILED_DATA_TOO_LARGE;
+            } else if (activeSets.size() >= maxAdvertisingSets) {
+                status = FAILED_TOO_MANY_ADVERTISERS;
+                tooManyCount.incrementAndGet();
+            } else if (isInjectedFailure()) {
+                status = FAILED_INTERNAL_ERROR;
+            } else {
+                activeSets.put(callback, phy);
+                peakActiveSets = Math.max(peakActiveSets, activeSets.size());
+                startedCount.incrementAndGet();
+                status = SUCCESS;
+            }
+            if (status != SUCCESS) {
+                failedCount.incrementAndGet();
+            }
+            callback.onStarted(status);
+        });
+    }
+
+    @Override
+    public boolean setData(Callback callback, byte[] data) {
+        if (!activeSets.containsKey(callback)) {
+            return false;
+        }
+        requestCount.incrementAndGet();
+        controller.execute(() -> {
+            delay(dataDelayNanos);
+            AdvertisingPhy phy = activeSets.get(callback);
+            if (phy == null) {
+                // Stopped in the meantime
+                return;
+            }
+            int status;
+            if (data.length > phy.getMaxDataLength(maxExtendedDataLength)) {
+                status = FAILED_DATA_TOO_LARGE;
+            } else if (isInjectedFailure()) {
+                status = FAILED_INTERNAL_ERROR;
+            } else {
+                dataSetCount.incrementAndGet();
+                status = SUCCESS;
+            }
+            if (status != SUCCESS) {
+                failedCount.incrementAndGet();
+            }
+            callback.onDataSet(status);
+        });
+        return true;
+    }
+
+    @Override
+    public void stopSet(Callback callback) {
+        requestCount.incrementAndGet();
+        controller.execute(() -> {
+            delay(stopDelayNanos);
+            // A set whose start failed was never registered, so there is nothing to report
+            if (activeSets.remove(callback) != null) {
+                stoppedCount.incrementAndGet();
+                callback.onStopped();
+            }
+        });
+    }
+
+    /**
+     * Models a controller reset: every started set goes off the air and reports onStopped
+     * without having been asked to stop.
+     */
+    public void dropAllSets() {
+        controller.execute(() -> {
+            for (Callback callback : activeSets.keySet()) {
+                if (activeSets.remove(callback) != null) {
+                    droppedCount.incrementAndGet();
+                    callback.onStopped();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until every request made so far has been answered.
+     */
+    public void awaitIdle(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        try {
+            controller.submit(() -> { }).get(timeout, unit);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public int getActiveSetCount() {
+        return activeSets.size();
+    }
+
+    public int getPeakActiveSetCount() {
+        return peakActiveSets;
+    }
+
+    public int getMaxAdvertisingSets() {
+        return maxAdvertisingSets;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getStartedCount() {
+        return startedCount.get();
+    }
+
+    public long getStoppedCount() {
+        return stoppedCount.get();
+    }
+
+    public long getDataSetCount() {
+        return dataSetCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getTooManyAdvertisersCount() {
+        return tooManyCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public void close() {
+        controller.shutdownNow();
+    }
+
+    private boolean isSupported(AdvertisingPhy phy) {
+        switch (phy) {
+            case EXTENDED_2M:
+                return isExtendedSupported && isLe2MSupported;
+            case EXTENDED_CODED:
+                return isExtendedSupported && isLeCodedSupported;
+            case EXTENDED_1M:
+                return isExtendedSupported;
+            default:
+                return true;
+        }
+    }
+
+    private boolean isInjectedFailure() {
+        return failureRate > 0 && random.nextDouble() < failureRate;
+    }
+
+    private void delay(long nanos) {
+        if (jitterNanos > 0) {
+            nanos += (long) (random.nextDouble() * jitterNanos);
+        }
+        long deadline = System.nanoTime() + nanos;
+        long remaining;
+        while (nanos > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package craig.mccoy.com.core;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AdvertisingEngineTest {
+
+    private static final byte[] PAYLOAD = new byte[27];
+
+    private SimulatedAdvertiserBackend backend;
+
+    private AdvertisingEngine<byte[]> createEngine(SimulatedAdvertiserBackend backend, int maxAdvertisingSets) {
+        this.backend = backend;
+        return new AdvertisingEngine<>(backend, (beaconType, uniqueCode) -> PAYLOAD, maxAdvertisingSets, null);
+    }
+
+    @After
+    public void tearDown() {
+        if (backend != null) {
+            backend.close();
+        }
+    }
+
+    @Test
+    public void addAndRemove_reachTheController() throws Exception {
+        AdvertisingEngine<byte[]> engine = createEngine(SimulatedAdvertiserBackend.builder().build(), 4);
+        assertTrue(engine.addBeacon(BeaconType.AltBeacon, 1));
+        assertTrue(engine.addBeacon(BeaconType.EddystoneUid, 1));
+        assertFalse(engine.addBeacon(BeaconType.AltBeacon, 1));
+        backend.awaitIdle(5, TimeUnit.SECONDS);
+        assertEquals(2, backend.getActiveSetCount());
+        assertEquals(2, engine.getStartedCount());
+
+        assertTrue(engine.removeBeacon(BeaconType.AltBeacon, 1));
+        assertFalse(engine.removeBeacon(BeaconType.AltBeacon, 1));
+        backend.awaitIdle(5, TimeUnit.SECONDS);
+        assertEquals(1, backend.getActiveSetCount());
+        assertEquals(1, backend.getStoppedCount());
+    }
+
+    @Test
+    public void tooManyAdvertisers_lowersTheLimit() throws Exception {
+        AdvertisingEngine<byte[]> engine = createEngine(
+                SimulatedAdvertiserBackend.builder().setMaxAdvertisingSets(4).build(), 8);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(engine.addBeacon(BeaconType.AltBeacon, i));
+        }
+        backend.awaitIdle(5, TimeUnit.SECONDS);
+        assertEquals(4, engine.getBeaconCount());
+        assertEquals(4, engine.getMaxAdvertisingSets());
+        assertEquals(4, backend.getTooManyAdvertisersCount());
+        assertFalse(engine.addBeacon(BeaconType.AltBeacon, 100));
+    }
+
+    @Test
+    public void tooManyAdvertisers_countsSetsBeingStopped() throws Exception {
+        AdvertisingEngine<byte[]> engine = createEngine(SimulatedAdvertiserBackend.builder()
+                .setMaxAdvertisingSets(2).setDelays(20, 0, 0, TimeUnit.MILLISECONDS).build(), 4);
+        engine.addBeacon(BeaconType.AltBeacon, 1);
+        engine.addBeacon(BeaconType.AltBeacon, 2);
+        backend.awaitIdle(5, TimeUnit.SECONDS);
+        // The third start fails while the first two are being removed; the controller still holds them
+        engine.addBeacon(BeaconType.AltBeacon, 3);
+        engine.removeBeacon(BeaconType.AltBeacon, 1);
+        engine.removeBeacon(BeaconType.AltBeacon, 2);
+        backend.awaitIdle(5, TimeUnit.SECONDS);
+        assertEquals(1, backend.getTooManyAdvertisersCount());
+        assertEquals(2, engine.getMaxAdvertisingSets());
+    }
+
+    @Test
+    public void updateUniqueCode_swapsInPlace() throws Exception {
+        AdvertisingEngine<byte[]> engine = createEngine(SimulatedAdvertiserBackend.builder().build(), 4);
+        engine.addBeacon(BeaconType.AltBeacon, 1);
+        backend.awaitIdle(5, TimeUnit.SECONDS);
+        assertTrue(engine.updateUniqueCode(BeaconType.AltBeacon, 1, 2, null));
+        backend.awaitIdle(5, TimeUnit.SECONDS);
+        assertEquals(Integer.valueOf(2), engine.findUniqueCode(BeaconType.AltBeacon));
+        assertEquals(1, engine.getSwapCount());
+        assertEquals(1, backend.getStartedCount());
+        assertEquals(0, backend.getStoppedCount());
+        assertFalse(engine.updateUniqueCode(BeaconType.AltBeacon, 1, 3, null));
+    }
+
+    @Test
+    public void updateBeforeStarted_restartsTheBeacon() throws Exception {
+        AdvertisingEngine<byte[]> engine = createEngine(SimulatedAdvertiserBackend.builder()
+                .setDelays(20, 0, 0, TimeUnit.MILLISECONDS).build(), 4);
+        engine.addBeacon(BeaconType.AltBeacon, 1);
+        assertTrue(engine.updateUniqueCode(BeaconType.AltBeacon, 1, 2, null));
+        backend.awaitIdle(5, TimeUnit.SECONDS);
+        assertTrue(engine.isAdvertising(BeaconType.AltBeacon, 2));
+        assertEquals(0, engine.getSwapCount());
+        assertEquals(1, backend.getActiveSetCount());
+    }
+
+    @Test
+    public void failedStart_isDroppedAndReported() throws Exception {
+        int[] failures = new int[1];
+        backend = SimulatedAdvertiserBackend.builder().build();
+        // Over the legacy limit of 31 bytes
+        byte[] payload = new byte[40];
+        AdvertisingEngine<byte[]> engine = new AdvertisingEngine<>(backend, (beaconType, uniqueCode) -> payload, 4,
+                new AdvertisingEngine.Listener() {
+                    @Override
+                    public void onStartFailed(BeaconType beaconType, int uniqueCode, int status, long requestedNanos) {
+                        failures[0] = status;
+                    }
+                });
+        engine.addBeacon(BeaconType.AltBeacon, 1);
+        backend.awaitIdle(5, TimeUnit.SECONDS);
+        assertEquals(AdvertiserBackend.FAILED_DATA_TOO_LARGE, failures[0]);
+        assertEquals(0, engine.getBeaconCount());
+        assertEquals(4, engine.getMaxAdvertisingSets());
+    }
+
+    @Test
+    public void staleStart_isNotReportedForTheNewSet() throws Exception {
+        int[] started = new int[1];
+        backend = SimulatedAdvertiserBackend.builder().setDelays(20, 1, 1, TimeUnit.MILLISECONDS).build();
+        AdvertisingEngine<byte[]> engine = new AdvertisingEngine<>(backend, (beaconType, uniqueCode) -> PAYLOAD, 4,
+                new AdvertisingEngine.Listener() {
+                    @Override
+                    public void onStarted(BeaconType beaconType, int uniqueCode, long requestedNanos) {
+                        started[0]++;
+                    }
+                });
+        // A retry: the first set is removed and replaced before either has answered
+        engine.addBeacon(BeaconType.AltBeacon, 1);
+        engine.removeBeacon(BeaconType.AltBeacon, 1);
+        engine.addBeacon(BeaconType.AltBeacon, 1);
+        backend.awaitIdle(5, TimeUnit.SECONDS);
+        assertEquals(1, started[0]);
+        assertTrue(engine.isAdvertising(BeaconType.AltBeacon, 1));
+        assertEquals(1, backend.getActiveSetCount());
+    }
+
+    @Test
+    public void extendedModes_carryLargePayloadsWhereSupported() throws Exception {
+        byte[] payload = new byte[120];
+        backend = SimulatedAdvertiserBackend.builder().setSupportedFeatures(true, true, false).build();
+        AdvertisingEngine<byte[]> engine = new AdvertisingEngine<>(backend, (beaconType, uniqueCode) -> payload, 4, null);
+        engine.addBeacon(BeaconType.Ble2MBeacon, 1);
+        engine.addBeacon(BeaconType.BleCodedBeacon, 1);
+        engine.addBeacon(BeaconType.AltBeacon, 1);
+        backend.awaitIdle(5, TimeUnit.SECONDS);
+        assertTrue(engine.isAdvertising(BeaconType.Ble2MBeacon, 1));
+        assertFalse(engine.isAdvertising(BeaconType.BleCodedBeacon, 1));
+        assertFalse(engine.isAdvertising(BeaconType.AltBeacon, 1));
+        assertEquals(1, backend.getActiveSetCount());
+    }
+}
@@ -0,0 +1,39 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdvertisingPhyTest {
+
+    @Test
+    public void forBeaconType_mapsTheExtendedTypes() {
+        assertEquals(AdvertisingPhy.EXTENDED_2M, AdvertisingPhy.forBeaconType(BeaconType.Ble2MBeacon));
+        assertEquals(AdvertisingPhy.EXTENDED_CODED, AdvertisingPhy.forBeaconType(BeaconType.BleCodedBeacon));
+        assertEquals(AdvertisingPhy.LEGACY_1M, AdvertisingPhy.forBeaconType(BeaconType.Ble1MBeacon));
+        assertEquals(AdvertisingPhy.LEGACY_1M, AdvertisingPhy.forBeaconType(BeaconType.AltBeacon));
+    }
+
+    @Test
+    public void select_keepsSupportedModes() {
+        assertEquals(AdvertisingPhy.EXTENDED_2M, AdvertisingPhy.select(AdvertisingPhy.EXTENDED_2M, true, true, true));
+        assertEquals(AdvertisingPhy.EXTENDED_CODED, AdvertisingPhy.select(AdvertisingPhy.EXTENDED_CODED, true, false, true));
+        assertEquals(AdvertisingPhy.LEGACY_1M, AdvertisingPhy.select(AdvertisingPhy.LEGACY_1M, true, true, true));
+    }
+
+    @Test
+    public void select_fallsBackToExtended1MThenLegacy() {
+        assertEquals(AdvertisingPhy.EXTENDED_1M, AdvertisingPhy.select(AdvertisingPhy.EXTENDED_2M, true, false, true));
+        assertEquals(AdvertisingPhy.EXTENDED_1M, AdvertisingPhy.select(AdvertisingPhy.EXTENDED_CODED, true, true, false));
+        assertEquals(AdvertisingPhy.LEGACY_1M, AdvertisingPhy.select(AdvertisingPhy.EXTENDED_CODED, false, true, true));
+    }
+
+    @Test
+    public void maxDataLength_dependsOnTheMode() {
+        assertEquals(31, AdvertisingPhy.LEGACY_1M.getMaxDataLength(1650));
+        assertEquals(1650, AdvertisingPhy.EXTENDED_2M.getMaxDataLength(1650));
+        assertEquals(251, AdvertisingPhy.EXTENDED_CODED.getMaxDataLength(0));
+        assertEquals(AdvertisingPhy.PHY_LE_1M, AdvertisingPhy.EXTENDED_2M.primaryPhy);
+        assertEquals(AdvertisingPhy.PHY_LE_2M, AdvertisingPhy.EXTENDED_2M.secondaryPhy);
+    }
+}
@@ -0,0 +1,220 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AdvertisingWatchdogTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static AdvertisingWatchdog createWatchdog() {
+        return new AdvertisingWatchdog(100, 2000, 1000, new Random(1));
+    }
+
+    @Test
+    public void confirmedStart_needsNoRetry() {
+        AdvertisingWatchdog watchdog = createWatchdog();
+        watchdog.onStartRequested(BeaconType.AltBeacon, 1, 0);
+        watchdog.onStarted(BeaconType.AltBeacon, 1, 10 * MS);
+        assertEquals(1, watchdog.getOnAirCount());
+        assertEquals(0, watchdog.poll(5000 * MS).length);
+        assertEquals(Long.MAX_VALUE, watchdog.getNextDeadlineNanos());
+        assertFalse(watchdog.isRecovering());
+    }
+
+    @Test
+    public void failedStart_isRetriedAfterTheBackoff() {
+        AdvertisingWatchdog watchdog = createWatchdog();
+        watchdog.onStartRequested(BeaconType.AltBeacon, 1, 0);
+        watchdog.onStartFailed(BeaconType.AltBeacon, 1, AdvertiserBackend.FAILED_INTERNAL_ERROR, 0);
+        assertTrue(watchdog.isRecovering());
+
+        long deadline = watchdog.getNextDeadlineNanos();
+        assertTrue(deadline >= 50 * MS && deadline <= 100 * MS);
+        assertEquals(0, watchdog.poll(deadline - 1).length);
+        long[] commands = watchdog.poll(deadline);
+        assertEquals(1, commands.length);
+        assertEquals(BeaconCommand.OP_ADD, BeaconCommand.getOpcode(commands[0]));
+        assertEquals(BeaconType.AltBeacon, BeaconCommand.getBeaconType(commands[0]));
+        assertEquals(1, BeaconCommand.getUniqueCode(commands[0]));
+        // Handed out once
+        assertEquals(0, watchdog.poll(deadline).length);
+
+        watchdog.onStartRequested(BeaconType.AltBeacon, 1, deadline);
+        watchdog.onStarted(BeaconType.AltBeacon, 1, deadline + 20 * MS);
+        assertFalse(watchdog.isRecovering());
+        assertEquals(1, watchdog.getRecoveryTimes().getCount());
+        assertEquals(deadline + 20 * MS, watchdog.getRecoveryTimes().getMaxNanos());
+    }
+
+    @Test
+    public void backoff_doublesWithJitterUpToTheCap() {
+        AdvertisingWatchdog watchdog = createWatchdog();
+        for (int attempt = 0; attempt < 10; attempt++) {
+            long full = Math.min(2000, 100L << attempt) * MS;
+            long delay = watchdog.getBackoffNanos(attempt);
+            assertTrue("attempt " + attempt + ": " + delay, delay >= full / 2 && delay <= full);
+        }
+        assertTrue(watchdog.getBackoffNanos(100) <= 2000 * MS);
+    }
+
+    @Test
+    public void unconfirmedStart_countsAsLost() {
+        AdvertisingWatchdog watchdog = createWatchdog();
+        watchdog.onStartRequested(BeaconType.IBeacon, 0, 0);
+        assertEquals(1000 * MS, watchdog.getNextDeadlineNanos());
+        assertEquals(0, watchdog.poll(999 * MS).length);
+        assertEquals(0, watchdog.poll(1000 * MS).length);
+        assertTrue(watchdog.isRecovering());
+        assertEquals(1, watchdog.getOutageCount());
+        assertEquals(1, watchdog.poll(1100 * MS).length);
+    }
+
+    @Test
+    public void permanentFailure_isGivenUp() {
+        AdvertisingWatchdog watchdog = createWatchdog();
+        watchdog.onStartRequested(BeaconType.BleCodedBeacon, 0, 0);
+        watchdog.onStartFailed(BeaconType.BleCodedBeacon, 0, AdvertiserBackend.FAILED_FEATURE_UNSUPPORTED, 0);
+        assertEquals(0, watchdog.getExpectedCount());
+        assertEquals(1, watchdog.getAbandonedCount());
+    }
+
+    @Test
+    public void requestedStop_isNotRecovered() {
+        AdvertisingWatchdog watchdog = createWatchdog();
+        watchdog.onStartRequested(BeaconType.AltBeacon, 1, 0);
+        watchdog.onStarted(BeaconType.AltBeacon, 1, 0);
+        watchdog.onStopRequested(BeaconType.AltBeacon, 1);
+        assertEquals(0, watchdog.getExpectedCount());
+    }
+
+    @Test
+    public void removalAfterPoll_cancelsTheRetry() {
+        AdvertisingWatchdog watchdog = createWatchdog();
+        watchdog.onStartRequested(BeaconType.AltBeacon, 1, 0);
+        watchdog.onStartRequested(BeaconType.AltBeacon, 2, 0);
+        watchdog.onLost(BeaconType.AltBeacon, 1, 0);
+        watchdog.onLost(BeaconType.AltBeacon, 2, 0);
+        assertFalse(watchdog.isRetrying(BeaconType.AltBeacon, 1));
+        assertEquals(2, watchdog.poll(200 * MS).length);
+        assertTrue(watchdog.isRetrying(BeaconType.AltBeacon, 1));
+        // Removed by the user before the retry ran
+        watchdog.forget(BeaconType.AltBeacon, 1);
+        assertFalse(watchdog.isRetrying(BeaconType.AltBeacon, 1));
+        assertTrue(watchdog.isRetrying(BeaconType.AltBeacon, 2));
+        watchdog.onStartRequested(BeaconType.AltBeacon, 2, 200 * MS);
+        assertFalse(watchdog.isRetrying(BeaconType.AltBeacon, 2));
+    }
+
+    @Test
+    public void stopBeforeRetry_keepsTheBeaconExpected() {
+        AdvertisingWatchdog watchdog = createWatchdog();
+        watchdog.onStartRequested(BeaconType.AltBeacon, 1, 0);
+        watchdog.onLost(BeaconType.AltBeacon, 1, 0);
+        assertEquals(1, watchdog.poll(200 * MS).length);
+        // The owner clears the stale set before starting again
+        watchdog.onStopRequested(BeaconType.AltBeacon, 1);
+        assertEquals(1, watchdog.getExpectedCount());
+    }
+
+    @Test
+    public void codeChange_followsTheBeacon() {
+        AdvertisingWatchdog watchdog = createWatchdog();
+        watchdog.onStartRequested(BeaconType.AltBeacon, 1, 0);
+        watchdog.onStarted(BeaconType.AltBeacon, 1, 0);
+        watchdog.onUniqueCodeChanged(BeaconType.AltBeacon, 1, 2);
+        watchdog.onLost(BeaconType.AltBeacon, 2, 0);
+        long[] commands = watchdog.poll(200 * MS);
+        assertEquals(1, commands.length);
+        assertEquals(2, BeaconCommand.getUniqueCode(commands[0]));
+    }
+
+    @Test
+    public void adapterOff_holdsRetriesUntilOn() {
+        AdvertisingWatchdog watchdog = createWatchdog();
+        watchdog.onStartRequested(BeaconType.AltBeacon, 1, 0);
+        watchdog.onStarted(BeaconType.AltBeacon, 1, 0);
+        watchdog.onStartRequested(BeaconType.EddystoneUid, 1, 0);
+        watchdog.onStarted(BeaconType.EddystoneUid, 1, 0);
+
+        watchdog.onAdapterOff(1000 * MS);
+        // The teardown stops every set; the beacons stay expected
+        watchdog.onStopRequested(BeaconType.AltBeacon, 1);
+        watchdog.onStopRequested(BeaconType.EddystoneUid, 1);
+        assertEquals(2, watchdog.getExpectedCount());
+        assertEquals(0, watchdog.poll(60_000 * MS).length);
+        assertEquals(Long.MAX_VALUE, watchdog.getNextDeadlineNanos());
+
+        watchdog.onAdapterOn(61_000 * MS);
+        assertEquals(2, watchdog.poll(61_000 * MS).length);
+        watchdog.onStartRequested(BeaconType.AltBeacon, 1, 61_000 * MS);
+        watchdog.onStarted(BeaconType.AltBeacon, 1, 61_050 * MS);
+        assertEquals(60_050 * MS, watchdog.getRecoveryTimes().getMaxNanos());
+        assertTrue(watchdog.isRecovering());
+    }
+
+    @Test
+    public void droppedSets_comeBackOnAir() throws Exception {
+        AdvertisingWatchdog watchdog = new AdvertisingWatchdog(10, 200, 500, new Random(2));
+        AdvertisingEngine.Listener listener = new AdvertisingEngine.Listener() {
+            @Override
+            public void onStartRequested(BeaconType beaconType, int uniqueCode) {
+                watchdog.onStartRequested(beaconType, uniqueCode, System.nanoTime());
+            }
+
+            @Override
+            public void onStarted(BeaconType beaconType, int uniqueCode, long requestedNanos) {
+                watchdog.onStarted(beaconType, uniqueCode, System.nanoTime());
+            }
+
+            @Override
+            public void onStartFailed(BeaconType beaconType, int uniqueCode, int status, long requestedNanos) {
+                watchdog.onStartFailed(beaconType, uniqueCode, status, System.nanoTime());
+            }
+
+            @Override
+            public void onStopRequested(BeaconType beaconType, int uniqueCode) {
+                watchdog.onStopRequested(beaconType, uniqueCode);
+            }
+
+            @Override
+            public void onLost(BeaconType beaconType, int uniqueCode) {
+                watchdog.onLost(beaconType, uniqueCode, System.nanoTime());
+            }
+        };
+        try (SimulatedAdvertiserBackend backend = SimulatedAdvertiserBackend.builder()
+                .setDelays(1, 1, 1, TimeUnit.MILLISECONDS).build()) {
+            AdvertisingEngine<byte[]> engine = new AdvertisingEngine<>(backend,
+                    (beaconType, uniqueCode) -> new byte[27], 4, listener);
+            for (int i = 0; i < 3; i++) {
+                engine.addBeacon(BeaconType.AltBeacon, i);
+            }
+            backend.awaitIdle(5, TimeUnit.SECONDS);
+            assertEquals(3, watchdog.getOnAirCount());
+
+            backend.dropAllSets();
+            backend.awaitIdle(5, TimeUnit.SECONDS);
+            assertEquals(0, engine.getBeaconCount());
+            assertTrue(watchdog.isRecovering());
+
+            long giveUpNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (watchdog.isRecovering() && System.nanoTime() - giveUpNanos < 0) {
+                for (long command : watchdog.poll(System.nanoTime())) {
+                    BeaconType beaconType = BeaconCommand.getBeaconType(command);
+                    int uniqueCode = BeaconCommand.getUniqueCode(command);
+                    engine.removeBeacon(beaconType, uniqueCode);
+                    engine.addBeacon(beaconType, uniqueCode);
+                }
+                Thread.sleep(1);
+            }
+            assertFalse(watchdog.isRecovering());
+            assertEquals(3, engine.getStartedCount());
+            assertEquals(3, watchdog.getRecoveryTimes().getCount());
+            assertTrue(watchdog.getRecoveryTimes().getMaxNanos() < TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+}
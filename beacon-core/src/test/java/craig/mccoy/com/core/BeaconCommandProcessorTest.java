@@ -0,0 +1,166 @@
+package craig.mccoy.com.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BeaconCommandProcessorTest {
+
+    private SimulatedAdvertiserBackend backend;
+    private AdvertisingEngine<byte[]> engine;
+    private BeaconCommandProcessor<byte[]> processor;
+    private int removeAllCount;
+    private boolean isRotating = false;
+    private int addedCount;
+    private int removedCount;
+    private final List<Long> rejected = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        backend = SimulatedAdvertiserBackend.builder().build();
+        engine = new AdvertisingEngine<>(backend, (beaconType, uniqueCode) -> new byte[27], 4, null);
+        processor = new BeaconCommandProcessor<>(new BeaconCommandProcessor.Host<byte[]>() {
+            @Override
+            public AdvertisingEngine<byte[]> getEngine(boolean create) {
+                return engine;
+            }
+
+            @Override
+            public void onBeaconAdded(BeaconType beaconType, int uniqueCode) {
+                addedCount++;
+            }
+
+            @Override
+            public void onBeaconRemoved(BeaconType beaconType, int uniqueCode) {
+                removedCount++;
+            }
+
+            @Override
+            public void onRemoveAll() {
+                removeAllCount++;
+            }
+
+            @Override
+            public boolean isRotating() {
+                return isRotating;
+            }
+
+            @Override
+            public void onRejected(long command, String reason) {
+                rejected.add(command);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        backend.close();
+    }
+
+    private static long command(int opcode, BeaconType beaconType, int code) {
+        return BeaconCommand.encode(opcode, beaconType, code);
+    }
+
+    @Test
+    public void replace_switchesTheOnlyBeaconInPlace() throws Exception {
+        assertTrue(processor.apply(command(BeaconCommand.OP_REPLACE, BeaconType.AltBeacon, 1)));
+        backend.awaitIdle(5, TimeUnit.SECONDS);
+        assertTrue(processor.apply(command(BeaconCommand.OP_REPLACE, BeaconType.AltBeacon, 2)));
+        backend.awaitIdle(5, TimeUnit.SECONDS);
+        assertTrue(engine.isAdvertising(BeaconType.AltBeacon, 2));
+        assertEquals(1, backend.getStartedCount());
+        assertEquals(1, engine.getSwapCount());
+
+        assertTrue(processor.apply(command(BeaconCommand.OP_REPLACE, BeaconType.EddystoneUid, 3)));
+        backend.awaitIdle(5, TimeUnit.SECONDS);
+        assertEquals(1, engine.getBeaconCount());
+        assertEquals(2, backend.getStartedCount());
+    }
+
+    @Test
+    public void pauseAndResume_restoreTheBeacons() throws Exception {
+        processor.apply(command(BeaconCommand.OP_ADD, BeaconType.AltBeacon, 1));
+        processor.apply(command(BeaconCommand.OP_ADD, BeaconType.EddystoneUid, 2));
+        assertTrue(processor.apply(BeaconCommand.encode(BeaconCommand.OP_PAUSE)));
+        assertFalse(processor.apply(BeaconCommand.encode(BeaconCommand.OP_PAUSE)));
+        assertTrue(processor.isPaused());
+        assertEquals(0, engine.getBeaconCount());
+        assertEquals(1, removeAllCount);
+
+        assertTrue(processor.apply(BeaconCommand.encode(BeaconCommand.OP_RESUME)));
+        assertFalse(processor.isPaused());
+        assertTrue(engine.isAdvertising(BeaconType.AltBeacon, 1));
+        assertTrue(engine.isAdvertising(BeaconType.EddystoneUid, 2));
+        backend.awaitIdle(5, TimeUnit.SECONDS);
+        assertEquals(2, backend.getActiveSetCount());
+    }
+
+    @Test
+    public void setCode_addsWhenNothingOfThatTypeRuns() {
+        assertTrue(processor.apply(command(BeaconCommand.OP_SET_CODE, BeaconType.EddystoneUid, 5)));
+        assertEquals(Integer.valueOf(5), engine.findUniqueCode(BeaconType.EddystoneUid));
+    }
+
+    @Test
+    public void whileRotating_rejectsAddRemoveAndSetCode() throws Exception {
+        processor.apply(command(BeaconCommand.OP_ADD, BeaconType.AltBeacon, 1));
+        isRotating = true;
+        long setCode = command(BeaconCommand.OP_SET_CODE, BeaconType.AltBeacon, 9);
+        assertFalse(processor.apply(setCode));
+        assertFalse(processor.apply(command(BeaconCommand.OP_REMOVE, BeaconType.AltBeacon, 1)));
+        assertFalse(processor.apply(command(BeaconCommand.OP_ADD, BeaconType.AltBeacon, 2)));
+        assertEquals(3, rejected.size());
+        assertEquals(setCode, (long) rejected.get(0));
+        assertTrue(engine.isAdvertising(BeaconType.AltBeacon, 1));
+        assertEquals(1, engine.getBeaconCount());
+        // A replace still takes over from the rotation
+        assertTrue(processor.apply(command(BeaconCommand.OP_REPLACE, BeaconType.AltBeacon, 3)));
+        backend.awaitIdle(5, TimeUnit.SECONDS);
+        assertTrue(engine.isAdvertising(BeaconType.AltBeacon, 3));
+    }
+
+    @Test
+    public void restartBeacon_replacesTheStaleSetAndTellsTheHost() throws Exception {
+        processor.apply(command(BeaconCommand.OP_ADD, BeaconType.EddystoneTlm, 0));
+        backend.awaitIdle(5, TimeUnit.SECONDS);
+        int added = addedCount;
+        isRotating = true;
+        assertTrue(processor.restartBeacon(BeaconType.EddystoneTlm, 0));
+        backend.awaitIdle(5, TimeUnit.SECONDS);
+        assertEquals(added + 1, addedCount);
+        assertEquals(0, removedCount);
+        assertEquals(1, engine.getBeaconCount());
+        assertEquals(1, backend.getActiveSetCount());
+        assertEquals(1, backend.getStoppedCount());
+        assertTrue(rejected.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingBeaconType_isRejected() {
+        processor.apply(BeaconCommand.encode(BeaconCommand.OP_ADD));
+    }
+
+    @Test
+    public void applyAll_skipsACommandWithAnUnknownTypeAndRunsTheRest() throws Exception {
+        long badType = ((long) BeaconCommand.OP_ADD << 56) | (0x7EL << 48) | 5;
+        long[] batch = {
+                command(BeaconCommand.OP_ADD, BeaconType.AltBeacon, 1),
+                badType,
+                ((long) 0x55 << 56) | 6,
+                command(BeaconCommand.OP_ADD, BeaconType.AltBeacon, 2),
+        };
+        assertEquals(2, processor.applyAll(batch));
+        backend.awaitIdle(5, TimeUnit.SECONDS);
+        assertEquals(2, engine.getBeaconCount());
+        assertEquals(2, rejected.size());
+        assertEquals(badType, (long) rejected.get(0));
+        // The rejected command can still be logged
+        assertEquals("1:?126:5", BeaconCommand.toString(badType));
+    }
+}
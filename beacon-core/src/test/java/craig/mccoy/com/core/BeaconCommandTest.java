@@ -0,0 +1,41 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BeaconCommandTest {
+
+    @Test
+    public void encode_roundTripsEveryField() {
+        for (BeaconType beaconType : BeaconType.values()) {
+            long command = BeaconCommand.encode(BeaconCommand.OP_SET_CODE, beaconType, 0xDEADBEEF);
+            assertEquals(BeaconCommand.OP_SET_CODE, BeaconCommand.getOpcode(command));
+            assertEquals(beaconType, BeaconCommand.getBeaconType(command));
+            assertEquals(0xDEADBEEF, BeaconCommand.getUniqueCode(command));
+        }
+    }
+
+    @Test
+    public void encode_withoutType() {
+        long command = BeaconCommand.encode(BeaconCommand.OP_PAUSE);
+        assertEquals(BeaconCommand.OP_PAUSE, BeaconCommand.getOpcode(command));
+        assertNull(BeaconCommand.getBeaconType(command));
+        assertEquals(0, BeaconCommand.getUniqueCode(command));
+    }
+
+    @Test
+    public void isClientCommand_rejectsQueueOnlyAndUnknownCommands() {
+        assertTrue(BeaconCommand.isClientCommand(BeaconCommand.encode(BeaconCommand.OP_ADD, BeaconType.AltBeacon, 1)));
+        assertTrue(BeaconCommand.isClientCommand(BeaconCommand.encode(BeaconCommand.OP_REMOVE_ALL)));
+        assertFalse(BeaconCommand.isClientCommand(BeaconCommand.encode(BeaconCommand.OP_CALLBACK, null, 0)));
+        assertFalse(BeaconCommand.isClientCommand(BeaconCommand.encode(0)));
+        assertFalse(BeaconCommand.isClientCommand(BeaconCommand.encode(0x42)));
+        assertFalse(BeaconCommand.isClientCommand(((long) BeaconCommand.OP_ADD << 56) | (0x40L << 48)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getBeaconType_rejectsUnknownOrdinal() {
+        BeaconCommand.getBeaconType(((long) BeaconCommand.OP_ADD << 56) | (0x40L << 48));
+    }
+}
@@ -0,0 +1,71 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BeaconDistanceEstimatorTest {
+
+    @Test
+    public void referenceRssi_isOneMeter() {
+        BeaconDistanceEstimator estimator = new BeaconDistanceEstimator(16);
+        assertEquals(1.0, estimator.update(42, -52, -52, 1), 1e-9);
+    }
+
+    @Test
+    public void pathLoss_twentyDbIsTenMeters() {
+        BeaconDistanceEstimator estimator = new BeaconDistanceEstimator(16);
+        assertEquals(10.0, estimator.update(42, -72, -52, 1), 1e-6);
+    }
+
+    @Test
+    public void filter_convergesOnNoisySamples() {
+        BeaconDistanceEstimator estimator = new BeaconDistanceEstimator(16);
+        Random random = new Random(1);
+        for (int i = 1; i <= 500; i++) {
+            estimator.update(7, -72 + (int) Math.round(random.nextGaussian() * 4), -52, i);
+        }
+        assertEquals(-72.0, estimator.getFilteredRssi(7), 1.5);
+        assertEquals(10.0, estimator.getDistance(7), 2.0);
+    }
+
+    @Test
+    public void table_growsAndKeepsEveryBeacon() {
+        BeaconDistanceEstimator estimator = new BeaconDistanceEstimator(16);
+        for (int i = 0; i < 50000; i++) {
+            estimator.update(i, -60 - (i % 30), -52, 1);
+        }
+        assertEquals(50000, estimator.size());
+        for (int i = 0; i < 50000; i++) {
+            assertEquals(-60 - (i % 30), estimator.getFilteredRssi(i), 0.0);
+        }
+        // The load factor stays between 0.375 and 0.75 once the table has grown
+        assertTrue(estimator.getBytesPerBeacon() <= BeaconDistanceEstimator.BYTES_PER_SLOT / 0.375);
+    }
+
+    @Test
+    public void removeOlderThan_forgetsStaleBeacons() {
+        BeaconDistanceEstimator estimator = new BeaconDistanceEstimator(16);
+        for (int i = 0; i < 1000; i++) {
+            estimator.update(i, -60, -52, i < 500 ? 100 : 200);
+        }
+        assertEquals(500, estimator.removeOlderThan(150));
+        assertEquals(500, estimator.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i >= 500, !Double.isNaN(estimator.getDistance(i)));
+        }
+    }
+
+    @Test
+    public void keyOf_distinguishesCodes() {
+        BeaconFrame a = new BeaconFrame();
+        a.beaconType = BeaconType.AltBeacon;
+        a.code = 1;
+        BeaconFrame b = new BeaconFrame();
+        b.copyFrom(a);
+        b.code = 2;
+        assertNotEquals(BeaconDistanceEstimator.keyOf(a), BeaconDistanceEstimator.keyOf(b));
+    }
+}
@@ -0,0 +1,52 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class BeaconEncoderTest {
+    private static final UUID BEACON_UUID = UUID.fromString("B8CE3F1D-D741-482A-B466-CE3F46B5B1C8");
+
+    @Test
+    public void altBeacon_matchesLayout() {
+        byte[] frame = BeaconEncoder.encode(BeaconType.AltBeacon, BeaconEncoder.getIdAsBytes(BEACON_UUID), 0xCAFEF00D);
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        assertEquals(24, frame.length);
+        assertEquals((short) 0xBEAC, buffer.getShort(0));
+        assertEquals(BEACON_UUID.getMostSignificantBits(), buffer.getLong(2));
+        assertEquals(BEACON_UUID.getLeastSignificantBits(), buffer.getLong(10));
+        assertEquals(0xCAFEF00D, buffer.getInt(18));
+        assertEquals((byte) 0xCC, frame[22]);
+        assertEquals(0, frame[23]);
+    }
+
+    @Test
+    public void iBeacon_matchesLayout() {
+        byte[] frame = BeaconEncoder.encode(BeaconType.IBeacon, BeaconEncoder.getIdAsBytes(BEACON_UUID), 0);
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        assertEquals(23, frame.length);
+        assertEquals((short) 0x0215, buffer.getShort(0));
+        assertEquals(BEACON_UUID.getMostSignificantBits(), buffer.getLong(2));
+        assertEquals(BEACON_UUID.getLeastSignificantBits(), buffer.getLong(10));
+        assertEquals(1, buffer.getShort(18));
+        assertEquals(0, buffer.getShort(20));
+        assertEquals((byte) 0xCC, frame[22]);
+    }
+
+    @Test
+    public void patchAltBeaconCode_onlyChangesTheCode() {
+        byte[] uuid = BeaconEncoder.getIdAsBytes(BEACON_UUID);
+        byte[] patched = BeaconEncoder.encode(BeaconType.AltBeacon, uuid, 0);
+        BeaconEncoder.patchAltBeaconCode(patched, 0x01020304);
+        assertArrayEquals(BeaconEncoder.encode(BeaconType.AltBeacon, uuid, 0x01020304), patched);
+    }
+
+    @Test
+    public void ble1MBeacon_hasNoManufacturerData() {
+        assertEquals(-1, BeaconEncoder.getManufacturerId(BeaconType.Ble1MBeacon));
+        assertEquals(0, BeaconEncoder.encode(BeaconType.Ble1MBeacon, new byte[16], 1).length);
+    }
+}
@@ -0,0 +1,189 @@
+package craig.mccoy.com.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class BeaconFleetStoreTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("fleet", ".bin");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        assertTrue(!file.exists() || file.delete());
+    }
+
+    private static BeaconRecord record(int code) {
+        BeaconRecord record = new BeaconRecord();
+        record.beaconType = BeaconType.AltBeacon;
+        record.uuidMostSignificantBits = 0x0123456789ABCDEFL;
+        record.uuidLeastSignificantBits = code * 31L;
+        record.code = code;
+        record.major = code & 0xFFFF;
+        record.minor = 0xFFFF;
+        record.scheduleDays = 0x1F;
+        record.scheduleStartMinute = 8 * 60;
+        record.scheduleEndMinute = 18 * 60;
+        return record;
+    }
+
+    @Test
+    public void put_get_survivesReopen() throws IOException {
+        try (BeaconFleetStore store = BeaconFleetStore.open(file, 1000)) {
+            for (int code = 0; code < 1000; code++) {
+                store.put(record(code * 7919));
+            }
+            store.setActive(BeaconType.AltBeacon, 7919 * 5);
+        }
+        try (BeaconFleetStore store = BeaconFleetStore.open(file, 1)) {
+            assertEquals(1000, store.capacity());
+            assertEquals(1000, store.size());
+            BeaconRecord out = new BeaconRecord();
+            for (int code = 0; code < 1000; code++) {
+                assertTrue(store.get(BeaconType.AltBeacon, code * 7919, out));
+                assertEquals(record(code * 7919).toString(), out.toString());
+                assertEquals(code * 7919 * 31L, out.uuidLeastSignificantBits);
+            }
+            assertFalse(store.get(BeaconType.AltBeacon, -1, out));
+            assertTrue(store.getActive(out));
+            assertEquals(record(7919 * 5).toString(), out.toString());
+        }
+    }
+
+    @Test
+    public void setActive_keepsTheSelectionOutOfTheFleet() throws IOException {
+        try (BeaconFleetStore store = BeaconFleetStore.open(file, 4)) {
+            BeaconRecord out = new BeaconRecord();
+            assertFalse(store.getActive(out));
+            store.put(record(0x00010002));
+            // The same code as an iBeacon major/minor is another beacon
+            store.setActive(BeaconType.IBeacon, 0x00010002);
+            assertEquals(1, store.size());
+            assertTrue(store.get(BeaconType.AltBeacon, 0x00010002, out));
+            assertEquals(BeaconType.AltBeacon, out.beaconType);
+            assertTrue(store.getActive(out));
+            assertEquals(BeaconType.IBeacon, out.beaconType);
+            assertEquals(0x00010002, out.code);
+            assertEquals(0, out.uuidLeastSignificantBits);
+        }
+    }
+
+    @Test
+    public void put_overwritesTheSameTypeAndCode() throws IOException {
+        try (BeaconFleetStore store = BeaconFleetStore.open(file, 4)) {
+            store.put(record(42));
+            BeaconRecord changed = record(42);
+            changed.minor = 7;
+            assertEquals(0, store.put(changed));
+            assertEquals(1, store.size());
+            BeaconRecord out = new BeaconRecord();
+            assertTrue(store.get(BeaconType.AltBeacon, 42, out));
+            assertEquals(7, out.minor);
+        }
+    }
+
+    @Test
+    public void put_keepsTheSameCodeOfAnotherType() throws IOException {
+        try (BeaconFleetStore store = BeaconFleetStore.open(file, 8)) {
+            store.put(record(42));
+            BeaconRecord other = record(42);
+            other.beaconType = BeaconType.EddystoneUid;
+            assertEquals(1, store.put(other));
+            // The code-less types all have code 0
+            BeaconRecord url = record(0);
+            url.beaconType = BeaconType.EddystoneUrl;
+            store.put(url);
+            BeaconRecord tlm = record(0);
+            tlm.beaconType = BeaconType.EddystoneTlm;
+            store.put(tlm);
+            assertEquals(4, store.size());
+            BeaconRecord out = new BeaconRecord();
+            assertTrue(store.get(BeaconType.AltBeacon, 42, out));
+            assertEquals(BeaconType.AltBeacon, out.beaconType);
+            assertTrue(store.get(BeaconType.EddystoneUid, 42, out));
+            assertEquals(BeaconType.EddystoneUid, out.beaconType);
+            assertTrue(store.remove(BeaconType.EddystoneUrl, 0));
+            assertFalse(store.contains(BeaconType.EddystoneUrl, 0));
+            assertTrue(store.contains(BeaconType.EddystoneTlm, 0));
+            assertFalse(store.contains(BeaconType.AltBeacon, 0));
+        }
+    }
+
+    @Test
+    public void open_reindexesAStoreKeyedOnTheCode() throws IOException {
+        try (BeaconFleetStore store = BeaconFleetStore.open(file, 64)) {
+            for (int code = 0; code < 40; code++) {
+                store.put(record(code));
+            }
+        }
+        // Rewrite the header as version 1 and wipe the index, as the old hash placed it elsewhere
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.seek(4);
+            raw.write(new byte[] { 1, 0, 0, 0 });
+            raw.seek(BeaconFleetStore.HEADER_SIZE);
+            raw.write(new byte[4 * 128]);
+        }
+        try (BeaconFleetStore store = BeaconFleetStore.open(file, 64)) {
+            assertEquals(40, store.size());
+            for (int code = 0; code < 40; code++) {
+                assertTrue(store.contains(BeaconType.AltBeacon, code));
+            }
+        }
+        try (RandomAccessFile raw = new RandomAccessFile(file, "r")) {
+            raw.seek(4);
+            assertEquals(BeaconFleetStore.VERSION, Integer.reverseBytes(raw.readInt()));
+        }
+    }
+
+    @Test
+    public void remove_keepsTheOthersReachable() throws IOException {
+        try (BeaconFleetStore store = BeaconFleetStore.open(file, 512)) {
+            for (int code = 0; code < 512; code++) {
+                store.put(record(code));
+            }
+            for (int code = 0; code < 512; code += 2) {
+                assertTrue(store.remove(BeaconType.AltBeacon, code));
+            }
+            assertFalse(store.remove(BeaconType.AltBeacon, 0));
+            assertEquals(256, store.size());
+            BeaconRecord out = new BeaconRecord();
+            for (int code = 0; code < 512; code++) {
+                assertEquals(code % 2 == 1, store.get(BeaconType.AltBeacon, code, out));
+            }
+            for (int i = 0; i < store.size(); i++) {
+                store.read(i, out);
+                assertEquals(1, out.code % 2);
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void put_failsWhenFull() throws IOException {
+        try (BeaconFleetStore store = BeaconFleetStore.open(file, 2)) {
+            store.put(record(1));
+            store.put(record(2));
+            store.put(record(3));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsForeignFiles() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[64]);
+        }
+        BeaconFleetStore.open(file, 10).close();
+    }
+}
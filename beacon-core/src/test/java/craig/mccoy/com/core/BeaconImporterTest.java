@@ -0,0 +1,136 @@
+package craig.mccoy.com.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class BeaconImporterTest {
+
+    private static final UUID DEFAULT_UUID = UUID.fromString("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6");
+
+    private File file;
+    private BeaconFleetStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("fleet", ".bin");
+        assertTrue(file.delete());
+        store = BeaconFleetStore.open(file, 200_000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+        assertTrue(file.delete());
+    }
+
+    private static InputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void csv_importsValidRowsAndReportsTheOthers() throws IOException {
+        String csv = "type,code,uuid,major,minor,days,start,end\r\n"
+                + "AltBeacon,DEADBEEF,,,,31,480,1080\r\n"
+                + "ibeacon,,\"e2c56db5-dffb-48d2-b060-d0f5a71096e0\",1,2,,,\r\n"
+                + "AltBeacon,123456789,,,,,,\r\n"
+                + "Unknown,1,,,,,,\r\n"
+                + "EddystoneUid,,,,,,,\r\n"
+                + "AltBeacon,1,,,,,600,600\r\n";
+        BeaconImporter.Result result = new BeaconImporter(store, DEFAULT_UUID, 16).importFrom(stream(csv));
+        assertEquals(2, result.rowsImported);
+        assertEquals(4, result.rowsRejected);
+        assertEquals(4, result.errors.size());
+        assertTrue(result.errors.get(0), result.errors.get(0).startsWith("row 3: code"));
+
+        BeaconRecord record = new BeaconRecord();
+        assertTrue(store.get(BeaconType.AltBeacon, 0xDEADBEEF, record));
+        assertEquals(BeaconType.AltBeacon, record.beaconType);
+        assertEquals(DEFAULT_UUID.getMostSignificantBits(), record.uuidMostSignificantBits);
+        assertEquals(31, record.scheduleDays);
+        assertEquals(480, record.scheduleStartMinute);
+        assertTrue(store.get(BeaconType.IBeacon, 1 << 16 | 2, record));
+        assertEquals(BeaconType.IBeacon, record.beaconType);
+        assertEquals(0xe2c56db5dffb48d2L, record.uuidMostSignificantBits);
+    }
+
+    @Test
+    public void json_importsFlatObjects() throws IOException {
+        String json = "\n[ {\"type\": \"AltBeacon\", \"code\": \"0x10\", \"note\": \"a \\\"quoted\\\" \\u00e9\"},\n"
+                + "  {\"type\": \"IBeacon\", \"major\": 7, \"minor\": 9, \"uuid\": null},\n"
+                + "  {\"type\": \"AltBeacon\", \"code\": \"zz\"} ]";
+        BeaconImporter.Result result = new BeaconImporter(store, DEFAULT_UUID, 16).importFrom(stream(json));
+        assertEquals(2, result.rowsImported);
+        assertEquals(1, result.rowsRejected);
+        assertTrue(store.contains(BeaconType.AltBeacon, 0x10));
+        assertTrue(store.contains(BeaconType.IBeacon, 7 << 16 | 9));
+    }
+
+    @Test
+    public void csv_rejectsDuplicateKeysAndCountsReplacements() throws IOException {
+        BeaconRecord existing = new BeaconRecord();
+        existing.beaconType = BeaconType.AltBeacon;
+        existing.code = 0x20;
+        store.put(existing);
+        String csv = "type,code,major,minor\n"
+                + "AltBeacon,10002,,\n"
+                + "IBeacon,,1,2\n"
+                + "AltBeacon,10002,,\n"
+                + "AltBeacon,20,,\n"
+                + "EddystoneUrl,,,\n"
+                + "EddystoneTlm,,,\n"
+                + "EddystoneUrl,,,\n";
+        BeaconImporter.Result result = new BeaconImporter(store, DEFAULT_UUID, 2).importFrom(stream(csv));
+        assertEquals(5, result.rowsImported);
+        assertEquals(1, result.rowsReplaced);
+        assertEquals(2, result.rowsRejected);
+        assertEquals("row 3: duplicate AltBeacon 10002", result.errors.get(0));
+        assertEquals("row 7: duplicate EddystoneUrl 0", result.errors.get(1));
+        assertEquals(result.rowsImported - result.rowsReplaced + 1, store.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void json_rejectsMalformedFiles() throws IOException {
+        new BeaconImporter(store, DEFAULT_UUID, 16).importFrom(stream("[{\"type\": \"AltBeacon\" \"code\": \"1\"}]"));
+    }
+
+    @Test
+    public void largeImport_isBatchedAndFast() throws IOException {
+        final int rows = 100_000;
+        // Generated on the fly, so the test never holds the file in memory either
+        InputStream csv = new InputStream() {
+            private byte[] line = "type,code,days\n".getBytes(StandardCharsets.US_ASCII);
+            private int row = 0;
+            private int offset = 0;
+
+            @Override
+            public int read() {
+                if (offset == line.length) {
+                    if (row == rows) {
+                        return -1;
+                    }
+                    line = ("AltBeacon," + Integer.toHexString(row++) + ",127\n").getBytes(StandardCharsets.US_ASCII);
+                    offset = 0;
+                }
+                return line[offset++];
+            }
+        };
+        final long[] progressCalls = new long[1];
+        BeaconImporter importer = new BeaconImporter(store, DEFAULT_UUID, BeaconImporter.DEFAULT_BATCH_SIZE);
+        importer.setProgressListener((imported, rejected, bytesRead, rowsPerSecond) -> progressCalls[0]++);
+        BeaconImporter.Result result = importer.importFrom(csv);
+        assertEquals(rows, result.rowsImported);
+        assertEquals(rows, store.size());
+        assertEquals((rows + BeaconImporter.DEFAULT_BATCH_SIZE - 1) / BeaconImporter.DEFAULT_BATCH_SIZE, progressCalls[0]);
+        assertTrue(result.toString(), result.elapsedNanos < 10_000_000_000L);
+    }
+}
@@ -0,0 +1,159 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class BeaconTableTest {
+
+    private static final long NAMESPACE_MSB = 0x0123456789ABCDEFL;
+
+    private static BeaconRecord record(int code) {
+        BeaconRecord record = new BeaconRecord();
+        record.beaconType = typeOf(code);
+        record.uuidMostSignificantBits = NAMESPACE_MSB;
+        record.uuidLeastSignificantBits = code % 3;
+        record.code = code;
+        record.major = code & 0xFFFF;
+        record.minor = 0xFFFF;
+        record.scheduleDays = 0x1F;
+        record.scheduleStartMinute = 8 * 60;
+        record.scheduleEndMinute = 18 * 60;
+        return record;
+    }
+
+    private static BeaconType typeOf(int code) {
+        return code % 2 == 0 ? BeaconType.AltBeacon : BeaconType.IBeacon;
+    }
+
+    @Test
+    public void put_get_sharesNamespaces() {
+        BeaconTable table = new BeaconTable(1000);
+        for (int code = 0; code < 1000; code++) {
+            assertEquals(code, table.put(record(code * 7919)));
+        }
+        assertEquals(1000, table.size());
+        assertEquals(3, table.getNamespaceCount());
+        BeaconRecord out = new BeaconRecord();
+        for (int code = 0; code < 1000; code++) {
+            assertTrue(table.get(typeOf(code * 7919), code * 7919, out));
+            assertEquals(record(code * 7919).toString(), out.toString());
+            assertEquals(record(code * 7919).uuidLeastSignificantBits, out.uuidLeastSignificantBits);
+        }
+        assertFalse(table.get(BeaconType.IBeacon, -1, out));
+        assertFalse(table.get(BeaconType.AltBeacon, 7919, out));
+        assertEquals(new UUID(NAMESPACE_MSB, (2 * 7919) % 3),
+                table.getNamespaceUuid(table.getNamespace(table.indexOf(BeaconType.AltBeacon, 2 * 7919))));
+    }
+
+    @Test
+    public void put_overwritesTheSameCode() {
+        BeaconTable table = new BeaconTable(4);
+        table.put(record(5));
+        BeaconRecord changed = record(5);
+        changed.major = 42;
+        assertEquals(0, table.put(changed));
+        assertEquals(1, table.size());
+        assertEquals(42, table.getMajor(0));
+    }
+
+    @Test
+    public void put_keepsTheSameCodeOfAnotherType() {
+        BeaconTable table = new BeaconTable(4);
+        BeaconRecord altBeacon = record(0x00010002);
+        BeaconRecord iBeacon = record(0x00010002);
+        iBeacon.beaconType = BeaconType.IBeacon;
+        assertEquals(0, table.put(altBeacon));
+        assertEquals(1, table.put(iBeacon));
+        assertEquals(0, table.indexOf(BeaconType.AltBeacon, 0x00010002));
+        assertEquals(1, table.indexOf(BeaconType.IBeacon, 0x00010002));
+        assertTrue(table.remove(BeaconType.AltBeacon, 0x00010002));
+        assertEquals(0, table.indexOf(BeaconType.IBeacon, 0x00010002));
+        assertEquals(-1, table.indexOf(BeaconType.AltBeacon, 0x00010002));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void put_failsWhenFull() {
+        BeaconTable table = new BeaconTable(2);
+        table.put(record(1));
+        table.put(record(2));
+        table.put(record(3));
+    }
+
+    @Test
+    public void remove_keepsRowsDenseAndIndexed() {
+        BeaconTable table = new BeaconTable(500);
+        for (int code = 0; code < 500; code++) {
+            table.put(record(code));
+        }
+        for (int code = 0; code < 500; code += 2) {
+            assertTrue(table.remove(typeOf(code), code));
+        }
+        assertFalse(table.remove(BeaconType.AltBeacon, 0));
+        assertEquals(250, table.size());
+        for (int code = 0; code < 500; code++) {
+            int row = table.indexOf(typeOf(code), code);
+            if (code % 2 == 0) {
+                assertEquals(-1, row);
+            } else {
+                assertEquals(code, table.getCode(row));
+            }
+        }
+    }
+
+    @Test
+    public void collectCodes_followsTypeAndSchedule() {
+        BeaconTable table = new BeaconTable(100);
+        for (int code = 0; code < 100; code++) {
+            table.put(record(code));
+        }
+        int[] codes = new int[100];
+        // Monday 09:00
+        assertEquals(50, table.collectCodes(BeaconType.AltBeacon, 0, 9 * 60, codes));
+        for (int i = 0; i < 50; i++) {
+            assertEquals(0, codes[i] % 2);
+        }
+        // Saturday, and Monday 18:00
+        assertEquals(0, table.collectCodes(BeaconType.AltBeacon, 5, 9 * 60, codes));
+        assertEquals(0, table.collectCodes(BeaconType.AltBeacon, 0, 18 * 60, codes));
+        assertEquals(10, table.collectCodes(BeaconType.IBeacon, 0, 9 * 60, new int[10]));
+    }
+
+    @Test
+    public void encode_matchesTheEncoders() {
+        BeaconTable table = new BeaconTable(4);
+        BeaconRecord altBeacon = record(0x12345678);
+        altBeacon.beaconType = BeaconType.AltBeacon;
+        BeaconRecord iBeacon = record(7);
+        iBeacon.beaconType = BeaconType.IBeacon;
+        int altRow = table.put(altBeacon);
+        int iRow = table.put(iBeacon);
+
+        byte[] uuid = new byte[BeaconEncoder.UUID_LENGTH];
+        BeaconEncoder.putUuid(uuid, 0, altBeacon.uuidMostSignificantBits, altBeacon.uuidLeastSignificantBits);
+        byte[] out = new byte[32];
+        assertEquals(BeaconEncoder.ALT_BEACON_LENGTH, table.encode(altRow, out));
+        byte[] expected = BeaconEncoder.encode(BeaconType.AltBeacon, uuid, 0x12345678);
+        assertArrayEquals(expected, Arrays.copyOf(out, expected.length));
+
+        BeaconEncoder.putUuid(uuid, 0, iBeacon.uuidMostSignificantBits, iBeacon.uuidLeastSignificantBits);
+        byte[] expectedIBeacon = new byte[BeaconEncoder.I_BEACON_LENGTH];
+        BeaconEncoder.encodeIBeacon(uuid, 7, 0xFFFF, expectedIBeacon);
+        assertEquals(BeaconEncoder.I_BEACON_LENGTH, table.encode(iRow, out));
+        assertArrayEquals(expectedIBeacon, Arrays.copyOf(out, expectedIBeacon.length));
+    }
+
+    @Test
+    public void bytesPerBeacon_staysSmall() {
+        BeaconTable table = new BeaconTable(100_000);
+        for (int code = 0; code < 100_000; code++) {
+            table.put(record(code));
+        }
+        // 16 bytes of columns and 2.6 index slots of 4 bytes each
+        assertEquals(BeaconTable.ROW_BYTES * 100_000L + 4L * 262_144 + 3 * 48, table.getRetainedBytes());
+        assertTrue(table.getBytesPerBeacon() < 27);
+    }
+}
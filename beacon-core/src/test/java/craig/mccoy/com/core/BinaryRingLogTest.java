@@ -0,0 +1,144 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class BinaryRingLogTest {
+    private static final int STATE = BinaryRingLog.registerFormat("BLE:Test", "onReceive(): state {}");
+    private static final int CODE = BinaryRingLog.registerFormat("BLE:Test", "code {x} count {}");
+
+    @Test
+    public void format_expandsArguments() throws IOException {
+        BinaryRingLog log = new BinaryRingLog(8);
+        log.log(BinaryRingLog.LEVEL_INFO, STATE, 1, 12, 0, 0);
+        log.log(BinaryRingLog.LEVEL_WARN, CODE, 2, 0xBEACL, 3, 0);
+        StringBuilder text = new StringBuilder();
+        log.format(text);
+        String[] lines = text.toString().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].endsWith(" I BLE:Test: onReceive(): state 12"));
+        assertTrue(lines[1].endsWith(" W BLE:Test: code beac count 3"));
+    }
+
+    @Test
+    public void ring_keepsTheMostRecentRecords() throws IOException {
+        BinaryRingLog log = new BinaryRingLog(4);
+        for (int i = 0; i < 10; i++) {
+            log.log(BinaryRingLog.LEVEL_INFO, STATE, 1, i, 0, 0);
+        }
+        assertEquals(10, log.getRecordCount());
+        StringBuilder text = new StringBuilder();
+        log.format(text);
+        String[] lines = text.toString().split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].endsWith("state 6"));
+        assertTrue(lines[3].endsWith("state 9"));
+    }
+
+    @Test
+    public void dump_writesHeaderFormatsAndRecords() throws IOException {
+        BinaryRingLog log = new BinaryRingLog(16);
+        log.log(BinaryRingLog.LEVEL_ERROR, CODE, 2, 0xCAFEL, 7, 0);
+        File file = File.createTempFile("ring", ".bin");
+        try {
+            assertEquals(1, log.dump(file));
+            byte[] bytes = new byte[(int) file.length()];
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                in.readFully(bytes);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(BinaryRingLog.MAGIC, buffer.getInt());
+            assertEquals(BinaryRingLog.VERSION, buffer.getInt());
+            int formats = buffer.getInt();
+            assertTrue(formats >= 2);
+            assertEquals(1, buffer.getInt());
+            for (int i = 0; i < 2 * formats; i++) {
+                int length = buffer.getInt();
+                buffer.position(buffer.position() + length);
+            }
+            assertEquals(0, buffer.getLong());                  // sequence
+            assertTrue(buffer.getLong() != 0);                  // timestamp
+            long meta = buffer.getLong();
+            assertEquals(CODE, (int) (meta >>> 32));
+            assertEquals(BinaryRingLog.LEVEL_ERROR, (int) (meta >> 8) & 0xFF);
+            assertEquals(2, (int) meta & 0xFF);
+            assertEquals(0xCAFEL, buffer.getLong());
+            assertEquals(7, buffer.getLong());
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void concurrentWriters_doNotLoseCommittedRecords() throws Exception {
+        BinaryRingLog log = new BinaryRingLog(1 << 16);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int id = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    log.log(BinaryRingLog.LEVEL_INFO, CODE, 2, id, i, 0);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        StringBuilder text = new StringBuilder();
+        log.format(text);
+        assertEquals(40000, text.toString().split("\n").length);
+    }
+
+    @Test
+    public void snapshot_whileWritersLapTheRing_neverReturnsTornRecords() throws Exception {
+        // A tiny ring, so writers keep landing on slots being read or written
+        BinaryRingLog log = new BinaryRingLog(4);
+        AtomicBoolean isRunning = new AtomicBoolean(true);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread(() -> {
+                for (long i = 1; i <= 200_000; i++) {
+                    // Each record carries the same value three times
+                    log.log(BinaryRingLog.LEVEL_INFO, CODE, 3, i, i, i);
+                }
+            });
+            writers[t].start();
+        }
+        Thread monitor = new Thread(() -> {
+            for (Thread writer : writers) {
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            isRunning.set(false);
+        });
+        monitor.start();
+        long[] snapshot = new long[log.getCapacity() * (BinaryRingLog.LONGS_PER_RECORD + 1)];
+        long records = 0;
+        while (isRunning.get()) {
+            int count = log.snapshot(snapshot);
+            for (int r = 0; r < count; r++) {
+                int base = r * (BinaryRingLog.LONGS_PER_RECORD + 1) + 1;
+                assertEquals(CODE, (int) (snapshot[base + 1] >>> 32));
+                assertEquals(snapshot[base + 2], snapshot[base + 3]);
+                assertEquals(snapshot[base + 2], snapshot[base + 4]);
+            }
+            records += count;
+        }
+        monitor.join();
+        assertTrue(records > 0);
+        assertEquals(800_000, log.getRecordCount());
+        assertTrue(log.getDroppedCount() < 800_000);
+    }
+}
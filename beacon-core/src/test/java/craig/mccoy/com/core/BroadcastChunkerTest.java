@@ -0,0 +1,48 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class BroadcastChunkerTest {
+
+    @Test
+    public void split_fillsEveryFrameButTheLast() {
+        byte[][] frames = BroadcastChunker.split(new byte[1000], 7, 213);
+        assertEquals(5, frames.length);
+        assertEquals(5, BroadcastChunker.getChunkCount(1000, 213));
+        for (int i = 0; i < 4; i++) {
+            assertEquals(213, frames[i].length);
+        }
+        assertEquals(1000 - 4 * 200 + BroadcastChunker.OVERHEAD, frames[4].length);
+        assertEquals(4, frames[4][BroadcastChunker.INDEX_OFFSET + 1]);
+        assertEquals(5, frames[4][BroadcastChunker.COUNT_OFFSET + 1]);
+        assertEquals(7, frames[4][BroadcastChunker.TRANSFER_ID_OFFSET + 1]);
+    }
+
+    @Test
+    public void emptyPayload_isOneFrame() {
+        byte[][] frames = BroadcastChunker.split(new byte[0], 1, 64);
+        assertEquals(1, frames.length);
+        assertEquals(BroadcastChunker.OVERHEAD, frames[0].length);
+    }
+
+    @Test
+    public void crc16_matchesTheCcittCheckValue() {
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0x29B1, BroadcastChunker.crc16(check, 0, check.length));
+    }
+
+    @Test
+    public void bytesPerSecond_isOneCyclePerChunkCountEvents() {
+        // 2000 bytes in 10 frames, one frame per 100 ms event: a cycle takes 1 s
+        assertEquals(2000.0, BroadcastChunker.getBytesPerSecond(2000, 10, 100_000_000L), 1e-9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void frameWithoutRoomForData_isRejected() {
+        BroadcastChunker.split(new byte[10], 1, BroadcastChunker.OVERHEAD);
+    }
+}
@@ -0,0 +1,91 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BroadcastReassemblerTest {
+
+    private static byte[] payload(int length, long seed) {
+        byte[] payload = new byte[length];
+        new Random(seed).nextBytes(payload);
+        return payload;
+    }
+
+    @Test
+    public void inOrderFrames_completeInOneCycle() {
+        byte[] payload = payload(4096, 1);
+        byte[][] frames = BroadcastChunker.split(payload, 1, 200);
+        BroadcastReassembler reassembler = new BroadcastReassembler();
+        for (int i = 0; i < frames.length - 1; i++) {
+            assertEquals(BroadcastReassembler.ACCEPTED, reassembler.accept(frames[i]));
+        }
+        assertEquals(BroadcastReassembler.COMPLETE, reassembler.accept(frames[frames.length - 1]));
+        assertArrayEquals(payload, reassembler.getPayload());
+        assertEquals(BroadcastReassembler.DUPLICATE, reassembler.accept(frames[0]));
+    }
+
+    @Test
+    public void emptyPayload_completesFromItsOnlyFrame() {
+        byte[][] frames = BroadcastChunker.split(new byte[0], 1, 64);
+        BroadcastReassembler reassembler = new BroadcastReassembler();
+        assertEquals(BroadcastReassembler.COMPLETE, reassembler.accept(frames[0]));
+        assertEquals(0, reassembler.getPayload().length);
+        assertEquals(0, reassembler.getCorruptCount());
+    }
+
+    @Test
+    public void droppedAndReorderedFrames_completeOnLaterCycles() {
+        byte[] payload = payload(8000, 2);
+        byte[][] frames = BroadcastChunker.split(payload, 3, 240);
+        BroadcastReassembler reassembler = new BroadcastReassembler();
+        Random random = new Random(3);
+        int cycles = 0;
+        while (!reassembler.isComplete()) {
+            cycles++;
+            assertTrue("no completion after " + cycles + " cycles", cycles < 50);
+            for (byte[] frame : frames) {
+                // 30 % of the frames are lost
+                if (random.nextInt(10) >= 3) {
+                    reassembler.accept(frame);
+                }
+            }
+        }
+        assertTrue(cycles > 1);
+        assertArrayEquals(payload, reassembler.getPayload());
+        assertEquals(0, reassembler.getCorruptCount());
+    }
+
+    @Test
+    public void corruptedFrame_isDropped() {
+        byte[][] frames = BroadcastChunker.split(payload(500, 4), 1, 100);
+        BroadcastReassembler reassembler = new BroadcastReassembler();
+        byte[] damaged = frames[0].clone();
+        damaged[BroadcastChunker.HEADER_LENGTH + 5] ^= 0x10;
+        assertEquals(BroadcastReassembler.CORRUPT, reassembler.accept(damaged));
+        assertEquals(BroadcastReassembler.CORRUPT, reassembler.accept(damaged, 0, 4));
+        assertEquals(0, reassembler.getReceivedChunkCount());
+        assertEquals(BroadcastReassembler.ACCEPTED, reassembler.accept(frames[0]));
+        assertEquals(BroadcastReassembler.DUPLICATE, reassembler.accept(frames[0]));
+        assertEquals(2, reassembler.getCorruptCount());
+        assertEquals(1, reassembler.getDuplicateCount());
+    }
+
+    @Test
+    public void newTransfer_startsOver() {
+        byte[][] first = BroadcastChunker.split(payload(1000, 5), 1, 100);
+        byte[] secondPayload = payload(300, 6);
+        byte[][] second = BroadcastChunker.split(secondPayload, 2, 100);
+        BroadcastReassembler reassembler = new BroadcastReassembler();
+        reassembler.accept(first[0]);
+        reassembler.accept(first[1]);
+        for (byte[] frame : second) {
+            reassembler.accept(frame);
+        }
+        assertEquals(2, reassembler.getTransferId());
+        assertEquals(2, reassembler.getTransferCount());
+        assertArrayEquals(secondPayload, reassembler.getPayload());
+    }
+}
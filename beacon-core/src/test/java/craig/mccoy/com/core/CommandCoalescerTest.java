@@ -0,0 +1,58 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CommandCoalescerTest {
+
+    private static long replace(int code) {
+        return BeaconCommand.encode(BeaconCommand.OP_REPLACE, BeaconType.AltBeacon, code);
+    }
+
+    @Test
+    public void stopThenStart_becomesOneReplace() {
+        CommandCoalescer coalescer = new CommandCoalescer(4);
+        coalescer.offer(BeaconCommand.encode(BeaconCommand.OP_REMOVE_ALL));
+        coalescer.offer(replace(1));
+        assertArrayEquals(new long[] { replace(1) }, coalescer.drain());
+        assertEquals(2, coalescer.getSubmittedCount());
+        assertEquals(1, coalescer.getDrainedCount());
+        assertEquals(1, coalescer.getMergedCount());
+    }
+
+    @Test
+    public void repeatedStarts_resolveToTheLast() {
+        CommandCoalescer coalescer = new CommandCoalescer(1);
+        for (int i = 0; i < 100; i++) {
+            coalescer.offer(BeaconCommand.encode(BeaconCommand.OP_REMOVE_ALL));
+            coalescer.offer(replace(i));
+        }
+        assertArrayEquals(new long[] { replace(99) }, coalescer.drain());
+        assertTrue(coalescer.isEmpty());
+    }
+
+    @Test
+    public void setCode_mergesOnlyTheSameType() {
+        CommandCoalescer coalescer = new CommandCoalescer(4);
+        long alt1 = BeaconCommand.encode(BeaconCommand.OP_SET_CODE, BeaconType.AltBeacon, 1);
+        long alt2 = BeaconCommand.encode(BeaconCommand.OP_SET_CODE, BeaconType.AltBeacon, 2);
+        long uid3 = BeaconCommand.encode(BeaconCommand.OP_SET_CODE, BeaconType.EddystoneUid, 3);
+        coalescer.offer(alt1);
+        coalescer.offer(alt2);
+        coalescer.offer(uid3);
+        assertArrayEquals(new long[] { alt2, uid3 }, coalescer.drain());
+    }
+
+    @Test
+    public void callbacks_areBarriers() {
+        CommandCoalescer coalescer = new CommandCoalescer(4);
+        long add = BeaconCommand.encode(BeaconCommand.OP_ADD, BeaconType.IBeacon, 0);
+        long callback = BeaconCommand.encode(BeaconCommand.OP_CALLBACK, null, 7);
+        coalescer.offer(add);
+        coalescer.offer(callback);
+        coalescer.offer(add);
+        coalescer.offer(replace(5));
+        assertArrayEquals(new long[] { add, callback, replace(5) }, coalescer.drain());
+    }
+}
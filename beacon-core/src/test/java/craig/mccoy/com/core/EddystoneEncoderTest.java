@@ -0,0 +1,70 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class EddystoneEncoderTest {
+    private static final byte[] UUID_BYTES = BeaconEncoder.getIdAsBytes(UUID.fromString("B8CE3F1D-D741-482A-B466-CE3F46B5B1C8"));
+
+    @Test
+    public void uid_matchesLayout() {
+        byte[] frame = new byte[20];
+        assertEquals(20, EddystoneEncoder.encodeUid(UUID_BYTES, 0x0000A1B2C3D4E5F6L, (byte) -11, frame, 0));
+        assertEquals(0x00, frame[0]);
+        assertEquals(-11, frame[1]);
+        assertArrayEquals(new byte[]{(byte) 0xB8, (byte) 0xCE, 0x3F, 0x1D, (byte) 0xCE, 0x3F, 0x46, (byte) 0xB5, (byte) 0xB1, (byte) 0xC8},
+                java.util.Arrays.copyOfRange(frame, 2, 12));
+        assertArrayEquals(new byte[]{(byte) 0xA1, (byte) 0xB2, (byte) 0xC3, (byte) 0xD4, (byte) 0xE5, (byte) 0xF6},
+                java.util.Arrays.copyOfRange(frame, 12, 18));
+        assertEquals(0, frame[18]);
+        assertEquals(0, frame[19]);
+    }
+
+    @Test
+    public void url_isCompressed() {
+        byte[] frame = new byte[20];
+        int length = EddystoneEncoder.encodeUrl("https://www.example.com/", (byte) -11, frame, 0);
+        // frame type, tx power, scheme, "example", .com/
+        assertEquals(3 + 7 + 1, length);
+        assertEquals(0x10, frame[0]);
+        assertEquals(0x01, frame[2]);
+        assertEquals(0x00, frame[10]);
+        assertEquals("https://www.example.com/", EddystoneEncoder.decodeUrl(frame, 0, length));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decodeUrl_rejectsUnknownScheme() {
+        byte[] frame = new byte[20];
+        int length = EddystoneEncoder.encodeUrl("https://www.example.com/", (byte) -11, frame, 0);
+        frame[2] = (byte) 0xF0;
+        EddystoneEncoder.decodeUrl(frame, 0, length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void url_tooLong() {
+        EddystoneEncoder.encodeUrl("https://a-very-long-host-name.example.com/", (byte) 0, new byte[20], 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void url_unsupportedScheme() {
+        EddystoneEncoder.encodeUrl("ftp://example.com", (byte) 0, new byte[20], 0);
+    }
+
+    @Test
+    public void tlm_updateRewritesFieldsInPlace() {
+        byte[] frame = new byte[16];
+        assertEquals(14, EddystoneEncoder.encodeTlm(3000, EddystoneEncoder.toFixed88(215), 1, 2, frame, 2));
+        EddystoneEncoder.updateTlm(frame, 2, 2900, EddystoneEncoder.toFixed88(-50), 100000, 36000);
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        assertEquals(0x20, frame[2]);
+        assertEquals(0x00, frame[3]);
+        assertEquals(2900, buffer.getShort(4));
+        assertEquals((short) (-5 * 256), buffer.getShort(6));
+        assertEquals(100000, buffer.getInt(8));
+        assertEquals(36000, buffer.getInt(12));
+    }
+}
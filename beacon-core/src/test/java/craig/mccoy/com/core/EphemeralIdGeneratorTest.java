@@ -0,0 +1,73 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EphemeralIdGeneratorTest {
+
+    private static byte[] key() {
+        byte[] key = new byte[EphemeralIdGenerator.KEY_LENGTH];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte) i;
+        }
+        return key;
+    }
+
+    // Key 000102..0F, K = 10; computed from the Eddystone-EID formulas with a reference AES
+    @Test
+    public void computeId_matchesTheReferenceValues() {
+        EphemeralIdGenerator generator = new EphemeralIdGenerator(key(), 10);
+        assertEquals(0xdf8e76bbfec4efc5L, generator.computeId(0));
+        assertEquals(0x08936c97f2d65340L, generator.computeId(0x12d687));
+        assertEquals(0xdbb4dc143e0cf3f3L, generator.computeId(0x12345678));
+        assertEquals(0x010fa535fd5f9d26L, generator.computeId(0xFFFFFFFFL));
+    }
+
+    @Test
+    public void computeId_isStableWithinAPeriodOnly() {
+        EphemeralIdGenerator generator = new EphemeralIdGenerator(key(), 8);
+        assertEquals(256, generator.getPeriodSeconds());
+        assertEquals(generator.computeId(0x1000), generator.computeId(0x10FF));
+        assertNotEquals(generator.computeId(0x1000), generator.computeId(0x1100));
+        assertNotEquals(generator.computeId(0x1000), new EphemeralIdGenerator(new byte[16], 8).computeId(0x1000));
+    }
+
+    @Test
+    public void window_matchesDirectComputation_acrossTemporaryKeys() {
+        EphemeralIdGenerator generator = new EphemeralIdGenerator(key(), 12);
+        // Starts just before a temporary key change at 0x20000
+        EphemeralIdWindow window = generator.computeWindow(0x1F123, 64);
+        assertEquals(0x1F000, window.getStartCounter());
+        assertEquals(0x1F000 + 64 * 4096L, window.getEndCounter());
+        EphemeralIdGenerator reference = new EphemeralIdGenerator(key(), 12);
+        for (long counter = window.getStartCounter(); counter < window.getEndCounter(); counter += 1000) {
+            assertEquals(new EphemeralIdGenerator(key(), 12).computeId(counter), window.getId(counter));
+            assertEquals(reference.computeId(counter), window.getId(counter));
+        }
+        assertFalse(window.contains(window.getEndCounter()));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void window_rejectsCountersOutside() {
+        new EphemeralIdGenerator(key(), 4).computeWindow(1000, 4).getId(991);
+    }
+
+    @Test
+    public void patch_writesTheIdentifierField() {
+        long id = 0x1122334455667788L;
+        byte[] iBeacon = BeaconEncoder.encode(BeaconType.IBeacon, new byte[16], 0);
+        EphemeralIdGenerator.patch(BeaconType.IBeacon, iBeacon, id);
+        assertEquals(0x11, iBeacon[BeaconEncoder.I_BEACON_MAJOR_OFFSET]);
+        assertEquals(0x44, iBeacon[BeaconEncoder.I_BEACON_MINOR_OFFSET + 1]);
+
+        byte[] altBeacon = BeaconEncoder.encode(BeaconType.AltBeacon, new byte[16], 0);
+        EphemeralIdGenerator.patch(BeaconType.AltBeacon, altBeacon, id);
+        assertEquals(0x11, altBeacon[BeaconEncoder.ALT_BEACON_CODE_OFFSET]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortKey_isRejected() {
+        new EphemeralIdGenerator(new byte[8], 10);
+    }
+}
@@ -0,0 +1,51 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets_arePowersOfTwoMicroseconds() {
+        assertEquals(0, LatencyHistogram.bucketOf(999));
+        assertEquals(1, LatencyHistogram.bucketOf(1000));
+        assertEquals(2, LatencyHistogram.bucketOf(2000));
+        assertEquals(2, LatencyHistogram.bucketOf(3999));
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentiles_useBucketUpperBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1_500_000);      // 1.5 ms
+        }
+        histogram.record(90_000_000);         // 90 ms
+        assertEquals(100, histogram.getCount());
+        assertEquals(2_048_000, histogram.getPercentileNanos(50));
+        assertEquals(2_048_000, histogram.getPercentileNanos(99));
+        assertEquals(90_000_000, histogram.getPercentileNanos(100));
+        assertEquals(90_000_000, histogram.getMaxNanos());
+        assertEquals((99 * 1_500_000L + 90_000_000L) / 100, histogram.getMeanNanos());
+    }
+
+    @Test
+    public void concurrentRecording_countsEverything() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    histogram.record(i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400000, histogram.getCount());
+        assertEquals(99999, histogram.getMaxNanos());
+    }
+}
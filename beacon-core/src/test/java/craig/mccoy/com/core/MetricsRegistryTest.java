@@ -0,0 +1,93 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void counter_isRegisteredOnce() {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsRegistry.Counter counter = registry.counter("starts");
+        assertSame(counter, registry.counter("starts"));
+        counter.increment();
+        counter.add(2);
+        assertEquals(3, registry.getValue("starts"));
+        assertEquals(0, registry.getValue("unknown"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nameClash_isRejected() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("starts");
+        registry.histogram("starts");
+    }
+
+    @Test
+    public void gauge_isReadAtSnapshotAndCanBeReplaced() {
+        MetricsRegistry registry = new MetricsRegistry();
+        long[] value = {1};
+        registry.gauge("beacons", () -> value[0]);
+        value[0] = 5;
+        assertEquals(5, registry.getValue("beacons"));
+        registry.gauge("beacons", () -> 7);
+        assertEquals(7, registry.getValue("beacons"));
+        registry.remove("beacons");
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void dump_listsMetricsByName() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("b.count").add(4);
+        registry.histogram("a.latency").record(1_500_000);
+        registry.gauge("c.gauge", () -> 9);
+        StringWriter out = new StringWriter();
+        registry.dump(new PrintWriter(out, true));
+        String[] lines = out.toString().split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].startsWith("a.latency: count=1 "));
+        assertEquals("b.count: 4", lines[1].trim());
+        assertEquals("c.gauge: 9", lines[2].trim());
+    }
+
+    @Test
+    public void snapshot_whileWritersRun() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsRegistry.Counter counter = registry.counter("events");
+        LatencyHistogram histogram = registry.histogram("latency");
+        AtomicBoolean isRunning = new AtomicBoolean(true);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 200_000; i++) {
+                    counter.increment();
+                    histogram.record(i);
+                }
+            });
+            writers[t].start();
+        }
+        Thread reader = new Thread(() -> {
+            long last = 0;
+            while (isRunning.get()) {
+                registry.dump(new PrintWriter(new StringWriter()));
+                long value = registry.getValue("events");
+                assertTrue(value >= last);
+                last = value;
+            }
+        });
+        reader.start();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        isRunning.set(false);
+        reader.join();
+        assertEquals(800_000, counter.get());
+        assertEquals(800_000, histogram.getCount());
+    }
+}
@@ -0,0 +1,160 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PresenceAggregatorTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final List<String> events = new ArrayList<>();
+
+    private final PresenceAggregator.Listener listener = new PresenceAggregator.Listener() {
+        @Override
+        public void onEnter(BeaconType beaconType, int code, int zone, long timestampNanos) {
+            events.add("enter " + beaconType + " " + code + " " + zone + " @" + timestampNanos / MS);
+        }
+
+        @Override
+        public void onExit(BeaconType beaconType, int code, int zone, long dwellNanos, long timestampNanos) {
+            events.add("exit " + beaconType + " " + code + " " + zone + " dwell=" + dwellNanos / MS
+                    + " @" + timestampNanos / MS);
+        }
+    };
+
+    // 5 s exit timeout, 10 s window of 10 buckets
+    private PresenceAggregator createAggregator(int capacity) {
+        return new PresenceAggregator(capacity, 4, 5000, 10_000, 10, listener);
+    }
+
+    @Test
+    public void repeatedDetections_enterOnce() {
+        PresenceAggregator aggregator = createAggregator(16);
+        for (int i = 0; i < 10; i++) {
+            aggregator.onDetection(BeaconType.AltBeacon, 7, 1, i * 100 * MS);
+        }
+        assertEquals(1, events.size());
+        assertEquals("enter AltBeacon 7 1 @0", events.get(0));
+        assertEquals(1, aggregator.getOccupancy(1));
+        assertEquals(1, aggregator.getZone(BeaconType.AltBeacon, 7));
+        assertEquals(900 * MS, aggregator.getDwellNanos(BeaconType.AltBeacon, 7));
+        assertEquals(10, aggregator.getDetectionCount(1, SECOND));
+        assertEquals(1, aggregator.getEntryCount(1, SECOND));
+    }
+
+    @Test
+    public void silence_exitsAfterTheTimeout() {
+        PresenceAggregator aggregator = createAggregator(16);
+        aggregator.onDetection(BeaconType.AltBeacon, 7, 1, 0);
+        aggregator.onDetection(BeaconType.AltBeacon, 7, 1, SECOND);
+        assertEquals(0, aggregator.advance(6 * SECOND - 1));
+        assertEquals(1, aggregator.advance(6 * SECOND + 200 * MS));
+        assertEquals("exit AltBeacon 7 1 dwell=1000 @6000", events.get(1));
+        assertEquals(0, aggregator.getOccupancy(1));
+        assertEquals(-1, aggregator.getZone(BeaconType.AltBeacon, 7));
+        assertEquals(-1, aggregator.getDwellNanos(BeaconType.AltBeacon, 7));
+        assertEquals(200 * MS, aggregator.getExitDelays().getMaxNanos());
+        assertEquals(0, aggregator.size());
+
+        // Heard again: a new visit
+        aggregator.onDetection(BeaconType.AltBeacon, 7, 1, 7 * SECOND);
+        assertEquals("enter AltBeacon 7 1 @7000", events.get(2));
+        assertEquals(2, aggregator.getEntryCount(1, 7 * SECOND));
+    }
+
+    @Test
+    public void exits_followTheOrderBeaconsWereLastHeard() {
+        PresenceAggregator aggregator = createAggregator(16);
+        aggregator.onDetection(BeaconType.AltBeacon, 1, 0, 0);
+        aggregator.onDetection(BeaconType.IBeacon, 1, 0, 0);
+        aggregator.onDetection(BeaconType.AltBeacon, 2, 0, 0);
+        // The first one is heard again, so it stays longest
+        aggregator.onDetection(BeaconType.AltBeacon, 1, 0, 2 * SECOND);
+        assertEquals(3, aggregator.getOccupancy(0));
+        assertEquals(2, aggregator.advance(5 * SECOND));
+        assertTrue(events.get(3).startsWith("exit IBeacon 1 0"));
+        assertTrue(events.get(4).startsWith("exit AltBeacon 2 0"));
+        assertEquals(1, aggregator.getOccupancy(0));
+        assertEquals(1, aggregator.advance(7 * SECOND));
+    }
+
+    @Test
+    public void zoneChange_exitsTheOldZoneFirst() {
+        PresenceAggregator aggregator = createAggregator(16);
+        aggregator.onDetection(BeaconType.IBeacon, 0x00010002, 2, 0);
+        aggregator.onDetection(BeaconType.IBeacon, 0x00010002, 3, 1500 * MS);
+        assertEquals(3, events.size());
+        assertEquals("exit IBeacon 65538 2 dwell=0 @1500", events.get(1));
+        assertEquals("enter IBeacon 65538 3 @1500", events.get(2));
+        assertEquals(0, aggregator.getOccupancy(2));
+        assertEquals(1, aggregator.getOccupancy(3));
+        assertEquals(0, aggregator.getDwellNanos(BeaconType.IBeacon, 0x00010002));
+    }
+
+    @Test
+    public void window_slidesBucketByBucket() {
+        PresenceAggregator aggregator = createAggregator(16);
+        // One detection per second for 20 s
+        for (int s = 0; s < 20; s++) {
+            aggregator.onDetection(BeaconType.AltBeacon, 1, 0, s * SECOND);
+        }
+        assertEquals(10, aggregator.getDetectionCount(0, 19 * SECOND));
+        assertEquals(5, aggregator.getDetectionCount(0, 24 * SECOND));
+        assertEquals(0, aggregator.getDetectionCount(0, 40 * SECOND));
+        // Older than the window by now
+        aggregator.onDetection(BeaconType.AltBeacon, 1, 0, 20 * SECOND);
+        assertEquals(1, aggregator.getLateCount());
+        assertEquals(0, aggregator.getDetectionCount(0, 40 * SECOND));
+        // Within the window: counted in its own bucket
+        aggregator.onDetection(BeaconType.AltBeacon, 1, 0, 35 * SECOND);
+        assertEquals(1, aggregator.getDetectionCount(0, 40 * SECOND));
+        assertEquals(0, aggregator.getDetectionCount(0, 45 * SECOND));
+    }
+
+    @Test
+    public void fullTable_pushesOutTheBeaconHeardLeastRecently() {
+        PresenceAggregator aggregator = createAggregator(4);
+        for (int code = 0; code < 4; code++) {
+            aggregator.onDetection(BeaconType.AltBeacon, code, 0, code * MS);
+        }
+        aggregator.onDetection(BeaconType.AltBeacon, 0, 0, 10 * MS);
+        aggregator.onDetection(BeaconType.AltBeacon, 100, 0, 20 * MS);
+        assertEquals(4, aggregator.size());
+        assertEquals(1, aggregator.getEvictedCount());
+        assertEquals(-1, aggregator.getZone(BeaconType.AltBeacon, 1));
+        assertEquals(0, aggregator.getZone(BeaconType.AltBeacon, 0));
+        assertEquals(4, aggregator.getOccupancy(0));
+    }
+
+    @Test
+    public void churn_keepsTheTableConsistent() {
+        PresenceAggregator aggregator = new PresenceAggregator(64, 8, 1000, 10_000, 10, new PresenceAggregator.Listener() { });
+        Random random = new Random(3);
+        long now = 0;
+        for (int i = 0; i < 200_000; i++) {
+            now += random.nextInt(2) * MS;
+            aggregator.onDetection(random.nextBoolean() ? BeaconType.AltBeacon : BeaconType.IBeacon,
+                    random.nextInt(300), random.nextInt(8), now);
+            if ((i & 127) == 0) {
+                aggregator.advance(now);
+            }
+        }
+        int occupied = 0;
+        for (int zone = 0; zone < 8; zone++) {
+            occupied += aggregator.getOccupancy(zone);
+        }
+        assertEquals(aggregator.size(), occupied);
+        assertTrue(aggregator.size() <= 64);
+        assertEquals(aggregator.getEnterCount() - aggregator.getExitCount(), aggregator.size());
+        aggregator.advance(now + 2 * SECOND);
+        assertEquals(0, aggregator.size());
+        assertEquals(aggregator.getEnterCount(), aggregator.getExitCount());
+    }
+}
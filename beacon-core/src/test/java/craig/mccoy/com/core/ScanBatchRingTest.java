@@ -0,0 +1,106 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScanBatchRingTest {
+
+    private static byte[] record(int value) {
+        return new byte[] { 2, 1, 6, 3, (byte) 0xFF, (byte) value, 0 };
+    }
+
+    @Test
+    public void batches_comeOutInOrderUntilFull() {
+        ScanBatchRing ring = new ScanBatchRing(3, 4, 8);
+        assertEquals(4, ring.capacity());
+        for (int i = 0; i < 4; i++) {
+            ScanBatchRing.Batch batch = ring.claim(ScanBatchRing.KEEP_ALL);
+            assertTrue(batch.add(record(i), -60 - i, i));
+            ring.publish();
+        }
+        assertNull(ring.claim(ScanBatchRing.KEEP_ALL));
+        assertEquals(4, ring.size());
+
+        for (int i = 0; i < 4; i++) {
+            ScanBatchRing.Batch batch = ring.peek();
+            assertEquals(1, batch.size());
+            assertEquals(i, batch.getRecords()[batch.getOffset(0) + 5]);
+            assertEquals(-60 - i, batch.getRssi(0));
+            assertEquals(i, batch.getTimestampNanos(0));
+            ring.release();
+        }
+        assertNull(ring.peek());
+        assertNotNull(ring.claim(ScanBatchRing.KEEP_ALL));
+    }
+
+    @Test
+    public void dropDuplicates_keepsTheFirstOfEachRecord() {
+        ScanBatchRing ring = new ScanBatchRing(2, 8, 8);
+        ScanBatchRing.Batch batch = ring.claim(ScanBatchRing.DROP_DUPLICATES);
+        assertTrue(batch.add(record(1), -60, 0));
+        assertFalse(batch.add(record(1), -50, 1));
+        assertTrue(batch.add(record(2), -60, 2));
+        assertEquals(2, batch.size());
+        assertEquals(-60, batch.getRssi(0));
+        assertEquals(1, batch.getDuplicateCount());
+    }
+
+    @Test
+    public void downsample_keepsEveryOtherDistinctRecord() {
+        ScanBatchRing ring = new ScanBatchRing(2, 8, 8);
+        ScanBatchRing.Batch batch = ring.claim(ScanBatchRing.DOWNSAMPLE);
+        for (int i = 0; i < 6; i++) {
+            batch.add(record(i), -60, i);
+            batch.add(record(i), -60, i);
+        }
+        assertEquals(3, batch.size());
+        assertEquals(6, batch.getDuplicateCount());
+        assertEquals(3, batch.getDownsampledCount());
+        assertEquals(2, batch.getTimestampNanos(1));
+    }
+
+    @Test
+    public void fullBatch_countsOverflowAndLongRecordsAreCut() {
+        ScanBatchRing ring = new ScanBatchRing(2, 2, 4);
+        ScanBatchRing.Batch batch = ring.claim(ScanBatchRing.KEEP_ALL);
+        assertTrue(batch.add(record(1), -60, 0));
+        assertTrue(batch.add(null, -60, 0));
+        assertFalse(batch.add(record(3), -60, 0));
+        assertEquals(4, batch.getLength(0));
+        assertEquals(0, batch.getLength(1));
+        assertEquals(1, batch.getOverflowCount());
+        // Claiming the same slot again starts it over
+        batch = ring.claim(ScanBatchRing.KEEP_ALL);
+        assertEquals(0, batch.size());
+        assertEquals(0, batch.getOverflowCount());
+    }
+
+    @Test
+    public void producerAndConsumerThreads_seeEveryBatch() throws Exception {
+        ScanBatchRing ring = new ScanBatchRing(8, 1, 8);
+        int batches = 200_000;
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < batches; i++) {
+                ScanBatchRing.Batch batch;
+                while ((batch = ring.claim(ScanBatchRing.KEEP_ALL)) == null) {
+                    Thread.yield();
+                }
+                batch.add(record(i), 0, i);
+                ring.publish();
+            }
+        });
+        producer.start();
+        for (int i = 0; i < batches; i++) {
+            ScanBatchRing.Batch batch;
+            while ((batch = ring.peek()) == null) {
+                Thread.yield();
+            }
+            assertEquals(i, batch.getTimestampNanos(0));
+            assertEquals((byte) i, batch.getRecords()[batch.getOffset(0) + 5]);
+            ring.release();
+        }
+        producer.join();
+        assertEquals(0, ring.size());
+    }
+}
@@ -0,0 +1,172 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+public class ScanIngestionPipelineTest {
+
+    /** A synthetic scan result: the record, RSSI and timestamp the platform would report. */
+    static final class Result {
+        final byte[] record;
+        final int rssi;
+        final long timestampNanos;
+
+        Result(byte[] record, int rssi, long timestampNanos) {
+            this.record = record;
+            this.rssi = rssi;
+            this.timestampNanos = timestampNanos;
+        }
+    }
+
+    static final ScanIngestionPipeline.ResultReader<Result> READER = new ScanIngestionPipeline.ResultReader<Result>() {
+        @Override
+        public byte[] getRecord(Result result) {
+            return result.record;
+        }
+
+        @Override
+        public int getRssi(Result result) {
+            return result.rssi;
+        }
+
+        @Override
+        public long getTimestampNanos(Result result) {
+            return result.timestampNanos;
+        }
+    };
+
+    private static final byte[] UUID = new byte[BeaconEncoder.UUID_LENGTH];
+
+    /**
+     * Flags, then the AltBeacon manufacturer data, as ScanRecord.getBytes() returns them.
+     */
+    static byte[] altBeaconRecord(int code) {
+        byte[] record = new byte[3 + 4 + BeaconEncoder.ALT_BEACON_LENGTH];
+        record[0] = 2;
+        record[1] = 1;
+        record[2] = 6;
+        record[3] = (byte) (3 + BeaconEncoder.ALT_BEACON_LENGTH);
+        record[4] = (byte) 0xFF;
+        record[5] = (byte) BeaconEncoder.ALT_BEACON_MANUFACTURER_ID;
+        record[6] = 0;
+        byte[] data = new byte[BeaconEncoder.ALT_BEACON_LENGTH];
+        BeaconEncoder.encodeAltBeacon(UUID, code, data);
+        System.arraycopy(data, 0, record, 7, data.length);
+        return record;
+    }
+
+    private static List<Result> batch(int firstCode, int count, long timestampNanos) {
+        List<Result> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            results.add(new Result(altBeaconRecord(firstCode + i), -70, timestampNanos));
+        }
+        return results;
+    }
+
+    @Test
+    public void beacons_reachTheSink() {
+        List<Integer> codes = new ArrayList<>();
+        ScanIngestionPipeline pipeline = new ScanIngestionPipeline(4, 16, 62,
+                (frame, rssi, timestampNanos) -> codes.add(frame.code), new MetricsRegistry());
+        List<Result> results = batch(10, 3, 5);
+        results.add(new Result(new byte[] { 2, 1, 6 }, -80, 6));
+        results.add(new Result(null, -80, 7));
+        assertTrue(pipeline.offer(results, READER));
+        assertEquals(1, pipeline.getQueueDepth());
+        assertEquals(1, pipeline.drain());
+        assertEquals(3, codes.size());
+        assertEquals(10, (int) codes.get(0));
+        assertEquals(12, (int) codes.get(2));
+        assertEquals(5, pipeline.getProcessedCount());
+        assertEquals(3, pipeline.getBeaconCount());
+        assertEquals(0, pipeline.getDroppedCount());
+        assertEquals(1, pipeline.getBatchLatency().getCount());
+    }
+
+    @Test
+    public void throughput_countsOnlyThisPipeline() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        ScanIngestionPipeline first = new ScanIngestionPipeline(4, 16, 62, (frame, rssi, timestampNanos) -> { }, metrics);
+        assertTrue(first.offer(batch(10, 8, 5), READER));
+        assertEquals(1, first.drain());
+        assertTrue(first.getThroughput() > 0);
+
+        ScanIngestionPipeline second = new ScanIngestionPipeline(4, 16, 62, (frame, rssi, timestampNanos) -> { }, metrics);
+        assertEquals(8, second.getProcessedCount());
+        assertEquals(0, second.getThroughput(), 0);
+    }
+
+    @Test
+    public void backlog_shedsLoadInSteps() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        ScanIngestionPipeline pipeline = new ScanIngestionPipeline(8, 16, 62,
+                (frame, rssi, timestampNanos) -> { }, metrics);
+        // Each batch hears the same 4 beacons twice
+        List<Result> results = batch(0, 4, 0);
+        results.addAll(batch(0, 4, 1));
+        for (int i = 0; i < 10; i++) {
+            pipeline.offer(results, READER);
+        }
+        // 4 batches kept whole, 2 deduplicated, 2 deduplicated and downsampled, 2 dropped
+        assertEquals(8, pipeline.getQueueDepth());
+        assertEquals(8, pipeline.getMaxQueueDepth());
+        assertEquals(4 * 4, pipeline.getDuplicateCount());
+        assertEquals(2 * 2, pipeline.getDownsampledCount());
+        assertEquals(2 * 8, pipeline.getOverflowCount());
+        assertEquals(2, metrics.getValue("scan.dropped.batches"));
+        assertEquals(8, metrics.getValue("scan.queue_depth"));
+
+        assertEquals(8, pipeline.drain());
+        assertEquals(4 * 8 + 2 * 4 + 2 * 2, pipeline.getProcessedCount());
+        assertEquals(pipeline.getOfferedCount(), pipeline.getProcessedCount() + pipeline.getDroppedCount());
+        // Drained, so the next batch is kept whole again
+        pipeline.offer(results, READER);
+        pipeline.drain();
+        assertEquals(4 * 4, pipeline.getDuplicateCount());
+    }
+
+    @Test
+    public void flood_againstASlowWorker_accountsForEveryResult() throws Exception {
+        AtomicLong delivered = new AtomicLong();
+        ScanIngestionPipeline pipeline = new ScanIngestionPipeline(16, 256, 62, (frame, rssi, timestampNanos) -> {
+            delivered.incrementAndGet();
+            // A sink slower than the scanner
+            if ((frame.code & 63) == 0) {
+                LockSupport.parkNanos(20_000);
+            }
+        }, new MetricsRegistry());
+        pipeline.start();
+        Random random = new Random(1);
+        List<List<Result>> batches = new ArrayList<>();
+        for (int b = 0; b < 32; b++) {
+            List<Result> results = new ArrayList<>();
+            for (int i = 0; i < 256; i++) {
+                // 200 beacons, so batches repeat beacons the way a busy scan does
+                results.add(new Result(altBeaconRecord(random.nextInt(200)), -40 - random.nextInt(50), b));
+            }
+            batches.add(results);
+        }
+        int offered = 0;
+        for (int i = 0; i < 2000; i++) {
+            pipeline.offer(batches.get(i % batches.size()), READER);
+            offered += 256;
+        }
+        pipeline.stop();
+
+        assertEquals(offered, pipeline.getOfferedCount());
+        assertEquals(0, pipeline.getQueueDepth());
+        assertEquals(offered, pipeline.getProcessedCount() + pipeline.getDroppedCount());
+        assertEquals(pipeline.getProcessedCount(), delivered.get());
+        assertTrue(pipeline.getDroppedCount() > 0);
+        assertTrue(pipeline.getMaxQueueDepth() <= 16);
+        assertEquals(pipeline.getOfferedCount() / 256 - pipeline.getOverflowCount() / 256,
+                pipeline.getBatchLatency().getCount());
+    }
+}
@@ -0,0 +1,88 @@
+package craig.mccoy.com.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScanRecordParserTest {
+    private static final long UUID_MSB = 0xB8CE3F1DD741482AL;
+    private static final long UUID_LSB = 0xB466CE3F46B5B1C8L;
+
+    // Flags, then the AltBeacon manufacturer data as advertised by this app, zero padded to 62 bytes
+    private static final byte[] ALT_BEACON_RECORD = toBytes(
+            "020106"
+            + "1BFFE000" + "BEAC" + "B8CE3F1DD741482AB466CE3F46B5B1C8" + "12345678" + "CC" + "00",
+            62);
+
+    // Flags, then the iBeacon manufacturer data (major 1, minor 0)
+    private static final byte[] I_BEACON_RECORD = toBytes(
+            "020106"
+            + "1AFF4C00" + "0215" + "B8CE3F1DD741482AB466CE3F46B5B1C8" + "0001" + "0000" + "CC",
+            30);
+
+    @Test
+    public void parsesAltBeacon() {
+        BeaconFrame frame = new BeaconFrame();
+        assertTrue(ScanRecordParser.parse(ALT_BEACON_RECORD, frame));
+        assertEquals(BeaconType.AltBeacon, frame.beaconType);
+        assertEquals(BeaconEncoder.ALT_BEACON_MANUFACTURER_ID, frame.manufacturerId);
+        assertEquals(UUID_MSB, frame.uuidMostSignificantBits);
+        assertEquals(UUID_LSB, frame.uuidLeastSignificantBits);
+        assertEquals(0x12345678, frame.code);
+        assertEquals(-52, frame.referenceRssi);
+    }
+
+    @Test
+    public void parsesIBeacon() {
+        BeaconFrame frame = new BeaconFrame();
+        assertTrue(ScanRecordParser.parse(I_BEACON_RECORD, frame));
+        assertEquals(BeaconType.IBeacon, frame.beaconType);
+        assertEquals(BeaconEncoder.I_BEACON_MANUFACTURER_ID, frame.manufacturerId);
+        assertEquals(UUID_MSB, frame.uuidMostSignificantBits);
+        assertEquals(UUID_LSB, frame.uuidLeastSignificantBits);
+        assertEquals(1, frame.getMajor());
+        assertEquals(0, frame.getMinor());
+        assertEquals(-52, frame.referenceRssi);
+    }
+
+    @Test
+    public void parsesWhatTheEncoderProduces() {
+        byte[] uuid = new byte[16];
+        BeaconEncoder.putUuid(uuid, 0, UUID_MSB, UUID_LSB);
+        byte[] altBeacon = BeaconEncoder.encode(BeaconType.AltBeacon, uuid, 0xCAFE);
+        byte[] record = new byte[4 + altBeacon.length];
+        record[0] = (byte) (3 + altBeacon.length);
+        record[1] = (byte) 0xFF;
+        record[2] = (byte) BeaconEncoder.ALT_BEACON_MANUFACTURER_ID;
+        System.arraycopy(altBeacon, 0, record, 4, altBeacon.length);
+
+        BeaconFrame frame = new BeaconFrame();
+        assertTrue(ScanRecordParser.parse(record, frame));
+        assertEquals(0xCAFE, frame.code);
+    }
+
+    @Test
+    public void ignoresOtherAdvertisements() {
+        BeaconFrame frame = new BeaconFrame();
+        // Flags, complete local name "Beacon", TX power
+        assertFalse(ScanRecordParser.parse(toBytes("020106" + "0709426561636F6E" + "020A00", 0), frame));
+        // Manufacturer data of another format
+        assertFalse(ScanRecordParser.parse(toBytes("1AFF4C00" + "1005" + "000000000000000000000000000000000000000000", 0), frame));
+        assertFalse(ScanRecordParser.parse(new byte[0], frame));
+        assertFalse(ScanRecordParser.parse(null, frame));
+    }
+
+    @Test
+    public void ignoresTruncatedStructures() {
+        byte[] truncated = java.util.Arrays.copyOf(ALT_BEACON_RECORD, 20);
+        assertFalse(ScanRecordParser.parse(truncated, new BeaconFrame()));
+    }
+
+    private static byte[] toBytes(String hex, int paddedLength) {
+        byte[] bytes = new byte[Math.max(paddedLength, hex.length() / 2)];
+        for (int i = 0; i < hex.length() / 2; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}